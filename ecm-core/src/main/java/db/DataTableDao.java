@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map.Entry;
 
@@ -25,6 +26,13 @@ public class DataTableDao {
 	// key: Plug-in Name(String), value: DataRecord
 	private HashMap<String, DataRecord> pluginDataTable;
 
+	/** The plugin data table by ECU. */
+	// key: remote ECU id, value: records of the plug-ins on that ECU
+	private HashMap<Integer, HashMap<String, DataRecord>> ecuIndex = new HashMap<Integer, HashMap<String, DataRecord>>();
+
+	/** The journal that changes to the table are written to. */
+	private PluginJournal journal;
+
 	/** The db path. */
 	private static final String DB_PATH = "db" + File.separator;
 
@@ -32,7 +40,38 @@ public class DataTableDao {
 	 * Instantiates a new data table dao.
 	 */
 	public DataTableDao() {
-		pluginDataTable = fileToMap();
+		journal = new PluginJournal(DB_PATH);
+		boolean oldTable = new File(DB_PATH + "plugin.DB").exists();
+		// convert a table written by earlier versions
+		boolean convert = !journal.exists() && oldTable;
+		try {
+			pluginDataTable = journal.load();
+		} catch (IOException e) {
+			logger.error("Could not load the plugin table: " + e);
+			e.printStackTrace();
+			journal.setAside();
+			pluginDataTable = new HashMap<String, DataRecord>();
+			// plugin.DB is kept after it has been converted, and is
+			// better than no table at all
+			convert = oldTable;
+		}
+		if (convert) {
+			HashMap<String, DataRecord> table = fileToMap();
+			if (table == null) {
+				logger.error("Could not read " + DB_PATH + "plugin.DB");
+			} else {
+				pluginDataTable = table;
+				try {
+					journal.snapshot(table);
+				} catch (IOException e) {
+					logger.error("Could not write the plugin table: " + e);
+					e.printStackTrace();
+				}
+				System.out.println("Plugin table read from " + DB_PATH
+						+ "plugin.DB: " + table.size() + " plugins");
+			}
+		}
+		rebuildIndex();
 //		if (pluginTableExists()) {
 //			pluginDataTable = (HashMap<String, DataRecord>) fileToMap();
 //		} else {
@@ -41,7 +80,7 @@ public class DataTableDao {
 //		}
 	}
 
-	public void insertRecord(String pluginName, DataRecord dataRecord) {
+	public synchronized void insertRecord(String pluginName, DataRecord dataRecord) {
 		// to check if application exists
 		if (pluginDataTable.containsKey(pluginName)) {
 			System.out.println("@ Plugin (" + pluginName
@@ -49,13 +88,21 @@ public class DataTableDao {
 			//return;
 		}
 		{
-			pluginDataTable.put(pluginName, dataRecord);
+			DataRecord old = pluginDataTable.put(pluginName, dataRecord);
+			if (old != null)
+				unindex(pluginName, old);
+			index(pluginName, dataRecord);
 			// to synchronize memory with storage
-			this.object2File(pluginDataTable);
+			try {
+				journal.put(pluginName, dataRecord, pluginDataTable);
+			} catch (IOException e) {
+				logger.debug(e.toString());
+				e.printStackTrace();
+			}
 		}
 	}
 
-	public DataRecord getRecord(String pluginName) {
+	public synchronized DataRecord getRecord(String pluginName) {
 		return pluginDataTable.get(pluginName);
 	}
 	/**
@@ -64,33 +111,70 @@ public class DataTableDao {
 	 * @param localPluginID
 	 *            the local plugin id
 	 */
-	public void removeRecord(String pluginName) {
-		pluginDataTable.remove(pluginName);
+	public synchronized void removeRecord(String pluginName) {
+		DataRecord old = pluginDataTable.remove(pluginName);
+		if (old == null)
+			return;
+		unindex(pluginName, old);
 
 		// to synchronize memory with storage
-		this.object2File(pluginDataTable);
+		try {
+			journal.remove(pluginName, pluginDataTable);
+		} catch (IOException e) {
+			logger.debug(e.toString());
+			e.printStackTrace();
+		}
 	}
 	
 
-	public HashMap<String, DataRecord> getInstalledAppRecords(int targetEcuId) {
-		HashMap<String, DataRecord> result = new HashMap<String, DataRecord>();
-		Iterator<Entry<String, DataRecord>> iterator = pluginDataTable.entrySet().iterator();
+	/**
+	 * Gets the locations of the plug-in files of all records.
+	 */
+	public synchronized HashSet<String> getLocations() {
+		HashSet<String> locations = new HashSet<String>();
+		for (DataRecord record : pluginDataTable.values())
+			locations.add(record.getLocation());
+		return locations;
+	}
+
+	public synchronized HashMap<String, DataRecord> getInstalledAppRecords(int targetEcuId) {
 		System.out.println("getInstalledAppRecords " + targetEcuId);
+		HashMap<String, DataRecord> records = ecuIndex.get(targetEcuId);
+		if (records == null)
+			return new HashMap<String, DataRecord>();
+		return new HashMap<String, DataRecord>(records);
+	}
+
+	private void index(String pluginName, DataRecord dataRecord) {
+		HashMap<String, DataRecord> records = ecuIndex.get(dataRecord
+				.getRemoteEcuId());
+		if (records == null) {
+			records = new HashMap<String, DataRecord>();
+			ecuIndex.put(dataRecord.getRemoteEcuId(), records);
+		}
+		records.put(pluginName, dataRecord);
+	}
+
+	private void unindex(String pluginName, DataRecord dataRecord) {
+		HashMap<String, DataRecord> records = ecuIndex.get(dataRecord
+				.getRemoteEcuId());
+		if (records != null) {
+			records.remove(pluginName);
+			if (records.isEmpty())
+				ecuIndex.remove(dataRecord.getRemoteEcuId());
+		}
+	}
+
+	private void rebuildIndex() {
+		ecuIndex.clear();
+		Iterator<Entry<String, DataRecord>> iterator = pluginDataTable.entrySet().iterator();
 		while(iterator.hasNext()) {
 			Entry<String, DataRecord> entry = iterator.next();
-			DataRecord value = entry.getValue();
-			int recordEcuId = value.getRemoteEcuId();
-			System.out.println(" " + recordEcuId + " " + entry.getKey());
-			if(targetEcuId == recordEcuId) {
-				String key = entry.getKey();
-				result.put(key, value);
-			}
+			index(entry.getKey(), entry.getValue());
 		}
-		
-		return result;
 	}
 	
-	public int getAppId(String pluginName) {
+	public synchronized int getAppId(String pluginName) {
 		DataRecord dataRecord = pluginDataTable.get(pluginName);
 //		System.out.println("ddddddd "+pluginName);
 		int appId = dataRecord.getAppId();
@@ -212,8 +296,15 @@ public class DataTableDao {
 		return pluginDataTable;
 	}
 
-	public void setPluginDataTable(HashMap<String, DataRecord> pluginDataTable) {
+	public synchronized void setPluginDataTable(HashMap<String, DataRecord> pluginDataTable) {
 		this.pluginDataTable = pluginDataTable;
+		rebuildIndex();
+		try {
+			journal.snapshot(pluginDataTable);
+		} catch (IOException e) {
+			logger.debug(e.toString());
+			e.printStackTrace();
+		}
 	}
 
 }
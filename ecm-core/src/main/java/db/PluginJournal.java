@@ -0,0 +1,337 @@
+package db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import messages.LinkContextEntry;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persistence of the plugin table as a snapshot plus an append-only journal.
+ *
+ * Every change is appended to the journal as one entry and synced before the
+ * call returns. After SNAPSHOT_INTERVAL entries the whole table is written to
+ * a new snapshot, which replaces the old one by an atomic rename, and the
+ * journal starts over. Loading reads the snapshot and replays the journal on
+ * top of it, stopping at the first entry that is cut short or fails its
+ * checksum, which is what a crash in the middle of an append leaves behind.
+ *
+ * Journal entry: 4: payload size(N), N: payload, 4: CRC32 of payload.
+ * Payload: 1: operation, UTF: plugin name, and for PUT the record.
+ * Snapshot: 4: magic, 4: record count, then one PUT payload per record, 4:
+ * CRC32 of all payloads.
+ */
+public class PluginJournal {
+
+	/** The logger. */
+	private static Logger logger = Logger.getLogger(PluginJournal.class);
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final int SNAPSHOT_MAGIC = 0x4d504442; // "MPDB"
+	private static final int SNAPSHOT_INTERVAL = 64;
+
+	private File snapshotFile;
+	private File journalFile;
+	private FileOutputStream journal;
+	private int journalEntries;
+
+	public PluginJournal(String dir) {
+		File dest = new File(dir);
+		if (!dest.exists())
+			dest.mkdirs();
+		snapshotFile = new File(dir, "plugin.snapshot");
+		journalFile = new File(dir, "plugin.journal");
+	}
+
+	public boolean exists() {
+		return snapshotFile.exists() || journalFile.exists();
+	}
+
+	/**
+	 * Renames a snapshot and journal that could not be loaded out of the way,
+	 * so that the next snapshot does not overwrite what may still be
+	 * recovered from them, and starts an empty journal.
+	 */
+	public void setAside() {
+		close();
+		String suffix = ".damaged." + System.currentTimeMillis();
+		for (File file : new File[] { snapshotFile, journalFile }) {
+			if (!file.exists())
+				continue;
+			File aside = new File(file.getPath() + suffix);
+			if (file.renameTo(aside))
+				logger.error("Set " + file + " aside as " + aside);
+			else
+				logger.error("Could not set " + file + " aside");
+		}
+		journalEntries = 0;
+	}
+
+	/**
+	 * Reads the snapshot, replays the journal and opens the journal for
+	 * appending.
+	 */
+	public HashMap<String, DataRecord> load() throws IOException {
+		HashMap<String, DataRecord> table = new HashMap<String, DataRecord>();
+		if (snapshotFile.exists())
+			readSnapshot(table);
+
+		long validLength = 0;
+		journalEntries = 0;
+		if (journalFile.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(journalFile)));
+			try {
+				while (true) {
+					int size = in.readInt();
+					if (size <= 0 || size > journalFile.length())
+						break;
+					byte[] payload = new byte[size];
+					in.readFully(payload);
+					if (in.readInt() != crc(payload))
+						break;
+					apply(table, payload);
+					validLength += 4 + size + 4;
+					journalEntries++;
+				}
+			} catch (EOFException e) {
+				// end of journal, or an entry cut short by a crash
+			} finally {
+				in.close();
+			}
+			if (validLength < journalFile.length()) {
+				logger.debug("Dropping " + (journalFile.length() - validLength)
+						+ " bytes of incomplete journal");
+				RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+				try {
+					raf.setLength(validLength);
+				} finally {
+					raf.close();
+				}
+			}
+		}
+		journal = new FileOutputStream(journalFile, true);
+		return table;
+	}
+
+	public void put(String pluginName, DataRecord record,
+			HashMap<String, DataRecord> table) throws IOException {
+		append(encode(PUT, pluginName, record), table);
+	}
+
+	public void remove(String pluginName, HashMap<String, DataRecord> table)
+			throws IOException {
+		append(encode(REMOVE, pluginName, null), table);
+	}
+
+	private void append(byte[] payload, HashMap<String, DataRecord> table)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				payload.length + 8);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.writeInt(crc(payload));
+		// not open if the table could not be loaded
+		if (journal == null)
+			journal = new FileOutputStream(journalFile, true);
+		journal.write(bytes.toByteArray());
+		journal.getFD().sync();
+
+		if (++journalEntries >= SNAPSHOT_INTERVAL)
+			snapshot(table);
+	}
+
+	/**
+	 * Writes the whole table to a new snapshot and empties the journal.
+	 */
+	public void snapshot(HashMap<String, DataRecord> table) throws IOException {
+		File tmp = new File(snapshotFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(fos));
+			CRC32 crc = new CRC32();
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(table.size());
+			for (Entry<String, DataRecord> entry : table.entrySet()) {
+				byte[] payload = encode(PUT, entry.getKey(), entry.getValue());
+				crc.update(payload);
+				out.write(payload);
+			}
+			out.writeInt((int) crc.getValue());
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		Files.move(tmp.toPath(), snapshotFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		// A crash before this point replays the old journal over the new
+		// snapshot, which gives the same table
+		if (journal != null)
+			journal.close();
+		journal = new FileOutputStream(journalFile, false);
+		journal.getFD().sync();
+		journalEntries = 0;
+	}
+
+	private void readSnapshot(HashMap<String, DataRecord> table)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(snapshotFile)));
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC)
+				throw new IOException("Not a plugin snapshot: " + snapshotFile);
+			int count = in.readInt();
+			HashMap<String, DataRecord> records = new HashMap<String, DataRecord>();
+			CheckedInputStream checked = new CheckedInputStream(in,
+					new CRC32());
+			DataInputStream recordIn = new DataInputStream(checked);
+			for (int i = 0; i < count; i++) {
+				recordIn.readByte();
+				String pluginName = recordIn.readUTF();
+				records.put(pluginName, readRecord(recordIn));
+			}
+			if (in.readInt() != (int) checked.getChecksum().getValue())
+				throw new IOException("Checksum mismatch in " + snapshotFile);
+			table.putAll(records);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void apply(HashMap<String, DataRecord> table, byte[] payload)
+			throws IOException {
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(payload));
+		byte op = in.readByte();
+		String pluginName = in.readUTF();
+		if (op == PUT)
+			table.put(pluginName, readRecord(in));
+		else if (op == REMOVE)
+			table.remove(pluginName);
+	}
+
+	private byte[] encode(byte op, String pluginName, DataRecord record)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(op);
+		out.writeUTF(pluginName);
+		if (op == PUT) {
+			out.writeInt(record.getAppId());
+			out.writeInt(record.getRemoteEcuId());
+			out.writeInt(record.getSendingPortID());
+			out.writeInt(record.getCallbackPortID());
+			writeString(out, record.getPluginName());
+			writeString(out, record.getExecutablePluginName());
+			writeString(out, record.getLocation());
+
+			HashMap<String, Integer> context = record.getPortInitialContext();
+			out.writeInt(context == null ? -1 : context.size());
+			if (context != null) {
+				for (Entry<String, Integer> entry : context.entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeInt(entry.getValue());
+				}
+			}
+
+			ArrayList<LinkContextEntry> links = record.getPortLinkingContext();
+			out.writeInt(links == null ? -1 : links.size());
+			if (links != null) {
+				for (LinkContextEntry link : links) {
+					out.writeInt(link.getFromPortId());
+					out.writeInt(link.getToPortId());
+					out.writeInt(link.getRemotePortId());
+				}
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private DataRecord readRecord(DataInputStream in) throws IOException {
+		int appId = in.readInt();
+		int remoteEcuId = in.readInt();
+		int sendingPortID = in.readInt();
+		int callbackPortID = in.readInt();
+		String pluginName = readString(in);
+		String executablePluginName = readString(in);
+		String location = readString(in);
+
+		HashMap<String, Integer> context = null;
+		int contextSize = in.readInt();
+		if (contextSize >= 0) {
+			context = new HashMap<String, Integer>();
+			for (int i = 0; i < contextSize; i++) {
+				String key = in.readUTF();
+				context.put(key, in.readInt());
+			}
+		}
+
+		ArrayList<LinkContextEntry> links = null;
+		int linkCount = in.readInt();
+		if (linkCount >= 0) {
+			links = new ArrayList<LinkContextEntry>(linkCount);
+			for (int i = 0; i < linkCount; i++) {
+				links.add(new LinkContextEntry(in.readInt(), in.readInt(), in
+						.readInt()));
+			}
+		}
+
+		return new DataRecord(appId, remoteEcuId, sendingPortID,
+				callbackPortID, pluginName, executablePluginName, location,
+				context, links);
+	}
+
+	private void writeString(DataOutputStream out, String str)
+			throws IOException {
+		out.writeBoolean(str != null);
+		if (str != null)
+			out.writeUTF(str);
+	}
+
+	private String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private int crc(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+	public void close() {
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				logger.debug(e.toString());
+			}
+			journal = null;
+		}
+	}
+
+}
@@ -0,0 +1,217 @@
+package db;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plug-in suites stored by the SHA-256 of their bytes, one file per suite
+ * named by the hash in hex.
+ *
+ * The same suite in several applications or versions is stored once, and
+ * the hashes are given to the server when connecting, so that it can leave
+ * out the suites the vehicle already has. Suites are read back by mapping
+ * the file, so sending one to an ECU does not copy it onto the heap first.
+ *
+ * A suite that is no longer used by any plug-in is kept, so that installing
+ * it again costs nothing, until the store is cleaned when the ECM starts.
+ * The most recently used of them are kept up to keepBytes.
+ */
+public class PluginStore {
+	private static final String SUFFIX = ".suite";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private File dir;
+
+	private AtomicLong stored = new AtomicLong();
+	private AtomicLong reused = new AtomicLong();
+
+	public PluginStore(String dir) {
+		this.dir = new File(dir);
+		this.dir.mkdirs();
+	}
+
+	/**
+	 * @return the SHA-256 of data, in hex
+	 */
+	public static String hash(byte[] data) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+			char[] hex = new char[digest.length * 2];
+			for (int i = 0; i < digest.length; i++) {
+				hex[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+				hex[2 * i + 1] = HEX[digest[i] & 0xF];
+			}
+			return new String(hex);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Stores a suite, unless a suite with the same hash is already stored.
+	 *
+	 * @return the hash of the suite
+	 */
+	public String put(byte[] data) throws IOException {
+		String hash = hash(data);
+		File file = file(hash);
+		if (file.length() == data.length) {
+			file.setLastModified(System.currentTimeMillis());
+			reused.incrementAndGet();
+			return hash;
+		}
+
+		// Written under another name first, so that a suite is never seen
+		// half written
+		File tmp = new File(dir, hash + ".tmp");
+		FileOutputStream output = new FileOutputStream(tmp);
+		try {
+			output.write(data);
+			output.getFD().sync();
+		} finally {
+			output.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not store suite " + file);
+		}
+		stored.incrementAndGet();
+		return hash;
+	}
+
+	/**
+	 * @return true if a suite with this hash is stored, which then counts as
+	 *         a use of it
+	 */
+	public boolean contains(String hash) {
+		if (!isHash(hash))
+			return false;
+		File file = file(hash);
+		if (!file.isFile())
+			return false;
+		file.setLastModified(System.currentTimeMillis());
+		reused.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @return the path of the suite with this hash
+	 */
+	public String getLocation(String hash) {
+		return file(hash).getPath();
+	}
+
+	/**
+	 * @return the hashes of all stored suites
+	 */
+	public ArrayList<String> getHashes() {
+		ArrayList<String> hashes = new ArrayList<String>();
+		for (File file : list()) {
+			hashes.add(file.getName().substring(0,
+					file.getName().length() - SUFFIX.length()));
+		}
+		return hashes;
+	}
+
+	/**
+	 * Maps a suite file, in the store or elsewhere, for reading.
+	 */
+	public static MappedByteBuffer map(String location) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(location, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long length = channel.size();
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("Could not map file " + location
+						+ " as it is too long (" + length + " bytes)");
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * @return true if the file at this location belongs to the store and
+	 *         should not be deleted with the plug-in
+	 */
+	public boolean isStored(String location) {
+		return new File(location).getAbsoluteFile().getParentFile()
+				.equals(dir.getAbsoluteFile());
+	}
+
+	/**
+	 * Deletes the suites that are not at one of the used locations, keeping
+	 * the most recently used ones up to keepBytes.
+	 *
+	 * @return the number of suites deleted
+	 */
+	public int clean(Set<String> used, long keepBytes) {
+		ArrayList<File> unused = new ArrayList<File>();
+		for (File file : list()) {
+			if (!used.contains(file.getPath()))
+				unused.add(file);
+		}
+		File[] files = unused.toArray(new File[unused.size()]);
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+
+		long kept = 0;
+		int deleted = 0;
+		for (File file : files) {
+			kept += file.length();
+			if (kept > keepBytes && file.delete())
+				deleted++;
+		}
+		return deleted;
+	}
+
+	public String getStats() {
+		return "plugin store " + list().length + " suites, stored "
+				+ stored.get() + ", reused " + reused.get();
+	}
+
+	private File file(String hash) {
+		return new File(dir, hash + SUFFIX);
+	}
+
+	private File[] list() {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return new File[0];
+		ArrayList<File> suites = new ArrayList<File>();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(SUFFIX)
+					&& isHash(name.substring(0, name.length() - SUFFIX.length())))
+				suites.add(file);
+		}
+		return suites.toArray(new File[suites.size()]);
+	}
+
+	// Hashes come from the server; only names made by hash() are accepted
+	private static boolean isHash(String hash) {
+		if (hash == null || hash.length() != 64)
+			return false;
+		for (int i = 0; i < hash.length(); i++) {
+			char c = hash.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+				return false;
+		}
+		return true;
+	}
+}
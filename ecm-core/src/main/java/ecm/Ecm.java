@@ -2,23 +2,25 @@ package ecm;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import db.DataRecord;
 import db.DataTableDao;
+import db.PluginStore;
 import messages.InstallAckMessage;
 import messages.InstallAckPacket;
 import messages.LinkContextEntry;
-import messages.LoadMessage;
 import messages.Message;
 import messages.MessageType;
 import messages.PublishMessage;
@@ -34,6 +36,9 @@ import network.external.CarNav;
 import network.external.CommunicationManager;
 import network.external.IoTManager;
 import network.internal.EcuManager;
+import utils.Latency;
+import utils.PropertyAPI;
+import utils.Trace;
 
 public class Ecm {
 	// interact with ECUs
@@ -47,21 +52,37 @@ public class Ecm {
 	private CarNav carNav;
 	
 	private DataTableDao dbDao;
-	// key: plug-in temporary id
-	private HashMap<Byte, DataRecord> tmpDBRecords = new HashMap<Byte, DataRecord>();
+	private PluginStore pluginStore;
+	// bytes of suites no plug-in uses that are kept for a later install
+	private static final long STORE_KEEP = 4 * 1024 * 1024;
+	// key: plug-in temporary id; filled by the server connection, read by
+	// the control thread
+	private ConcurrentHashMap<Byte, DataRecord> tmpDBRecords = new ConcurrentHashMap<Byte, DataRecord>();
+	// runs what is given to process
+	private EventBus bus = new EventBus(this);
 
 	// key: plug-in temporary id, value: plug-in name
-	private HashMap<Byte, String> id2name4UninstallCache = new HashMap<Byte, String>();
+	private ConcurrentHashMap<Byte, String> id2name4UninstallCache = new ConcurrentHashMap<Byte, String>();
+
+	// key: plug-in temporary id of a LOAD whose acknowledgement is waited for
+	private ConcurrentHashMap<Byte, CountDownLatch> loadAcks = new ConcurrentHashMap<Byte, CountDownLatch>();
+	// last plug-in temporary id given out, see nextPluginId
+	private byte pluginIdAllocator = 0;
 	
     // Define access methods instead of public.
     public String subscriberName = "AllVCU";
     public int subscriberPort = -1;
 
-    public byte [] crashbytes;
+    public volatile byte [] crashbytes;
 
 	public Ecm() {
 	    System.out.println("Ecm new");
 		dbDao = new DataTableDao();
+		pluginStore = new PluginStore(PropertyAPI.getInstance().getProperty(
+				"APP_DIR") + File.separator + "store");
+		int deleted = pluginStore.clean(dbDao.getLocations(), STORE_KEEP);
+		System.out.println(pluginStore.getStats() + ", " + deleted
+				+ " unused deleted");
 	}
 
 	public void init(EcuManager ecuManager, CommunicationManager commuManager,
@@ -81,6 +102,7 @@ public class Ecm {
 		ecuManager.setEcm(this);
 		commuManager.setEcm(this);
 		carDriver.setEcm(this);
+		bus.start();
 		if (carMobile != null) {
 		    carMobile.setEcm(this);
 		}
@@ -94,6 +116,14 @@ public class Ecm {
 	}
 	
 	public void start(String [] args) {
+		Latency.addCounters(new Latency.Counters() {
+			public String getStats() {
+				return "bus " + getBusStats();
+			}
+		});
+		Latency.addCounters(iotManager.getPipeline());
+		Latency.start();
+		Trace.start();
 		new Thread(ecuManager).start();
 		new Thread(carDriver).start();
 		if (carMobile != null) {
@@ -115,12 +145,44 @@ public class Ecm {
 		if (args.length > 0 && args[0].equals("--noinstall")) {
 		    System.out.println("no plugin installation");
 		} else {
-		    loadPlugins(2);
-		    loadPlugins(3);
+		    restorePlugins(new int[] {2, 3});
 		}
 	}
-	
+
+	/**
+	 * Loads the installed plugins to all the given ECUs at the same time, one
+	 * thread per ECU, and returns when all have been sent.
+	 */
+	public void restorePlugins(int[] ecuIds) {
+		long start = System.currentTimeMillis();
+		final ExecutorService prefetcher = Executors.newFixedThreadPool(2);
+		Thread[] loaders = new Thread[ecuIds.length];
+		for (int i = 0; i < ecuIds.length; i++) {
+			final int ecuId = ecuIds[i];
+			loaders[i] = new Thread(new Runnable() {
+				public void run() {
+					loadPlugins(ecuId, prefetcher);
+				}
+			}, "Loader-" + ecuId);
+			loaders[i].start();
+		}
+		for (int i = 0; i < loaders.length; i++) {
+			try {
+				loaders[i].join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		prefetcher.shutdown();
+		System.out.println("Plugin restore done in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
 	public void loadPlugins(int ecuId) {
+		loadPlugins(ecuId, null);
+	}
+
+	private void loadPlugins(int ecuId, ExecutorService prefetcher) {
 		System.out.println("In loadPlugins()");
 		System.out.println("Loading plugins to ecuId: " + ecuId);
 		// Prepare APPs
@@ -171,103 +233,64 @@ public class Ecm {
 		    }
 		}
 		
-		Iterator<Entry<String, DataRecord>> iterator = installedApps.entrySet()
-				.iterator();
-		while (iterator.hasNext()) {
-			Entry<String, DataRecord> entry = iterator.next();
-			DataRecord record = entry.getValue();
-
-			int reference = record.getRemoteEcuId();
-			String executablePluginName = record.getExecutablePluginName();
-			int callbackPortID = record.getCallbackPortID();
-			HashMap<String, Integer> portInitialContext = record
-					.getPortInitialContext();
-			ArrayList<LinkContextEntry> portLinkingContext = record
-					.getPortLinkingContext();
-			String location = record.getLocation();
-			byte[] pluginBytes;
-			try {
-				pluginBytes = readBytesFromFile(location);
-				LoadMessage loadMessage = new LoadMessage(reference,
-						executablePluginName, callbackPortID,
-						portInitialContext, portLinkingContext, pluginBytes);
-
-				process(loadMessage);
-				Thread.sleep(2000);
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-
-		}
+		new Loader(this, ecuId, prefetcher).load(installedApps);
 	}
-	
-	private byte[] readBytesFromFile(String location) throws IOException {
-		File file = new File(location);
-		InputStream is = new FileInputStream(file);
-		// Get the size of the file
-		long length = file.length();
-		// You cannot create an array using a long type.
-		// It needs to be an integer type.
-		// Before converting to an integer type, check
-		// to ensure that file is not larger than Integer.MAX_VALUE.
-		if (length > Integer.MAX_VALUE) {
-			is.close();
-			throw new IOException("Could not completely read file "
-					+ file.getName() + " as it is too long (" + length
-					+ " bytes, max supported " + Integer.MAX_VALUE + ")");
-		}
 
-		// Create the byte array to hold the data
-		byte[] bytes = new byte[(int) length];
-
-		// Read in the bytes
-		int offset = 0;
-		int numRead = 0;
-		while (offset < bytes.length
-				&& (numRead = is.read(bytes, offset, bytes.length - offset)) >= 0) {
-			offset += numRead;
-		}
+	/**
+	 * Hands a message to the thread that serves its kind, see EventBus, and
+	 * returns without waiting for it to be run.
+	 */
+	public void process(Message message) {
+		bus.post(message);
+	}
 
-		// Ensure all the bytes have been read in
-		if (offset < bytes.length) {
-			is.close();
-			throw new IOException("Could not completely read file "
-					+ file.getName());
-		}
+	/**
+	 * Like process, but returns when a control message has been run, e.g.
+	 * when the ECU manager has delivered a LOAD.
+	 */
+	public void processAndWait(Message message) {
+		if (EventBus.isData(message.getMessageType()))
+			bus.post(message);
+		else
+			bus.postAndWait(message);
+	}
 
-		// Close the input stream and return bytes
-		is.close();
-		return bytes;
+	public String getBusStats() {
+		return bus.getStats();
 	}
 
-	public void process(Message message) {
+	// Runs on the EventBus threads
+	void dispatch(Message message) {
 		String pluginName;
 		// the plugin number in the vehicle, starting from 1:
 		byte pluginId;
 		
 		int messageType = message.getMessageType();
-		    if (messageType != MessageType.PWM) {
-			System.out.println(">>> ecm-core/Ecm " + messageType);
-		    }
+		Trace.event(Trace.ECM_IN, messageType);
 		switch (messageType) {
 		case MessageType.INSTALL:
 		case MessageType.UNINSTALL:
 		case MessageType.RESTORE:
 		case MessageType.LOAD:
 		case MessageType.PWM:
-		    if (messageType != MessageType.PWM) {
-			System.out.println("<<< ecm-core/Ecm " + messageType);
-		    }
+			Trace.event(Trace.ECM_OUT, messageType);
+			long sendStart = System.nanoTime();
 			ecuManager.sendMessage(message);
+			if (messageType == MessageType.PWM) {
+				Latency.PWM_TOTAL.recordSince(message.getCreated());
+			} else if (messageType == MessageType.INSTALL) {
+				Latency.INSTALL_ECU.recordSince(sendStart);
+				Latency.INSTALL_TOTAL.recordSince(message.getCreated());
+			}
 			break;
 		case MessageType.INSTALL_ACK:
 			// forward to trusted server
 			InstallAckMessage installAckMessage = (InstallAckMessage) message;
 			pluginId = installAckMessage.getPluginId();
+			if (loadAcked(pluginId)) {
+				// PIRTE acknowledges LOAD like INSTALL
+				break;
+			}
 			pluginName = installAckMessage.getPluginName();
 			System.out.println("INSTALL_ACK in Ecm");
 			System.out.println("@@@ pluginName:"+pluginName);
@@ -294,7 +317,10 @@ public class Ecm {
 			String location = record.getLocation();
 			System.out.println("location = " + location);
 			
-			deletePlugInFile(location);
+			// a stored suite may be used by other plug-ins, and is kept
+			// for a later install until the store is cleaned
+			if (!pluginStore.isStored(location))
+				deletePlugInFile(location);
 			removeRecord(pluginName);
 			
 			System.out.println("UNINSTALL_ACK pluginName " + pluginName);
@@ -321,12 +347,11 @@ public class Ecm {
 			PublishMessage publishMessage = (PublishMessage) message;
 			String key = publishMessage.getKey();
 			String value = publishMessage.getValue();
-			System.out.println("[Publish in ECM] - key: " + key + ", value: "
-					+ value);
+			Trace.event(Trace.ECM_PUBLISH, key.length(), value.length());
 			PublishPacket publishPacket = new PublishPacket(key, value);
-		    System.out.println("<<< ecm-core/Ecm " + messageType);
 		    if (iotManager != null) {
 			iotManager.sendPacket(publishPacket);
+			Latency.PUBLISH_ECM.recordSince(message.getCreated());
 		    }
 			break;
 		case MessageType.PLUGIN_MESSAGE:
@@ -410,6 +435,10 @@ public class Ecm {
 		return commuManager;
 	}
 
+	public PluginStore getPluginStore() {
+		return pluginStore;
+	}
+
 	public IoTManager getIotManager() {
 		return iotManager;
 	}
@@ -439,4 +468,50 @@ public class Ecm {
 	public boolean hasPluginInUninstallCache(Byte pluginId) {
 		return id2name4UninstallCache.containsKey(pluginId);
 	}
+
+	/**
+	 * Gives out the temporary id of a plug-in sent to an ECU, shared by
+	 * INSTALL, UNINSTALL and LOAD so that an acknowledgement names one of
+	 * them. The id is acknowledged in 6 bits on CAN, so it runs from 1 to 63.
+	 */
+	public synchronized byte nextPluginId() {
+		pluginIdAllocator = (byte) (pluginIdAllocator % 63 + 1);
+		return pluginIdAllocator;
+	}
+
+	/**
+	 * Registers a LOAD whose acknowledgement awaitLoadAck will wait for;
+	 * call it before the LOAD is sent.
+	 */
+	public void expectLoadAck(byte pluginId) {
+		loadAcks.put(pluginId, new CountDownLatch(1));
+	}
+
+	/**
+	 * Called by the ECU manager for an acknowledgement; returns false if
+	 * no LOAD with that id is waited for.
+	 */
+	public boolean loadAcked(byte pluginId) {
+		CountDownLatch ack = loadAcks.get(pluginId);
+		if (ack == null)
+			return false;
+		ack.countDown();
+		return true;
+	}
+
+	/**
+	 * Waits at most timeout ms for the acknowledgement of a LOAD given to
+	 * expectLoadAck, and returns whether it came.
+	 */
+	public boolean awaitLoadAck(byte pluginId, long timeout)
+			throws InterruptedException {
+		CountDownLatch ack = loadAcks.get(pluginId);
+		if (ack == null)
+			return false;
+		try {
+			return ack.await(timeout, TimeUnit.MILLISECONDS);
+		} finally {
+			loadAcks.remove(pluginId, ack);
+		}
+	}
 }
@@ -0,0 +1,290 @@
+package ecm;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import messages.Message;
+import messages.MessageType;
+import utils.Latency;
+
+/**
+ * Takes the messages given to Ecm.process off the threads that produce
+ * them, and runs them on one of two threads of its own.
+ * 
+ * The data plane (PWM, PUBLISH, PLUGIN_MESSAGE) is served by the "Ecm-data"
+ * thread from preallocated single-producer rings, one per producing thread
+ * and kind of message. The ring of a thread that has ended is dropped once
+ * it is empty, so threads that come and go (e.g. the I/O threads of MINA)
+ * leave nothing behind. PWM rings are always emptied first, so a steering
+ * command waits for at most one other data message. When a ring is full the
+ * message is dropped and counted.
+ * 
+ * The control plane (INSTALL, UNINSTALL, RESTORE, LOAD and their ACKs) is
+ * served in order by the "Ecm-control" thread from a bounded queue. A
+ * producer waits when the queue is full, as these messages must not be lost.
+ * A large INSTALL thus no longer holds up steering.
+ * 
+ * A thread of the bus that posts a message of its own plane runs it at once.
+ */
+class EventBus {
+	private static final int RING_SIZE = 256;
+	private static final int CONTROL_QUEUE_SIZE = 64;
+	// ms between reports of dropped messages
+	private static final int DROP_REPORT_INTERVAL = 10000;
+	// ms between looks for rings of producers that have ended
+	private static final int SWEEP_INTERVAL = 1000;
+
+	private static class ControlEvent {
+		private Message message;
+		// counted down when the message has been run, if someone waits
+		private CountDownLatch done;
+
+		private ControlEvent(Message message, CountDownLatch done) {
+			this.message = message;
+			this.done = done;
+		}
+	}
+
+	private Ecm ecm;
+	private Thread dataThread;
+	private Thread controlThread;
+
+	// Rings of all producers; replaced, never changed, when one is added
+	private volatile EventRing[] pwmRings = new EventRing[0];
+	private volatile EventRing[] dataRings = new EventRing[0];
+	private ThreadLocal<EventRing> pwmRing = new ThreadLocal<EventRing>() {
+		protected EventRing initialValue() {
+			return addRing(true);
+		}
+	};
+	private ThreadLocal<EventRing> dataRing = new ThreadLocal<EventRing>() {
+		protected EventRing initialValue() {
+			return addRing(false);
+		}
+	};
+	private volatile boolean dataWaiting = false;
+
+	private ArrayBlockingQueue<ControlEvent> control = new ArrayBlockingQueue<ControlEvent>(
+			CONTROL_QUEUE_SIZE);
+
+	private AtomicLong dataRun = new AtomicLong();
+	private AtomicLong dataDropped = new AtomicLong();
+	private AtomicLong controlRun = new AtomicLong();
+	private volatile long lastDropReport;
+	// only used by the data thread
+	private long lastSweep;
+
+	EventBus(Ecm ecm) {
+		this.ecm = ecm;
+	}
+
+	void start() {
+		dataThread = new Thread("Ecm-data") {
+			public void run() {
+				runData();
+			}
+		};
+		dataThread.setDaemon(true);
+		// steering goes through here
+		dataThread.setPriority(Thread.MAX_PRIORITY);
+		dataThread.start();
+
+		controlThread = new Thread("Ecm-control") {
+			public void run() {
+				runControl();
+			}
+		};
+		controlThread.setDaemon(true);
+		controlThread.start();
+	}
+
+	static boolean isData(int messageType) {
+		return messageType == MessageType.PWM
+				|| messageType == MessageType.PUBLISH
+				|| messageType == MessageType.PLUGIN_MESSAGE;
+	}
+
+	void post(Message message) {
+		int type = message.getMessageType();
+		if (isData(type)) {
+			if (Thread.currentThread() == dataThread) {
+				run(message);
+				return;
+			}
+			EventRing ring = type == MessageType.PWM ? pwmRing.get()
+					: dataRing.get();
+			if (!ring.offer(message)) {
+				dropped();
+				return;
+			}
+			if (dataWaiting)
+				LockSupport.unpark(dataThread);
+		} else {
+			postControl(message, null);
+		}
+	}
+
+	/**
+	 * Posts a control message and returns when it has been run.
+	 */
+	void postAndWait(Message message) {
+		CountDownLatch done = new CountDownLatch(1);
+		if (postControl(message, done)) {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// false if the message was not queued
+	private boolean postControl(Message message, CountDownLatch done) {
+		if (Thread.currentThread() == controlThread) {
+			run(message);
+			return false;
+		}
+		try {
+			control.put(new ControlEvent(message, done));
+			return true;
+		} catch (InterruptedException e) {
+			System.out.println("Ecm: interrupted, message "
+					+ message.getMessageType() + " lost");
+			return false;
+		}
+	}
+
+	// Called by the producing thread, which the ring belongs to
+	private synchronized EventRing addRing(boolean pwm) {
+		EventRing ring = new EventRing(RING_SIZE);
+		if (pwm) {
+			EventRing[] rings = Arrays.copyOf(pwmRings, pwmRings.length + 1);
+			rings[rings.length - 1] = ring;
+			pwmRings = rings;
+		} else {
+			EventRing[] rings = Arrays.copyOf(dataRings, dataRings.length + 1);
+			rings[rings.length - 1] = ring;
+			dataRings = rings;
+		}
+		return ring;
+	}
+
+	// Drops the rings of producers that have ended and left nothing in them.
+	// A thread seen to have ended has finished its last offer, so an empty
+	// ring of it stays empty.
+	private synchronized void sweep() {
+		pwmRings = live(pwmRings);
+		dataRings = live(dataRings);
+	}
+
+	private static EventRing[] live(EventRing[] rings) {
+		int n = 0;
+		EventRing[] kept = new EventRing[rings.length];
+		for (EventRing ring : rings) {
+			if (ring.producer.isAlive() || ring.size() > 0)
+				kept[n++] = ring;
+		}
+		return n == rings.length ? rings : Arrays.copyOf(kept, n);
+	}
+
+	private void runData() {
+		while (true) {
+			Message message = pollData();
+			if (message == null) {
+				long now = System.currentTimeMillis();
+				if (now - lastSweep >= SWEEP_INTERVAL) {
+					lastSweep = now;
+					sweep();
+				}
+				// look again after saying we wait, so that a producer that
+				// did not see the flag has left its message for us to find
+				dataWaiting = true;
+				message = pollData();
+				if (message == null) {
+					LockSupport.park(this);
+					dataWaiting = false;
+					continue;
+				}
+				dataWaiting = false;
+			}
+
+			if (message.getMessageType() == MessageType.PWM)
+				Latency.BUS_PWM.recordSince(message.getCreated());
+			else
+				Latency.BUS_DATA.recordSince(message.getCreated());
+			run(message);
+			dataRun.incrementAndGet();
+		}
+	}
+
+	private Message pollData() {
+		EventRing[] rings = pwmRings;
+		for (int i = 0; i < rings.length; i++) {
+			Message message = rings[i].poll();
+			if (message != null)
+				return message;
+		}
+		rings = dataRings;
+		for (int i = 0; i < rings.length; i++) {
+			Message message = rings[i].poll();
+			if (message != null)
+				return message;
+		}
+		return null;
+	}
+
+	private void runControl() {
+		while (true) {
+			ControlEvent event;
+			try {
+				event = control.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			Latency.BUS_CONTROL.recordSince(event.message.getCreated());
+			try {
+				run(event.message);
+			} finally {
+				controlRun.incrementAndGet();
+				if (event.done != null)
+					event.done.countDown();
+			}
+		}
+	}
+
+	private void run(Message message) {
+		try {
+			ecm.dispatch(message);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void dropped() {
+		long n = dataDropped.incrementAndGet();
+		long now = System.currentTimeMillis();
+		if (now - lastDropReport >= DROP_REPORT_INTERVAL) {
+			lastDropReport = now;
+			System.out.println("Ecm: data ring full, " + n
+					+ " messages dropped");
+		}
+	}
+
+	int getDataBacklog() {
+		int n = 0;
+		for (EventRing ring : pwmRings)
+			n += ring.size();
+		for (EventRing ring : dataRings)
+			n += ring.size();
+		return n;
+	}
+
+	String getStats() {
+		return "data run " + dataRun.get() + ", dropped " + dataDropped.get()
+				+ ", waiting " + getDataBacklog() + "; control run "
+				+ controlRun.get() + ", waiting " + control.size();
+	}
+}
@@ -0,0 +1,71 @@
+package ecm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import messages.Message;
+
+/**
+ * Bounded ring of messages with one producing thread and one consuming
+ * thread. The slots are allocated once; offer and poll take no lock and
+ * allocate nothing.
+ */
+class EventRing {
+	private final Message[] slots;
+	private final int mask;
+	// next slot to read; written by the consumer only
+	private final AtomicLong head = new AtomicLong();
+	// next slot to write; written by the producer only
+	private final AtomicLong tail = new AtomicLong();
+	// producer's copy of head, so that it does not read head on every offer
+	private long headCache;
+	// the thread that offers; the ring can go once it has ended and the
+	// ring is empty
+	final Thread producer = Thread.currentThread();
+
+	/**
+	 * @param size a power of two
+	 */
+	EventRing(int size) {
+		slots = new Message[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Called by the producer only.
+	 * 
+	 * @return false if the ring is full
+	 */
+	boolean offer(Message message) {
+		long t = tail.get();
+		if (t - headCache >= slots.length) {
+			headCache = head.get();
+			if (t - headCache >= slots.length)
+				return false;
+		}
+		slots[(int) t & mask] = message;
+		// a volatile write, so that the consumer sees the slot, and so that
+		// it is ordered before the producer looks whether to wake it up
+		tail.set(t + 1);
+		return true;
+	}
+
+	/**
+	 * Called by the consumer only.
+	 * 
+	 * @return the oldest message, or null if the ring is empty
+	 */
+	Message poll() {
+		long h = head.get();
+		if (h >= tail.get())
+			return null;
+		int i = (int) h & mask;
+		Message message = slots[i];
+		slots[i] = null;
+		head.lazySet(h + 1);
+		return message;
+	}
+
+	int size() {
+		return (int) (tail.get() - head.get());
+	}
+}
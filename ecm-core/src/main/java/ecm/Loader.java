@@ -1,40 +1,78 @@
 package ecm;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import messages.LinkContextEntry;
 import messages.LoadMessage;
 import db.DataRecord;
+import db.PluginStore;
 
+/**
+ * Sends LOAD for every plugin recorded for one ECU, as done at boot.
+ *
+ * All suite files of the ECU are handed to the prefetcher before the first
+ * LOAD goes out, so reading the next suite overlaps sending the current one.
+ * The suites are mapped, not copied onto the heap; the prefetcher only
+ * brings their pages into memory.
+ * Plugins to the same ECU are sent one after the other: the next LOAD goes
+ * out when PIRTE has acknowledged the current one, or after LOAD_ACK_TIMEOUT
+ * ms, which is also the pause for PIRTE builds that do not acknowledge LOAD.
+ * One Loader per ECU lets the ECUs be restored at the same time, but the
+ * LOADs themselves are still sent one at a time by the Ecm control thread;
+ * only the reading and the waiting for acknowledgements overlap.
+ */
 public class Loader implements Runnable {
+	// ms to wait for PIRTE to acknowledge a LOAD before sending the next
+	private static final int LOAD_ACK_TIMEOUT = 2000;
+
 	private Ecm ecm;
 	private int ecuId;
-	
+	// reads suite files ahead of sending, null to read them when needed
+	private ExecutorService prefetcher;
+
 	public Loader(Ecm ecm, int ecuId) {
+		this(ecm, ecuId, null);
+	}
+
+	public Loader(Ecm ecm, int ecuId, ExecutorService prefetcher) {
 		this.ecm = ecm;
 		this.ecuId = ecuId;
+		this.prefetcher = prefetcher;
 	}
-	
+
 	public void run() {
 		load(ecuId);
 	}
 
 	public void load(int ecuId) {
 		// Prepare APPs
-		HashMap<String, DataRecord> installedApps = ecm.getInstalledApps(ecuId);
+		load(ecm.getInstalledApps(ecuId));
+	}
+
+	public void load(HashMap<String, DataRecord> installedApps) {
 		System.out.println("Checking installed apps, size: " + installedApps.size());
-		Iterator<Entry<String, DataRecord>> iterator = installedApps.entrySet()
-				.iterator();
-		while (iterator.hasNext()) {
-			Entry<String, DataRecord> entry = iterator.next();
-			DataRecord record = entry.getValue();
+		long start = System.currentTimeMillis();
+
+		ArrayList<DataRecord> records = new ArrayList<DataRecord>(
+				installedApps.values());
+		ArrayList<Future<ByteBuffer>> suites = new ArrayList<Future<ByteBuffer>>(
+				records.size());
+		for (DataRecord record : records) {
+			suites.add(prefetch(record.getLocation()));
+		}
+
+		int loaded = 0;
+		for (int i = 0; i < records.size(); i++) {
+			DataRecord record = records.get(i);
 
 			int reference = record.getRemoteEcuId();
 			String executablePluginName = record.getExecutablePluginName();
@@ -42,59 +80,62 @@ public class Loader implements Runnable {
 			HashMap<String, Integer> portInitialContext = record
 					.getPortInitialContext();
 			ArrayList<LinkContextEntry> portLinkingContext = record.getPortLinkingContext();
-			String location = record.getLocation();
-			byte[] pluginBytes;
+			long begin = System.currentTimeMillis();
+			ByteBuffer suite;
 			try {
-				pluginBytes = readBytesFromFile(location);
-				LoadMessage loadMessage = new LoadMessage(reference,
-						executablePluginName, callbackPortID,
-						portInitialContext, portLinkingContext, pluginBytes);
+				suite = suites.get(i).get();
+			} catch (ExecutionException e) {
+				System.out.println("Could not read " + record.getLocation());
+				e.getCause().printStackTrace();
+				continue;
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				return;
+			}
+			long read = System.currentTimeMillis();
 
-				ecm.process(loadMessage);
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
+			LoadMessage loadMessage = new LoadMessage(reference,
+					executablePluginName, callbackPortID,
+					portInitialContext, portLinkingContext, suite);
+			byte pluginId = ecm.nextPluginId();
+			loadMessage.setPluginId(pluginId);
+			ecm.expectLoadAck(pluginId);
+			// returns when the ECU manager has delivered the frame
+			ecm.processAndWait(loadMessage);
+			long sent = System.currentTimeMillis();
+			boolean acked;
+			try {
+				acked = ecm.awaitLoadAck(pluginId, LOAD_ACK_TIMEOUT);
+			} catch (InterruptedException e) {
 				e.printStackTrace();
+				return;
 			}
+			long done = System.currentTimeMillis();
+			loaded++;
 
+			System.out.println("Loaded " + record.getPluginName() + " on ECU "
+					+ ecuId + ": " + suite.remaining() + " bytes, read wait "
+					+ (read - begin) + " ms, load " + (sent - read) + " ms, "
+					+ (acked ? "ack " + (done - sent) + " ms"
+							: "no ack in " + LOAD_ACK_TIMEOUT + " ms"));
 		}
+		System.out.println("Loaded " + loaded + " of " + records.size()
+				+ " plugins on ECU " + ecuId + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
 	}
-	
-	private byte[] readBytesFromFile(String location) throws IOException {
-		File file = new File(location);
-		InputStream is = new FileInputStream(file);
-		// Get the size of the file
-		long length = file.length();
-		// You cannot create an array using a long type.
-		// It needs to be an integer type.
-		// Before converting to an integer type, check
-		// to ensure that file is not larger than Integer.MAX_VALUE.
-		if (length > Integer.MAX_VALUE) {
-			is.close();
-			throw new IOException("Could not completely read file "
-					+ file.getName() + " as it is too long (" + length
-					+ " bytes, max supported " + Integer.MAX_VALUE + ")");
-		}
-
-		// Create the byte array to hold the data
-		byte[] bytes = new byte[(int) length];
 
-		// Read in the bytes
-		int offset = 0;
-		int numRead = 0;
-		while (offset < bytes.length
-				&& (numRead = is.read(bytes, offset, bytes.length - offset)) >= 0) {
-			offset += numRead;
-		}
-
-		// Ensure all the bytes have been read in
-		if (offset < bytes.length) {
-			is.close();
-			throw new IOException("Could not completely read file "
-					+ file.getName());
-		}
-
-		// Close the input stream and return bytes
-		is.close();
-		return bytes;
+	private Future<ByteBuffer> prefetch(final String location) {
+		Callable<ByteBuffer> read = new Callable<ByteBuffer>() {
+			public ByteBuffer call() throws IOException {
+				MappedByteBuffer suite = PluginStore.map(location);
+				suite.load();
+				return suite;
+			}
+		};
+		if (prefetcher != null)
+			return prefetcher.submit(read);
+		FutureTask<ByteBuffer> task = new FutureTask<ByteBuffer>(read);
+		task.run();
+		return task;
 	}
 }
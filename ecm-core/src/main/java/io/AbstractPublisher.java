@@ -1,6 +1,9 @@
 package io;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.lang3.StringUtils;
 
 /**
@@ -29,6 +32,10 @@ public abstract class AbstractPublisher extends AbstractIO {
 	 * the key was published.
 	 */
 	private HashMap<String,LatestValue> keys = new HashMap<String,LatestValue>();
+
+	/* Keys that publishBatch could neither send nor spool.
+	 */
+	private AtomicLong failed = new AtomicLong();
 	
 	/**
 	 * Set the maximum rate at which values should be published.
@@ -69,6 +76,87 @@ public abstract class AbstractPublisher extends AbstractIO {
 		return result;
 	}
 	
+	/**
+	 * Replace sugar strings for several keys in one document.
+	 * The part of the template between the braces around %value% is
+	 * repeated for each key, separated by commas, and the rest of the
+	 * template is kept once. A template such as
+	 * <code>{"datastreams":[{"id":"%key%","current_value":"%value%"}]}</code>
+	 * thus gives one datastreams array with all the values.
+	 * @param template Template in which to perform substitution
+	 * @param values Keys and their current values
+	 * @return Substituted string, or null if the template has no part to
+	 * repeat.
+	 */
+	protected String replace(String template, Map<String, String> values) {
+		int at = template.indexOf("%value%");
+		if (at < 0)
+			return null;
+		int open = template.lastIndexOf('{', at);
+		int close = template.indexOf('}', at);
+		if (open < 0 || close < 0)
+			return null;
+
+		String element = template.substring(open, close + 1);
+		StringBuilder result = new StringBuilder(template.substring(0, open));
+		boolean first = true;
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			if (!first)
+				result.append(',');
+			first = false;
+			result.append(replace(element, entry.getKey(), entry.getValue()));
+		}
+		result.append(template.substring(close + 1));
+		return result.toString();
+	}
+
+	/**
+	 * Publish each key on its own.
+	 * This is what publishers that cannot pack several values together do
+	 * for a batch. publish does not tell a failed send from a key held
+	 * back by rate limiting, so neither is counted as sent, and neither
+	 * as failed.
+	 * @param values Keys and their current values
+	 * @return the number of keys that were sent.
+	 */
+	public int publishBatch(Map<String, String> values) {
+		int n = 0;
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			if (publish(entry.getKey(), entry.getValue()))
+				n++;
+		}
+		return n;
+	}
+
+	public abstract boolean publish(String key, String value);
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Count keys of a batch that could neither be sent nor spooled.
+	 * @param n Number of keys
+	 */
+	protected void failed(int n) {
+		failed.addAndGet(n);
+	}
+
+	/**
+	 * Rate limiting publication decision for several keys.
+	 * @param values Keys and their current values
+	 * @return the keys and values that should be published, in the same
+	 * order.
+	 */
+	protected LinkedHashMap<String, String> shouldPublish(Map<String, String> values) {
+		LinkedHashMap<String, String> result = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			if (shouldPublish(entry.getKey(), entry.getValue()))
+				result.put(entry.getKey(), entry.getValue());
+		}
+		return result;
+	}
+
 	/**
 	 * Rate limiting publication decision.
 	 * This method will decide if an update for the key and its value passed
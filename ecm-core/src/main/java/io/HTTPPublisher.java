@@ -1,6 +1,8 @@
 package io;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.apache.commons.lang3.StringUtils;
 
 /**
@@ -198,4 +200,60 @@ public class HTTPPublisher extends AbstractPublisher implements IPublisher {
 
 		return false;
 	}
+
+	/**
+	 * Publish the values of several keys. For PUT and POST, all keys that
+	 * go to the same URL are sent in one request, with a body made from the
+	 * template as described for replace with a map of values. GET and DELETE
+	 * have no body and are made for each key.
+	 * 
+	 * @param values
+	 *            Keys and their current values
+	 * @return the number of keys whose request could be scheduled.
+	 */
+	@Override
+	public int publishBatch(Map<String, String> values) {
+		if (type != TYPE_PUT && type != TYPE_POST)
+			return super.publishBatch(values);
+
+		// key: URL, value: keys and values for that URL
+		LinkedHashMap<String, LinkedHashMap<String, String>> urls = new LinkedHashMap<String, LinkedHashMap<String, String>>();
+		for (Map.Entry<String, String> entry : shouldPublish(values).entrySet()) {
+			String url = replace(location, entry.getKey(), entry.getValue());
+			LinkedHashMap<String, String> group = urls.get(url);
+			if (group == null) {
+				group = new LinkedHashMap<String, String>();
+				urls.put(url, group);
+			}
+			group.put(entry.getKey(), entry.getValue());
+		}
+
+		final HashMap<String, String> hdrs = getHeaders();
+		int n = 0;
+		for (Map.Entry<String, LinkedHashMap<String, String>> u : urls.entrySet()) {
+			LinkedHashMap<String, String> group = u.getValue();
+			String data = group.size() > 1 ? replace(template, group) : null;
+			if (data == null) {
+				for (Map.Entry<String, String> entry : group.entrySet()) {
+					if (send(u.getKey(), replace(template, entry.getKey(),
+							entry.getValue()), hdrs))
+						n++;
+					else
+						failed(1);
+				}
+			} else if (send(u.getKey(), data, hdrs)) {
+				n += group.size();
+			} else {
+				failed(group.size());
+			}
+		}
+		return n;
+	}
+
+	private boolean send(String url, String data, HashMap<String, String> hdrs) {
+		if (type == TYPE_PUT)
+			return server.put(url, data, hdrs);
+		else
+			return server.post(url, data, hdrs);
+	}
 }
@@ -1,6 +1,7 @@
 package io;
 
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This class should be implemented by all cloud-based publishers
@@ -50,5 +51,21 @@ public interface IPublisher {
 	 * @return true if the attempt to publish was made, false otherwise.
 	 */
 	public boolean publish(String key, String value);
+
+	/**
+	 * Attempt to publish the new values of several keys at once.
+	 * The same rules as for publish apply to each key. Publishers that can
+	 * carry several values in one message or request send them together.
+	 * @param values Keys and their current values
+	 * @return the number of keys that were sent (or spooled); keys held
+	 * back by rate limiting or whose send failed are not counted.
+	 */
+	public int publishBatch(Map<String, String> values);
+
+	/**
+	 * @return the number of keys that publishBatch could neither send nor
+	 * spool.
+	 */
+	public long getFailed();
 	
 }
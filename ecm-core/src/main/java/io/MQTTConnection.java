@@ -7,7 +7,7 @@ package io;
 import java.io.File;
 import java.io.FileFilter;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
 import org.apache.commons.lang3.StringUtils;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
@@ -62,6 +62,11 @@ public class MQTTConnection {
 
     private String uniqueId;
 
+	/**
+	 * Where messages go when they cannot be sent, null to drop them.
+	 */
+	private Spool spool = null;
+
 	/**
 	 * Creates an MQTT connection. The scheme of the URL, in other words, the
 	 * characters straight before the first : sign, can be subject to sugaring
@@ -276,7 +281,37 @@ public class MQTTConnection {
     return topic;
   }
 	
+	/**
+	 * Keep the messages that cannot be sent in a spool, and send them when
+	 * the server can be reached again.
+	 */
+	public void setSpool(Spool spool) {
+		this.spool = spool;
+		if (spool != null) {
+			spool.attach(new Spool.Sender() {
+				public boolean send(String topic, byte[] data) {
+					return publish(topic, data);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Send data to a topic. With a spool, the data goes behind what is
+	 * already spooled, and is spooled if it cannot be sent.
+	 * 
+	 * @return false if the data was neither sent nor spooled.
+	 */
 	public boolean send(String topic, byte[] data) {
+		Spool spool = this.spool;
+		if (spool == null)
+			return publish(topic, data);
+		if (spool.isEmpty() && publish(topic, data))
+			return true;
+		return spool.append(topic, data);
+	}
+
+	private boolean publish(String topic, byte[] data) {
 		// Create an MQTT message with proper payload, retainment and QoS.
 	    if (debug)
 		System.out.println("MQTT send");
@@ -293,12 +328,19 @@ public class MQTTConnection {
 
 		// Try sending
 		try {
+			if (handler == null)
+				throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
 			handler.client.publish(topic, message);
 		} catch (MqttException e) {
 			System.err.println("Cannot send message to " + topic
 					   + ": " +e);
 			try {
-			    this.handler = new MQTTConnectionHandler(the_server, the_uniqueId, the_connection);
+			    // A connection shared with another MQTTConnection was
+			    // opened by that one
+			    if (the_server == null)
+				this.handler = new MQTTConnectionHandler(handler.uri, handler.id, handler.options);
+			    else
+				this.handler = new MQTTConnectionHandler(the_server, the_uniqueId, the_connection);
 			} catch (MqttException e2) {
 			    System.err.println("Cannot restart connection "
 					   + ": " +e2);
@@ -320,7 +362,8 @@ public class MQTTConnection {
 
   private class MQTTConnectionHandler implements MqttCallback {
     private MqttClient client;
-    private HashMap<String, IMessage> dispatchers = new HashMap<>();
+    // Filters subscribed to, and where to re-dispatch what arrives on them
+    private TopicTree<IMessage> dispatchers = new TopicTree<>();
 
       private String uri, id;
       MqttConnectOptions options;
@@ -346,7 +389,7 @@ public class MQTTConnection {
 	  System.out.println(" MQTT1");
         client.subscribe(filter);          // Subscribe to topic filter
 	  System.out.println(" MQTT2");
-        dispatchers.put(filter, dispatch); // Remember filter for re-dispatch on arrival
+        dispatchers.add(filter, dispatch); // Remember filter for re-dispatch on arrival
 	  System.out.println(" MQTT3");
 
         return true;
@@ -385,20 +428,17 @@ public class MQTTConnection {
         System.out.println("Receiving on " + topic + ": " + message);
       }
 
-      // Looks among all existing subscriptions for the one(s) that match the
-      // incoming topic and thus should be triggered with the content of the message
-      System.out.println("dispatcher: " + dispatchers.size());
-      System.out.println("dispatcher set: " + dispatchers.entrySet().size());
-
-      for (Map.Entry<String,IMessage> entry : dispatchers.entrySet()) {
-	  System.out.println("testing dispatcher");
-        if (MQTTSubscription.matchTopics(topic,entry.getKey())) {
-            System.out.println("Topic " + topic + " matches " + entry.getKey() + ", forwarding");
-          if (debug) {
-            System.out.println("Topic " + topic + " matches " + entry.getKey() + ", forwarding");
-          }
-          entry.getValue().receive(topic + ":" + message.toString());
+      // Looks up the subscriptions that match the incoming topic and thus
+      // should be triggered with the content of the message
+      List<IMessage> matching = dispatchers.match(topic);
+      System.out.println("dispatcher: " + matching.size() + " of " + dispatchers.size());
+
+      String text = topic + ":" + message.toString();
+      for (IMessage dispatch : matching) {
+        if (debug) {
+          System.out.println("Topic " + topic + " matches, forwarding");
         }
+        dispatch.receive(text);
       }
     }
   }
@@ -1,6 +1,8 @@
 package io;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -91,6 +93,14 @@ public class MQTTPublisher extends AbstractPublisher implements IPublisher {
     this.template = template;
   }
 
+	/**
+	 * Keep what cannot be sent while the server is unreachable in a spool,
+	 * see MQTTConnection.setSpool.
+	 */
+	public void setSpool(Spool spool) {
+		connection.setSpool(spool);
+	}
+
 	/**
 	 * This will attempt to publish the new value for a key. Publication might
 	 * not occur due to rate limiting conditions or if the value for that key
@@ -123,17 +133,68 @@ public class MQTTPublisher extends AbstractPublisher implements IPublisher {
 							   vin);
 		    String data = replace(template1, key, value);
 
-		    // Isolate the topic to send to from the location. We do this this
-		    // late in order to be able to have topics that would reflect, for
-		    // example, the name of the key being considered for a push.
-		    int dblSlash = url.indexOf("//");
-		    int slash = url.indexOf("/", dblSlash + 2);
-		    String topic = StringUtils.trim(url.substring(slash));
-			
-		    return connection.send(topic, data.getBytes());
+		    return connection.send(topic(url), data.getBytes());
 		}
 
 		return false;
 	    }
 	}
+
+	/**
+	 * Publish the values of several keys, with one MQTT message for all
+	 * keys that go to the same topic. The message is made from the template
+	 * as described for replace with a map of values.
+	 * 
+	 * @param values
+	 *            Keys and their current values
+	 * @return the number of keys that were sent or spooled.
+	 */
+	@Override
+	public int publishBatch(Map<String, String> values) {
+		// key: topic, value: keys and values for that topic
+		LinkedHashMap<String, LinkedHashMap<String, String>> topics = new LinkedHashMap<String, LinkedHashMap<String, String>>();
+		for (Map.Entry<String, String> entry : shouldPublish(values).entrySet()) {
+			String topic = topic(replace(connection.getLocation(),
+					entry.getKey(), entry.getValue()));
+			LinkedHashMap<String, String> group = topics.get(topic);
+			if (group == null) {
+				group = new LinkedHashMap<String, String>();
+				topics.put(topic, group);
+			}
+			group.put(entry.getKey(), entry.getValue());
+		}
+
+		String template1 = StringUtils.replace(template, "%VIN%", vin);
+		int n = 0;
+		for (Map.Entry<String, LinkedHashMap<String, String>> t : topics.entrySet()) {
+			LinkedHashMap<String, String> group = t.getValue();
+			String data = group.size() > 1 ? replace(template1, group) : null;
+			if (data != null) {
+				if (connection.send(t.getKey(), data.getBytes()))
+					n += group.size();
+				else
+					failed(group.size());
+			} else {
+				for (Map.Entry<String, String> entry : group.entrySet()) {
+					if (connection.send(t.getKey(), replace(template1,
+							entry.getKey(), entry.getValue()).getBytes()))
+						n++;
+					else
+						failed(1);
+				}
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Isolate the topic to send to from the location. We do this this late in
+	 * order to be able to have topics that would reflect, for example, the
+	 * name of the key being considered for a push.
+	 */
+	private String topic(String url) {
+		int dblSlash = url.indexOf("//");
+		int slash = url.indexOf("/", dblSlash + 2);
+		return StringUtils.trim(url.substring(slash));
+	}
 }
@@ -1,151 +1,209 @@
 package io;
 
+import java.util.Arrays;
+
 public class PatternMatcher {
 
+	// Kinds of pattern items
+	private static final byte LITERAL = 0;
+	private static final byte ANY = 1;
+	private static final byte CLASS = 2;
+	private static final byte STAR = 3;
+	// A trailing backslash, which nothing matches
+	private static final byte NONE = 4;
+
+	private final String pattern;
+	private final byte[] kinds;
+	// The character of a LITERAL item
+	private final char[] chars;
+	// Ranges of a CLASS item, as low/high pairs in ranges from
+	// rangeStart[i] to rangeEnd[i]
+	private final int[] rangeStart;
+	private final int[] rangeEnd;
+	private final char[] ranges;
+
+	private PatternMatcher(String pattern, byte[] kinds, char[] chars,
+			int[] rangeStart, int[] rangeEnd, char[] ranges) {
+		this.pattern = pattern;
+		this.kinds = kinds;
+		this.chars = chars;
+		this.rangeStart = rangeStart;
+		this.rangeEnd = rangeEnd;
+		this.ranges = ranges;
+	}
+
 	/**
-	 * PatternMatcher -- Dummy constructor to keep Java from automatically creating a
-	 * default public constructor for the PatternMatcher class.
 	 * 
-	 * Side effects: None.
+	 * compile --
+	 * 
+	 * Turn a pattern into a matcher that can be used any number of times, from
+	 * any number of threads. The pattern is parsed once, and matching does not
+	 * allocate.
 	 * 
+	 * @param pat
+	 *            Pattern which may contain special characters, see match.
+	 * @return the compiled pattern
 	 */
-	private PatternMatcher() {
-		// Do nothing. This should never be called.
+	public static PatternMatcher compile(String pat) {
+		int patLen = pat.length();
+		byte[] kinds = new byte[patLen];
+		char[] chars = new char[patLen];
+		int[] rangeStart = new int[patLen];
+		int[] rangeEnd = new int[patLen];
+		char[] ranges = new char[2 * patLen];
+		int n = 0; // Number of items.
+		int r = 0; // Number of chars used in ranges.
+		int pIndex = 0;
+
+		while (pIndex < patLen) {
+			char ch = pat.charAt(pIndex++);
+
+			if (ch == '*') {
+				// Several stars in a row are the same as one.
+				if (n == 0 || kinds[n - 1] != STAR) {
+					kinds[n++] = STAR;
+				}
+			} else if (ch == '?') {
+				kinds[n++] = ANY;
+			} else if (ch == '[') {
+				// A list of characters and ranges, up to a ']' or the end of
+				// the pattern. A ']' right after a '-' is the upper end of a
+				// range. A range with no upper end is ignored.
+				rangeStart[n] = r;
+				while (pIndex < patLen && pat.charAt(pIndex) != ']') {
+					char ch1 = pat.charAt(pIndex);
+					char ch2 = ch1;
+					if (pIndex + 1 < patLen && pat.charAt(pIndex + 1) == '-') {
+						if (pIndex + 2 == patLen) {
+							pIndex = patLen;
+							break;
+						}
+						ch2 = pat.charAt(pIndex + 2);
+						pIndex += 3;
+					} else {
+						pIndex++;
+					}
+					ranges[r++] = ch1 <= ch2 ? ch1 : ch2;
+					ranges[r++] = ch1 <= ch2 ? ch2 : ch1;
+				}
+				pIndex++; // Skip the ']'.
+				rangeEnd[n] = r;
+				kinds[n++] = CLASS;
+			} else if (ch == '\\') {
+				if (pIndex == patLen) {
+					kinds[n++] = NONE;
+				} else {
+					chars[n] = pat.charAt(pIndex++);
+					kinds[n++] = LITERAL;
+				}
+			} else {
+				chars[n] = ch;
+				kinds[n++] = LITERAL;
+			}
+		}
+
+		return new PatternMatcher(pat, Arrays.copyOf(kinds, n), chars,
+				rangeStart, rangeEnd, ranges);
 	}
-    
+
 	/**
 	 * 
-	 * match --
+	 * matches --
 	 * 
-	 * See if a particular string matches a particular pattern. The matching
-	 * operation permits the following special characters in the pattern: *?\[]
-	 * (see the manual entry for details on what these mean).
+	 * See if a string matches this pattern.
 	 * 
-	 * Results: True if the string matches with the pattern.
-	 * 
-	 * Side effects: None.
+	 * A "*" first matches nothing. When something further on does not match,
+	 * the last "*" seen takes one more character and matching goes on from
+	 * there, so each position of the string is tried at most once per
+	 * character of the pattern, however many stars there are.
 	 * 
 	 * @param str
 	 *            String to compare pattern against
-	 * @param pat
-	 *            Pattern which may contain special characters.
 	 * @return true if string matches within the pattern
 	 */
-	public static final boolean match(String str, String pat) {
-		char[] strArr = str.toCharArray();
-		char[] patArr = pat.toCharArray();
-		int strLen = str.length(); // Cache the len of str.
-		int patLen = pat.length(); // Cache the len of pat.
-		int pIndex = 0; // Current index into patArr.
-		int sIndex = 0; // Current index into patArr.
-		char strch; // Stores current char in string.
-		char ch1; // Stores char after '[' in pat.
-		char ch2; // Stores look ahead 2 char in pat.
-		boolean incrIndex = false; // If true it will incr both p/sIndex.
-
-		while (true) {
-
-			if (incrIndex == true) {
-				pIndex++;
-				sIndex++;
-				incrIndex = false;
-			}
-
-			// See if we're at the end of both the pattern and the string.
-			// If so, we succeeded. If we're at the end of the pattern
-			// but not at the end of the string, we failed.
-
-			if (pIndex == patLen) {
-				return sIndex == strLen;
-			}
-			if ((sIndex == strLen) && (patArr[pIndex] != '*')) {
-				return false;
-			}
-
-			// Check for a "*" as the next pattern character. It matches
-			// any substring. We handle this by calling ourselves
-			// recursively for each postfix of string, until either we
-			// match or we reach the end of the string.
-
-			if (patArr[pIndex] == '*') {
-				pIndex++;
-				if (pIndex == patLen) {
-					return true;
+	public boolean matches(String str) {
+		int strLen = str.length();
+		int patLen = kinds.length;
+		int pIndex = 0;
+		int sIndex = 0;
+		int starP = -1; // Item after the last star, -1 if none yet.
+		int starS = 0; // Where in str that star stops for now.
+
+		while (sIndex < strLen) {
+			if (pIndex < patLen) {
+				if (kinds[pIndex] == STAR) {
+					starP = ++pIndex;
+					starS = sIndex;
+					continue;
 				}
-				while (true) {
-					if (match(str.substring(sIndex), pat.substring(pIndex))) {
-						return true;
-					}
-					if (sIndex == strLen) {
-						return false;
-					}
+				if (matches(pIndex, str.charAt(sIndex))) {
+					pIndex++;
 					sIndex++;
+					continue;
 				}
 			}
-
-			// Check for a "?" as the next pattern character. It matches
-			// any single character.
-
-			if (patArr[pIndex] == '?') {
-				incrIndex = true;
-				continue;
-			}
-
-			// Check for a "[" as the next pattern character. It is followed
-			// by a list of characters that are acceptable, or by a range
-			// (two characters separated by "-").
-
-			if (patArr[pIndex] == '[') {
-				pIndex++;
-				while (true) {
-					if ((pIndex == patLen) || (patArr[pIndex] == ']')) {
-						return false;
-					}
-					if (sIndex == strLen) {
-						return false;
-					}
-					ch1 = patArr[pIndex];
-					strch = strArr[sIndex];
-					if (((pIndex + 1) != patLen) && (patArr[pIndex + 1] == '-')) {
-						if ((pIndex += 2) == patLen) {
-							return false;
-						}
-						ch2 = patArr[pIndex];
-						if (((ch1 <= strch) && (ch2 >= strch)) || ((ch1 >= strch) && (ch2 <= strch))) {
-							break;
-						}
-					} else if (ch1 == strch) {
-						break;
-					}
-					pIndex++;
-				}
-
-				for (pIndex++; ((pIndex != patLen) && (patArr[pIndex] != ']')); pIndex++) {
-				}
-				if (pIndex == patLen) {
-					pIndex--;
-				}
-				incrIndex = true;
-				continue;
+			if (starP < 0) {
+				return false;
 			}
+			pIndex = starP;
+			sIndex = ++starS;
+		}
 
-			// If the next pattern character is '\', just strip off the '\'
-			// so we do exact matching on the character that follows.
+		while (pIndex < patLen && kinds[pIndex] == STAR) {
+			pIndex++;
+		}
+		return pIndex == patLen;
+	}
 
-			if (patArr[pIndex] == '\\') {
-				pIndex++;
-				if (pIndex == patLen) {
-					return false;
+	private boolean matches(int item, char strch) {
+		switch (kinds[item]) {
+		case LITERAL:
+			return chars[item] == strch;
+		case ANY:
+			return true;
+		case CLASS:
+			for (int i = rangeStart[item]; i < rangeEnd[item]; i += 2) {
+				if (ranges[i] <= strch && strch <= ranges[i + 1]) {
+					return true;
 				}
 			}
+			return false;
+		default:
+			return false;
+		}
+	}
 
-			// There's no special character. Just make sure that the next
-			// characters of each string match.
+	public String getPattern() {
+		return pattern;
+	}
 
-			if ((sIndex == strLen) || (patArr[pIndex] != strArr[sIndex])) {
-				return false;
-			}
-			incrIndex = true;
-		}
+	@Override
+	public String toString() {
+		return pattern;
+	}
+    
+	/**
+	 * 
+	 * match --
+	 * 
+	 * See if a particular string matches a particular pattern. The matching
+	 * operation permits the following special characters in the pattern: *?\[]
+	 * (see the manual entry for details on what these mean).
+	 * 
+	 * The pattern is compiled on each call; use compile when the same pattern
+	 * is matched against many strings.
+	 * 
+	 * Results: True if the string matches with the pattern.
+	 * 
+	 * Side effects: None.
+	 * 
+	 * @param str
+	 *            String to compare pattern against
+	 * @param pat
+	 *            Pattern which may contain special characters.
+	 * @return true if string matches within the pattern
+	 */
+	public static final boolean match(String str, String pat) {
+		return compile(pat).matches(str);
 	}
 }
\ No newline at end of file
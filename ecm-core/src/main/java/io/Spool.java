@@ -0,0 +1,423 @@
+package io;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Messages that could not be sent because the link was down, kept on disk
+ * until they can be sent.
+ *
+ * The spool is a directory of segment files of a fixed size, each mapped in
+ * memory. Messages are appended to the newest segment and sent again from the
+ * oldest, in the order they were appended, so messages for the same topic or
+ * key arrive in order. Once a connection has a spool, a message it is asked
+ * to send while older ones are still spooled is spooled too, behind them.
+ *
+ * A thread of its own sends the spooled messages, at most batch at a time
+ * and no more than rate per second, so that the link is not flooded when it
+ * comes back. When a send fails the thread waits RETRY_INTERVAL ms (or a call
+ * to wakeup()) before trying again.
+ *
+ * Retention: when the spool is full the oldest segment is dropped with all
+ * its messages, and messages older than maxAge ms are not sent. A sent
+ * message is marked in the file, so after a restart only the ones not sent
+ * yet are sent.
+ *
+ * Each record is an int with the length of the rest (negated once the record
+ * has been sent, 0 after the last one), the time it was spooled in ms, the
+ * length of the topic as a short, the topic and the data, topic in UTF-8.
+ */
+public class Spool implements Runnable {
+	/**
+	 * Sends one spooled message on the link the spool belongs to.
+	 */
+	public interface Sender {
+		/**
+		 * @return false if the message could not be sent and should be tried
+		 *         again later
+		 */
+		public boolean send(String topic, byte[] data);
+	}
+
+	// ms to wait after a failed send before trying again
+	private static final int RETRY_INTERVAL = 5000;
+	private static final int HEADER = 4 + 8 + 2;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static class Segment {
+		private long id;
+		private File file;
+		private MappedByteBuffer buf;
+		// offset of the first record not sent yet
+		private int read;
+		// offset of the end of the last record
+		private int write;
+		// records not sent yet
+		private int count;
+	}
+
+	private static class Record {
+		private Segment segment;
+		private int offset;
+		private String topic;
+		private byte[] data;
+	}
+
+	private File dir;
+	private int segmentSize;
+	private int maxSegments;
+	private long maxAge;
+	private int rate = 200;
+	private int batch = 50;
+
+	// oldest first; guarded by this
+	private ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private long nextId;
+	private int pending;
+
+	private volatile Sender sender;
+	private Thread thread;
+	// no send is tried before this time, in ms; guarded by this
+	private long retryAt;
+
+	private long appended;
+	private long sent;
+	private long dropped;
+	private long expired;
+
+	/**
+	 * Opens the spool in dir, creating the directory if needed. Messages that
+	 * were not sent before the last stop are sent first.
+	 *
+	 * @param dir
+	 *            Directory for the segment files
+	 * @param segmentSize
+	 *            Size of one segment file, in bytes
+	 * @param maxSize
+	 *            Size of all segment files together, in bytes
+	 * @param maxAge
+	 *            ms after which a message is not worth sending any more,
+	 *            0 for no limit
+	 */
+	public Spool(File dir, int segmentSize, long maxSize, long maxAge)
+			throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create spool directory " + dir);
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.maxSegments = (int) Math.max(2, maxSize / segmentSize);
+		this.maxAge = maxAge;
+		recover();
+	}
+
+	/**
+	 * Sets how fast spooled messages are sent once the link is back.
+	 *
+	 * @param rate
+	 *            Messages per second
+	 * @param batch
+	 *            Messages sent without a pause
+	 */
+	public void setReplayRate(int rate, int batch) {
+		this.rate = Math.max(1, rate);
+		this.batch = Math.max(1, batch);
+	}
+
+	/**
+	 * Sets where spooled messages are sent and starts the sending thread the
+	 * first time.
+	 */
+	public synchronized void attach(Sender sender) {
+		this.sender = sender;
+		retryAt = 0;
+		if (thread == null) {
+			thread = new Thread(this, "Spool");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Makes the sending thread try again now, e.g. when the link has come
+	 * back.
+	 */
+	public synchronized void wakeup() {
+		retryAt = 0;
+		notifyAll();
+	}
+
+	public synchronized boolean isEmpty() {
+		return pending == 0;
+	}
+
+	/**
+	 * Appends a message to the spool.
+	 *
+	 * @return false if the message is larger than a segment and was dropped
+	 */
+	public synchronized boolean append(String topic, byte[] data) {
+		byte[] t = topic == null ? new byte[0] : topic.getBytes(UTF8);
+		int len = HEADER + t.length + data.length;
+		if (len > segmentSize) {
+			dropped++;
+			return false;
+		}
+
+		Segment s = segments.peekLast();
+		// segments from an earlier run may have another size
+		if (s == null || s.write + len > s.buf.capacity()) {
+			try {
+				s = newSegment();
+			} catch (IOException e) {
+				System.err.println("Cannot create spool segment in " + dir
+						+ ": " + e);
+				dropped++;
+				return false;
+			}
+		}
+
+		MappedByteBuffer buf = s.buf;
+		int off = s.write;
+		buf.putLong(off + 4, System.currentTimeMillis());
+		buf.putShort(off + 12, (short) t.length);
+		buf.position(off + HEADER);
+		buf.put(t);
+		buf.put(data);
+		// the length last, so that a record is never seen half written
+		buf.putInt(off, len - 4);
+		s.write = off + len;
+		s.count++;
+		pending++;
+		appended++;
+		notifyAll();
+		return true;
+	}
+
+	public void run() {
+		ArrayList<Record> records = new ArrayList<Record>();
+		while (true) {
+			Sender to;
+			try {
+				synchronized (this) {
+					while (true) {
+						to = sender;
+						long delay = retryAt - System.currentTimeMillis();
+						if (to == null || pending == 0)
+							wait();
+						else if (delay > 0)
+							wait(delay);
+						else
+							break;
+					}
+					peek(records, batch);
+				}
+
+				int n = 0;
+				for (Record r : records) {
+					boolean ok;
+					try {
+						ok = to.send(r.topic, r.data);
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+						ok = false;
+					}
+					if (!ok)
+						break;
+					consumed(r);
+					n++;
+				}
+				boolean failed = n < records.size();
+				records.clear();
+
+				if (failed) {
+					synchronized (this) {
+						retryAt = System.currentTimeMillis() + RETRY_INTERVAL;
+					}
+				} else {
+					Thread.sleep(n * 1000L / rate);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	public synchronized int getPending() {
+		return pending;
+	}
+
+	public synchronized String getStats() {
+		return "spool pending " + pending + " in " + segments.size()
+				+ " segments, appended " + appended + ", sent " + sent
+				+ ", dropped " + dropped + ", expired " + expired;
+	}
+
+	// Called with the lock held. Takes up to max records from the head,
+	// marking the expired ones as sent on the way.
+	private void peek(List<Record> out, int max) {
+		long oldest = maxAge > 0 ? System.currentTimeMillis() - maxAge : 0;
+		for (Segment s : segments) {
+			int off = s.read;
+			while (out.size() < max && off < s.write) {
+				int len = s.buf.getInt(off);
+				if (len < 0) {
+					off += 4 - len;
+					continue;
+				}
+				if (s.buf.getLong(off + 4) < oldest) {
+					s.buf.putInt(off, -len);
+					s.count--;
+					pending--;
+					expired++;
+					off += 4 + len;
+					if (off > s.read && out.isEmpty())
+						s.read = off;
+					continue;
+				}
+
+				Record r = new Record();
+				r.segment = s;
+				r.offset = off;
+				byte[] t = new byte[s.buf.getShort(off + 12)];
+				r.data = new byte[len + 4 - HEADER - t.length];
+				s.buf.position(off + HEADER);
+				s.buf.get(t);
+				s.buf.get(r.data);
+				r.topic = new String(t, UTF8);
+				out.add(r);
+				off += 4 + len;
+			}
+			if (out.size() >= max)
+				break;
+		}
+		trim();
+	}
+
+	private synchronized void consumed(Record r) {
+		Segment s = r.segment;
+		// the segment may have been dropped while the record was being sent
+		if (s.buf == null)
+			return;
+		int len = s.buf.getInt(r.offset);
+		if (len <= 0)
+			return;
+		s.buf.putInt(r.offset, -len);
+		s.count--;
+		pending--;
+		sent++;
+		while (s.read < s.write && (len = s.buf.getInt(s.read)) < 0)
+			s.read += 4 - len;
+		trim();
+	}
+
+	// Called with the lock held. Removes the segments at the head that have
+	// been sent completely, except the one being written.
+	private void trim() {
+		while (segments.size() > 1 && segments.peekFirst().count == 0)
+			delete(segments.pollFirst());
+	}
+
+	// Called with the lock held
+	private Segment newSegment() throws IOException {
+		while (segments.size() >= maxSegments) {
+			Segment old = segments.pollFirst();
+			dropped += old.count;
+			pending -= old.count;
+			delete(old);
+		}
+
+		Segment s = new Segment();
+		s.id = nextId++;
+		s.file = new File(dir, "seg-" + s.id + ".dat");
+		RandomAccessFile f = new RandomAccessFile(s.file, "rw");
+		try {
+			f.setLength(0);
+			f.setLength(segmentSize);
+			s.buf = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					segmentSize);
+		} finally {
+			f.close();
+		}
+		segments.addLast(s);
+		return s;
+	}
+
+	private void delete(Segment s) {
+		// The mapping goes away when the buffer is collected; Linux frees
+		// the blocks then.
+		s.buf = null;
+		if (!s.file.delete())
+			System.err.println("Cannot delete spool segment " + s.file);
+	}
+
+	// Reads the segments left by the last run
+	private void recover() throws IOException {
+		File[] files = dir.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.getName().matches("seg-\\d+\\.dat");
+			}
+		});
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(id(a), id(b));
+			}
+		});
+
+		for (File file : files) {
+			Segment s = new Segment();
+			s.id = id(file);
+			s.file = file;
+			nextId = s.id + 1;
+			RandomAccessFile f = new RandomAccessFile(file, "rw");
+			try {
+				int size = (int) f.length();
+				s.buf = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+						size);
+				s.read = -1;
+				int off = 0;
+				while (off + 4 <= size) {
+					int len = s.buf.getInt(off);
+					if (len == 0 || Math.abs(len) > size - off - 4)
+						break;
+					if (len > 0) {
+						if (s.read < 0)
+							s.read = off;
+						s.count++;
+					}
+					off += 4 + Math.abs(len);
+				}
+				s.write = off;
+				if (s.read < 0)
+					s.read = off;
+			} finally {
+				f.close();
+			}
+			if (s.count == 0) {
+				delete(s);
+			} else {
+				segments.addLast(s);
+				pending += s.count;
+			}
+		}
+
+		if (pending > 0)
+			System.out.println("Spool " + dir + ": " + pending
+					+ " messages from the last run");
+	}
+
+	private static long id(File f) {
+		String name = f.getName();
+		return Long.parseLong(name.substring(4, name.indexOf('.')));
+	}
+}
@@ -0,0 +1,137 @@
+package io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Subscriptions indexed by MQTT topic filter, one level per node.  Finding
+ * the subscribers of a topic walks down the levels of the topic, following
+ * the level itself, "+" and "#" at each node, so the cost depends on the
+ * depth of the topic and not on the number of subscriptions.  The matching
+ * rules are those of MQTTSubscription.matchTopics.
+ *
+ * Subscriptions can be added and removed while other threads match.
+ */
+public class TopicTree<T> {
+  private static final String SINGLE = "+";
+  private static final String MULTI = "#";
+
+  private static class Node<T> {
+    private ConcurrentHashMap<String, Node<T>> children = new ConcurrentHashMap<>();
+    // Subscribers whose filter ends at this node
+    private CopyOnWriteArrayList<T> values = new CopyOnWriteArrayList<>();
+
+    private Node<T> child(String level) {
+      Node<T> child = children.get(level);
+      if (child == null) {
+        Node<T> created = new Node<>();
+        child = children.putIfAbsent(level, created);
+        if (child == null) {
+          child = created;
+        }
+      }
+      return child;
+    }
+  }
+
+  private Node<T> root = new Node<>();
+  private int size = 0;
+
+  /**
+   * Add a subscriber to a topic filter.
+   * @param filter MQTT topic filter, "+" and "#" must stand for a whole level
+   * and "#" must be the last level.
+   * @param value The subscriber
+   */
+  public synchronized void add(String filter, T value) {
+    Node<T> node = root;
+    int start = 0;
+    while (true) {
+      int slash = filter.indexOf('/', start);
+      String level = slash < 0 ? filter.substring(start) : filter.substring(start, slash);
+      if (level.contains(MULTI) && (!level.equals(MULTI) || slash >= 0)) {
+        throw new IllegalArgumentException("Bad format of topic filter, the multi symbol (#) has to be the last one after a separator: " + filter);
+      }
+      if (level.contains(SINGLE) && !level.equals(SINGLE)) {
+        throw new IllegalArgumentException("Bad format of topic filter, invalid subtopic name: " + level);
+      }
+      node = node.child(level);
+      if (slash < 0) {
+        break;
+      }
+      start = slash + 1;
+    }
+    node.values.add(value);
+    size++;
+  }
+
+  /**
+   * Remove a subscriber from a topic filter.  Nodes are kept, they are
+   * reused if the filter is subscribed to again.
+   * @return true if the subscriber was there
+   */
+  public synchronized boolean remove(String filter, T value) {
+    Node<T> node = root;
+    int start = 0;
+    while (node != null) {
+      int slash = filter.indexOf('/', start);
+      node = node.children.get(slash < 0 ? filter.substring(start) : filter.substring(start, slash));
+      if (slash < 0) {
+        break;
+      }
+      start = slash + 1;
+    }
+    if (node != null && node.values.remove(value)) {
+      size--;
+      return true;
+    }
+    return false;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Find the subscribers whose filter matches a topic.  A subscriber that is
+   * there under several matching filters is found once per filter.
+   * @param topic Topic of an incoming message
+   * @param out Where to add the subscribers
+   */
+  public void match(String topic, List<T> out) {
+    match(root, topic, 0, out);
+  }
+
+  public List<T> match(String topic) {
+    List<T> out = new ArrayList<>();
+    match(topic, out);
+    return out;
+  }
+
+  // start is where the level to match begins in topic; it is past the end
+  // when all levels have been matched
+  private void match(Node<T> node, String topic, int start, List<T> out) {
+    // "a/#" matches "a" as well as everything below it
+    Node<T> multi = node.children.get(MULTI);
+    if (multi != null) {
+      out.addAll(multi.values);
+    }
+    if (start > topic.length()) {
+      out.addAll(node.values);
+      return;
+    }
+
+    int slash = topic.indexOf('/', start);
+    int end = slash < 0 ? topic.length() : slash;
+    Node<T> child = node.children.get(topic.substring(start, end));
+    if (child != null) {
+      match(child, topic, end + 1, out);
+    }
+    Node<T> single = node.children.get(SINGLE);
+    if (single != null) {
+      match(single, topic, end + 1, out);
+    }
+  }
+}
@@ -6,8 +6,11 @@ import org.java_websocket.handshake.ServerHandshake;
 import org.java_websocket.drafts.Draft;
 import org.java_websocket.drafts.Draft_17;
 
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.util.*;
 
 /**
@@ -20,6 +23,8 @@ public class WSConnection extends WebSocketClient {
    */
   private static boolean debug = false;
 
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
   /**
    * Initial message to send each time the connection is (re)opened. This can
    * be used to send a subscription message or similar.  Maybe do we want to 
@@ -41,12 +46,18 @@ public class WSConnection extends WebSocketClient {
    */
   public static int QUEUE_MAX = 20;
 
+  /**
+   * When set, messages that cannot be sent go to this spool instead of the
+   * queue, and are sent when the connection is open again.
+   */
+  private Spool spool = null;
+
   /**
    * Accounts for state of connection, i.e. will be set to true when the
    * handshake with the server has succeeded and the remote end is ready to
    * accept messages (or to send some).
    */
-  private boolean opened = false;
+  private volatile boolean opened = false;
 
   /**
    * List of dispatchers that have been registered to receive incoming
@@ -78,11 +89,16 @@ public class WSConnection extends WebSocketClient {
    * alive, the text will be sent directly.  Otherwise, the text will be queued
    * to be sent as soon as the connection is alive.  The queuing behaviour is
    * controlled by QUEUE_MAX, which includes a way to automatically turn off
-   * that feature.
+   * that feature.  With a spool, the text goes to the spool instead, and also
+   * while older texts are still in the spool.
    * @param txt  Text to be sent to remote server
    */
   public void send(String txt) {
-    if (opened) {
+    if (spool != null) {
+      if (!spool.isEmpty() || !sendNow(txt)) {
+        spool.append(null, txt.getBytes(UTF8));
+      }
+    } else if (opened) {
       if (debug) {
         System.out.println("Sending to " + getURI() + ": " + txt);
       }
@@ -105,6 +121,41 @@ public class WSConnection extends WebSocketClient {
     }
   }
 
+  /**
+   * Send text if the connection is open.
+   * @return false if the text could not be sent.
+   */
+  private boolean sendNow(String txt) {
+    if (!opened) {
+      return false;
+    }
+    if (debug) {
+      System.out.println("Sending to " + getURI() + ": " + txt);
+    }
+    try {
+      super.send(txt);
+      return true;
+    } catch (WebsocketNotConnectedException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Keep the texts that cannot be sent in a spool, and send them when the
+   * connection is open again.
+   * @param spool  Spool to use, null to go back to the queue.
+   */
+  public void setSpool(Spool spool) {
+    this.spool = spool;
+    if (spool != null) {
+      spool.attach(new Spool.Sender() {
+        public boolean send(String topic, byte[] data) {
+          return sendNow(new String(data, UTF8));
+        }
+      });
+    }
+  }
+
   /**
    * Connect to server, registering an empty initialisation message (i.e. the
    * most usual case).
@@ -230,7 +281,16 @@ public class WSConnection extends WebSocketClient {
       if (debug) {
         System.out.println("Sending init message '" + initMessage + "'");
       }
-      send(initMessage);
+      // not behind what is spooled
+      if (spool != null) {
+        sendNow(initMessage);
+      } else {
+        send(initMessage);
+      }
+    }
+
+    if (spool != null) {
+      spool.wakeup();
     }
 
     // Send content of queue, if any.
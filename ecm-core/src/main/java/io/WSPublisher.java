@@ -31,6 +31,8 @@ public class WSPublisher extends AbstractPublisher implements IPublisher {
 
 	private int hmSize = 0;
 
+	private Spool spool = null;
+
 	/**
 	 */
 	public WSPublisher(String location, String template) {
@@ -50,6 +52,17 @@ public class WSPublisher extends AbstractPublisher implements IPublisher {
 		this.template = template;
 	}
 
+	/**
+	 * Keep what cannot be sent while the connection is down in a spool, see
+	 * WSConnection.setSpool.
+	 */
+	public void setSpool(Spool spool) {
+		this.spool = spool;
+		if (connection != null) {
+			connection.setSpool(spool);
+		}
+	}
+
 	/**
 	 * This will attempt to publish the new value for a key. Publication might
 	 * not occur due to rate limiting conditions or if the value for that key
@@ -81,6 +94,7 @@ public class WSPublisher extends AbstractPublisher implements IPublisher {
 		if (connection == null) {
 			try {
 				connection = new WSConnection(location, getHeaders());
+				connection.setSpool(spool);
 				connection.connect();
 			} catch (Exception e) {
 				System.err
@@ -1,12 +1,17 @@
 package io;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.InputStreamReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class controls a number of web operations in order to perform some basic
@@ -16,19 +21,39 @@ import java.util.*;
  * reached. In addition, the class will count failures and will stop serving
  * request to that server for a (controllable) amount of time, to let the server
  * recover from possible errors.
+ * <p>
+ * 
+ * Requests are performed by a small, fixed set of worker threads that are
+ * started with the poster and kept for its lifetime. Each worker reads every
+ * response to its end, so that the connection to the server is kept alive
+ * and reused for the next request instead of being opened again. Once
+ * maxFailures requests in a row have failed, no request is accepted for the
+ * respit period; after it, a single request is let through and the poster
+ * opens again if it succeeds.
  * 
  * @author Emmanuel Frécon
  * 
  */
 public class WebPoster {
-	private int reqCount = 0; // Total number of requests since start
-	private volatile int connectionCount = 0; // Number of on-going connections
-	private volatile int failureCount = 0; // Number of failed requests
+	private AtomicInteger reqCount = new AtomicInteger(); // Total number of requests since start
+	private AtomicInteger connectionCount = new AtomicInteger(); // Number of on-going or queued requests
+	private int failureCount = 0; // Number of failed requests in a row
 	private long waitUntil = -1; // No more requests until this time
+	private boolean probing = false; // A request is testing the server after respite
 	private String identifier = null; // Identifier of poster
 	private int maxConnections = 15; // Max number of simultaneous connections
 	private int maxFailures = 5; // Number of failures before respite
 	private int respit = 60 * 15; // Quarter of an hour
+	private int timeout = 10000; // ms to connect, and to wait for a response
+
+	private static final int WORKERS = 2; // Threads, and thus kept-alive connections
+	private ExecutorService workers;
+
+	private AtomicLong succeeded = new AtomicLong(); // Requests done
+	private AtomicLong failed = new AtomicLong(); // Requests failed
+	private AtomicLong rejected = new AtomicLong(); // Requests not accepted
+
+	private static boolean debug = false;
 
 	/**
 	 * Create a WebPoster with all good defaults.
@@ -45,7 +70,7 @@ public class WebPoster {
 	 *            Identifier of the poster
 	 */
 	public WebPoster(String id) {
-		this.identifier = id;
+		this(id, 15);
 	}
 
 	/**
@@ -61,6 +86,16 @@ public class WebPoster {
 	public WebPoster(String id, int max) {
 		this.identifier = id;
 		this.maxConnections = max;
+		this.workers = Executors.newFixedThreadPool(WORKERS,
+				new ThreadFactory() {
+					private int n = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, identifier + "-" + ++n);
+						t.setDaemon(true);
+						return t;
+					}
+				});
 	}
 
 	/**
@@ -69,8 +104,37 @@ public class WebPoster {
 	 * number of failures, together with their maximum allowed.
 	 */
 	public String toString() {
-		return identifier + "--" + connectionCount + "/" + maxConnections
-				+ "--" + failureCount + "/" + maxFailures;
+		return identifier + "--" + connectionCount.get() + "/"
+				+ maxConnections + "--" + getFailureCount() + "/" + maxFailures;
+	}
+
+	/**
+	 * Number of requests that have failed in a row.
+	 */
+	public synchronized int getFailureCount() {
+		return failureCount;
+	}
+
+	/**
+	 * Number of requests that have been made successfully.
+	 */
+	public long getSucceeded() {
+		return succeeded.get();
+	}
+
+	/**
+	 * Number of requests that have been made and failed.
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Number of requests that were not accepted, because too many were
+	 * on-going or because the server was given respite.
+	 */
+	public long getRejected() {
+		return rejected.get();
 	}
 
 	/**
@@ -99,7 +163,7 @@ public class WebPoster {
 	 *         <code>false</code> otherwise.
 	 */
 	public boolean get(final String url, final Map<String, String> hdrs) {
-		final String reqId = identifier + "/" + reqCount;
+		final String reqId = identifier + "/" + reqCount.get();
 		return get(reqId, url, hdrs);
 	}
 
@@ -149,7 +213,7 @@ public class WebPoster {
 	 *         <code>false</code> otherwise.
 	 */
 	public boolean delete(final String url, final Map<String, String> hdrs) {
-		final String reqId = identifier + "/" + reqCount;
+		final String reqId = identifier + "/" + reqCount.get();
 		return delete(reqId, url, hdrs);
 	}
 
@@ -204,7 +268,7 @@ public class WebPoster {
 	 */
 	public boolean post(final String url, final String data,
 			final Map<String, String> hdrs) {
-		final String reqId = identifier + "/" + reqCount;
+		final String reqId = identifier + "/" + reqCount.get();
 		return post(reqId, url, data, hdrs);
 	}
 
@@ -261,7 +325,7 @@ public class WebPoster {
 	 */
 	public boolean put(final String url, final String data,
 			final Map<String, String> hdrs) {
-		final String reqId = identifier + "/" + reqCount;
+		final String reqId = identifier + "/" + reqCount.get();
 		return put(reqId, url, data, hdrs);
 	}
 
@@ -309,44 +373,67 @@ public class WebPoster {
 	private boolean req(final String reqId, final String url,
 			final String data, final String method,
 			final Map<String, String> hdrs) {
-		reqCount++; // Count number of request made in total
+		reqCount.incrementAndGet(); // Count number of request made in total
 		// Give up if we've reached the maximum number of ongoing connections.
-		if (connectionCount >= maxConnections) {
+		if (connectionCount.incrementAndGet() > maxConnections) {
+			connectionCount.decrementAndGet();
+			rejected.incrementAndGet();
 			System.err.println(String.format(
 					"WARNING %d %s ongoing connections, giving up",
-					connectionCount, identifier));
+					maxConnections, identifier));
 			return false;
-		} else if (failureCount >= maxFailures) {
-			// Wait or reset once we've reached the maximum failure count
-			Date currentDate = new Date();
-			if (waitUntil < 0) {
-				waitUntil = currentDate.getTime() + respit * 1000;
-				System.err.println(String.format(
-						"WARNING %d %s failed conns., giving up for %d secs.",
-						failureCount, identifier, respit));
-			} else if (currentDate.getTime() > waitUntil) {
-				System.err.println(String.format(
-						"INFO respit for %s has passed, will try again",
-						identifier));
-				failureCount = 0;
-				waitUntil = -1;
-			}
+		} else if (!admit()) {
+			connectionCount.decrementAndGet();
+			rejected.incrementAndGet();
 			return false;
 		} else {
-			// Everything's fine, go and try requesting for the URL in a
-			// separate thread.
-			String threadName;
-			connectionCount++;
-			threadName = this.identifier + "-" + connectionCount;
-			new Thread(threadName) {
+			// Everything's fine, go and try requesting for the URL in one
+			// of the workers.
+			workers.execute(new Runnable() {
 				public void run() {
 					requestData(reqId, url, data, method, hdrs);
 				}
-			}.start();
+			});
 		}
 		return true;
 	}
 
+	/**
+	 * Decide if a request may be made, given the recent failures.
+	 */
+	private synchronized boolean admit() {
+		if (failureCount < maxFailures)
+			return true;
+
+		// Wait or try again once we've reached the maximum failure count
+		long now = System.currentTimeMillis();
+		if (waitUntil < 0) {
+			waitUntil = now + respit * 1000L;
+			System.err.println(String.format(
+					"WARNING %d %s failed conns., giving up for %d secs.",
+					failureCount, identifier, respit));
+		} else if (now > waitUntil && !probing) {
+			System.err.println(String.format(
+					"INFO respit for %s has passed, will try again",
+					identifier));
+			probing = true;
+			return true;
+		}
+		return false;
+	}
+
+	private synchronized void done(boolean ok) {
+		if (ok) {
+			failureCount = 0;
+			waitUntil = -1;
+		} else {
+			failureCount++;
+			if (probing)
+				waitUntil = System.currentTimeMillis() + respit * 1000L;
+		}
+		probing = false;
+	}
+
 	/**
 	 * Perform URL requesting operation, returned data is lost (but can be
 	 * printed out on the stdout if necessary.
@@ -364,53 +451,88 @@ public class WebPoster {
 	 */
 	private void requestData(String reqId, String urlStr, String data,
 			String method, Map<String, String> hdrs) {
+		boolean ok = false;
+		HttpURLConnection conn = null;
 		try {
-			if (true) {
+			if (debug) {
 				System.err.println(String.format(
 						"(%s) Web %s request to %s with %s", reqId, method,
 						urlStr, data));
 			}
 			URL url = new URL(urlStr);
-			URLConnection conn = url.openConnection();
-			conn.setDoOutput(true);
+			conn = (HttpURLConnection) url.openConnection();
 			conn.setUseCaches(false);
+			conn.setConnectTimeout(timeout);
+			conn.setReadTimeout(timeout);
 
 			// Perform request, pushing data in the request if necessary.
-			((HttpURLConnection) conn).setRequestMethod(method);
-			for (Map.Entry<String, String> e : hdrs.entrySet()) {
-				conn.setRequestProperty(e.getKey(), e.getValue());
+			conn.setRequestMethod(method);
+			if (hdrs != null) {
+				for (Map.Entry<String, String> e : hdrs.entrySet()) {
+					conn.setRequestProperty(e.getKey(), e.getValue());
+				}
 			}
 			if (data != null) {
-				conn.setRequestProperty("Content-Length",
-						Integer.toString(data.length()));
-
-				DataOutputStream wr = new DataOutputStream(
-						conn.getOutputStream());
-				wr.writeBytes(data);
-				wr.flush();
+				byte[] body = data.getBytes("UTF-8");
+				// Not streamed, so that headers and body leave in one
+				// write and are not held back by Nagle's algorithm
+				conn.setDoOutput(true);
+				OutputStream wr = conn.getOutputStream();
+				wr.write(body);
 				wr.close();
 			}
 
-			// Read response (but we will discard it, only log)
-			BufferedReader rd = new BufferedReader(new InputStreamReader(
-					conn.getInputStream()));
-			String line;
-			while ((line = rd.readLine()) != null) {
-				if (false) {
-					System.err.println(String.format("(%s) received: %s",
-							reqId, line));
-				}
+			// Read response (but we will discard it, only log). It is read
+			// to the end so that the connection can be reused.
+			int status = conn.getResponseCode();
+			InputStream in = status < 400 ? conn.getInputStream() : conn
+					.getErrorStream();
+			String response = in == null ? "" : drain(in);
+			if (debug) {
+				System.err.println(String.format("(%s) received %d: %s",
+						reqId, status, response));
 			}
-			rd.close();
-		} catch (Exception e) {
-			failureCount++;
+			ok = status < 400;
+			if (!ok) {
+				System.err.println(String.format("(%s) Web %s to %s: %d",
+						reqId, method, urlStr, status));
+			}
+		} catch (IOException e) {
 			e.printStackTrace();
+			if (conn != null) {
+				// Give the connection back in a reusable state if we can
+				InputStream err = conn.getErrorStream();
+				if (err != null) {
+					try {
+						drain(err);
+					} catch (IOException e2) {
+						// nothing more to do
+					}
+				}
+			}
 		} finally {
-			failureCount = 0;
-			connectionCount--;
-			if (false) {
+			if (ok)
+				succeeded.incrementAndGet();
+			else
+				failed.incrementAndGet();
+			done(ok);
+			connectionCount.decrementAndGet();
+			if (debug) {
 				System.err.println(String.format("(%s) closed", reqId));
 			}
 		}
 	}
+
+	private String drain(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buf = new byte[1024];
+			int n;
+			while ((n = in.read(buf)) > 0)
+				bytes.write(buf, 0, n);
+			return bytes.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
 }
@@ -41,4 +41,12 @@ public class InstallAckPacket extends Packet {
 		this.pluginName = pluginName;
 	}
 
+	public int getAppId() {
+		return appId;
+	}
+
+	public void setAppId(int appId) {
+		this.appId = appId;
+	}
+
 }
\ No newline at end of file
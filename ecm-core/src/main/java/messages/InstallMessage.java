@@ -1,5 +1,6 @@
 package messages;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 
@@ -28,6 +29,10 @@ public class InstallMessage extends Message {
 
 	private byte[] binaryFile;
 
+	// the suite read from the plugin store instead of binaryFile; not
+	// serialized
+	private transient ByteBuffer suite;
+
 	public InstallMessage(int remoteEcuId, byte pluginId,
 			String executablePluginName, int callbackPortID,
 			HashMap<String, Integer> portInitialContext,
@@ -42,6 +47,19 @@ public class InstallMessage extends Message {
 		this.binaryFile = binaryFile;
 	}
 
+	/**
+	 * Instantiates an install message whose suite is in a buffer, e.g. a
+	 * file mapped from the plugin store, instead of an array.
+	 */
+	public InstallMessage(int remoteEcuId, byte pluginId,
+			String executablePluginName, int callbackPortID,
+			HashMap<String, Integer> portInitialContext,
+			ArrayList<LinkContextEntry> linkContext, ByteBuffer suite) {
+		this(remoteEcuId, pluginId, executablePluginName, callbackPortID,
+				portInitialContext, linkContext, (byte[]) null);
+		this.suite = suite;
+	}
+
 	public int getRemoteEcuId() {
 		return remoteEcuId;
 	}
@@ -83,12 +101,37 @@ public class InstallMessage extends Message {
 		this.linkContext = linkContext;
 	}
 
+	/**
+	 * The suite as an array, copied out of the mapped file if the message
+	 * was made from one. getSuite does not copy.
+	 */
 	public byte[] getBinaryFile() {
+		if (binaryFile == null && suite != null) {
+			byte[] bytes = new byte[suite.remaining()];
+			suite.duplicate().get(bytes);
+			return bytes;
+		}
 		return binaryFile;
 	}
 
+	/**
+	 * The suite as a buffer of its own, positioned at the first byte.
+	 */
+	public ByteBuffer getSuite() {
+		if (suite != null)
+			return suite.duplicate();
+		return binaryFile == null ? null : ByteBuffer.wrap(binaryFile);
+	}
+
+	public int getSuiteSize() {
+		if (suite != null)
+			return suite.remaining();
+		return binaryFile == null ? 0 : binaryFile.length;
+	}
+
 	public void setBinaryFile(byte[] binaryFile) {
 		this.binaryFile = binaryFile;
+		this.suite = null;
 	}
 
 }
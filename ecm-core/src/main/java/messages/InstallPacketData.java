@@ -33,6 +33,14 @@ public class InstallPacketData implements Serializable {
 	/** The binary file. */
 	private byte[] binaryFile;
 
+	// SHA-256 of the binary file in hex. The binary file is left out (null)
+	// when the vehicle already has a suite with this hash.
+	private String suiteHash;
+
+	// SHA-256 of a suite stored in the vehicle, when the binary file is a
+	// delta against it (see utils.SuiteDelta) rather than the suite itself
+	private String baseHash;
+
 	// must have default constructor
 	/**
 	 * Instantiates a new install package data.
@@ -166,4 +174,20 @@ public class InstallPacketData implements Serializable {
 		this.executablePluginName = executablePluginName;
 	}
 
+	public String getSuiteHash() {
+		return suiteHash;
+	}
+
+	public void setSuiteHash(String suiteHash) {
+		this.suiteHash = suiteHash;
+	}
+
+	public String getBaseHash() {
+		return baseHash;
+	}
+
+	public void setBaseHash(String baseHash) {
+		this.baseHash = baseHash;
+	}
+
 }
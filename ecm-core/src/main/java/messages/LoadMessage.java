@@ -1,5 +1,6 @@
 package messages;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 
@@ -13,6 +14,10 @@ public class LoadMessage extends Message {
 	private static final long serialVersionUID = 1L;
 
 	private int remoteEcuId;
+
+	// the plugin number PIRTE acknowledges the LOAD with, 0 for no
+	// acknowledgement
+	private byte pluginId;
 	
 	private String executablePluginName;
 
@@ -26,6 +31,10 @@ public class LoadMessage extends Message {
 	
 	private byte[] binaryFile;
 
+	// the suite read from the plugin store instead of binaryFile; not
+	// serialized
+	private transient ByteBuffer suite;
+
 	public LoadMessage(int remoteEcuId, String executablePluginName, int callbackPortID,
 			HashMap<String, Integer> portInitialContext, ArrayList<LinkContextEntry> linkContext, byte[] binaryFile) {
 		super(MessageType.LOAD);
@@ -37,6 +46,17 @@ public class LoadMessage extends Message {
 		this.binaryFile = binaryFile;
 	}
 
+	/**
+	 * Instantiates a load message whose suite is in a buffer, e.g. a file
+	 * mapped from the plugin store, instead of an array.
+	 */
+	public LoadMessage(int remoteEcuId, String executablePluginName, int callbackPortID,
+			HashMap<String, Integer> portInitialContext, ArrayList<LinkContextEntry> linkContext, ByteBuffer suite) {
+		this(remoteEcuId, executablePluginName, callbackPortID,
+				portInitialContext, linkContext, (byte[]) null);
+		this.suite = suite;
+	}
+
 	public int getRemoteEcuId() {
 		return remoteEcuId;
 	}
@@ -45,6 +65,14 @@ public class LoadMessage extends Message {
 		this.remoteEcuId = remoteEcuId;
 	}
 
+	public byte getPluginId() {
+		return pluginId;
+	}
+
+	public void setPluginId(byte pluginId) {
+		this.pluginId = pluginId;
+	}
+
 	public int getCallbackPortID() {
 		return callbackPortID;
 	}
@@ -78,12 +106,37 @@ public class LoadMessage extends Message {
 		this.executablePluginName = executablePluginName;
 	}
 
+	/**
+	 * The suite as an array, copied out of the mapped file if the message
+	 * was made from one. getSuite does not copy.
+	 */
 	public byte[] getBinaryFile() {
+		if (binaryFile == null && suite != null) {
+			byte[] bytes = new byte[suite.remaining()];
+			suite.duplicate().get(bytes);
+			return bytes;
+		}
 		return binaryFile;
 	}
 
+	/**
+	 * The suite as a buffer of its own, positioned at the first byte.
+	 */
+	public ByteBuffer getSuite() {
+		if (suite != null)
+			return suite.duplicate();
+		return binaryFile == null ? null : ByteBuffer.wrap(binaryFile);
+	}
+
+	public int getSuiteSize() {
+		if (suite != null)
+			return suite.remaining();
+		return binaryFile == null ? 0 : binaryFile.length;
+	}
+
 	public void setBinaryFile(byte[] binaryFile) {
 		this.binaryFile = binaryFile;
+		this.suite = null;
 	}
 
 }
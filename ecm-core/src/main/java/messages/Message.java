@@ -14,6 +14,9 @@ public abstract class Message implements Serializable {
 	/** The message type. */
 	private int messageType;
 
+	/** System.nanoTime() when the message was made, for latency measurements. */
+	private transient long created = System.nanoTime();
+
 	/**
 	 * Instantiates a new message.
 	 */
@@ -46,4 +49,13 @@ public abstract class Message implements Serializable {
 	public void setMessageType(int messageType) {
 		this.messageType = messageType;
 	}
+
+	/**
+	 * Gets the time the message was made.
+	 *
+	 * @return System.nanoTime() at that time, 0 for a deserialized message
+	 */
+	public long getCreated() {
+		return created;
+	}
 }
@@ -31,6 +31,9 @@ public class MessageType extends Enum implements Serializable {
 	public static final byte INSTALL_LINUX_ACK = 17;
 	public static final byte PINGCAR = 18;
 	public static final byte INIT2 = 19;
+	// chunked plugin transfer, see SocketEcuManager
+	public static final byte TRANSFER = 20;
+	public static final byte TRANSFER_ACK = 21;
 	protected MessageType(byte enumValue) {
 		super(enumValue);
 		// TODO Auto-generated constructor stub
@@ -1,24 +1,33 @@
 package network.external;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.ByteBuffer;
 
 import messages.PWMMessage;
 import ecm.Ecm;
 
-public class CarDriver implements Runnable {
+/**
+ * This class listens for Wirelessino inputs and relays them to VCU,
+ * skipping old values (to avoid building upp buffers).
+ * 
+ * The connections are served by the ControlServer thread, which parses the
+ * commands where they were read and leaves the newest one of each ECU in a
+ * CommandMailbox.
+ * 
+ * @author zeni, avenir
+ *
+ */
+public class CarDriver implements Runnable, ControlServer.Listener {
 	private int pwmEcuId;
 	private Ecm ecm;
 	
 	private static final int PORT = 9000;
-	private List<Socket> mList = new ArrayList<Socket>();
-	private ExecutorService mExecutorService = null; // thread pool
+	/* 5 bytes for each bar + EOF */
+	private static final int FRAME_LENGTH = 11;
+	private static final int BAD_VALUE = Integer.MIN_VALUE;
+
+	private boolean debug = false;
+	private CommandMailbox mailbox = null;
 
 	public CarDriver(int pwmEcuId) {
 		this.pwmEcuId = pwmEcuId;
@@ -34,104 +43,90 @@ public class CarDriver implements Runnable {
 
 	@Override
 	public void run() {
-		ServerSocket server;
-		
+		mailbox = new CommandMailbox(ecm);
+		mailbox.start("CarDriver");
 		try {
-			server = new ServerSocket(PORT);
-			mExecutorService = Executors.newCachedThreadPool(); // create a
-																// thread
-			// pool
-			System.out.println("CarDriver server start (on ECM) ...");
-			Socket client = null;
-			while (true) {
-				System.out.println("CarDriver: listening");
-				client = server.accept();
-				mList.add(client);
-				System.out.println("CarDriver: starting new service");
-				mExecutorService.execute(new Service(client)); // start a new
-																// thread
-			}
+			ControlServer.getInstance().listen(PORT, "CarDriver", this);
 		} catch (IOException e1) {
 			e1.printStackTrace();
 		}
 	}
-	
+
 	/**
-	 * This class listens for Wirelessino inputs and relays them to VCU,
-	 * skipping old values in each iteration (to avoid building upp buffers). 
-	 * 
-	 * @author zeni, avenir
-	 *
+	 * Skip all commands except the last speed&steer command and the last
+	 * 'S' command, and send those to the VCU. An incomplete command is left
+	 * in the buffer.
 	 */
-	class Service implements Runnable {
-		private InputStream in = null;
+	@Override
+	public void received(ByteBuffer in) {
+		int frames = in.remaining() / FRAME_LENGTH;
+		int end = in.position() + frames * FRAME_LENGTH;
+		int lastDrive = -1;
+		int lastS = -1;
 
-		public Service(Socket socket) {
-			try {
-				in = socket.getInputStream();
-			} catch (IOException e) {
-				e.printStackTrace();
+		for (int at = end - FRAME_LENGTH; at >= in.position()
+				&& (lastDrive < 0 || lastS < 0); at -= FRAME_LENGTH) {
+			if (in.get(at) == 'S') {
+				if (lastS < 0)
+					lastS = at;
+			} else if (lastDrive < 0) {
+				lastDrive = at;
 			}
-
 		}
-		
-		/**
-		 * Interpret the input from Wirelessino and convert it into an appropriate format
-		 * 
-		 * Example: 
-		 * 			Input:  "H0050V-097\0"
-		 * 			Output: [50, -97]
-		 * 
-		 * @param message		----- a Wirelessino speed&steer command, such as "H0050V-097\0"
-		 * @return				----- speed&steer command in VCU-readable format, such as [50, -97]
-		 */
-		private byte[] interpretWirelessino(String message) {
-			byte[] res = new byte[2];
-			
-			System.out.println("RC message " + message);
 
-			res[0] = Byte.parseByte(message.substring(1, 5));
-			res[1] = Byte.parseByte(message.substring(6, 10));
-				
-			return res;
+		if (lastS >= 0) {
+			byte[] frame = new byte[FRAME_LENGTH];
+			for (int i = 0; i < FRAME_LENGTH; i++)
+				frame[i] = in.get(lastS + i);
+			mailbox.post(new PWMMessage(1, frame));
+		}
+		if (lastDrive >= 0) {
+			byte[] data = interpretWirelessino(in, lastDrive);
+			if (data != null)
+				mailbox.post(new PWMMessage(pwmEcuId, data));
 		}
+		in.position(end);
+	}
 
-		/**
-		 * Listen for input from the Wirelessino app, skip old values, 
-		 * and send the last incoming value to VCU
-		 */
-		public void run() {
-			/* We only want to read the last 11 bytes from the input stream (5 for each bar + EOF) */
-			byte[] incomingBytes = new byte[11];
-			
-			try {
-				while (true) {
-					int nrIncomingBytes = in.available();
-					if (nrIncomingBytes > 0) {
-						/* Skip all bytes except those that represent the last speed&steer command */
-					    //System.out.println("incoming " + nrIncomingBytes);
-						in.skip(nrIncomingBytes-incomingBytes.length);
-						in.read(incomingBytes);
-						
-						/* Convert the data into a format that will be understood on the recipient side and send it */ 
-						String str = new String(incomingBytes, "UTF-8");
-						byte[] data = interpretWirelessino(str);
-						PWMMessage pwmMessage;
-						if (str.charAt(0) == 'S') {
-							pwmMessage = new PWMMessage(1, incomingBytes);
-						} else
-						    {
-							pwmMessage = new PWMMessage(pwmEcuId, data);
-						    }
-						ecm.process(pwmMessage);
-					}
+	/**
+	 * Interpret the input from Wirelessino and convert it into an appropriate format
+	 * 
+	 * Example: 
+	 * 			Input:  "H0050V-097\0"
+	 * 			Output: [50, -97]
+	 * 
+	 * @param in			----- buffer holding a Wirelessino speed&steer command, such as "H0050V-097\0"
+	 * @param at			----- where the command starts in the buffer
+	 * @return				----- speed&steer command in VCU-readable format, such as [50, -97], or null if it is malformed
+	 */
+	private byte[] interpretWirelessino(ByteBuffer in, int at) {
+		int speed = parseByte(in, at + 1);
+		int steer = parseByte(in, at + 6);
 
-					Thread.sleep(10);
-				}
-			} catch (Exception e) {
-				System.out.println("Connection between cellphone and ECM was terminated");
-				e.printStackTrace();
-			}
+		if (debug) {
+			System.out.println("RC message " + speed + " " + steer);
+		}
+		if (speed == BAD_VALUE || steer == BAD_VALUE) {
+			System.out.println("CarDriver: malformed command skipped");
+			return null;
 		}
-	}	
+		return new byte[] { (byte) speed, (byte) steer };
+	}
+
+	/* A number in 4 characters, such as "0050" or "-097" */
+	private static int parseByte(ByteBuffer in, int at) {
+		boolean negative = in.get(at) == '-';
+		int value = 0;
+		for (int i = negative ? 1 : 0; i < 4; i++) {
+			int digit = in.get(at + i) - '0';
+			if (digit < 0 || digit > 9)
+				return BAD_VALUE;
+			value = value * 10 + digit;
+		}
+		if (negative)
+			value = -value;
+		if (value < Byte.MIN_VALUE || value > Byte.MAX_VALUE)
+			return BAD_VALUE;
+		return value;
+	}
 }
@@ -1,14 +1,8 @@
 package network.external;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -35,7 +29,10 @@ import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.IoSession;
 
 import utils.PropertyAPI;
+import utils.SuiteDelta;
+import utils.Trace;
 import db.DataRecord;
+import db.PluginStore;
 
 // TODO: Auto-generated Javadoc
 /**
@@ -44,8 +41,6 @@ import db.DataRecord;
 public class ClientHandler extends IoHandlerAdapter {
 	private String APP_DIR;
 	
-	private byte pluginIdAllocator = 1;
-	
 	/** The manager. */
 	private SocketCommunicationManager manager;
 
@@ -83,6 +78,8 @@ public class ClientHandler extends IoHandlerAdapter {
 		//InitPacket initPackage = new InitPacket(vin);
 		Init2Packet initPackage = new Init2Packet(vin);
 		initPackage.is_simulator = manager.getIs_Simulator();
+		// the server leaves these suites out of INSTALL and RESTORE
+		initPackage.suites = manager.getEcm().getPluginStore().getHashes();
 		session.write(initPackage);
 	}
 
@@ -109,55 +106,18 @@ public class ClientHandler extends IoHandlerAdapter {
 	@Override
 	public void messageReceived(IoSession session, Object packet)
 			throws Exception {
-		System.out.println("Message received on ECM...");
-		
-		//TODO: TEMP TEST PRINT-OUT
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		ObjectOutput out = null;
-		try {
-			out = new ObjectOutputStream(bos);   
-			out.writeObject(packet);
-			byte[] testBytes = bos.toByteArray();
-			System.out.print("TEST BYTES:");
-			for (int i = 0; i < 10; i++) {
-				System.out.print(" " + (testBytes[i] & 0xFF));
-			}
-			System.out.println("");
-			System.out.print("... ");
-			for (int i = testBytes.length - 10; i < testBytes.length; i++) {
-				System.out.print(" " + (testBytes[i] & 0xFF));
-			}
-			System.out.println("");
-		} finally {
-		  try {
-		    if (out != null) {
-		      out.close();
-		    }
-		  } catch (IOException ex) {
-		    // ignore close exception
-		  }
-		  try {
-		    bos.close();
-		  } catch (IOException ex) {
-		    // ignore close exception
-		  }
-		}
-		
 		Packet p = (Packet) packet;
-		System.out.println(">>> ecm-core/ClientHandler " + p.getMessageType());
+		Trace.event(Trace.SERVER_IN, p.getMessageType());
 		switch (p.getMessageType()) {
 		case MessageType.INSTALL:
-			System.out.println("Install Packet arrived");
 			InstallPacket installPacket = (InstallPacket) packet;
 			unpackInstallPackage(installPacket);
 			break;
 		case MessageType.UNINSTALL:
-			System.out.println("Uninstall Packet arrived");
 			UninstallPacket uninstallPacket = (UninstallPacket) packet;
 			unpackUninstallPackage(uninstallPacket);
 			break;
 		case MessageType.RESTORE:
-			System.out.println("Restore Packet arrived");
 			RestorePacket restorePacket = (RestorePacket) packet;
 			unpackRestorePackage(restorePacket);
 			break;
@@ -168,6 +128,13 @@ public class ClientHandler extends IoHandlerAdapter {
 			System.out.println("told to shut down");
 			System.exit(0);
 		    }
+		    // the server drops a car that stops answering its pings
+		    if (pingcarPacket.type == 45) {
+			PingcarPacket pong = new PingcarPacket(manager.getVin(), 0);
+			pong.type = 46;
+			pong.msg = "pong";
+			session.write(pong);
+		    }
 
 			break;
 		default:
@@ -198,15 +165,29 @@ public class ClientHandler extends IoHandlerAdapter {
 			// to DB
 			String pluginName = installPacketData.getPluginName();
 			
-			// send back about APP arrival in the Linux
-			InstallLinuxAckPacket installLinuxAckPacket = new InstallLinuxAckPacket(manager.getVin(), pluginName);
-		System.out.println("<<< ecm-core/ClientHandler INSTALL_LINUX_ACK");
-			manager.write(installLinuxAckPacket);
-			
 			int appId = installPacketData.getAppId();
 			// "plugin://tests/ClassLoaderInput/ClassLoaderInput.suite";
 			String executablePluginName = installPacketData.getExecutablePluginName();
-			String location = APP_DIR + File.separator + pluginName;
+			String location = storeSuite(installPacketData);
+			ByteBuffer suite;
+			try {
+				suite = location == null ? null : PluginStore.map(location);
+			} catch (IOException e) {
+				e.printStackTrace();
+				suite = null;
+			}
+			if (suite == null) {
+				// no INSTALL_LINUX_ACK, so the server sees the install
+				// time out
+				System.out.println("Not installing " + pluginName);
+				continue;
+			}
+
+			// send back about APP arrival in the Linux, now that it is
+			// stored
+			InstallLinuxAckPacket installLinuxAckPacket = new InstallLinuxAckPacket(manager.getVin(), pluginName);
+		System.out.println("<<< ecm-core/ClientHandler INSTALL_LINUX_ACK");
+			manager.write(installLinuxAckPacket);
 			HashMap<String, Integer> portInitialContext = installPacketData
 					.getPortInitialContext();
 
@@ -235,18 +216,16 @@ public class ClientHandler extends IoHandlerAdapter {
 			DataRecord dataRecord = new DataRecord(appId, reference, sendingPortID,
 					callbackPortID, pluginName, executablePluginName, location, portInitialContext,
 					portLinkingContext);
-			manager.getEcm().insertTmpDBRecord(pluginIdAllocator, dataRecord);
+			byte pluginId = manager.getEcm().nextPluginId();
+			manager.getEcm().insertTmpDBRecord(pluginId, dataRecord);
 			
 
-			byte[] binaryFile = installPacketData.getBinaryFile();
-			System.out.println("binaryFile.length = " + binaryFile.length);
-			generateFile(binaryFile, location);
-			
-			System.out.println("Binary file stored at " + location);
+			System.out.println("Binary file stored at " + location + ", "
+					+ suite.remaining() + " bytes");
 
 			// NOTE: change back value of pluginName somehow after test of integration
-			InstallMessage installMessage = new InstallMessage(reference, pluginIdAllocator++, executablePluginName,
-					callbackPortID, portInitialContext, portLinkingContext, binaryFile);
+			InstallMessage installMessage = new InstallMessage(reference, pluginId, executablePluginName,
+					callbackPortID, portInitialContext, portLinkingContext, suite);
 
 		System.out.println("<<< ecm-core/ClientHandler INSTALL");
 			manager.getEcm().process(installMessage);
@@ -272,14 +251,15 @@ public class ClientHandler extends IoHandlerAdapter {
 			int callbackPortID = uninstallPacketData.getCallbackPortID();
 			int reference = uninstallPacketData.getReference();
 			
-			manager.getEcm().addPluginIdPluginName2UninstallCache(pluginIdAllocator, pluginName);
+			byte pluginId = manager.getEcm().nextPluginId();
+			manager.getEcm().addPluginIdPluginName2UninstallCache(pluginId, pluginName);
 			
 		System.out.println("unpackUninstallPackage " + reference +
 				   " " + callbackPortID +
 				   " " + pluginName +
-				   " " + pluginIdAllocator);
+				   " " + pluginId);
 
-			UninstallMessage uninstallMessage = new UninstallMessage(reference, pluginIdAllocator++,
+			UninstallMessage uninstallMessage = new UninstallMessage(reference, pluginId,
 					pluginName, callbackPortID);
 
 		System.out.println("<<< ecm-core/ClientHandler UNINSTALL");
@@ -304,13 +284,22 @@ public class ClientHandler extends IoHandlerAdapter {
 			HashMap<String, Integer> portInitialContext = installPacketData
 					.getPortInitialContext();
 
-			String location = System.getProperty("user.dir") + File.separator
-					+ "src" + File.separator + "main" + File.separator
-					+ "resources" + File.separator + "local" + File.separator
-					+ "ECM" + File.separator + pluginName;
-
+			String location = storeSuite(installPacketData);
+			if (location == null) {
+				System.out.println("Not restoring " + pluginName);
+				continue;
+			}
 			byte[] binaryFile = installPacketData.getBinaryFile();
-			generateFile(binaryFile, location);
+			if (binaryFile == null) {
+				try {
+					ByteBuffer suite = PluginStore.map(location);
+					binaryFile = new byte[suite.remaining()];
+					suite.get(binaryFile);
+				} catch (IOException e) {
+					e.printStackTrace();
+					continue;
+				}
+			}
 
 			RestoreMessage restoreMessage = new RestoreMessage(reference, pluginName,
 					callbackPortID, portInitialContext, binaryFile);
@@ -320,23 +309,57 @@ public class ClientHandler extends IoHandlerAdapter {
 		}
 	}
 	
-	// save jar file in the ECM
-	private void generateFile(byte[] data, String path) {
+	// Stores the suite of the plug-in, or finds it in the store when the
+	// server left it out. A suite sent as a delta is rebuilt from the stored
+	// suite it was made against, and then given to data in full. Returns
+	// where it is stored, or null.
+	private String storeSuite(InstallPacketData data) {
+		PluginStore store = manager.getEcm().getPluginStore();
+		byte[] binaryFile = data.getBinaryFile();
+		String hash = data.getSuiteHash();
+		String baseHash = data.getBaseHash();
 		try {
-			OutputStream output = null;
-			try {
-			    System.out.println("generateFile " + path);
-			    System.out.println("generateFile " + path + " " + data.length);
-				output = new BufferedOutputStream(new FileOutputStream(path));
-				output.write(data);
-			} finally {
-				output.close();
+			if (binaryFile != null && baseHash != null) {
+				if (hash == null || !store.contains(baseHash)) {
+					System.out.println("Suite " + data.getPluginName()
+							+ " is a delta against " + baseHash
+							+ ", which is not stored");
+					return null;
+				}
+				int deltaSize = binaryFile.length;
+				binaryFile = SuiteDelta.apply(
+						PluginStore.map(store.getLocation(baseHash)),
+						binaryFile);
+				System.out.println("Suite " + data.getPluginName()
+						+ " rebuilt from a delta of " + deltaSize + " bytes");
+				data.setBinaryFile(binaryFile);
+				data.setBaseHash(null);
 			}
-		} catch (FileNotFoundException ex) {
-			System.out.println("File not found.");
-		} catch (Exception ex) {
-			ex.printStackTrace();
-		} 
+			if (binaryFile != null) {
+				String stored = store.put(binaryFile);
+				if (hash != null && !hash.equals(stored)) {
+					System.out.println("Suite " + data.getPluginName()
+							+ " does not match its hash " + hash);
+					return null;
+				}
+				hash = stored;
+			} else if (!store.contains(hash)) {
+				System.out.println("Suite " + data.getPluginName() + " ("
+						+ hash + ") was left out but is not stored");
+				return null;
+			} else {
+				System.out.println("Suite " + data.getPluginName()
+						+ " already stored");
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} catch (IllegalArgumentException e) {
+			System.out.println("Suite " + data.getPluginName() + ": "
+					+ e.getMessage());
+			return null;
+		}
+		return store.getLocation(hash);
 	}
 
 }
@@ -0,0 +1,63 @@
+package network.external;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import messages.PWMMessage;
+import utils.Latency;
+import ecm.Ecm;
+
+/**
+ * Passes commands from the selector thread to the ECU manager, one slot per
+ * ECU. A command put in a slot replaces the one that is there, so an ECU
+ * always gets the newest command and never a backlog of old ones. Only the
+ * forwarding thread takes commands out.
+ */
+public class CommandMailbox implements Runnable {
+	private static final int MAX_ECUS = 16;
+
+	private Ecm ecm;
+	private AtomicReferenceArray<PWMMessage> slots = new AtomicReferenceArray<PWMMessage>(
+			MAX_ECUS);
+	private volatile Thread forwarder;
+
+	public CommandMailbox(Ecm ecm) {
+		this.ecm = ecm;
+	}
+
+	public void start(String name) {
+		forwarder = new Thread(this, name);
+		forwarder.start();
+	}
+
+	/**
+	 * Never blocks.
+	 */
+	public void post(PWMMessage message) {
+		if (slots.getAndSet(message.getRemoteEcuId(), message) == null) {
+			LockSupport.unpark(forwarder);
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			boolean found = false;
+			for (int i = 0; i < MAX_ECUS; i++) {
+				PWMMessage message = slots.getAndSet(i, null);
+				if (message != null) {
+					found = true;
+					Latency.PWM_QUEUE.recordSince(message.getCreated());
+					try {
+						ecm.process(message);
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			if (!found) {
+				LockSupport.park(this);
+			}
+		}
+	}
+}
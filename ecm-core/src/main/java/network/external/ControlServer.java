@@ -0,0 +1,181 @@
+package network.external;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves the sockets of the phone and navigation apps on one thread.
+ * 
+ * Each port has a Listener. Whatever arrives on a connection is appended to
+ * the buffer of that connection and handed to the listener, which takes the
+ * bytes it can use and leaves the rest for the next read. Listeners run on
+ * the selector thread and must not block.
+ */
+public class ControlServer implements Runnable {
+	private static final int BUFFER_SIZE = 1024;
+
+	private static ControlServer instance = null;
+
+	public interface Listener {
+		/**
+		 * Called with the buffer of a connection, ready for reading, when
+		 * new bytes have come. Bytes left in it are kept for the next call.
+		 */
+		void received(ByteBuffer in);
+	}
+
+	private static class Listening {
+		private int port;
+		private String name;
+		private Listener listener;
+
+		private Listening(int port, String name, Listener listener) {
+			this.port = port;
+			this.name = name;
+			this.listener = listener;
+		}
+	}
+
+	private static class Connection {
+		private Listening listening;
+		private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		private Connection(Listening listening) {
+			this.listening = listening;
+		}
+	}
+
+	private Selector selector;
+	private ConcurrentLinkedQueue<Listening> toOpen = new ConcurrentLinkedQueue<Listening>();
+
+	private ControlServer() throws IOException {
+		selector = Selector.open();
+	}
+
+	public static synchronized ControlServer getInstance() throws IOException {
+		if (instance == null) {
+			instance = new ControlServer();
+			new Thread(instance, "ControlServer").start();
+		}
+		return instance;
+	}
+
+	/**
+	 * Starts accepting connections on a port. May be called from any thread.
+	 */
+	public void listen(int port, String name, Listener listener) {
+		toOpen.add(new Listening(port, name, listener));
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+
+			Listening l;
+			while ((l = toOpen.poll()) != null) {
+				open(l);
+			}
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					accept(key);
+				} else if (key.isReadable()) {
+					read(key);
+				}
+			}
+		}
+	}
+
+	private void open(Listening l) {
+		try {
+			ServerSocketChannel server = ServerSocketChannel.open();
+			server.socket().setReuseAddress(true);
+			server.socket().bind(new InetSocketAddress(l.port));
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT, l);
+			System.out.println(l.name + " server start (on ECM) ...");
+			System.out.println(l.name + ": listening");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void accept(SelectionKey key) {
+		Listening l = (Listening) key.attachment();
+		try {
+			SocketChannel client = ((ServerSocketChannel) key.channel())
+					.accept();
+			if (client == null) {
+				return;
+			}
+			client.configureBlocking(false);
+			client.socket().setTcpNoDelay(true);
+			client.register(selector, SelectionKey.OP_READ, new Connection(l));
+			System.out.println(l.name + ": new connection from "
+					+ client.socket().getRemoteSocketAddress());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void read(SelectionKey key) {
+		Connection c = (Connection) key.attachment();
+		SocketChannel client = (SocketChannel) key.channel();
+		int n;
+		try {
+			n = client.read(c.buffer);
+		} catch (IOException e) {
+			n = -1;
+		}
+		if (n < 0) {
+			System.out.println("Connection between cellphone and ECM was terminated");
+			key.cancel();
+			try {
+				client.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		if (n == 0) {
+			return;
+		}
+
+		c.buffer.flip();
+		try {
+			c.listening.listener.received(c.buffer);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			c.buffer.clear();
+		}
+		if (!c.buffer.hasRemaining()) {
+			c.buffer.clear();
+		} else {
+			c.buffer.compact();
+			if (!c.buffer.hasRemaining()) {
+				// the listener does not take anything from a full buffer
+				c.buffer.clear();
+			}
+		}
+	}
+}
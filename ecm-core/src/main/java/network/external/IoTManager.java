@@ -9,19 +9,24 @@ public class IoTManager implements Runnable {
 	private Ecm ecm;
 	private IPublisher publisher;
 	private IReceiver receiver;
+	// publishes in its own thread, so that sendPacket never waits
+	private TelemetryPipeline pipeline;
 	
 	public IoTManager(IPublisher publisher) { //, IReceiver receiver) {
 		this.publisher = publisher;
 		this.receiver = null;
 		this.ecm = null;
+		this.pipeline = new TelemetryPipeline(publisher);
 	}
 	
     public IoTManager(IPublisher publisher, IReceiver receiver) {
 		this.publisher = publisher;
 		this.receiver = receiver;
+		this.pipeline = new TelemetryPipeline(publisher);
 	}
 	
 	public void run() {
+	    pipeline.start();
 	    if (receiver != null) {
 		IoTIMessageHandler ioTIMessageHandler = new IoTIMessageHandler(ecm);
 		System.out.println("subscribe IoTIMessageHandler");
@@ -32,7 +37,11 @@ public class IoTManager implements Runnable {
 	public void sendPacket(PublishPacket packet) {
 		String key = packet.getKey();
 		String value = packet.getValue();
-		publisher.publish(key, value);
+		pipeline.offer(key, value);
+	}
+
+	public TelemetryPipeline getPipeline() {
+		return pipeline;
 	}
 	
 	public void setEcm(Ecm ecm) {
@@ -6,13 +6,13 @@ import java.nio.charset.Charset;
 import org.apache.mina.core.future.ConnectFuture;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolCodecFilter;
-import org.apache.mina.filter.codec.serialization.ObjectSerializationCodecFactory;
 import org.apache.mina.filter.codec.textline.TextLineCodecFactory;
 import org.apache.mina.filter.logging.LoggingFilter;
 //import org.apache.mina.filter.logging.LoggingFilter;
 import org.apache.mina.transport.socket.nio.NioSocketConnector;
 
 import ecm.Ecm;
+import messages.PacketCodecFactory;
 
 // TODO: Auto-generated Javadoc
 /**
@@ -68,7 +68,7 @@ public class SocketCommunicationManager implements CommunicationManager {
 			connector.getFilterChain().addLast(
 					"codec",
 					new ProtocolCodecFilter(
-							new ObjectSerializationCodecFactory()));
+							new PacketCodecFactory()));
 //							new TextLineCodecFactory(Charset.forName("UTF-8"))));
 			connector.getFilterChain().addLast("logger", new LoggingFilter());
 			connector.setHandler(new ClientHandler(this));
@@ -0,0 +1,172 @@
+package network.external;
+
+import io.IPublisher;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import messages.PublishPacket;
+import utils.Latency;
+
+/**
+ * Hands telemetry from the ECM to the publisher without making the caller
+ * wait for the network.
+ *
+ * offer() only puts the update in a bounded queue, and drops it when the
+ * queue is full. A thread of its own takes the updates off the queue, keeps
+ * the latest value of each key, and every FLUSH_INTERVAL ms (or when
+ * MAX_BATCH keys are waiting) gives them to the publisher as one batch. A
+ * key updated several times between flushes is thus published once, with
+ * its last value. The counters are shown in the Latency report.
+ */
+public class TelemetryPipeline implements Runnable, Latency.Counters {
+	private static final int QUEUE_SIZE = 1024;
+	// ms between flushes
+	private static final int FLUSH_INTERVAL = 100;
+	// keys that make a flush happen before its time
+	private static final int MAX_BATCH = 64;
+	// ms between reports of dropped updates
+	private static final int DROP_REPORT_INTERVAL = 10000;
+
+	private IPublisher publisher;
+	private ArrayBlockingQueue<PublishPacket> queue = new ArrayBlockingQueue<PublishPacket>(
+			QUEUE_SIZE);
+	// key: key, value: latest value; only used by the flushing thread
+	private LinkedHashMap<String, String> pending = new LinkedHashMap<String, String>();
+	private volatile int pendingSize;
+	private volatile long lastDropReport;
+
+	private AtomicLong offered = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+	private AtomicLong coalesced = new AtomicLong();
+	private AtomicLong published = new AtomicLong();
+	private AtomicLong batches = new AtomicLong();
+	// updates lost because the publisher threw; those it could not send
+	// are counted by the publisher
+	private AtomicLong failed = new AtomicLong();
+
+	public TelemetryPipeline(IPublisher publisher) {
+		this.publisher = publisher;
+	}
+
+	public void start() {
+		Thread thread = new Thread(this, "Telemetry");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues an update. Never blocks.
+	 *
+	 * @return false if the queue was full and the update was dropped
+	 */
+	public boolean offer(String key, String value) {
+		offered.incrementAndGet();
+		if (queue.offer(new PublishPacket(key, value)))
+			return true;
+		long n = dropped.incrementAndGet();
+		long now = System.currentTimeMillis();
+		if (now - lastDropReport >= DROP_REPORT_INTERVAL) {
+			lastDropReport = now;
+			System.out.println("Telemetry queue full, " + n
+					+ " updates dropped");
+		}
+		return false;
+	}
+
+	public void run() {
+		ArrayList<PublishPacket> drained = new ArrayList<PublishPacket>(
+				QUEUE_SIZE);
+		long nextFlush = System.currentTimeMillis() + FLUSH_INTERVAL;
+		while (true) {
+			try {
+				long wait = nextFlush - System.currentTimeMillis();
+				PublishPacket packet = queue.poll(Math.max(wait, 0),
+						TimeUnit.MILLISECONDS);
+				if (packet != null) {
+					add(packet);
+					queue.drainTo(drained);
+					for (PublishPacket p : drained)
+						add(p);
+					drained.clear();
+					pendingSize = pending.size();
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			if (now >= nextFlush || pending.size() >= MAX_BATCH) {
+				flush();
+				nextFlush = now + FLUSH_INTERVAL;
+			}
+		}
+	}
+
+	private void add(PublishPacket packet) {
+		// remove first, so that the key moves to the end
+		if (pending.remove(packet.getKey()) != null)
+			coalesced.incrementAndGet();
+		pending.put(packet.getKey(), packet.getValue());
+	}
+
+	private void flush() {
+		if (pending.isEmpty())
+			return;
+		long start = System.nanoTime();
+		try {
+			published.addAndGet(publisher.publishBatch(pending));
+			Latency.PUBLISH_BATCH.recordSince(start);
+			batches.incrementAndGet();
+		} catch (RuntimeException e) {
+			failed.addAndGet(pending.size());
+			e.printStackTrace();
+		}
+		pending.clear();
+		pendingSize = 0;
+	}
+
+	public long getOffered() {
+		return offered.get();
+	}
+
+	/** Updates dropped because the queue was full. */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/** Updates replaced by a newer value for the same key before a flush. */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/** Updates sent; those held back by rate limiting are not counted. */
+	public long getPublished() {
+		return published.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/** Updates that could not be sent. */
+	public long getFailed() {
+		return failed.get() + publisher.getFailed();
+	}
+
+	/** Updates waiting to be published. */
+	public int getBacklog() {
+		return queue.size() + pendingSize;
+	}
+
+	public String getStats() {
+		return "telemetry offered " + offered.get() + ", dropped "
+				+ dropped.get() + ", coalesced " + coalesced.get()
+				+ ", published " + published.get() + " in " + batches.get()
+				+ " batches, failed " + getFailed() + ", backlog "
+				+ getBacklog();
+	}
+}
@@ -1,5 +1,6 @@
 package network.internal;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -8,7 +9,6 @@ import java.util.Map.Entry;
 
 import messages.InstallAckMessage;
 import messages.InstallMessage;
-import messages.LinkContextEntry;
 import messages.LoadMessage;
 import messages.Message;
 import messages.MessageType;
@@ -19,10 +19,13 @@ import messages.RestoreMessage;
 import messages.UninstallAckMessage;
 import messages.UninstallMessage;
 
+import com.sun.jna.Memory;
 import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 
 import ecm.Ecm;
+import utils.Latency;
+import utils.Trace;
 
 public class CanEcuManager implements EcuManager {
 	private Ecm ecm;
@@ -31,31 +34,62 @@ public class CanEcuManager implements EcuManager {
 	private JavaCanLibrary javaCanLibrary;
 	private HashMap<String, Integer> senders = new HashMap<String, Integer>();
 	private ArrayList<ICanReceiver> canReceivers = new ArrayList<ICanReceiver>();
+	// CAN ID -> receiver, used when frames are read one at a time
+	private HashMap<Integer, ICanReceiver> canDispatch = new HashMap<Integer, ICanReceiver>();
+	private boolean eventDriven;
+	// also held while sending, since javaCanLib keeps the package being sent
+	// in globals and can only send one at a time
+	private EcuFrameCodec frameCodec = new EcuFrameCodec();
+
+	// ms that receiveFrame blocks before returning without a frame
+	private static final int RECEIVE_TIMEOUT = 1000;
 
 	public CanEcuManager(HashMap<String, Integer> senders,
 			HashMap<Integer, String> receivers) {
+		this(senders, receivers, true);
+	}
+
+	public CanEcuManager(HashMap<String, Integer> senders,
+			HashMap<Integer, String> receivers, boolean eventDriven) {
+		this(senders, receivers, (JavaCanLibrary) Native.loadLibrary(
+				"javaCanLib", JavaCanLibrary.class), eventDriven);
+	}
+
+	/**
+	 * @param javaCanLibrary
+	 *            the CAN library, normally the native javaCanLib but
+	 *            LoopbackCanLibrary can be given to run without a CAN bus
+	 * @param eventDriven
+	 *            true to block on receiveFrame and dispatch on CAN ID, false
+	 *            to poll every receiver each 10 ms as before
+	 */
+	public CanEcuManager(HashMap<String, Integer> senders,
+			HashMap<Integer, String> receivers, JavaCanLibrary javaCanLibrary,
+			boolean eventDriven) {
 		this.senders = senders;
+		this.eventDriven = eventDriven;
 
 		Iterator<Entry<Integer, String>> iter = receivers.entrySet().iterator();
 		while (iter.hasNext()) {
 			Entry<Integer, String> entry = iter.next();
 			int id = entry.getKey();
 			String function = entry.getValue();
+			ICanReceiver r;
 			if (function.equals("cantp")) {
-				ICanReceiver r = new CanTPReceiver(id);
-				canReceivers.add(r);
+				r = new CanTPReceiver(id);
 			} else if (function.equals("can")) {
-				ICanReceiver r = new ClassicalCanReceiver(id);
-				canReceivers.add(r);
+				r = new ClassicalCanReceiver(id);
 			} else {
 				System.out
 						.println("Error: there is wrong function name for receivers");
 				System.exit(-1);
+				return;
 			}
+			canReceivers.add(r);
+			canDispatch.put(id, r);
 		}
 
-		javaCanLibrary = (JavaCanLibrary) Native.loadLibrary("javaCanLib",
-				JavaCanLibrary.class);
+		this.javaCanLibrary = javaCanLibrary;
 		channelNumber = javaCanLibrary.init_can();
 //		System.out.println("cn:" + channelNumber);
 
@@ -63,91 +97,18 @@ public class CanEcuManager implements EcuManager {
 
 	@Override
 	public void run() {
+		if (eventDriven)
+			receiveFrames();
+		else
+			pollReceivers();
+	}
+
+	private void pollReceivers() {
 		while (true) {
 			for (ICanReceiver receiver : canReceivers) {
 				byte[] data = receiver.receive();
 				if(data != null)
-				    try {
-					byte[] parsedData = parseByteData(data[0]);
-					switch (parsedData[0]) {
-					case MessageType.INSTALL_ACK:
-
-					    //System.out.println(" plugin id " + parsedData[1]);
-						if(ecm.hasPluginInTmpDB(parsedData[1])) {
-		System.out.println(">>> ecm-core/CanEcuManager " + parsedData[0]);
-							String pluginName = ecm
-									.getPluginNameFromTmpDB(parsedData[1]);
-							InstallAckMessage installAckMessage = new InstallAckMessage(
-									parsedData[1], pluginName);
-							ecm.process(installAckMessage);
-						} else {
-						    //							System.out.println("There is no corresponding Plugin ID " + parsedData[1] + " in temporary DB");
-						}
-						break;
-					case MessageType.UNINSTALL_ACK:
-						byte pluginId4Uninstall = parsedData[1];
-						if (pluginId4Uninstall == 51 && !ecm.hasPluginInUninstallCache(pluginId4Uninstall)) {
-						    // special case for a raw message sent from VCU giving speed - Ecm shouldn't really see it.
-						    break;
-						}
-		System.out.println(">>> ecm-core/CanEcuManager " + parsedData[0]);
-						if(ecm.hasPluginInUninstallCache(pluginId4Uninstall)) {
-							String pluginName = ecm.getPluginNameFromUninstallCache(pluginId4Uninstall);
-							UninstallAckMessage uninstallAckMessage = new UninstallAckMessage(pluginName);
-							ecm.process(uninstallAckMessage);
-						} else {
-							System.out.println("There is no corresponding Plugin ID " + parsedData[1] + " in uninstall cache");
-						}
-						break;
-					case MessageType.PUBLISH:
-		System.out.println(">>> ecm-core/CanEcuManager " + parsedData[0]);
-					    System.out.println("data length = " + data.length);
-						int index = 1;
-						byte[] buffer = new byte[4];
-						for(int i=0;i<4;i++) {
-							buffer[i] = data[index++];
-						}
-						int keySize = byteArrayToInt(buffer);
-						System.out.println("keysize " + keySize);
-						byte[] keyBytes = new byte[keySize];
-						for(int k=0;k<keySize;k++) {
-							keyBytes[k] = data[index++];
-						}
-						String keyStr = new String(keyBytes);
-						
-						System.out.println("keystr " + keyStr);
-
-						try {
-						    for(int i=0;i<4;i++) {
-							System.out.println(" " + i + " " + data[index]);
-							buffer[i] = data[index++];
-						    }
-						} catch (Exception e) {
-						    continue;
-						}
-						int valueSize = byteArrayToInt(buffer);
-						System.out.println("valueSize " + valueSize);
-
-						if (valueSize > 512)
-						    break;
-						byte[] valueBytes = new byte[valueSize];
-						for(int v=0;v<valueSize;v++) {
-							valueBytes[v] = data[index++];
-						}
-						String valueStr = new String(valueBytes);
-						
-						PublishMessage publishMessage = new PublishMessage(keyStr, valueStr);
-						ecm.process(publishMessage);
-						break;
-					default:
-		System.out.println(">>> ecm-core/CanEcuManager " + parsedData[0]);
-						System.out
-								.println("Error: wrong message type from autosar");
-					}
-				    } catch (Exception e) {
-					e.printStackTrace();
-				    }
-				
+					handleData(data);
 			}
 
 			try {
@@ -159,8 +120,123 @@ public class CanEcuManager implements EcuManager {
 		}
 	}
 
+	private void receiveFrames() {
+		// 4: CAN ID, 1: DLC, 8: data, as written by receiveFrame
+		Memory frameBuffer = new Memory(JavaCanLibrary.FRAME_SIZE);
+		byte[] frame = new byte[JavaCanLibrary.FRAME_SIZE];
+		while (true) {
+			int size = javaCanLibrary.receiveFrame(channelNumber,
+					RECEIVE_TIMEOUT, frameBuffer);
+			if (size < 0) {
+				System.out.println("Error: CAN receive failed on channel "
+						+ channelNumber);
+				try {
+					Thread.sleep(RECEIVE_TIMEOUT);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+				continue;
+			} else if (size == 0) {
+				continue;
+			}
+			frameBuffer.read(0, frame, 0, size);
+			int canId = byteArrayToInt(frame);
+			ICanReceiver receiver = canDispatch.get(canId);
+			if (receiver == null)
+				continue;
+			byte[] data = receiver.onFrame(frame, 4, size - 4);
+			if (data != null)
+				handleData(data);
+		}
+	}
+
+	private void handleData(byte[] data) {
+		try {
+			byte[] parsedData = parseByteData(data[0]);
+			switch (parsedData[0]) {
+			case MessageType.INSTALL_ACK:
+
+			    //System.out.println(" plugin id " + parsedData[1]);
+				if(ecm.hasPluginInTmpDB(parsedData[1])) {
+		Trace.event(Trace.CAN_IN, parsedData[0], parsedData[1], data.length);
+					String pluginName = ecm
+							.getPluginNameFromTmpDB(parsedData[1]);
+					InstallAckMessage installAckMessage = new InstallAckMessage(
+							parsedData[1], pluginName);
+					ecm.process(installAckMessage);
+				} else if (ecm.loadAcked(parsedData[1])) {
+		Trace.event(Trace.CAN_IN, parsedData[0], parsedData[1], data.length);
+				} else {
+				    //							System.out.println("There is no corresponding Plugin ID " + parsedData[1] + " in temporary DB");
+				}
+				break;
+			case MessageType.UNINSTALL_ACK:
+				byte pluginId4Uninstall = parsedData[1];
+				if (pluginId4Uninstall == 51 && !ecm.hasPluginInUninstallCache(pluginId4Uninstall)) {
+				    // special case for a raw message sent from VCU giving speed - Ecm shouldn't really see it.
+				    break;
+				}
+		Trace.event(Trace.CAN_IN, parsedData[0], parsedData[1], data.length);
+				if(ecm.hasPluginInUninstallCache(pluginId4Uninstall)) {
+					String pluginName = ecm.getPluginNameFromUninstallCache(pluginId4Uninstall);
+					UninstallAckMessage uninstallAckMessage = new UninstallAckMessage(pluginName);
+					ecm.process(uninstallAckMessage);
+				} else {
+					System.out.println("There is no corresponding Plugin ID " + parsedData[1] + " in uninstall cache");
+				}
+				break;
+			case MessageType.PUBLISH:
+		Trace.event(Trace.CAN_IN, parsedData[0], parsedData[1], data.length);
+				int index = 1;
+				byte[] buffer = new byte[4];
+				for(int i=0;i<4;i++) {
+					buffer[i] = data[index++];
+				}
+				int keySize = byteArrayToInt(buffer);
+				byte[] keyBytes = new byte[keySize];
+				for(int k=0;k<keySize;k++) {
+					keyBytes[k] = data[index++];
+				}
+				String keyStr = new String(keyBytes);
+
+				try {
+				    for(int i=0;i<4;i++) {
+					buffer[i] = data[index++];
+				    }
+				} catch (Exception e) {
+				    return;
+				}
+				int valueSize = byteArrayToInt(buffer);
+				Trace.event(Trace.CAN_PUBLISH, data.length, keySize, valueSize);
+
+				if (valueSize > 512)
+				    break;
+				byte[] valueBytes = new byte[valueSize];
+				for(int v=0;v<valueSize;v++) {
+					valueBytes[v] = data[index++];
+				}
+				String valueStr = new String(valueBytes);
+				
+				PublishMessage publishMessage = new PublishMessage(keyStr, valueStr);
+				ecm.process(publishMessage);
+				break;
+			default:
+		Trace.event(Trace.CAN_IN, parsedData[0], parsedData[1], data.length);
+				System.out
+						.println("Error: wrong message type from autosar");
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
 	interface ICanReceiver {
+		// polls the library for a complete message on this receiver's CAN ID
 		public byte[] receive();
+
+		// takes one frame read off the bus, returns a complete message or
+		// null while more frames are needed
+		public byte[] onFrame(byte[] frame, int offset, int size);
 	}
 
 	class ClassicalCanReceiver implements ICanReceiver {
@@ -180,19 +256,38 @@ public class CanEcuManager implements EcuManager {
 					return null;
 				}
 				byte[] res = new byte[len];
-				for (int i = 0; i < len; i++) {
-					res[i] = p.getByte(i + 1);
-				}
+				p.read(1, res, 0, len);
 				return res;
 			} else
 				return null;
 			
 		}
+
+		@Override
+		public byte[] onFrame(byte[] frame, int offset, int size) {
+			int len = frame[offset];
+			if (len <= 0 || len > size - 1) {
+				System.out.println("It should not receive value less than 0 in normal can channel");
+				return null;
+			}
+			return Arrays.copyOfRange(frame, offset + 1, offset + 1 + len);
+		}
 	}
 
 	class CanTPReceiver implements ICanReceiver {
+		private static final int SINGLE_FRAME = 0x0;
+		private static final int FIRST_FRAME = 0x1;
+		private static final int CONSECUTIVE_FRAME = 0x2;
+
 		private int canId;
 
+		// reassembly state for onFrame, kept per CAN ID so that two
+		// senders interleaving their frames don't spoil each other
+		private byte[] packageBuffer = new byte[2000];
+		private int packageSize;
+		private int packageIndex;
+		private int nextSequenceNumber;
+
 		public CanTPReceiver(int canId) {
 			this.canId = canId;
 		}
@@ -208,20 +303,65 @@ public class CanEcuManager implements EcuManager {
 				return null;
 			    }
 			    res = new byte[len];
-			    for (int i = 0; i < len; i++) {
-				res[i] = p.getByte(i);
-			    }
+			    p.read(0, res, 0, len);
 			    javaCanLibrary.resetPackageSize();
 			    return res;
 			}
 			return null;
 		}
 
+		@Override
+		public byte[] onFrame(byte[] frame, int offset, int size) {
+			// frame[offset] is the DLC, the CAN data follows it
+			int dlc = Math.min(frame[offset], size - 1);
+			int data = offset + 1;
+			if (dlc <= 0)
+				return null;
+			switch ((frame[data] & 0xF0) >> 4) {
+			case SINGLE_FRAME:
+				int len = Math.min(frame[data] & 0x0F, dlc - 1);
+				if (len <= 0)
+					return null;
+				packageSize = 0;
+				return Arrays.copyOfRange(frame, data + 1, data + 1 + len);
+			case FIRST_FRAME:
+				if (dlc < 4)
+					return null;
+				packageSize = (frame[data] & 0x0F) << 24
+						| (frame[data + 1] & 0xFF) << 16
+						| (frame[data + 2] & 0xFF) << 8
+						| (frame[data + 3] & 0xFF);
+				if (packageBuffer.length < packageSize)
+					packageBuffer = new byte[packageSize];
+				packageIndex = 0;
+				nextSequenceNumber = 0;
+				return append(frame, data + 4, dlc - 4);
+			case CONSECUTIVE_FRAME:
+				if (packageSize == 0
+						|| (frame[data] & 0x0F) != nextSequenceNumber)
+					return null;
+				nextSequenceNumber = (nextSequenceNumber + 1) & 0x0F;
+				return append(frame, data + 1, dlc - 1);
+			default:
+				return null;
+			}
+		}
+
+		private byte[] append(byte[] frame, int from, int len) {
+			len = Math.min(len, packageSize - packageIndex);
+			System.arraycopy(frame, from, packageBuffer, packageIndex, len);
+			packageIndex += len;
+			if (packageIndex < packageSize)
+				return null;
+			packageSize = 0;
+			return Arrays.copyOf(packageBuffer, packageIndex);
+		}
+
 	}
 
 	@Override
 	public void sendMessage(Message message) {
-		System.out.println("<<< ecm-core/CanEcuManager " + message.getMessageType());
+		Trace.event(Trace.CAN_OUT, message.getMessageType());
 		switch (message.getMessageType()) {
 		case MessageType.INSTALL:
 			System.out.println("[CanEcuManager - sendInstallMessage(Message)]");
@@ -258,303 +398,42 @@ public class CanEcuManager implements EcuManager {
 
 	private void sendMessage(LoadMessage message) {
 		int id = message.getRemoteEcuId();
-		String executablePluginName = message.getExecutablePluginName();
-		byte[] plugin = message.getBinaryFile();
-		
-		System.out.print("PLUGIN BYTES:");
-		for (int i = 0; i < plugin.length; i++) {
-			System.out.print(" " + (plugin[i] & 0xFF));
-		}
-		System.out.println("");
-
-		int index = 0;
-		int pluginNameSize = executablePluginName.length();
-		int sizeofBinary = plugin.length;
-//		System.out.println("File length: " + sizeofBinary);
-
-		String portInitContextBuffer = "";
-		HashMap<String, Integer> portInitialContext = message
-				.getPortInitialContext();
-		Iterator<Entry<String, Integer>> iterator = portInitialContext
-				.entrySet().iterator();
-
-		while (iterator.hasNext()) {
-			Entry<String, Integer> entry = iterator.next();
-			String key = entry.getKey();
-			String value = String.valueOf(entry.getValue());
-			if (portInitContextBuffer.equals("")) {
-				portInitContextBuffer += key;
-				portInitContextBuffer += "|";
-				portInitContextBuffer += value;
-			} else {
-				portInitContextBuffer += "|";
-				portInitContextBuffer += key;
-				portInitContextBuffer += "|";
-				portInitContextBuffer += value;
-			}
-		}
-		byte[] portInitContextBufferBytes = portInitContextBuffer.getBytes();
-		int portInitContextBytesSize = portInitContextBufferBytes.length;
-
-		ArrayList<LinkContextEntry> linkContext = message.getLinkContext();
-		int portLinkContextNum = linkContext.size();
-		int portLinkContextByteSize = portLinkContextNum * 12;
-
-		// 1: Message Type, 1: plugin ID, 4: Size of PlugIn Name(M),
-		// M: PlugIn Name(byte array), 4: Size of Byte Array(N), N: Byte Array,
-		// 4: Size of PortInitContext(P), P: byte array, 4:
-		// PortLinkContextByteSize(Q), Q*3*4: byte array
-		int totalSize = /* 2 + 4 + */1 + 1 + 4 + pluginNameSize + 4
-				+ sizeofBinary + 4 + portInitContextBytesSize + 4
-				+ portLinkContextByteSize;
-		byte byteArray[] = new byte[totalSize];
-
-		System.out.println("Plugin Name: " + executablePluginName
-				+ ", Total Size: " + totalSize);
-
-		// prepare starting sign $$
-		// byteArray[index++] = '$';
-		// byteArray[index++] = '$';
-
-		// prepare size of message
-		// byteArray[index++] = (byte) (totalSize >> 24);
-		// byteArray[index++] = (byte) ((totalSize >> 16) & 0xFF);
-		// byteArray[index++] = (byte) ((totalSize >> 8) & 0xFF);
-		// byteArray[index++] = (byte) (totalSize & 0xFF);
-
-		// prepare Message Type
-		byteArray[index++] = MessageType.LOAD;
-
-		// prepare plugin ID
-		byteArray[index++] = (byte) 0;
-
-		// prepare plugin name size
-		byteArray[index++] = (byte) (pluginNameSize >> 24);
-		byteArray[index++] = (byte) ((pluginNameSize >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((pluginNameSize >> 8) & 0xFF);
-		byteArray[index++] = (byte) (pluginNameSize & 0xFF);
-
-		// prepare plugin name
-		for (int i = 0; i < pluginNameSize; i++) {
-			byteArray[index++] = (byte) executablePluginName.charAt(i);
-		}
-		// copy binary size
-		byteArray[index++] = (byte) (sizeofBinary >> 24);
-		byteArray[index++] = (byte) ((sizeofBinary >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((sizeofBinary >> 8) & 0xFF);
-		byteArray[index++] = (byte) (sizeofBinary & 0xFF);
-
-		// prepare binary
-		for (int j = 0; j < sizeofBinary; j++) {
-			byteArray[index++] = plugin[j];
-		}
-
-		// prepare PortInitContext
-		byteArray[index++] = (byte) (portInitContextBytesSize >> 24);
-		byteArray[index++] = (byte) ((portInitContextBytesSize >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((portInitContextBytesSize >> 8) & 0xFF);
-		byteArray[index++] = (byte) (portInitContextBytesSize & 0xFF);
-		for (int k = 0; k < portInitContextBytesSize; k++) {
-			byteArray[index++] = portInitContextBufferBytes[k];
-		}
-
-		// prepare PortLinkContext
-		byteArray[index++] = (byte) (portLinkContextByteSize >> 24);
-		byteArray[index++] = (byte) ((portLinkContextByteSize >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((portLinkContextByteSize >> 8) & 0xFF);
-		byteArray[index++] = (byte) (portLinkContextByteSize & 0xFF);
-		for (LinkContextEntry linkEntry : linkContext) {
-			int fromPortId = linkEntry.getFromPortId();
-			byte[] fromPortIdBytes = intToByteArray(fromPortId);
-			for (int i = 0; i < 4; i++) {
-				byteArray[index++] = fromPortIdBytes[i];
-			}
-			int toPortId = linkEntry.getToPortId();
-			byte[] toPortIdBytes = intToByteArray(toPortId);
-			for (int j = 0; j < 4; j++) {
-				byteArray[index++] = toPortIdBytes[j];
-			}
-			int remotePortId = linkEntry.getRemotePortId();
-			byte[] remotePortIdBytes = intToByteArray(remotePortId);
-			for (int k = 0; k < 4; k++) {
-				byteArray[index++] = remotePortIdBytes[k];
-			}
-		}
-
-		// System.out.println("------------------");
 		int can_id = senders.get(id + "-INSTALL");
-		System.out.println("Gonna send can-install to ECU " + id + "; can_id: " + 
-				can_id + "; channel: " + channelNumber);
-		javaCanLibrary.sendBigData(channelNumber, can_id, 8, byteArray.length,
-				byteArray);
+		synchronized (frameCodec) {
+			ByteBuffer frame = frameCodec.encode(message);
+			System.out.println("Plugin Name: "
+					+ message.getExecutablePluginName() + ", Total Size: "
+					+ frame.limit());
+			System.out.println("Gonna send can-install to ECU " + id
+					+ "; can_id: " + can_id + "; channel: " + channelNumber);
+			javaCanLibrary.sendBigData(channelNumber, can_id, 8, frame.limit(),
+					frame.array());
+		}
 	}
 
 	private void sendMessage(InstallMessage message) {
 		int id = message.getRemoteEcuId();
-		byte pluginId = message.getPluginId();
-		String executablePluginName = message.getExecutablePluginName();
-		byte[] plugin = message.getBinaryFile();
-
-		int index = 0;
-		int pluginNameSize = executablePluginName.length();
-		int sizeofBinary = plugin.length;
-//		System.out.println("File length: " + sizeofBinary);
-
-		String portInitContextBuffer = "";
-		HashMap<String, Integer> portInitialContext = message
-				.getPortInitialContext();
-		Iterator<Entry<String, Integer>> iterator = portInitialContext
-				.entrySet().iterator();
-
-		while (iterator.hasNext()) {
-			Entry<String, Integer> entry = iterator.next();
-			String key = entry.getKey();
-			String value = String.valueOf(entry.getValue());
-			if (portInitContextBuffer.equals("")) {
-				portInitContextBuffer += key;
-				portInitContextBuffer += "|";
-				portInitContextBuffer += value;
-			} else {
-				portInitContextBuffer += "|";
-				portInitContextBuffer += key;
-				portInitContextBuffer += "|";
-				portInitContextBuffer += value;
-			}
-		}
-		byte[] portInitContextBufferBytes = portInitContextBuffer.getBytes();
-		int portInitContextBytesSize = portInitContextBufferBytes.length;
-		ArrayList<LinkContextEntry> linkContext = message.getLinkContext();
-		if (linkContext == null) {
-		    System.out.println("linkContext null");
-		}
-		int portLinkContextNum = linkContext.size();
-		int portLinkContextByteSize = portLinkContextNum * 12;
-
-		// 1: Message Type, 1: plugin ID, 4: Size of PlugIn Name(M),
-		// M: PlugIn Name(byte array), 4: Size of Byte Array(N), N: Byte Array,
-		// 4: Size of PortInitContext(P), P: byte array, 4:
-		// PortLinkContextByteSize(Q), Q*3*4: byte array
-		int totalSize = /* 2 + 4 + */1 + 1 + 4 + pluginNameSize + 4
-				+ sizeofBinary + 4 + portInitContextBytesSize + 4
-				+ portLinkContextByteSize;
-		byte byteArray[] = new byte[totalSize];
-
-		System.out.println("Plugin Name: " + executablePluginName
-				+ ", Total Size: " + totalSize);
-
-		// prepare starting sign $$
-		// byteArray[index++] = '$';
-		// byteArray[index++] = '$';
-
-		// prepare size of message
-		// byteArray[index++] = (byte) (totalSize >> 24);
-		// byteArray[index++] = (byte) ((totalSize >> 16) & 0xFF);
-		// byteArray[index++] = (byte) ((totalSize >> 8) & 0xFF);
-		// byteArray[index++] = (byte) (totalSize & 0xFF);
-
-		// prepare Message Type
-		byteArray[index++] = MessageType.INSTALL;
-
-		// prepare plugin ID
-		byteArray[index++] = pluginId;
-
-		// prepare plugin name size
-		byteArray[index++] = (byte) (pluginNameSize >> 24);
-		byteArray[index++] = (byte) ((pluginNameSize >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((pluginNameSize >> 8) & 0xFF);
-		byteArray[index++] = (byte) (pluginNameSize & 0xFF);
-
-		// prepare plugin name
-		for (int i = 0; i < pluginNameSize; i++) {
-			byteArray[index++] = (byte) executablePluginName.charAt(i);
-		}
-		// copy binary size
-		byteArray[index++] = (byte) (sizeofBinary >> 24);
-		byteArray[index++] = (byte) ((sizeofBinary >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((sizeofBinary >> 8) & 0xFF);
-		byteArray[index++] = (byte) (sizeofBinary & 0xFF);
-
-		// prepare binary
-		for (int j = 0; j < sizeofBinary; j++) {
-			byteArray[index++] = plugin[j];
-		}
-
-		// prepare PortInitContext
-		byteArray[index++] = (byte) (portInitContextBytesSize >> 24);
-		byteArray[index++] = (byte) ((portInitContextBytesSize >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((portInitContextBytesSize >> 8) & 0xFF);
-		byteArray[index++] = (byte) (portInitContextBytesSize & 0xFF);
-		for (int k = 0; k < portInitContextBytesSize; k++) {
-			byteArray[index++] = portInitContextBufferBytes[k];
-		}
-
-		// prepare PortLinkContext
-		byteArray[index++] = (byte) (portLinkContextByteSize >> 24);
-		byteArray[index++] = (byte) ((portLinkContextByteSize >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((portLinkContextByteSize >> 8) & 0xFF);
-		byteArray[index++] = (byte) (portLinkContextByteSize & 0xFF);
-		for (LinkContextEntry linkEntry : linkContext) {
-			int fromPortId = linkEntry.getFromPortId();
-			byte[] fromPortIdBytes = intToByteArray(fromPortId);
-			for (int i = 0; i < 4; i++) {
-				byteArray[index++] = fromPortIdBytes[i];
-			}
-			int toPortId = linkEntry.getToPortId();
-			byte[] toPortIdBytes = intToByteArray(toPortId);
-			for (int j = 0; j < 4; j++) {
-				byteArray[index++] = toPortIdBytes[j];
-			}
-			int remotePortId = linkEntry.getRemotePortId();
-			byte[] remotePortIdBytes = intToByteArray(remotePortId);
-			for (int k = 0; k < 4; k++) {
-				byteArray[index++] = remotePortIdBytes[k];
-			}
-		}
-
-		// System.out.println("------------------");
 		int can_id = senders.get(id + "-INSTALL");
-		javaCanLibrary.sendBigData(channelNumber, can_id, 8, byteArray.length,
-				byteArray);
-
+		synchronized (frameCodec) {
+			ByteBuffer frame = frameCodec.encode(message);
+			System.out.println("Plugin Name: "
+					+ message.getExecutablePluginName() + ", Total Size: "
+					+ frame.limit());
+			javaCanLibrary.sendBigData(channelNumber, can_id, 8, frame.limit(),
+					frame.array());
+		}
 	}
 	
 	private void sendMessage(UninstallMessage message) {
 		int id = message.getRemoteEcuId();
-		byte pluginId = message.getPluginId();
-		String pluginName = message.getPluginName();
-
-		int index = 0;
-		int pluginNameSize = pluginName.length();
-
-		// 1: Message Type, 1: plugin ID, 4: Size of PlugIn Name(M),
-		// M: PlugIn Name(byte array)
-		int totalSize = 1 + 1 + 4 + pluginNameSize;
-		byte byteArray[] = new byte[totalSize];
-
-		System.out.println("Plugin Name: " + pluginName
-				+ ", Total Size: " + totalSize);
-
-		// prepare Message Type
-		byteArray[index++] = MessageType.UNINSTALL;
-
-		// prepare plugin ID
-		byteArray[index++] = pluginId;
-
-		// prepare plugin name size
-		byteArray[index++] = (byte) (pluginNameSize >> 24);
-		byteArray[index++] = (byte) ((pluginNameSize >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((pluginNameSize >> 8) & 0xFF);
-		byteArray[index++] = (byte) (pluginNameSize & 0xFF);
-
-		// prepare plugin name
-		for (int i = 0; i < pluginNameSize; i++) {
-			byteArray[index++] = (byte) pluginName.charAt(i);
-		}
-
-		// System.out.println("------------------");
 		int can_id = senders.get(id + "-INSTALL");
-		javaCanLibrary.sendBigData(channelNumber, can_id, 8, totalSize,
-				byteArray);
+		synchronized (frameCodec) {
+			ByteBuffer frame = frameCodec.encode(message);
+			System.out.println("Plugin Name: " + message.getPluginName()
+					+ ", Total Size: " + frame.limit());
+			javaCanLibrary.sendBigData(channelNumber, can_id, 8, frame.limit(),
+					frame.array());
+		}
 	}
 
 	private void sendMessage(PWMMessage message) {
@@ -567,8 +446,10 @@ public class CanEcuManager implements EcuManager {
 		    can_id = senders.get(ecuId + "-PWM");
 		}
 		byte[] data = pwmMessage.getData();
-		System.out.println(ecuId + " " + can_id + " " + Arrays.toString(data));
+		Trace.event(Trace.CAN_PWM, ecuId, can_id, Trace.bytes(data));
+		long start = System.nanoTime();
 		javaCanLibrary.sendData(channelNumber, can_id, data);
+		Latency.PWM_CAN.recordSince(start);
 	}
 	
 	private void sendMessage(PluginMessage message) {
@@ -612,15 +493,6 @@ public class CanEcuManager implements EcuManager {
 		return ecm;
 	}
 
-	private byte[] intToByteArray(int i) {
-		byte[] result = new byte[4];
-		result[0] = (byte) (i >> 24);
-		result[1] = (byte) (i >> 16);
-		result[2] = (byte) (i >> 8);
-		result[3] = (byte) (i);
-		return result;
-	}
-	
 	private int byteArrayToInt(byte[] b) {
 		return b[3] & 0xFF | (b[2] & 0xFF) << 8 | (b[1] & 0xFF) << 16
 				| (b[0] & 0xFF) << 24;
@@ -0,0 +1,190 @@
+package network.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import messages.InstallMessage;
+import messages.LinkContextEntry;
+import messages.LoadMessage;
+import messages.Message;
+import messages.MessageType;
+import messages.UninstallMessage;
+
+/**
+ * Encoder/decoder for the INSTALL, LOAD and UNINSTALL frames sent to the
+ * AUTOSAR ECUs. A frame is the message type, the plugin id and the body, over
+ * CAN and over sockets alike. The whole frame is written in one pass into a buffer that is
+ * kept by the codec and reused for the next frame, so sending a plugin costs
+ * no copies besides the one into the frame itself, which is made from the
+ * mapped suite file when the message has one.
+ *
+ * The buffer returned by the encode methods is only valid until the next call
+ * on the same codec; callers sending from several threads synchronize on the
+ * codec around encode and send.
+ */
+public class EcuFrameCodec {
+	private static final int MIN_BUFFER_SIZE = 4096;
+
+	private ByteBuffer buffer = ByteBuffer.allocate(MIN_BUFFER_SIZE);
+
+	public synchronized ByteBuffer encode(InstallMessage message) {
+		return encodePlugin(MessageType.INSTALL, message.getPluginId(),
+				message.getExecutablePluginName(), message.getSuite(),
+				message.getPortInitialContext(), message.getLinkContext());
+	}
+
+	public synchronized ByteBuffer encode(LoadMessage message) {
+		return encodePlugin(MessageType.LOAD, message.getPluginId(),
+				message.getExecutablePluginName(), message.getSuite(),
+				message.getPortInitialContext(), message.getLinkContext());
+	}
+
+	public synchronized ByteBuffer encode(UninstallMessage message) {
+		String pluginName = message.getPluginName();
+
+		// 4: Size of PlugIn Name(M), M: PlugIn Name(byte array)
+		ByteBuffer frame = begin(MessageType.UNINSTALL,
+				message.getPluginId(), 4 + pluginName.length());
+		putString(frame, pluginName);
+		return end(frame);
+	}
+
+	private ByteBuffer encodePlugin(byte messageType, byte pluginId,
+			String executablePluginName, ByteBuffer plugin,
+			HashMap<String, Integer> portInitialContext,
+			ArrayList<LinkContextEntry> linkContext) {
+		String portInitContext = portInitContextToString(portInitialContext);
+		int portLinkContextByteSize = linkContext.size() * 12;
+
+		// 4: Size of PlugIn Name(M), M: PlugIn Name(byte array),
+		// 4: Size of Byte Array(N), N: Byte Array,
+		// 4: Size of PortInitContext(P), P: byte array,
+		// 4: PortLinkContextByteSize(Q), Q*3*4: byte array
+		int bodySize = 4 + executablePluginName.length() + 4 + plugin.remaining()
+				+ 4 + portInitContext.length() + 4 + portLinkContextByteSize;
+		ByteBuffer frame = begin(messageType, pluginId, bodySize);
+
+		putString(frame, executablePluginName);
+
+		// straight from the plugin store's mapping when the suite is there
+		frame.putInt(plugin.remaining());
+		frame.put(plugin);
+
+		putString(frame, portInitContext);
+
+		frame.putInt(portLinkContextByteSize);
+		for (LinkContextEntry linkEntry : linkContext) {
+			frame.putInt(linkEntry.getFromPortId());
+			frame.putInt(linkEntry.getToPortId());
+			frame.putInt(linkEntry.getRemotePortId());
+		}
+		return end(frame);
+	}
+
+	private ByteBuffer begin(byte messageType, byte pluginId, int bodySize) {
+		// 1: Message Type, 1: plugin ID
+		int totalSize = 1 + 1 + bodySize;
+
+		if (buffer.capacity() < totalSize) {
+			int capacity = buffer.capacity();
+			while (capacity < totalSize)
+				capacity <<= 1;
+			buffer = ByteBuffer.allocate(capacity);
+		}
+		buffer.clear();
+
+		buffer.put(messageType);
+		buffer.put(pluginId);
+		return buffer;
+	}
+
+	private ByteBuffer end(ByteBuffer frame) {
+		frame.flip();
+		return frame;
+	}
+
+	// Names and contexts go out as one byte per char, like the ECU side reads
+	// them
+	private void putString(ByteBuffer frame, String str) {
+		int len = str.length();
+		frame.putInt(len);
+		for (int i = 0; i < len; i++) {
+			frame.put((byte) str.charAt(i));
+		}
+	}
+
+	private String portInitContextToString(
+			HashMap<String, Integer> portInitialContext) {
+		StringBuilder sb = new StringBuilder();
+		Iterator<Entry<String, Integer>> iterator = portInitialContext
+				.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Entry<String, Integer> entry = iterator.next();
+			if (sb.length() > 0)
+				sb.append('|');
+			sb.append(entry.getKey()).append('|').append(entry.getValue());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Decodes a frame produced by this codec's encode methods. The ECU id is
+	 * not part of the frame and has to be given by the caller.
+	 */
+	public Message decode(int remoteEcuId, byte[] data, int offset, int length) {
+		ByteBuffer frame = ByteBuffer.wrap(data, offset, length);
+		byte messageType = frame.get();
+		byte pluginId = frame.get();
+
+		String pluginName = getString(frame);
+		if (messageType == MessageType.UNINSTALL)
+			return new UninstallMessage(remoteEcuId, pluginId, pluginName, 0);
+
+		byte[] plugin = new byte[frame.getInt()];
+		frame.get(plugin);
+
+		HashMap<String, Integer> portInitialContext = new HashMap<String, Integer>();
+		String portInitContext = getString(frame);
+		if (portInitContext.length() > 0) {
+			String[] fields = portInitContext.split("\\|");
+			for (int i = 0; i + 1 < fields.length; i += 2) {
+				portInitialContext.put(fields[i], Integer.valueOf(fields[i + 1]));
+			}
+		}
+
+		int portLinkContextNum = frame.getInt() / 12;
+		ArrayList<LinkContextEntry> linkContext = new ArrayList<LinkContextEntry>(
+				portLinkContextNum);
+		for (int i = 0; i < portLinkContextNum; i++) {
+			linkContext.add(new LinkContextEntry(frame.getInt(),
+					frame.getInt(), frame.getInt()));
+		}
+
+		switch (messageType) {
+		case MessageType.INSTALL:
+			return new InstallMessage(remoteEcuId, pluginId, pluginName, 0,
+					portInitialContext, linkContext, plugin);
+		case MessageType.LOAD:
+			LoadMessage loadMessage = new LoadMessage(remoteEcuId, pluginName,
+					0, portInitialContext, linkContext, plugin);
+			loadMessage.setPluginId(pluginId);
+			return loadMessage;
+		default:
+			System.out.println("Error: wrong message type in frame "
+					+ messageType);
+			return null;
+		}
+	}
+
+	private String getString(ByteBuffer frame) {
+		int len = frame.getInt();
+		char[] chars = new char[len];
+		for (int i = 0; i < len; i++) {
+			chars[i] = (char) (frame.get() & 0xFF);
+		}
+		return new String(chars);
+	}
+}
@@ -4,6 +4,9 @@ import com.sun.jna.Library;
 import com.sun.jna.Pointer;
 
 public interface JavaCanLibrary extends Library {
+	// 4: CAN ID (big endian), 1: DLC, 8: data
+	public static final int FRAME_SIZE = 13;
+
 	public int init_can();
 	public int sendData(int chn_num, int can_id, byte[] data);
 	public int sendBigData(int chn_num, int can_id, int can_dlc, int dataSize, byte[] data);
@@ -11,4 +14,8 @@ public interface JavaCanLibrary extends Library {
 	public Pointer receiveByteData(int chn_num, int can_id);
 	public int getPackageSize();
 	public void resetPackageSize();
+	// Blocks until a frame of any CAN ID arrives or timeout ms have passed,
+	// and writes it to buf in the FRAME_SIZE layout. Returns the number of
+	// bytes written, 0 on timeout and -1 on error.
+	public int receiveFrame(int chn_num, int timeout, Pointer buf);
 }
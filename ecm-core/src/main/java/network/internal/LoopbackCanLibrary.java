@@ -0,0 +1,166 @@
+package network.internal;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+
+/**
+ * In-memory stand-in for the native javaCanLib, for running CanEcuManager on
+ * a machine without a CAN bus. Frames sent on the channel are queued and read
+ * back by the receive calls, and inject/injectPackage let the caller play the
+ * part of an ECU. Packages are split into frames the same way as apptest.c
+ * does it, so both the polling and the event-driven receive paths can be
+ * exercised against it.
+ */
+public class LoopbackCanLibrary implements JavaCanLibrary {
+	private static final int FIRST_FRAME = 0x1;
+	private static final int CONSECUTIVE_FRAME = 0x2;
+	// number of data bytes sendData puts in a frame, as in javaCanLib.c
+	private static final int CAN_DLC = 2;
+
+	private LinkedBlockingQueue<byte[]> frames = new LinkedBlockingQueue<byte[]>();
+
+	// buffers handed out by receiveByteData and receiveData, like the
+	// static buffers of the native library
+	private Memory normalCanData = new Memory(9);
+	private Memory packageData = new Memory(2000);
+	private int packageTotalSize;
+	private int packageReadIndex;
+	private int nextFrameRead;
+
+	@Override
+	public int init_can() {
+		return 0;
+	}
+
+	@Override
+	public int sendData(int chn_num, int can_id, byte[] data) {
+		inject(can_id, data, CAN_DLC);
+		return 16;
+	}
+
+	@Override
+	public int sendBigData(int chn_num, int can_id, int can_dlc,
+			int dataSize, byte[] data) {
+		// first frame: 4 bytes size, 4 bytes data
+		byte[] frame = new byte[8];
+		frame[0] = (byte) ((FIRST_FRAME << 4) | ((dataSize >> 24) & 0x0F));
+		frame[1] = (byte) (dataSize >> 16);
+		frame[2] = (byte) (dataSize >> 8);
+		frame[3] = (byte) dataSize;
+		System.arraycopy(data, 0, frame, 4, Math.min(4, dataSize));
+		inject(can_id, frame, can_dlc);
+
+		// consecutive frames: 1 byte sequence number, 7 bytes data
+		int sequenceNumber = 0;
+		for (int index = 4; index < dataSize; index += 7) {
+			frame = new byte[8];
+			frame[0] = (byte) ((CONSECUTIVE_FRAME << 4) | sequenceNumber);
+			System.arraycopy(data, index, frame, 1,
+					Math.min(7, dataSize - index));
+			inject(can_id, frame, can_dlc);
+			sequenceNumber = (sequenceNumber + 1) & 0x0F;
+		}
+		return 0;
+	}
+
+	/**
+	 * Queues one classical CAN frame.
+	 */
+	public void inject(int canId, byte[] data, int dlc) {
+		byte[] frame = new byte[FRAME_SIZE];
+		frame[0] = (byte) (canId >> 24);
+		frame[1] = (byte) (canId >> 16);
+		frame[2] = (byte) (canId >> 8);
+		frame[3] = (byte) canId;
+		frame[4] = (byte) dlc;
+		System.arraycopy(data, 0, frame, 5, Math.min(dlc, data.length));
+		frames.add(frame);
+	}
+
+	/**
+	 * Queues a package as a first frame followed by consecutive frames.
+	 */
+	public void injectPackage(int canId, byte[] data) {
+		sendBigData(0, canId, 8, data.length, data);
+	}
+
+	@Override
+	public int receiveFrame(int chn_num, int timeout, Pointer buf) {
+		byte[] frame;
+		try {
+			frame = frames.poll(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			return -1;
+		}
+		if (frame == null)
+			return 0;
+		int size = 5 + frame[4];
+		buf.write(0, frame, 0, size);
+		return size;
+	}
+
+	@Override
+	public Pointer receiveByteData(int chn_num, int can_id) {
+		byte[] frame = frames.poll();
+		if (frame == null || canId(frame) != can_id)
+			return null;
+		normalCanData.write(0, frame, 4, 1 + frame[4]);
+		return normalCanData;
+	}
+
+	@Override
+	public Pointer receiveData(int chn_num, int can_id) {
+		while (true) {
+			byte[] frame = frames.poll();
+			if (frame == null || canId(frame) != can_id)
+				return null;
+			switch ((frame[5] & 0xF0) >> 4) {
+			case FIRST_FRAME:
+				packageTotalSize = (frame[5] & 0x0F) << 24
+						| (frame[6] & 0xFF) << 16 | (frame[7] & 0xFF) << 8
+						| (frame[8] & 0xFF);
+				if (packageData.size() < packageTotalSize)
+					packageData = new Memory(packageTotalSize);
+				packageReadIndex = 0;
+				nextFrameRead = 0;
+				if (append(frame, 9, 4))
+					return packageData;
+				break;
+			case CONSECUTIVE_FRAME:
+				if ((frame[5] & 0x0F) != nextFrameRead)
+					break;
+				nextFrameRead = (nextFrameRead + 1) & 0x0F;
+				if (append(frame, 6, 7))
+					return packageData;
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	private boolean append(byte[] frame, int from, int len) {
+		len = Math.min(len, packageTotalSize - packageReadIndex);
+		packageData.write(packageReadIndex, frame, from, len);
+		packageReadIndex += len;
+		return packageReadIndex == packageTotalSize;
+	}
+
+	private int canId(byte[] frame) {
+		return frame[3] & 0xFF | (frame[2] & 0xFF) << 8
+				| (frame[1] & 0xFF) << 16 | (frame[0] & 0xFF) << 24;
+	}
+
+	@Override
+	public int getPackageSize() {
+		return packageTotalSize;
+	}
+
+	@Override
+	public void resetPackageSize() {
+		packageTotalSize = 0;
+	}
+}
@@ -8,8 +8,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map.Entry;
@@ -28,15 +28,38 @@ import messages.RestoreAckMessage;
 import messages.RestoreMessage;
 import messages.UninstallAckMessage;
 import messages.UninstallMessage;
+import utils.Trace;
 
 public class SocketEcuManager implements EcuManager {
 	private Ecm ecm;
 	// ID: Integer, ClientThread: ClientThread
 	private HashMap<Integer, DataOutputStream> outsource = new HashMap<Integer, DataOutputStream>();
+	// ID: Integer, acknowledgements of chunks sent to that ECU
+	private HashMap<Integer, TransferAcks> acks = new HashMap<Integer, TransferAcks>();
 	private int port;
+	// INSTALL/LOAD frames are sent in TRANSFER chunks, and PIRTE reads the
+	// reassembled frame the same way as one received over CAN. One codec per
+	// ECU, so that transfers to different ECUs can go on at the same time.
+	private HashMap<Integer, EcuFrameCodec> frameCodecs = new HashMap<Integer, EcuFrameCodec>();
+
+	// bytes of the frame carried by each chunk
+	private int chunkSize;
+	// chunks sent ahead of the last acknowledgement
+	private int window;
+	// 0 is never used, it is what PIRTE starts from
+	private byte transferId = (byte) System.currentTimeMillis();
+
+	private static final int ACK_TIMEOUT = 500;
+	private static final int MAX_RETRIES = 10;
 
 	public SocketEcuManager(int port) {
+		this(port, 1024, 8);
+	}
+
+	public SocketEcuManager(int port, int chunkSize, int window) {
 		this.port = port;
+		this.chunkSize = Math.min(chunkSize, 0xFFFF);
+		this.window = window;
 	}
 
 	public void run() {
@@ -126,7 +149,7 @@ public class SocketEcuManager implements EcuManager {
 	}
 
 	public void sendMessage(Message message) {
-		System.out.println("<<< ecm-core/SocketEcuManager " + message.getMessageType());
+		Trace.event(Trace.SOCKET_OUT, message.getMessageType());
 		switch (message.getMessageType()) {
 		case MessageType.INSTALL:
 			InstallMessage installMessage = (InstallMessage) message;
@@ -156,140 +179,131 @@ public class SocketEcuManager implements EcuManager {
 	}
 
 	private void sendMessage(InstallMessage message) {
-		int id = message.getRemoteEcuId();
-		String executablePluginName = message.getExecutablePluginName();
-		byte[] plugin = message.getBinaryFile();
+		System.out.println("File length: " + message.getSuiteSize());
+		EcuFrameCodec frameCodec = frameCodec(message.getRemoteEcuId());
+		synchronized (frameCodec) {
+			ByteBuffer frame = frameCodec.encode(message);
+			System.out.println("Plugin Name: "
+					+ message.getExecutablePluginName() + ", Total Size: "
+					+ frame.limit());
+			sendFrame(message.getRemoteEcuId(), frame);
+		}
+	}
 
-		int index = 0;
-		int pluginNameSize = executablePluginName.length();
-		int sizeofBinary = plugin.length;
-		System.out.println("File length: " + sizeofBinary);
-		
-		String portInitContextBuffer = "";
-		HashMap<String,Integer> portInitialContext = message.getPortInitialContext();
-		Iterator<Entry<String, Integer>> iterator = portInitialContext.entrySet().iterator();
-		
-		while(iterator.hasNext()) {
-			Entry<String, Integer> entry = iterator.next();
-			String key = entry.getKey();
-			String value = String.valueOf(entry.getValue());
-			if(portInitContextBuffer.equals("")) {
-				portInitContextBuffer += key;
-				portInitContextBuffer += "|";
-				portInitContextBuffer += value;
-			} else {
-				portInitContextBuffer += "|";
-				portInitContextBuffer += key;
-				portInitContextBuffer += "|";
-				portInitContextBuffer += value;
-			}
+	/*
+	 * Sends the frame as TRANSFER chunks, each as one package of type '3':
+	 * 1: Message Type, 1: transfer ID, 4: sequence number, 4: frame size,
+	 * 2: chunk size(N), N: chunk of the frame.
+	 * Up to window chunks are outstanding. PIRTE answers every chunk with
+	 * TRANSFER_ACK, transfer ID and the next sequence number it expects, and
+	 * when no acknowledgement arrives within ACK_TIMEOUT the chunks are sent
+	 * again from the first unacknowledged one.
+	 */
+	private void sendFrame(int id, ByteBuffer frame) {
+		byte[] byteArray = frame.array();
+		int totalSize = frame.limit();
+		int chunks = (totalSize + chunkSize - 1) / chunkSize;
+		DataOutputStream dos = outsource.get(id);
+		TransferAcks transferAcks = acks.get(id);
+		if (dos == null || transferAcks == null) {
+			System.out.println("Error: no connection to ECU " + id);
+			return;
 		}
-		byte[] portInitContextBufferBytes = portInitContextBuffer.getBytes();
-		int portInitContextBytesSize = portInitContextBufferBytes.length;
-		
-		ArrayList<LinkContextEntry> linkContext = message.getLinkContext();
-		int portLinkContextNum = linkContext.size();
-		int portLinkContextByteSize =  portLinkContextNum*12;
-		
-		// 2: $$, 4: message size, 1: Message Type, 4: Size of PlugIn Name(M),
-		// M: PlugIn Name(byte array), 4: Size of Byte Array(N), N: Byte Array, 4: Size of PortInitContext(P), P: byte array, 4: PortLinkContextByteSize(Q), Q*3*4: byte array  
-		int totalSize = 2 + 4 + 1 + 4 + pluginNameSize + 4 + sizeofBinary + 4 + portInitContextBytesSize + 4 + portLinkContextByteSize;
-		byte byteArray[] = new byte[totalSize + 32];
-
-		System.out.println("Plugin Name: " + executablePluginName + ", Total Size: "
-				+ totalSize);
-
-		// prepare starting sign $$
-		byteArray[index++] = '$';
-		byteArray[index++] = '$';
-
-		// prepare size of message
-		byteArray[index++] = (byte) (totalSize >> 24);
-		byteArray[index++] = (byte) ((totalSize >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((totalSize >> 8) & 0xFF);
-		byteArray[index++] = (byte) (totalSize & 0xFF);
-
-		// prepare Message Type
-		byteArray[index++] = MessageType.INSTALL;
-
-		// prepare plugin name size
-		byteArray[index++] = (byte) (pluginNameSize >> 24);
-		byteArray[index++] = (byte) ((pluginNameSize >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((pluginNameSize >> 8) & 0xFF);
-		byteArray[index++] = (byte) (pluginNameSize & 0xFF);
-
-		// prepare plugin name
-		for (int i = 0; i < pluginNameSize; i++) {
-			byteArray[index++] = (byte) executablePluginName.charAt(i);
+
+		byte currentId = nextTransferId();
+		transferAcks.reset(currentId);
+		byte sdbuf[] = new byte[1 + 12 + chunkSize];
+		long start = System.currentTimeMillis();
+		int base = 0;
+		int next = 0;
+		int retries = 0;
+		try {
+			while (base < chunks) {
+				while (next < chunks && next < base + window) {
+					int offset = next * chunkSize;
+					int len = Math.min(chunkSize, totalSize - offset);
+					ByteBuffer chunk = ByteBuffer.wrap(sdbuf);
+					chunk.put((byte) '3');
+					chunk.put(MessageType.TRANSFER);
+					chunk.put(currentId);
+					chunk.putInt(next);
+					chunk.putInt(totalSize);
+					chunk.putShort((short) len);
+					chunk.put(byteArray, offset, len);
+					dos.write(sdbuf, 0, chunk.position());
+					next++;
+				}
+				dos.flush();
+
+				int acked = transferAcks.await(base, ACK_TIMEOUT);
+				if (acked > base) {
+					base = acked;
+					retries = 0;
+				} else if (++retries > MAX_RETRIES) {
+					System.out.println("Error: transfer to ECU " + id
+							+ " gave up at chunk " + base + " of " + chunks);
+					return;
+				} else {
+					next = base;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return;
 		}
-		// copy binary size
-		byteArray[index++] = (byte) (sizeofBinary >> 24);
-		byteArray[index++] = (byte) ((sizeofBinary >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((sizeofBinary >> 8) & 0xFF);
-		byteArray[index++] = (byte) (sizeofBinary & 0xFF);
-
-		// prepare binary
-		for (int j = 0; j < sizeofBinary; j++) {
-			byteArray[index++] = plugin[j];
+
+		long time = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println("Sent " + totalSize + " bytes to ECU " + id + " in "
+				+ time + " ms (" + (totalSize * 1000L / time) + " bytes/s)");
+	}
+
+	private synchronized byte nextTransferId() {
+		if (++transferId == 0)
+			transferId++;
+		return transferId;
+	}
+
+	private synchronized EcuFrameCodec frameCodec(int id) {
+		EcuFrameCodec frameCodec = frameCodecs.get(id);
+		if (frameCodec == null) {
+			frameCodec = new EcuFrameCodec();
+			frameCodecs.put(id, frameCodec);
 		}
-		
-		// prepare PortInitContext
-		byteArray[index++] = (byte) (portInitContextBytesSize >> 24);
-		byteArray[index++] = (byte) ((portInitContextBytesSize >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((portInitContextBytesSize >> 8) & 0xFF);
-		byteArray[index++] = (byte) (portInitContextBytesSize & 0xFF);
-		for (int k=0;k<portInitContextBytesSize; k++) {
-			byteArray[index++] = portInitContextBufferBytes[k];
+		return frameCodec;
+	}
+
+	// Cumulative acknowledgement of the chunks of the current transfer to one
+	// ECU
+	private static class TransferAcks {
+		private byte transferId;
+		private int next;
+
+		public synchronized void reset(byte transferId) {
+			this.transferId = transferId;
+			next = 0;
 		}
-		
-		// prepare PortLinkContext
-		byteArray[index++] = (byte) (portLinkContextByteSize >> 24);
-		byteArray[index++] = (byte) ((portLinkContextByteSize >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((portLinkContextByteSize >> 8) & 0xFF);
-		byteArray[index++] = (byte) (portLinkContextByteSize & 0xFF);
-		for(LinkContextEntry linkEntry:linkContext) {
-			int fromPortId = linkEntry.getFromPortId();
-			byte[] fromPortIdBytes = intToByteArray(fromPortId);
-			for(int i=0;i<4;i++) {
-				byteArray[index++] = fromPortIdBytes[i];
-			}
-			int toPortId = linkEntry.getToPortId();
-			byte[] toPortIdBytes = intToByteArray(toPortId);
-			for(int j=0;j<4;j++) {
-				byteArray[index++] = toPortIdBytes[j];
-			}
-			int remotePortId = linkEntry.getRemotePortId();
-			byte[] remotePortIdBytes = intToByteArray(remotePortId);
-			for(int k=0;k<4;k++) {
-				byteArray[index++] = remotePortIdBytes[k];
+
+		public synchronized void ack(byte transferId, int next) {
+			if (transferId == this.transferId && next > this.next) {
+				this.next = next;
+				notifyAll();
 			}
 		}
-		
-//		System.out.println("------------------");
-		try {
-			DataOutputStream dos = outsource.get(id);
 
-			int count = totalSize / 30 + 1;
-			for (int i = 0; i < count; i++) {
-				byte sdbuf[] = new byte[31];
-				sdbuf[0] = '2';
-				for (int j = 0; j < 30; j++) {
-					sdbuf[j + 1] = byteArray[i * 30 + j];
-				}
-				dos.write(sdbuf);
-//				System.out.println(Arrays.toString(sdbuf));
-				try {
-					Thread.sleep(400);
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+		// Waits until more than base chunks are acknowledged or timeout ms
+		// have passed, and returns the number acknowledged
+		public synchronized int await(int base, long timeout)
+				throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+			long left = timeout;
+			while (next <= base && left > 0) {
+				wait(left);
+				left = end - System.currentTimeMillis();
 			}
-//			System.out.println("------------------");
-
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			return next;
 		}
 	}
 
@@ -324,10 +338,7 @@ public class SocketEcuManager implements EcuManager {
 		}
 		try {
 			DataOutputStream dos = outsource.get(id);
-			System.out.println("------------------");
-			System.out.println("Send uninstall message");
-			System.out.println(Arrays.toString(messageBytes));
-			System.out.println("------------------");
+			Trace.event(Trace.SOCKET_UNINSTALL, id, totalSize, pluginNameSize);
 			dos.write(messageBytes);
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
@@ -341,140 +352,14 @@ public class SocketEcuManager implements EcuManager {
 	}
 
 	private void sendMessage(LoadMessage message) {
-		int id = message.getRemoteEcuId();
-		String executablePluginName = message.getExecutablePluginName();
-		byte[] plugin = message.getBinaryFile();
-
-		int index = 0;
-		int pluginNameSize = executablePluginName.length();
-		int sizeofBinary = plugin.length;
-		System.out.println("File length: " + sizeofBinary);
-		
-		String portInitContextBuffer = "";
-		HashMap<String,Integer> portInitialContext = message.getPortInitialContext();
-		Iterator<Entry<String, Integer>> iterator = portInitialContext.entrySet().iterator();
-		
-		while(iterator.hasNext()) {
-			Entry<String, Integer> entry = iterator.next();
-			String key = entry.getKey();
-			String value = String.valueOf(entry.getValue());
-			if(portInitContextBuffer.equals("")) {
-				portInitContextBuffer += key;
-				portInitContextBuffer += "|";
-				portInitContextBuffer += value;
-			} else {
-				portInitContextBuffer += "|";
-				portInitContextBuffer += key;
-				portInitContextBuffer += "|";
-				portInitContextBuffer += value;
-			}
-		}
-		byte[] portInitContextBufferBytes = portInitContextBuffer.getBytes();
-		int portInitContextBytesSize = portInitContextBufferBytes.length;
-		
-		ArrayList<LinkContextEntry> linkContext = message.getLinkContext();
-		int portLinkContextNum = linkContext.size();
-		int portLinkContextByteSize =  portLinkContextNum*12;
-		
-		// 2: $$, 4: message size, 1: Message Type, 4: Size of PlugIn Name(M),
-		// M: PlugIn Name(byte array), 4: Size of Byte Array(N), N: Byte Array, 4: Size of PortInitContext(P), P: byte array, 4: PortLinkContextByteSize(Q), Q*3*4: byte array  
-		int totalSize = 2 + 4 + 1 + 4 + pluginNameSize + 4 + sizeofBinary + 4 + portInitContextBytesSize + 4 + portLinkContextByteSize;
-		byte byteArray[] = new byte[totalSize + 32];
-
-		System.out.println("Plugin Name: " + executablePluginName + ", Total Size: "
-				+ totalSize);
-
-		// prepare starting sign $$
-		byteArray[index++] = '$';
-		byteArray[index++] = '$';
-
-		// prepare size of message
-		byteArray[index++] = (byte) (totalSize >> 24);
-		byteArray[index++] = (byte) ((totalSize >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((totalSize >> 8) & 0xFF);
-		byteArray[index++] = (byte) (totalSize & 0xFF);
-
-		// prepare Message Type
-		byteArray[index++] = MessageType.LOAD;
-
-		// prepare plugin name size
-		byteArray[index++] = (byte) (pluginNameSize >> 24);
-		byteArray[index++] = (byte) ((pluginNameSize >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((pluginNameSize >> 8) & 0xFF);
-		byteArray[index++] = (byte) (pluginNameSize & 0xFF);
-
-		// prepare plugin name
-		for (int i = 0; i < pluginNameSize; i++) {
-			byteArray[index++] = (byte) executablePluginName.charAt(i);
-		}
-		// copy binary size
-		byteArray[index++] = (byte) (sizeofBinary >> 24);
-		byteArray[index++] = (byte) ((sizeofBinary >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((sizeofBinary >> 8) & 0xFF);
-		byteArray[index++] = (byte) (sizeofBinary & 0xFF);
-
-		// prepare binary
-		for (int j = 0; j < sizeofBinary; j++) {
-			byteArray[index++] = plugin[j];
-		}
-		
-		// prepare PortInitContext
-		byteArray[index++] = (byte) (portInitContextBytesSize >> 24);
-		byteArray[index++] = (byte) ((portInitContextBytesSize >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((portInitContextBytesSize >> 8) & 0xFF);
-		byteArray[index++] = (byte) (portInitContextBytesSize & 0xFF);
-		for (int k=0;k<portInitContextBytesSize; k++) {
-			byteArray[index++] = portInitContextBufferBytes[k];
-		}
-		
-		// prepare PortLinkContext
-		byteArray[index++] = (byte) (portLinkContextByteSize >> 24);
-		byteArray[index++] = (byte) ((portLinkContextByteSize >> 16) & 0xFF);
-		byteArray[index++] = (byte) ((portLinkContextByteSize >> 8) & 0xFF);
-		byteArray[index++] = (byte) (portLinkContextByteSize & 0xFF);
-		for(LinkContextEntry linkEntry:linkContext) {
-			int fromPortId = linkEntry.getFromPortId();
-			byte[] fromPortIdBytes = intToByteArray(fromPortId);
-			for(int i=0;i<4;i++) {
-				byteArray[index++] = fromPortIdBytes[i];
-			}
-			int toPortId = linkEntry.getToPortId();
-			byte[] toPortIdBytes = intToByteArray(toPortId);
-			for(int j=0;j<4;j++) {
-				byteArray[index++] = toPortIdBytes[j];
-			}
-			int remotePortId = linkEntry.getRemotePortId();
-			byte[] remotePortIdBytes = intToByteArray(remotePortId);
-			for(int k=0;k<4;k++) {
-				byteArray[index++] = remotePortIdBytes[k];
-			}
-		}
-		
-//		System.out.println("------------------");
-		try {
-			DataOutputStream dos = outsource.get(id);
-
-			int count = totalSize / 30 + 1;
-			for (int i = 0; i < count; i++) {
-				byte sdbuf[] = new byte[31];
-				sdbuf[0] = '2';
-				for (int j = 0; j < 30; j++) {
-					sdbuf[j + 1] = byteArray[i * 30 + j];
-				}
-				dos.write(sdbuf);
-//				System.out.println(Arrays.toString(sdbuf));
-				try {
-					Thread.sleep(400);
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			}
-//			System.out.println("------------------");
-
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		System.out.println("File length: " + message.getSuiteSize());
+		EcuFrameCodec frameCodec = frameCodec(message.getRemoteEcuId());
+		synchronized (frameCodec) {
+			ByteBuffer frame = frameCodec.encode(message);
+			System.out.println("Plugin Name: "
+					+ message.getExecutablePluginName() + ", Total Size: "
+					+ frame.limit());
+			sendFrame(message.getRemoteEcuId(), frame);
 		}
 	}
 
@@ -513,14 +398,32 @@ public class SocketEcuManager implements EcuManager {
 			this.out = out;
 		}
 
+		private TransferAcks transferAcks = new TransferAcks();
+
 		public void run() {
-		    // Turned into just dummy code, because SocketEcuManager
-		    // is not used, and so we can't keep it up to date with
-		    // the rest.
+		    // Only the chunk acknowledgements are read here; the rest was
+		    // turned into just dummy code, because SocketEcuManager is not
+		    // used, and so we can't keep it up to date with the rest.
+			try {
+				while (true) {
+					byte messageType = in.readByte();
+					if (messageType == MessageType.TRANSFER_ACK) {
+						byte transferId = in.readByte();
+						int next = in.readInt();
+						transferAcks.ack(transferId, next);
+					} else {
+						System.out.println("Error: unexpected message type "
+								+ messageType + " from Autosar socket");
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 
 		public void registerEcu(int id) {
 			outsource.put(id, out);
+			acks.put(id, transferAcks);
 		}
 
 		private Message getMessage(int size, byte[] data) {
@@ -529,7 +432,7 @@ public class SocketEcuManager implements EcuManager {
 			byte[] pluginNameBytes;
 
 			byte messageType = data[0];
-		System.out.println(">>> ecm-core/SocketEcuManager " + messageType);
+			Trace.event(Trace.SOCKET_IN, messageType);
 			switch (messageType) {
 			case MessageType.INSTALL_ACK:
 				pluginNameSize = 0;
@@ -594,11 +497,9 @@ public class SocketEcuManager implements EcuManager {
 				for (int j = 0; j < valueSize; j++) {
 					valueBytes[j] = data[index++];
 				}
-				System.out.println("value size:" + valueSize);
 				String value = new String(valueBytes);
 
-				System.out.println("[Publish in SocketEcuManager - key:"
-						+ keyName + ", value:" + value + "]");
+				Trace.event(Trace.SOCKET_PUBLISH, keySize, valueSize);
 				PublishMessage publishMessage = new PublishMessage(keyName,
 						value);
 				return publishMessage;
@@ -652,13 +553,4 @@ public class SocketEcuManager implements EcuManager {
 		return b[3] & 0xFF | (b[2] & 0xFF) << 8 | (b[1] & 0xFF) << 16
 				| (b[0] & 0xFF) << 24;
 	}
-
-	private byte[] intToByteArray(int i) {
-		byte[] result = new byte[4];
-		result[0] = (byte) (i >> 24);
-		result[1] = (byte) (i >> 16);
-		result[2] = (byte) (i >> 8);
-		result[3] = (byte) (i /* >> 0 */);
-		return result;
-	}
 }
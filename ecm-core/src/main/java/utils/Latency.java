@@ -0,0 +1,162 @@
+package utils;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+
+/**
+ * Latency histograms of the paths through the ECM, by stage.
+ * 
+ * Each message takes System.nanoTime() when it is made (see
+ * Message.getCreated()), so a stage can be measured from there or from the
+ * start of the stage. The histograms can be read as text on a loopback
+ * port, e.g. with "nc localhost 9010", and written to a file, followed by
+ * the counters added with addCounters.
+ */
+public class Latency {
+	/** Counters shown with the histograms, one line each. */
+	public interface Counters {
+		String getStats();
+	}
+
+	private static LinkedHashMap<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+	private static ArrayList<Counters> counters = new ArrayList<Counters>();
+	private static boolean started = false;
+
+	/** From the phone command being read to the forwarder taking it */
+	public static final LatencyHistogram PWM_QUEUE = histogram("pwm.queue");
+	/** javaCanLibrary.sendData of a PWM frame */
+	public static final LatencyHistogram PWM_CAN = histogram("pwm.can");
+	/** From the phone command being read to it having been sent to the ECU */
+	public static final LatencyHistogram PWM_TOTAL = histogram("pwm.total");
+	/** Sending an install message to the ECU */
+	public static final LatencyHistogram INSTALL_ECU = histogram("install.ecu");
+	/** From the install packet being unpacked to the plugin being sent */
+	public static final LatencyHistogram INSTALL_TOTAL = histogram("install.total");
+	/** From the ECU frame being decoded to the value being queued */
+	public static final LatencyHistogram PUBLISH_ECM = histogram("publish.ecm");
+	/** Giving one batch of values to the publisher */
+	public static final LatencyHistogram PUBLISH_BATCH = histogram("publish.batch");
+	/** From a PWM message being made to the data thread running it */
+	public static final LatencyHistogram BUS_PWM = histogram("bus.pwm");
+	/** The same for PUBLISH and PLUGIN_MESSAGE */
+	public static final LatencyHistogram BUS_DATA = histogram("bus.data");
+	/** From a control message being made to the control thread running it */
+	public static final LatencyHistogram BUS_CONTROL = histogram("bus.control");
+
+	public static synchronized LatencyHistogram histogram(String name) {
+		LatencyHistogram h = histograms.get(name);
+		if (h == null) {
+			h = new LatencyHistogram(name);
+			histograms.put(name, h);
+		}
+		return h;
+	}
+
+	public static synchronized String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-16s %8s %9s %9s %9s %9s %9s %9s%n", "us",
+				"count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+		for (LatencyHistogram h : histograms.values())
+			sb.append(h).append(String.format("%n"));
+		for (Counters c : counters)
+			sb.append(c.getStats()).append(String.format("%n"));
+		return sb.toString();
+	}
+
+	public static synchronized void addCounters(Counters c) {
+		counters.add(c);
+	}
+
+	public static synchronized void reset() {
+		for (LatencyHistogram h : histograms.values())
+			h.reset();
+	}
+
+	/**
+	 * Appends the report, with the time, to a file.
+	 */
+	public static void dump(String path) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(path, true));
+		try {
+			out.println(new Date());
+			out.print(report());
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Serves the report on the loopback interface, and arranges for it to
+	 * be dumped to LATENCY_FILE (if set) when the JVM exits. The port is
+	 * LATENCY_PORT, 9010 if not set; a negative port turns the endpoint
+	 * off. Only the first call does anything.
+	 */
+	public static synchronized void start() {
+		if (started)
+			return;
+		started = true;
+
+		String p = PropertyAPI.getInstance().getProperty("LATENCY_PORT");
+		int port = p == null ? 9010 : Integer.parseInt(p.trim());
+		final String file = PropertyAPI.getInstance().getProperty("LATENCY_FILE");
+
+		if (file != null) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					try {
+						dump(file);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+
+		if (port < 0)
+			return;
+		final ServerSocket server;
+		try {
+			server = new ServerSocket();
+			server.setReuseAddress(true);
+			server.bind(new InetSocketAddress(InetAddress.getByName(null), port));
+		} catch (IOException e) {
+			System.out.println("Latency: cannot listen on port " + port + ": " + e);
+			return;
+		}
+		System.out.println("Latency report on localhost:" + port);
+
+		Thread t = new Thread("Latency") {
+			public void run() {
+				while (true) {
+					Socket client = null;
+					try {
+						client = server.accept();
+						OutputStream out = client.getOutputStream();
+						out.write(report().getBytes("UTF-8"));
+						out.flush();
+					} catch (IOException e) {
+						e.printStackTrace();
+					} finally {
+						if (client != null) {
+							try {
+								client.close();
+							} catch (IOException e) {
+							}
+						}
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+}
@@ -0,0 +1,129 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of latencies in nanoseconds, in buckets whose width grows with the
+ * value so that each is within about 3% of the values it holds (as in
+ * HdrHistogram). Recording takes no lock and allocates nothing, and may be
+ * done from any thread.
+ */
+public class LatencyHistogram {
+	// each power of two is split in 2^SUB_BITS buckets
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	// values above this, about 68 s, are counted as this
+	private static final long HIGHEST = (1L << 36) - 1;
+	private static final int BUCKETS = index(HIGHEST) + 1;
+
+	private String name;
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private AtomicLong count = new AtomicLong();
+	private AtomicLong total = new AtomicLong();
+	private AtomicLong max = new AtomicLong();
+
+	public LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		if (nanos > HIGHEST)
+			nanos = HIGHEST;
+		counts.incrementAndGet(index(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long m = max.get();
+		while (nanos > m && !max.compareAndSet(m, nanos))
+			m = max.get();
+	}
+
+	/**
+	 * Records the time since start, a value of System.nanoTime(). Does
+	 * nothing if start is 0, which is taken to mean that it was not set.
+	 */
+	public void recordSince(long start) {
+		if (start != 0)
+			record(System.nanoTime() - start);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : total.get() / n;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return a value that percentile of the recorded values are at or
+	 *         below, 0 if nothing has been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			n += counts.get(i);
+		if (n == 0)
+			return 0;
+		long rank = (long) Math.ceil(percentile / 100 * n);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestIn(i), max.get());
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * One line: count, then mean, 50th, 90th, 99th and 99.9th percentiles
+	 * and maximum in microseconds.
+	 */
+	@Override
+	public String toString() {
+		return String.format("%-16s %8d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f",
+				name, count.get(), getMean() / 1000.0,
+				getPercentile(50) / 1000.0, getPercentile(90) / 1000.0,
+				getPercentile(99) / 1000.0, getPercentile(99.9) / 1000.0,
+				max.get() / 1000.0);
+	}
+
+	// Values below 2 * SUB_COUNT have a bucket each; above that, a value
+	// with its highest bit at b goes in one of SUB_COUNT buckets for b.
+	private static int index(long value) {
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		if (shift <= 0)
+			return (int) value;
+		return shift * SUB_COUNT + (int) (value >>> shift);
+	}
+
+	private static long highestIn(int index) {
+		if (index < 2 * SUB_COUNT)
+			return index;
+		int shift = index / SUB_COUNT - 1;
+		long low = (long) (index % SUB_COUNT + SUB_COUNT) << shift;
+		return low + (1L << shift) - 1;
+	}
+}
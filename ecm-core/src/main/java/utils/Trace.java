@@ -0,0 +1,225 @@
+package utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Binary trace of what goes through the ECM, kept in memory instead of being
+ * printed.
+ * 
+ * An event is an id, System.nanoTime() and up to three ints. The records go
+ * round a ring that is allocated once; writing one takes one atomic
+ * increment and five stores, and does not lock or allocate, so the trace can
+ * stay on. When the ring is full the oldest records are overwritten. The
+ * ring is written to a file with dump(), and TraceDecoder prints the file.
+ * 
+ * Events belong to a category, and each category can be turned off with the
+ * TRACE property, e.g. "TRACE=ecm,can" or "TRACE=none". All are on by
+ * default.
+ */
+public class Trace {
+	public static final int ECM = 1;
+	public static final int CAN = 2;
+	public static final int SOCKET = 4;
+	public static final int SERVER = 8;
+	private static final int ALL = ECM | CAN | SOCKET | SERVER;
+	private static final String[] CATEGORY_NAMES = { "ecm", "can", "socket",
+			"server" };
+
+	static final int MAGIC = 0x4d545243; // "MTRC"
+	static final int VERSION = 1;
+
+	// records in the ring, a power of two; each record is 4 longs
+	private static final int RECORDS = 1 << 16;
+	private static final int MASK = RECORDS - 1;
+
+	// key: event id, value: name and argument names, for the decoder
+	private static LinkedHashMap<Integer, String[]> events = new LinkedHashMap<Integer, String[]>();
+
+	/** Message handed to Ecm.process: type */
+	public static final int ECM_IN = event(ECM, 1, "ecm.in", "type");
+	/** Message sent on by the Ecm: type */
+	public static final int ECM_OUT = event(ECM, 2, "ecm.out", "type");
+	/** Value queued for the IoT server: key length, value length */
+	public static final int ECM_PUBLISH = event(ECM, 3, "ecm.publish", "key",
+			"value");
+	/** Frame from an ECU: type, plugin id, length */
+	public static final int CAN_IN = event(CAN, 1, "can.in", "type",
+			"plugin", "length");
+	/** Message sent to an ECU: type, ECU */
+	public static final int CAN_OUT = event(CAN, 2, "can.out", "type", "ecu");
+	/** PWM frame: ECU, CAN id, first four data bytes */
+	public static final int CAN_PWM = event(CAN, 3, "can.pwm", "ecu",
+			"can_id", "data");
+	/** Publish frame: length, key size, value size */
+	public static final int CAN_PUBLISH = event(CAN, 4, "can.publish",
+			"length", "key", "value");
+	/** Message from an ECU socket: type */
+	public static final int SOCKET_IN = event(SOCKET, 1, "socket.in", "type");
+	/** Message sent to an ECU socket: type, ECU */
+	public static final int SOCKET_OUT = event(SOCKET, 2, "socket.out",
+			"type", "ecu");
+	/** Uninstall frame: ECU, total size, plugin name size */
+	public static final int SOCKET_UNINSTALL = event(SOCKET, 3,
+			"socket.uninstall", "ecu", "size", "name");
+	/** Publish from an ECU socket: key size, value size */
+	public static final int SOCKET_PUBLISH = event(SOCKET, 4,
+			"socket.publish", "key", "value");
+	/** Packet from the trusted server: type */
+	public static final int SERVER_IN = event(SERVER, 1, "server.in", "type");
+
+	private static volatile int enabled = ALL;
+	private static AtomicLongArray ring = new AtomicLongArray(RECORDS * 4);
+	private static AtomicLong next = new AtomicLong();
+	private static boolean started = false;
+
+	// The category is in the high half of the id, so that checking it
+	// needs no lookup.
+	private static int event(int category, int n, String name,
+			String... args) {
+		int id = category << 16 | n;
+		String[] desc = new String[args.length + 1];
+		desc[0] = name;
+		System.arraycopy(args, 0, desc, 1, args.length);
+		events.put(id, desc);
+		return id;
+	}
+
+	public static boolean isOn(int category) {
+		return (enabled & category) != 0;
+	}
+
+	public static void setEnabled(int categories) {
+		enabled = categories;
+	}
+
+	public static void event(int id) {
+		event(id, 0, 0, 0);
+	}
+
+	public static void event(int id, int a) {
+		event(id, a, 0, 0);
+	}
+
+	public static void event(int id, int a, int b) {
+		event(id, a, b, 0);
+	}
+
+	public static void event(int id, int a, int b, int c) {
+		if ((enabled & id >>> 16) == 0)
+			return;
+		long seq = next.getAndIncrement();
+		int i = (int) (seq & MASK) * 4;
+		// the record this one overwrites is no longer valid, before any of
+		// it is overwritten
+		ring.set(i, 0);
+		ring.lazySet(i + 1, System.nanoTime());
+		ring.lazySet(i + 2, (long) id << 32 | (a & 0xffffffffL));
+		ring.lazySet(i + 3, (long) b << 32 | (c & 0xffffffffL));
+		// last, so that a reader can tell a complete record from one
+		// being written or overwritten
+		ring.lazySet(i, seq + 1);
+	}
+
+	/**
+	 * Packs the first four bytes of data in an int, for an event argument.
+	 */
+	public static int bytes(byte[] data) {
+		int packed = 0;
+		for (int i = 0; i < 4 && i < data.length; i++)
+			packed |= (data[i] & 0xff) << (24 - 8 * i);
+		return packed;
+	}
+
+	/**
+	 * Reads TRACE, and arranges for the trace to be dumped to TRACE_FILE (if
+	 * set) when the JVM exits. Only the first call does anything.
+	 */
+	public static synchronized void start() {
+		if (started)
+			return;
+		started = true;
+
+		String categories = PropertyAPI.getInstance().getProperty("TRACE");
+		if (categories != null) {
+			int mask = 0;
+			for (String c : categories.split(",")) {
+				c = c.trim();
+				if (c.equals("all"))
+					mask = ALL;
+				for (int i = 0; i < CATEGORY_NAMES.length; i++) {
+					if (CATEGORY_NAMES[i].equals(c))
+						mask |= 1 << i;
+				}
+			}
+			enabled = mask;
+		}
+
+		final String file = PropertyAPI.getInstance().getProperty("TRACE_FILE");
+		if (file != null) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					try {
+						dump(file);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes the events table and the records now in the ring to a file,
+	 * oldest first. Events may go on being recorded meanwhile; records
+	 * overwritten while being copied are left out.
+	 */
+	public static void dump(String path) throws IOException {
+		long last = next.get();
+		long first = Math.max(0, last - RECORDS);
+		long[] copy = new long[(int) (last - first) * 4];
+		int n = 0;
+		for (long seq = first; seq < last; seq++) {
+			int i = (int) (seq & MASK) * 4;
+			// complete before, and not overwritten while copied
+			if (ring.get(i) != seq + 1)
+				continue;
+			long time = ring.get(i + 1);
+			long w2 = ring.get(i + 2);
+			long w3 = ring.get(i + 3);
+			if (ring.get(i) != seq + 1)
+				continue;
+			copy[n++] = seq;
+			copy[n++] = time;
+			copy[n++] = w2;
+			copy[n++] = w3;
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(path)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(System.currentTimeMillis());
+			out.writeLong(System.nanoTime());
+			out.writeInt(events.size());
+			for (Map.Entry<Integer, String[]> e : events.entrySet()) {
+				out.writeInt(e.getKey());
+				out.writeInt(e.getValue().length);
+				for (String s : e.getValue())
+					out.writeUTF(s);
+			}
+			out.writeInt(n / 4);
+			for (int i = 0; i < n; i++)
+				out.writeLong(copy[i]);
+		} finally {
+			out.close();
+		}
+	}
+}
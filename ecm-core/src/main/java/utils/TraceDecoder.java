@@ -0,0 +1,96 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * Prints a file written by Trace.dump(), one event per line:
+ * 
+ * <pre>
+ * 14:02:11.523.118 +12.4 can.pwm ecu=2 can_id=1121 data=0x32e1
+ * </pre>
+ * 
+ * The second column is the time since the previous event, in microseconds.
+ * 
+ * Usage: java -cp ecm-core.jar utils.TraceDecoder trace-file
+ */
+public class TraceDecoder {
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("usage: TraceDecoder trace-file");
+			System.exit(1);
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(args[0])));
+		try {
+			if (in.readInt() != Trace.MAGIC || in.readInt() != Trace.VERSION) {
+				System.err.println(args[0] + ": not a trace file");
+				System.exit(1);
+			}
+			long wallMillis = in.readLong();
+			long nanos = in.readLong();
+
+			HashMap<Integer, String[]> events = new HashMap<Integer, String[]>();
+			int nEvents = in.readInt();
+			for (int e = 0; e < nEvents; e++) {
+				int id = in.readInt();
+				String[] desc = new String[in.readInt()];
+				for (int i = 0; i < desc.length; i++)
+					desc[i] = in.readUTF();
+				events.put(id, desc);
+			}
+
+			SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+			int records = in.readInt();
+			long previous = 0;
+			long lastSeq = -1;
+			for (int r = 0; r < records; r++) {
+				long seq = in.readLong();
+				long time = in.readLong();
+				long w2 = in.readLong();
+				long w3 = in.readLong();
+				int id = (int) (w2 >>> 32);
+				int[] values = { (int) w2, (int) (w3 >>> 32), (int) w3 };
+
+				if (lastSeq >= 0 && seq != lastSeq + 1)
+					System.out.println("... " + (seq - lastSeq - 1)
+							+ " events lost");
+				lastSeq = seq;
+
+				// wall clock time in ns
+				long wall = wallMillis * 1000000 - (nanos - time);
+				StringBuilder sb = new StringBuilder();
+				sb.append(format.format(new Date(wall / 1000000)));
+				sb.append(String.format(".%03d", (wall / 1000) % 1000));
+				sb.append(String.format(" %+.1f", previous == 0 ? 0.0
+						: (time - previous) / 1000.0));
+				previous = time;
+
+				String[] desc = events.get(id);
+				if (desc == null) {
+					sb.append(" event-").append(Integer.toHexString(id));
+					for (int v : values)
+						sb.append(' ').append(v);
+				} else {
+					sb.append(' ').append(desc[0]);
+					for (int i = 1; i < desc.length; i++) {
+						sb.append(' ').append(desc[i]).append('=');
+						if (desc[i].equals("data"))
+							sb.append("0x").append(Integer.toHexString(values[i - 1]));
+						else
+							sb.append(values[i - 1]);
+					}
+				}
+				System.out.println(sb);
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
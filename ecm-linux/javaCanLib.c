@@ -6,6 +6,7 @@
 #include <sys/types.h>
 #include <sys/socket.h>
 #include <sys/ioctl.h>
+#include <poll.h>
 #include <linux/can.h>
 #include <linux/can/raw.h>
 #include "../apptest.h"
@@ -60,3 +61,28 @@ int getPackageSize() {
 void resetPackageSize() {
 	packageTotalSize = 0;
 }
+
+/* Waits up to timeout_ms for a frame with any CAN ID and writes it to buf
+   as 4 bytes CAN ID (big endian), 1 byte DLC and 8 bytes data.
+   Returns the number of bytes written, 0 on timeout and -1 on error. */
+int receiveFrame(int chn_num, int timeout_ms, char* buf) {
+	struct pollfd pfd;
+	struct can_frame rframe;
+	int n;
+
+	pfd.fd = chn_num;
+	pfd.events = POLLIN;
+	n = poll(&pfd, 1, timeout_ms);
+	if (n <= 0)
+		return n;
+	if (read(chn_num, &rframe, sizeof(struct can_frame)) < (int) sizeof(struct can_frame))
+		return 0;
+
+	buf[0] = (char) (rframe.can_id >> 24);
+	buf[1] = (char) (rframe.can_id >> 16);
+	buf[2] = (char) (rframe.can_id >> 8);
+	buf[3] = (char) rframe.can_id;
+	buf[4] = (char) rframe.can_dlc;
+	memcpy(&buf[5], rframe.data, rframe.can_dlc);
+	return 5 + rframe.can_dlc;
+}
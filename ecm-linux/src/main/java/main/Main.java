@@ -3,6 +3,7 @@ package main;
 import io.PublisherFactory;
 import io.IPublisher;
 import io.MQTTPublisher; // for 'vin'
+import io.Spool;
 import io.IMessage;
 import io.IReceiver;
 import io.ReceiverFactory;
@@ -19,6 +20,9 @@ import network.internal.SocketEcuManager;
 import ecm.Ecm;
 import messages.PublishPacket;
 
+import java.io.File;
+import java.io.IOException;
+
 public class Main {
     private static class Rec implements IMessage {
 	public void receive(String msg) {
@@ -34,7 +38,9 @@ public class Main {
 //		int linux_autosar_port = Integer.parseInt(PropertyAPI.getInstance().getProperty("LINUX_AUTOSAR_PORT"));
 //		EcuManager ecuManager = new SocketEcuManager(linux_autosar_port);	
 		CanConfigParser.parseCanConfig("canConfig.xml");
-		EcuManager ecuManager = new CanEcuManager(CanConfigParser.getSenders(), CanConfigParser.getReceivers());
+		// CAN_RECEIVE_MODE=poll goes back to polling each receiver every 10 ms
+		boolean canEventDriven = !"poll".equals(PropertyAPI.getInstance().getProperty("CAN_RECEIVE_MODE"));
+		EcuManager ecuManager = new CanEcuManager(CanConfigParser.getSenders(), CanConfigParser.getReceivers(), canEventDriven);
 		
 		// Initiate trustServerManager
 		// Achieve configuration from settings.properties
@@ -90,6 +96,10 @@ public class Main {
 
 		MQTTPublisher mqttpub = (MQTTPublisher) publisher;
 		mqttpub.vin = vin;
+		Spool spool = spool();
+		if (spool != null) {
+		    mqttpub.setSpool(spool);
+		}
 
 		IoTManager iotManager = new IoTManager(publisher, receiver);
 		
@@ -128,4 +138,30 @@ public class Main {
 		ecm.start(args);
 		//iotManager.sendPacket(new PublishPacket("speed", "3.234"));
 	}
+
+	// The spool for telemetry that cannot be published, as set by the
+	// SPOOL_ properties, or null
+	private static Spool spool() {
+		PropertyAPI p = PropertyAPI.getInstance();
+		String dir = p.getProperty("SPOOL_DIR");
+		if (dir == null)
+		    return null;
+		try {
+		    Spool spool = new Spool(new File(dir),
+					    intProperty("SPOOL_SEGMENT_KB", 1024) * 1024,
+					    intProperty("SPOOL_SIZE_MB", 64) * 1024L * 1024,
+					    intProperty("SPOOL_AGE_MIN", 24 * 60) * 60000L);
+		    spool.setReplayRate(intProperty("SPOOL_RATE", 200),
+					intProperty("SPOOL_BATCH", 50));
+		    return spool;
+		} catch (IOException e) {
+		    System.out.println("Cannot open spool in " + dir + ": " + e);
+		    return null;
+		}
+	}
+
+	private static int intProperty(String key, int dflt) {
+		String value = PropertyAPI.getInstance().getProperty(key);
+		return value == null ? dflt : Integer.parseInt(value.trim());
+	}
 }
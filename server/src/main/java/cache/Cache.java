@@ -1,163 +1,255 @@
 package cache;
 
-import java.util.Collection;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Plugins sent to vehicles and not yet acknowledged.
+ *
+ * The web service threads add entries when they send INSTALL or UNINSTALL
+ * and the MINA threads take them out when the ACKs arrive. Each VIN has its
+ * own entry with its own lock, so vehicles do not wait for each other. An
+ * entry is removed when its last plugin is acknowledged, and plugins that
+ * are never acknowledged are dropped after PENDING_TIMEOUT, so the cache
+ * does not grow with the number of vehicles that have been served.
+ */
 public class Cache {
-	private static Cache instance;
-	private final static int CACHE_MAX_SIZE = 50;
-	// key: VIN, value: {key: Plug-In name, value: vehiclePluginRecord}
-	// private LinkedHashMap<String, HashMap<Integer, HashMap<String,
-	// VehiclePluginRecord>>> installCache;
-	// key: VIN, value: List<plugIn name>
-	private LinkedHashMap<String, HashMap<Integer, ArrayList<String>>> uninstallCache;
+	private final static Cache instance = new Cache();
+	// ms before an unacknowledged plugin is forgotten
+	private final static long PENDING_TIMEOUT = 30 * 60 * 1000;
+	private final static long EXPIRY_INTERVAL = 60 * 1000;
 
-	private LinkedHashMap<String, HashMap<Integer, ArrayList<VehiclePluginRecord>>> installCache;
+	private static class Pending<T> {
+		private T value;
+		private long deadline;
 
-	@SuppressWarnings("serial")
-	private Cache() {
-		this.installCache = new LinkedHashMap<String, HashMap<Integer, ArrayList<VehiclePluginRecord>>>(
-				CACHE_MAX_SIZE, 0.75f, true) {
-			protected boolean removeEldestEntry(
-					Map.Entry<String, HashMap<Integer, ArrayList<VehiclePluginRecord>>> eldest) {
-				return size() > CACHE_MAX_SIZE;
-			}
-		};
+		private Pending(T value, long deadline) {
+			this.value = value;
+			this.deadline = deadline;
+		}
+	}
+
+	// Everything pending for one vehicle. Guarded by its own monitor.
+	private static class VinEntry {
+		// key: appId, value: {key: plugin base name, value: record}
+		private HashMap<Integer, HashMap<String, Pending<VehiclePluginRecord>>> installs = new HashMap<Integer, HashMap<String, Pending<VehiclePluginRecord>>>();
+		// key: appId, value: plugin names
+		private HashMap<Integer, Pending<HashSet<String>>> uninstalls = new HashMap<Integer, Pending<HashSet<String>>>();
+		// set when the entry has been taken out of the map
+		private boolean removed;
+
+		private boolean isEmpty() {
+			return installs.isEmpty() && uninstalls.isEmpty();
+		}
+	}
 
-		this.uninstallCache = new LinkedHashMap<String, HashMap<Integer, ArrayList<String>>>(
-				CACHE_MAX_SIZE, 0.75f, true) {
-			protected boolean removeEldestEntry(
-					Map.Entry<String, HashMap<Integer, ArrayList<String>>> eldest) {
-				return size() > CACHE_MAX_SIZE;
+	// key: VIN
+	private ConcurrentHashMap<String, VinEntry> entries = new ConcurrentHashMap<String, VinEntry>();
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong expired = new AtomicLong();
+
+	private Cache() {
+		Timer timer = new Timer("cache-expiry", true);
+		timer.schedule(new TimerTask() {
+			public void run() {
+				expire(System.currentTimeMillis());
 			}
-		};
+		}, EXPIRY_INTERVAL, EXPIRY_INTERVAL);
 	}
 
 	public static Cache getCache() {
-		if (instance == null) {
-			instance = new Cache();
-		}
 		return instance;
 	}
 
 	public void addInstallCache(String vin, int appId,
 			ArrayList<VehiclePluginRecord> records) {
-		if (installCache.containsKey(vin)) {
-			HashMap<Integer, ArrayList<VehiclePluginRecord>> appList = installCache
-					.get(vin);
-			if (appList.containsKey(appId)) {
-				appList.remove(appId);
-			}
+		long deadline = System.currentTimeMillis() + PENDING_TIMEOUT;
+		HashMap<String, Pending<VehiclePluginRecord>> plugins = new HashMap<String, Pending<VehiclePluginRecord>>();
+		for (VehiclePluginRecord record : records) {
+			plugins.put(baseName(record.getPluginName()),
+					new Pending<VehiclePluginRecord>(record, deadline));
+		}
 
-			appList.put(appId, records);
-			installCache.put(vin, appList);
-		} else {
-			HashMap<Integer, ArrayList<VehiclePluginRecord>> appList = new HashMap<Integer, ArrayList<VehiclePluginRecord>>();
-			appList.put(appId, records);
-			installCache.put(vin, appList);
+		while (true) {
+			VinEntry entry = entry(vin);
+			synchronized (entry) {
+				if (entry.removed)
+					continue;
+				if (plugins.isEmpty()) {
+					entry.installs.remove(appId);
+					removeIfEmpty(vin, entry);
+				} else {
+					entry.installs.put(appId, plugins);
+				}
+				return;
+			}
 		}
 	}
 
 	public VehiclePluginRecord getVehiclePluginRecord(String vin, int appId,
 			String pluginName) {
-		HashMap<Integer, ArrayList<VehiclePluginRecord>> appList = installCache
-				.get(vin);
-		System.out.println("getVehiclePluginRecord " + appList);
-		String s2 = pluginName;
-		int i2 = s2.indexOf('.');
-		s2 = s2.substring(0,i2);
-		ArrayList<VehiclePluginRecord> records = appList.get(appId);
-		if (records == null) {
-		    System.out.println("appId didn't match");
-		    return null;
-		}
-
-		for (VehiclePluginRecord record : records) {
-		    System.out.println(" " + record.getPluginName() +
-				       " " + pluginName);
-		    String s1 = record.getPluginName();
-		    int i1 = s1.indexOf('.');
-		    s1 = s1.substring(0,i1);
-		    System.out.println(" " + s1 +
-				       " " + s2);
-		    System.out.println(" record 1");
-		    if (s1.equals(s2)) {
-			System.out.println(" record 2");
-			records.remove(record);
-			System.out.println("returning record");
-			return record;
-		    }
+		VinEntry entry = entries.get(vin);
+		if (entry != null) {
+			synchronized (entry) {
+				HashMap<String, Pending<VehiclePluginRecord>> plugins = entry.installs
+						.get(appId);
+				if (plugins != null) {
+					Pending<VehiclePluginRecord> pending = plugins
+							.remove(baseName(pluginName));
+					if (pending != null) {
+						if (plugins.isEmpty())
+							entry.installs.remove(appId);
+						removeIfEmpty(vin, entry);
+						hits.incrementAndGet();
+						return pending.value;
+					}
+				}
+			}
 		}
+		misses.incrementAndGet();
+		System.out.println("getVehiclePluginRecord: nothing pending for "
+				+ vin + " " + appId + " " + pluginName);
 		return null;
 	}
 
 	public boolean IsAllPluginInstalled(String vin, int appId) {
-		if (!installCache.containsKey(vin))
+		VinEntry entry = entries.get(vin);
+		if (entry == null)
 			return true;
-		else {
-			HashMap<Integer, ArrayList<VehiclePluginRecord>> appList = installCache
-					.get(vin);
-			if (appList.containsKey(appId)) {
-				ArrayList<VehiclePluginRecord> records = appList.get(appId);
-				if (records.isEmpty()) {
-					return true;
-				} else {
-					return false;
-				}
-			} else {
-				return true;
-			}
+		synchronized (entry) {
+			return !entry.installs.containsKey(appId);
 		}
 	}
 
 	public void addUninstallCache(String vin, int appId, ArrayList<String> pluginNames) {
-		if (uninstallCache.containsKey(vin)) {
-			HashMap<Integer, ArrayList<String>> appList = uninstallCache
-					.get(vin);
-			if (appList.containsKey(appId))
-				appList.remove(appId);
-			appList.put(appId, pluginNames);
-			uninstallCache.put(vin, appList);
-		} else {
-			HashMap<Integer, ArrayList<String>> appList = new HashMap<Integer, ArrayList<String>>();
-			appList.put(appId, pluginNames);
-			uninstallCache.put(vin, appList);
+		Pending<HashSet<String>> pending = new Pending<HashSet<String>>(
+				new HashSet<String>(pluginNames), System.currentTimeMillis()
+						+ PENDING_TIMEOUT);
+		while (true) {
+			VinEntry entry = entry(vin);
+			synchronized (entry) {
+				if (entry.removed)
+					continue;
+				entry.uninstalls.put(appId, pending);
+				return;
+			}
 		}
 	}
 
 	public boolean updateUninstallCacheAndCheckIfRemovable(String vin,
 			int appId, String pluginName) {
-		// Check
-		if (uninstallCache.containsKey(vin)) {
-			HashMap<Integer, ArrayList<String>> appHashMap = uninstallCache
-					.get(vin);
-
-			if(appHashMap.containsKey(appId)) {
-				ArrayList<String> records = appHashMap.get(appId);
-				if(records.isEmpty())
-					return true;
-				else {
-					for(String record : records) {
-						if(record.equals(pluginName)) {
-							records.remove(pluginName);
-							break;
+		VinEntry entry = entries.get(vin);
+		if (entry == null)
+			return true;
+		synchronized (entry) {
+			Pending<HashSet<String>> pending = entry.uninstalls.get(appId);
+			if (pending == null)
+				return true;
+			pending.value.remove(pluginName);
+			if (!pending.value.isEmpty())
+				return false;
+			entry.uninstalls.remove(appId);
+			removeIfEmpty(vin, entry);
+			return true;
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getExpired() {
+		return expired.get();
+	}
+
+	public int getPendingVehicles() {
+		return entries.size();
+	}
+
+	public String getStats() {
+		long h = hits.get();
+		long m = misses.get();
+		return "pending vehicles " + entries.size() + ", ACK hits " + h
+				+ ", misses " + m + ", hit rate "
+				+ (h + m == 0 ? 100 : 100 * h / (h + m)) + "%, expired "
+				+ expired.get();
+	}
+
+	/**
+	 * Drops the plugins whose ACK has not come by their deadline.
+	 */
+	public void expire(long now) {
+		long dropped = 0;
+		for (Map.Entry<String, VinEntry> e : entries.entrySet()) {
+			VinEntry entry = e.getValue();
+			synchronized (entry) {
+				for (Iterator<HashMap<String, Pending<VehiclePluginRecord>>> apps = entry.installs
+						.values().iterator(); apps.hasNext();) {
+					HashMap<String, Pending<VehiclePluginRecord>> plugins = apps
+							.next();
+					for (Iterator<Pending<VehiclePluginRecord>> it = plugins
+							.values().iterator(); it.hasNext();) {
+						if (it.next().deadline <= now) {
+							it.remove();
+							dropped++;
 						}
 					}
-					if(records.isEmpty())
-						return true;
-					else
-						return false;
+					if (plugins.isEmpty())
+						apps.remove();
 				}
-			} else {
-				return true;
+				for (Iterator<Pending<HashSet<String>>> it = entry.uninstalls
+						.values().iterator(); it.hasNext();) {
+					Pending<HashSet<String>> pending = it.next();
+					if (pending.deadline <= now) {
+						it.remove();
+						dropped += pending.value.size();
+					}
+				}
+				removeIfEmpty(e.getKey(), entry);
 			}
-		} else {
-			return true;
 		}
+		if (dropped > 0) {
+			expired.addAndGet(dropped);
+			System.out.println("Cache: " + dropped
+					+ " plugins not acknowledged in time; " + getStats());
+		}
+	}
+
+	private VinEntry entry(String vin) {
+		VinEntry entry = entries.get(vin);
+		if (entry == null) {
+			VinEntry created = new VinEntry();
+			entry = entries.putIfAbsent(vin, created);
+			if (entry == null)
+				entry = created;
+		}
+		return entry;
+	}
+
+	// Called with the entry locked
+	private void removeIfEmpty(String vin, VinEntry entry) {
+		if (entry.isEmpty() && !entry.removed) {
+			entry.removed = true;
+			entries.remove(vin, entry);
+		}
+	}
 
+	// "Foo.suite" and "Foo.jar" are the same plugin
+	private static String baseName(String pluginName) {
+		int i = pluginName.indexOf('.');
+		return i < 0 ? pluginName : pluginName.substring(0, i);
 	}
 }
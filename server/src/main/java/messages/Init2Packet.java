@@ -1,5 +1,7 @@
 package messages;
 
+import java.util.ArrayList;
+
 // TODO: Auto-generated Javadoc
 /**
  * The Class InitPackage.
@@ -11,6 +13,9 @@ public class Init2Packet extends Packet {
 	
     public boolean is_simulator;
 
+	// hashes of the suites the vehicle has stored, see InstallPacketData
+	public ArrayList<String> suites;
+
 	/**
 	 * Instantiates a new inits the package.
 	 *
@@ -0,0 +1,482 @@
+package messages;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolCodecFactory;
+import org.apache.mina.filter.codec.ProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.codec.ProtocolEncoder;
+import org.apache.mina.filter.codec.ProtocolEncoderAdapter;
+import org.apache.mina.filter.codec.ProtocolEncoderException;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+
+/**
+ * Binary codec for the packets between the server and the vehicles. The same
+ * class is kept in the messages package on both sides.
+ *
+ * Frame: 4: body size(N), N: body.
+ * Body: 1: version, varint: message type, string: vin, then the fields of
+ * the packet in declaration order.
+ * Integers are zigzag varints, strings and byte arrays are a varint of
+ * length + 1 (0 for null) followed by the UTF-8 or raw bytes, and lists and
+ * maps are a varint of size + 1 (0 for null) followed by the elements.
+ *
+ * Fields added later go at the end of the body and are only read when the
+ * body has bytes left, so that a peer that does not know them skips them.
+ * These are the suite hashes of INIT2, and of INSTALL and RESTORE after all
+ * the install data, followed by the base hashes of the deltas.
+ *
+ * A peer that still sends Java-serialized objects is recognized by the
+ * serialization stream header where the version would be, and is answered
+ * the same way for the rest of the session.
+ */
+public class PacketCodecFactory implements ProtocolCodecFactory {
+
+	public static final byte VERSION = 1;
+
+	/** Type of DebugPacket, which has no constant in MessageType. */
+	public static final int DEBUG = 100;
+
+	/** Largest frame accepted, plugins included. */
+	private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+	// first byte of a Java serialization stream (0xACED)
+	private static final byte SERIALIZED = (byte) 0xAC;
+
+	private static final AttributeKey SERIALIZED_PEER = new AttributeKey(
+			PacketCodecFactory.class, "serializedPeer");
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ProtocolEncoder encoder = new PacketEncoder();
+	private final ProtocolDecoder decoder = new PacketDecoder();
+
+	public ProtocolEncoder getEncoder(IoSession session) {
+		return encoder;
+	}
+
+	public ProtocolDecoder getDecoder(IoSession session) {
+		return decoder;
+	}
+
+	/**
+	 * Encodes the fields of a packet once, so that it can be sent to many
+	 * vehicles in EncodedPackets.
+	 */
+	public static IoBuffer encodeFields(Packet packet)
+			throws ProtocolEncoderException {
+		IoBuffer buf = IoBuffer.allocate(PacketEncoder.sizeHint(packet))
+				.setAutoExpand(true);
+		PacketEncoder.putFields(buf, packet);
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * A packet whose fields were encoded by encodeFields. Only the frame
+	 * header with the vin is made for each session, and the fields are
+	 * written from a duplicate of the shared buffer. A peer that wants
+	 * serialized objects is sent the original packet.
+	 */
+	public static class EncodedPacket extends Packet {
+		private static final long serialVersionUID = 1L;
+
+		private transient Packet packet;
+		private transient IoBuffer fields;
+
+		public EncodedPacket(String vin, Packet packet, IoBuffer fields) {
+			super(packet.getMessageType(), vin);
+			this.packet = packet;
+			this.fields = fields;
+		}
+
+		public Packet getPacket() {
+			return packet;
+		}
+	}
+
+	private static class PacketEncoder extends ProtocolEncoderAdapter {
+
+		public void encode(IoSession session, Object message,
+				ProtocolEncoderOutput out) throws Exception {
+			IoBuffer buf;
+			if (message instanceof EncodedPacket) {
+				EncodedPacket encoded = (EncodedPacket) message;
+				if (session.containsAttribute(SERIALIZED_PEER)) {
+					message = encoded.packet;
+				} else {
+					IoBuffer fields = encoded.fields.duplicate();
+					buf = IoBuffer.allocate(64).setAutoExpand(true);
+					buf.putInt(0);
+					buf.put(VERSION);
+					putVarint(buf, encoded.getMessageType());
+					putString(buf, encoded.getVin());
+					buf.putInt(0, buf.position() - 4 + fields.remaining());
+					buf.flip();
+					out.write(buf);
+					out.write(fields);
+					return;
+				}
+			}
+			if (session.containsAttribute(SERIALIZED_PEER)) {
+				buf = IoBuffer.allocate(256).setAutoExpand(true);
+				buf.putObject(message);
+			} else {
+				if (!(message instanceof Packet))
+					throw new ProtocolEncoderException("Not a packet: "
+							+ message);
+				Packet packet = (Packet) message;
+				buf = IoBuffer.allocate(4 + sizeHint(packet)).setAutoExpand(
+						true);
+				buf.putInt(0);
+				buf.put(VERSION);
+				putVarint(buf, packet.getMessageType());
+				putString(buf, packet.getVin());
+				putFields(buf, packet);
+				buf.putInt(0, buf.position() - 4);
+			}
+			buf.flip();
+			out.write(buf);
+		}
+
+		private static void putFields(IoBuffer buf, Packet packet)
+				throws ProtocolEncoderException {
+			switch (packet.getMessageType()) {
+			case MessageType.INIT:
+			case DEBUG:
+				break;
+			case MessageType.INIT2:
+				Init2Packet init2 = (Init2Packet) packet;
+				buf.put((byte) (init2.is_simulator ? 1 : 0));
+				putStrings(buf, init2.suites);
+				break;
+			case MessageType.INSTALL_ACK:
+				InstallAckPacket installAck = (InstallAckPacket) packet;
+				putInt(buf, installAck.getAppId());
+				putString(buf, installAck.getPluginName());
+				break;
+			case MessageType.UNINSTALL_ACK:
+				putString(buf, ((UninstallAckPacket) packet).getPluginName());
+				break;
+			case MessageType.RESTORE_ACK:
+				putString(buf, ((RestoreAckPacket) packet).getPluginName());
+				break;
+			case MessageType.INSTALL_LINUX_ACK:
+				putString(buf, ((InstallLinuxAckPacket) packet).getPluginName());
+				break;
+			case MessageType.INSTALL:
+				putInstallData(buf,
+						((InstallPacket) packet).getInstallPacketDataList());
+				break;
+			case MessageType.RESTORE:
+				putInstallData(buf,
+						((RestorePacket) packet).getInstallMessageDataList());
+				break;
+			case MessageType.UNINSTALL:
+				ArrayList<UninstallPacketData> uninstalls = ((UninstallPacket) packet)
+						.getUninstallPacketDataList();
+				putSize(buf, uninstalls == null ? -1 : uninstalls.size());
+				if (uninstalls != null) {
+					for (UninstallPacketData data : uninstalls) {
+						putInt(buf, data.getSendingPortID());
+						putInt(buf, data.getCallbackPortID());
+						putInt(buf, data.getReference());
+						putString(buf, data.getPluginName());
+					}
+				}
+				break;
+			case MessageType.PINGCAR:
+				PingcarPacket ping = (PingcarPacket) packet;
+				putInt(buf, ping.type);
+				putInt(buf, ping.val);
+				putString(buf, ping.msg);
+				break;
+			default:
+				throw new ProtocolEncoderException("No encoding for type "
+						+ packet.getMessageType());
+			}
+		}
+
+		private static void putInstallData(IoBuffer buf,
+				ArrayList<InstallPacketData> list) {
+			putSize(buf, list == null ? -1 : list.size());
+			if (list == null)
+				return;
+			for (InstallPacketData data : list) {
+				putInt(buf, data.getAppId());
+				putString(buf, data.getPluginName());
+				putInt(buf, data.getSendingPortID());
+				putInt(buf, data.getCallbackPortID());
+				putInt(buf, data.getReference());
+
+				HashMap<String, Integer> context = data.getPortInitialContext();
+				putSize(buf, context == null ? -1 : context.size());
+				if (context != null) {
+					for (Entry<String, Integer> entry : context.entrySet()) {
+						putString(buf, entry.getKey());
+						putInt(buf, entry.getValue());
+					}
+				}
+
+				ArrayList<LinkContextEntry> links = data.getPortLinkingContext();
+				putSize(buf, links == null ? -1 : links.size());
+				if (links != null) {
+					for (LinkContextEntry link : links) {
+						putInt(buf, link.getFromPortId());
+						putInt(buf, link.getToPortId());
+						putInt(buf, link.getRemotePortId());
+					}
+				}
+
+				putString(buf, data.getExecutablePluginName());
+				putBytes(buf, data.getBinaryFile());
+			}
+			for (InstallPacketData data : list)
+				putString(buf, data.getSuiteHash());
+			for (InstallPacketData data : list)
+				putString(buf, data.getBaseHash());
+		}
+
+		// Room for the plugins, so that the buffer is not grown while they
+		// are copied in
+		private static int sizeHint(Packet packet) {
+			ArrayList<InstallPacketData> list = null;
+			if (packet instanceof InstallPacket)
+				list = ((InstallPacket) packet).getInstallPacketDataList();
+			else if (packet instanceof RestorePacket)
+				list = ((RestorePacket) packet).getInstallMessageDataList();
+			int size = 256;
+			if (list != null) {
+				for (InstallPacketData data : list) {
+					size += 256;
+					if (data.getBinaryFile() != null)
+						size += data.getBinaryFile().length;
+				}
+			}
+			return size;
+		}
+	}
+
+	private static class PacketDecoder extends CumulativeProtocolDecoder {
+
+		protected boolean doDecode(IoSession session, IoBuffer in,
+				ProtocolDecoderOutput out) throws Exception {
+			if (!in.prefixedDataAvailable(4, MAX_FRAME_SIZE))
+				return false;
+
+			if (in.get(in.position() + 4) == SERIALIZED) {
+				session.setAttribute(SERIALIZED_PEER, Boolean.TRUE);
+				out.write(in.getObject(PacketCodecFactory.class
+						.getClassLoader()));
+				return true;
+			}
+
+			int size = in.getInt();
+			int end = in.position() + size;
+			int limit = in.limit();
+			in.limit(end);
+			try {
+				byte version = in.get();
+				if (version != VERSION)
+					throw new ProtocolDecoderException(
+							"Unsupported packet version " + version);
+				int messageType = getVarint(in);
+				String vin = getString(in);
+				out.write(getPacket(in, messageType, vin));
+			} finally {
+				in.limit(limit);
+				in.position(end);
+			}
+			return true;
+		}
+
+		private Packet getPacket(IoBuffer in, int messageType, String vin)
+				throws ProtocolDecoderException {
+			switch (messageType) {
+			case MessageType.INIT:
+				return new InitPacket(vin);
+			case DEBUG:
+				return new DebugPacket(vin);
+			case MessageType.INIT2:
+				Init2Packet init2 = new Init2Packet(vin);
+				init2.is_simulator = in.get() != 0;
+				if (in.hasRemaining())
+					init2.suites = getStrings(in);
+				return init2;
+			case MessageType.INSTALL_ACK:
+				int appId = getInt(in);
+				return new InstallAckPacket(vin, appId, getString(in));
+			case MessageType.UNINSTALL_ACK:
+				return new UninstallAckPacket(vin, getString(in));
+			case MessageType.RESTORE_ACK:
+				return new RestoreAckPacket(vin, getString(in));
+			case MessageType.INSTALL_LINUX_ACK:
+				return new InstallLinuxAckPacket(vin, getString(in));
+			case MessageType.INSTALL:
+				return new InstallPacket(vin, getInstallData(in));
+			case MessageType.RESTORE:
+				return new RestorePacket(vin, getInstallData(in));
+			case MessageType.UNINSTALL:
+				ArrayList<UninstallPacketData> uninstalls = null;
+				int count = getSize(in);
+				if (count >= 0) {
+					uninstalls = new ArrayList<UninstallPacketData>(count);
+					for (int i = 0; i < count; i++) {
+						int sendingPortID = getInt(in);
+						int callbackPortID = getInt(in);
+						int reference = getInt(in);
+						uninstalls.add(new UninstallPacketData(sendingPortID,
+								callbackPortID, reference, getString(in)));
+					}
+				}
+				return new UninstallPacket(vin, uninstalls);
+			case MessageType.PINGCAR:
+				int type = getInt(in);
+				PingcarPacket ping = new PingcarPacket(vin, getInt(in));
+				ping.type = type;
+				ping.msg = getString(in);
+				return ping;
+			default:
+				throw new ProtocolDecoderException("Unknown packet type "
+						+ messageType);
+			}
+		}
+
+		private ArrayList<InstallPacketData> getInstallData(IoBuffer in) {
+			int count = getSize(in);
+			if (count < 0)
+				return null;
+			ArrayList<InstallPacketData> list = new ArrayList<InstallPacketData>(
+					count);
+			for (int i = 0; i < count; i++) {
+				int appId = getInt(in);
+				String pluginName = getString(in);
+				int sendingPortID = getInt(in);
+				int callbackPortID = getInt(in);
+				int reference = getInt(in);
+
+				HashMap<String, Integer> context = null;
+				int contextSize = getSize(in);
+				if (contextSize >= 0) {
+					context = new HashMap<String, Integer>();
+					for (int j = 0; j < contextSize; j++) {
+						String key = getString(in);
+						context.put(key, getInt(in));
+					}
+				}
+
+				ArrayList<LinkContextEntry> links = null;
+				int linkCount = getSize(in);
+				if (linkCount >= 0) {
+					links = new ArrayList<LinkContextEntry>(linkCount);
+					for (int j = 0; j < linkCount; j++) {
+						links.add(new LinkContextEntry(getInt(in), getInt(in),
+								getInt(in)));
+					}
+				}
+
+				String executablePluginName = getString(in);
+				byte[] binaryFile = getBytes(in);
+				list.add(new InstallPacketData(appId, pluginName,
+						sendingPortID, callbackPortID, reference, context,
+						links, executablePluginName, binaryFile));
+			}
+			if (in.hasRemaining()) {
+				for (InstallPacketData data : list)
+					data.setSuiteHash(getString(in));
+			}
+			if (in.hasRemaining()) {
+				for (InstallPacketData data : list)
+					data.setBaseHash(getString(in));
+			}
+			return list;
+		}
+	}
+
+	private static void putVarint(IoBuffer buf, int value) {
+		while ((value & ~0x7F) != 0) {
+			buf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+
+	private static int getVarint(IoBuffer in) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = in.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		return value;
+	}
+
+	private static void putInt(IoBuffer buf, int value) {
+		putVarint(buf, (value << 1) ^ (value >> 31));
+	}
+
+	private static int getInt(IoBuffer in) {
+		int value = getVarint(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	// -1 for null
+	private static void putSize(IoBuffer buf, int size) {
+		putVarint(buf, size + 1);
+	}
+
+	private static int getSize(IoBuffer in) {
+		return getVarint(in) - 1;
+	}
+
+	private static void putString(IoBuffer buf, String str) {
+		putBytes(buf, str == null ? null : str.getBytes(UTF8));
+	}
+
+	private static String getString(IoBuffer in) {
+		byte[] bytes = getBytes(in);
+		return bytes == null ? null : new String(bytes, UTF8);
+	}
+
+	private static void putStrings(IoBuffer buf, ArrayList<String> list) {
+		putSize(buf, list == null ? -1 : list.size());
+		if (list != null) {
+			for (String str : list)
+				putString(buf, str);
+		}
+	}
+
+	private static ArrayList<String> getStrings(IoBuffer in) {
+		int count = getSize(in);
+		if (count < 0)
+			return null;
+		ArrayList<String> list = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++)
+			list.add(getString(in));
+		return list;
+	}
+
+	private static void putBytes(IoBuffer buf, byte[] bytes) {
+		putSize(buf, bytes == null ? -1 : bytes.length);
+		if (bytes != null)
+			buf.put(bytes);
+	}
+
+	private static byte[] getBytes(IoBuffer in) {
+		int len = getSize(in);
+		if (len < 0)
+			return null;
+		byte[] bytes = new byte[len];
+		in.get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,161 @@
+package mina;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * The ACKs the server waits for after sending an install or uninstall to a
+ * vehicle. Sending registers a Group with one ACK per plugin, and an ACK
+ * coming in completes its plugin in the group, found by kind, VIN,
+ * application id and plugin name in one lookup. INSTALL_LINUX_ACK and
+ * UNINSTALL_ACK do not carry the application id; for them it is that of
+ * the application last sent to the vehicle with a plugin of that name. The
+ * state of an application on a vehicle is found by VIN and application id,
+ * also in one lookup, and can be waited for.
+ *
+ * A group that is not complete TIMEOUT ms after it was sent has timed out.
+ * Groups are forgotten KEEP ms after that, or when the same application is
+ * sent to the vehicle again.
+ */
+public class Acks {
+    // INSTALL_LINUX_ACK: the ECM has the plugin
+    public static final String LINUX = "linux";
+    // INSTALL_ACK: the plugin is installed on its ECU
+    public static final String INSTALLED = "installed";
+    // UNINSTALL_ACK
+    public static final String UNINSTALLED = "uninstalled";
+
+    public static final String PENDING = "pending";
+    public static final String DONE = "done";
+    public static final String TIMED_OUT = "timed out";
+
+    private static final String[] KINDS = {LINUX, INSTALLED, UNINSTALLED};
+
+    private static final long TIMEOUT = 10 * 60 * 1000;
+    private static final long KEEP = 60 * 60 * 1000;
+
+    public static class Group {
+	private final long deadline = System.currentTimeMillis() + TIMEOUT;
+	// plugins not acknowledged yet; guarded by this
+	private int waiting;
+
+	private synchronized void ack() {
+	    if (waiting > 0 && --waiting == 0)
+		notifyAll();
+	}
+
+	public synchronized String getState() {
+	    if (waiting == 0)
+		return DONE;
+	    return System.currentTimeMillis() > deadline ? TIMED_OUT : PENDING;
+	}
+
+	// Waits until the group is complete or has timed out, or until the
+	// time until (in ms); returns false if interrupted
+	public synchronized boolean await(long until) {
+	    long end = Math.min(until, deadline);
+	    long now;
+	    while (waiting > 0 && (now = System.currentTimeMillis()) < end) {
+		try {
+		    wait(end - now);
+		} catch (InterruptedException e) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+    }
+
+    // key: kind/vin/appId/plugin, value: the group waiting for that ACK
+    private ConcurrentHashMap<String, Group> plugins =
+	new ConcurrentHashMap<String, Group>();
+    // key: kind/vin/plugin, value: the application last sent with it
+    private ConcurrentHashMap<String, Integer> apps =
+	new ConcurrentHashMap<String, Integer>();
+    // key: vin/appId/kind
+    private ConcurrentHashMap<String, Group> groups =
+	new ConcurrentHashMap<String, Group>();
+
+    // Called before the packet is sent
+    public Group expect(String kind, String vin, int appId,
+			List<String> pluginNames) {
+	sweep();
+	Group g = new Group();
+	g.waiting = pluginNames.size();
+	groups.put(vin + "/" + appId + "/" + kind, g);
+	for (String plugin : pluginNames) {
+	    plugins.put(kind + "/" + vin + "/" + appId + "/" + plugin, g);
+	    apps.put(kind + "/" + vin + "/" + plugin, appId);
+	}
+	return g;
+    }
+
+    // Returns false if no ACK was expected for the plugin
+    public boolean ack(String kind, String vin, int appId, String pluginName) {
+	Group g = plugins.remove(kind + "/" + vin + "/" + appId + "/"
+				 + pluginName);
+	if (g == null)
+	    return false;
+	g.ack();
+	return true;
+    }
+
+    // For an ACK without the application id: the application is the one
+    // last sent to the vehicle with the plugin
+    public boolean ack(String kind, String vin, String pluginName) {
+	Integer appId = apps.get(kind + "/" + vin + "/" + pluginName);
+	if (appId == null)
+	    return false;
+	return ack(kind, vin, appId, pluginName);
+    }
+
+    // The last install or uninstall of the application on the vehicle, or
+    // null if there was none
+    public Group get(String kind, String vin, int appId) {
+	return groups.get(vin + "/" + appId + "/" + kind);
+    }
+
+    // All the groups of the application on the vehicles, that is, for each
+    // vehicle in order, the group of each kind or null
+    public List<Group> get(String [] vins, int appId) {
+	List<Group> list = new ArrayList<Group>();
+	for (String vin : vins) {
+	    for (String kind : KINDS)
+		list.add(get(kind, vin, appId));
+	}
+	return list;
+    }
+
+    public static String[] kinds() {
+	return KINDS.clone();
+    }
+
+    public String getStats() {
+	return "acks groups " + groups.size() + ", plugins waiting "
+	    + plugins.size();
+    }
+
+    private void sweep() {
+	long now = System.currentTimeMillis();
+	for (Iterator<Group> it = groups.values().iterator(); it.hasNext(); ) {
+	    if (it.next().deadline + KEEP < now)
+		it.remove();
+	}
+	for (Iterator<Group> it = plugins.values().iterator(); it.hasNext(); ) {
+	    if (it.next().deadline < now)
+		it.remove();
+	}
+	// kind and VIN have no '/', the plugin name may
+	for (Iterator<Map.Entry<String, Integer>> it = apps.entrySet().iterator();
+	     it.hasNext(); ) {
+	    Map.Entry<String, Integer> e = it.next();
+	    String[] k = e.getKey().split("/", 3);
+	    if (!plugins.containsKey(k[0] + "/" + k[1] + "/" + e.getValue()
+				     + "/" + k[2]))
+		it.remove();
+	}
+    }
+}
@@ -0,0 +1,208 @@
+package mina;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import messages.PingcarPacket;
+
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.IoSession;
+
+import utils.PropertyAPI;
+
+/*
+ * The vehicles that are connected, by VIN, and a check that they are still
+ * there.
+ *
+ * Each vehicle is pinged when nothing has been heard from it for
+ * ping_interval seconds. A vehicle that answers pings is dropped when
+ * nothing has been heard from it for IDLE_PINGS intervals; one that does
+ * not (older cars) is dropped when a ping cannot be written.
+ *
+ * The checks are kept in a hashed timing wheel of WHEEL slots of TICK ms,
+ * turned by one thread, so thousands of sessions cost one thread and a
+ * few objects each. A check further away than one turn of the wheel waits
+ * for its round. Sessions are added to the wheel through a queue by the
+ * thread that turns it, and closed sessions are dropped from their slot
+ * when it comes round.
+ */
+public class Presence implements Runnable {
+    public static final int PING = 45;
+    public static final int PONG = 46;
+
+    private static final int TICK = 1000;
+    private static final int WHEEL = 512;
+    private static final int DEFAULT_PING_INTERVAL = 60;
+    private static final int IDLE_PINGS = 3;
+
+    private static final String ANSWERS = "answersPing";
+
+    private static class Check {
+	IoSession session;
+	String vin;
+	// turns of the wheel left before the check is due
+	int rounds;
+	WriteFuture ping;
+    }
+
+    // key: VIN
+    private final ConcurrentHashMap<String, IoSession> vehicles =
+	new ConcurrentHashMap<String, IoSession>();
+
+    private final ConcurrentLinkedQueue<Check> added =
+	new ConcurrentLinkedQueue<Check>();
+    // only used by the thread turning the wheel
+    private final List<List<Check>> wheel = new ArrayList<List<Check>>(WHEEL);
+    private long tick;
+
+    private long pingInterval;
+    private long idleTimeout;
+
+    private volatile long pings;
+    private volatile long dropped;
+
+    public Presence() {
+	int s = DEFAULT_PING_INTERVAL;
+	String p = PropertyAPI.getInstance().getProperty("ping_interval");
+	if (p != null)
+	    s = Integer.parseInt(p.trim());
+	pingInterval = s * 1000L;
+	idleTimeout = IDLE_PINGS * pingInterval;
+	for (int i = 0; i < WHEEL; i++)
+	    wheel.add(new ArrayList<Check>());
+    }
+
+    public void start() {
+	Thread thread = new Thread(this, "Presence");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    // Returns the session the vehicle had before, if any
+    public IoSession register(String vin, IoSession session) {
+	IoSession old = vehicles.put(vin, session);
+	if (old != session) {
+	    Check c = new Check();
+	    c.session = session;
+	    c.vin = vin;
+	    added.add(c);
+	}
+	return old;
+    }
+
+    // Only if the vehicle has not connected again with another session
+    public void unregister(String vin, IoSession session) {
+	if (vin != null)
+	    vehicles.remove(vin, session);
+    }
+
+    public IoSession get(String vin) {
+	return vehicles.get(vin);
+    }
+
+    // A vehicle that answers a ping can be dropped when it stops answering
+    public void pong(IoSession session) {
+	session.setAttribute(ANSWERS, Boolean.TRUE);
+    }
+
+    public int size() {
+	return vehicles.size();
+    }
+
+    public String getStats() {
+	return "presence vehicles " + vehicles.size() + ", pings " + pings
+	    + ", dropped " + dropped;
+    }
+
+    public void run() {
+	long next = System.currentTimeMillis() + TICK;
+	while (true) {
+	    try {
+		long wait = next - System.currentTimeMillis();
+		if (wait > 0)
+		    Thread.sleep(wait);
+	    } catch (InterruptedException e) {
+		return;
+	    }
+	    next += TICK;
+
+	    List<Check> slot = wheel.get((int) (tick % WHEEL));
+	    ArrayList<Check> due = new ArrayList<Check>();
+	    for (Iterator<Check> it = slot.iterator(); it.hasNext(); ) {
+		Check c = it.next();
+		if (c.rounds > 0) {
+		    c.rounds--;
+		} else {
+		    it.remove();
+		    due.add(c);
+		}
+	    }
+	    tick++;
+
+	    Check c;
+	    while ((c = added.poll()) != null)
+		schedule(c, pingInterval);
+
+	    for (Check d : due) {
+		try {
+		    long delay = check(d);
+		    if (delay > 0)
+			schedule(d, delay);
+		} catch (RuntimeException e) {
+		    e.printStackTrace();
+		}
+	    }
+	}
+    }
+
+    // Called after tick has moved on to the next slot
+    private void schedule(Check c, long delay) {
+	long ticks = Math.max(1, (delay + TICK - 1) / TICK);
+	c.rounds = (int) ((ticks - 1) / WHEEL);
+	wheel.get((int) ((tick + ticks - 1) % WHEEL)).add(c);
+    }
+
+    // Returns when to check the session again, or 0 if it is gone
+    private long check(Check c) {
+	IoSession session = c.session;
+	if (!session.isConnected() || vehicles.get(c.vin) != session)
+	    return 0;
+
+	long now = System.currentTimeMillis();
+	long heard = Math.max(session.getLastReadTime(),
+			      session.getCreationTime());
+
+	if (c.ping != null && c.ping.isDone() && !c.ping.isWritten()) {
+	    drop(c, "ping could not be written");
+	    return 0;
+	}
+	if (c.ping != null && !c.ping.isDone() && now - heard > idleTimeout) {
+	    drop(c, "ping not written in " + (now - heard) + " ms");
+	    return 0;
+	}
+	if (session.getAttribute(ANSWERS) != null && now - heard > idleTimeout) {
+	    drop(c, "not heard from in " + (now - heard) + " ms");
+	    return 0;
+	}
+
+	if (now - heard >= pingInterval) {
+	    PingcarPacket ping = new PingcarPacket(c.vin, 0);
+	    ping.type = PING;
+	    ping.msg = "ping";
+	    c.ping = session.write(ping);
+	    pings++;
+	    return pingInterval;
+	}
+	return pingInterval - (now - heard);
+    }
+
+    private void drop(Check c, String why) {
+	System.out.println("Vehicle " + c.vin + " dropped: " + why);
+	dropped++;
+	unregister(c.vin, c.session);
+	c.session.close(true);
+    }
+}
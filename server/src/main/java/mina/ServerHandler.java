@@ -1,16 +1,17 @@
 package mina;
 
 import service.CallMySql;
+import service.Rollout;
+import service.SuiteHashes;
+
+import java.io.IOException;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
 import java.net.InetSocketAddress;
@@ -29,7 +30,6 @@ import messages.UninstallAckPacket;
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.core.session.IdleStatus;
-import org.apache.mina.core.session.IoSessionConfig;
 import org.apache.mina.filter.logging.MdcInjectionFilter;
 
 import cache.Cache;
@@ -37,54 +37,32 @@ import cache.VehiclePluginRecord;
 
 public class ServerHandler extends IoHandlerAdapter {
 	
-    private class MessageLoop implements Runnable {
-	public IoSession session;
-	public void run() {
-	    while (true) {
-		
-		try {
-                    Thread.sleep(60000*15);
-		} catch (InterruptedException e) {
-		}
-
-		PingcarPacket pingcarPacket = new PingcarPacket("vin", 0);
-		pingcarPacket.type = 45;
-		pingcarPacket.msg = "ping";
-		session.write(pingcarPacket);
-	    }
-	}
-    }
-
-    // session sets
-    private final Set<IoSession> sessions = Collections  
-	.synchronizedSet(new HashSet<IoSession>());  
-    // vehicle sets
-    private final static Map<String, IoSession> vehicles = Collections.
-	synchronizedMap(new HashMap<String, IoSession>());
+    // vehicles by VIN, pinged and dropped when gone, see Presence
+    private final static Presence vehicles = new Presence();
     
-    private ArrayList<String> ackMessages = new ArrayList<String>();
+    // the ACKs waited for, see Acks
+    private final static Acks acks = new Acks();
 	
     private CallMySql mysql = new CallMySql();
 
+    private VehicleUpdates vehicleUpdates = new VehicleUpdates(mysql);
+
+    private static final String SUITES = "suites";
+
+    public ServerHandler() {
+	vehicles.start();
+	vehicleUpdates.start();
+    }
+
     public void sessionClosed(IoSession session) {
 	String vin = (String) session.getAttribute("vehicle");
-	vehicles.remove(vin);
-	sessions.remove(session);
+	vehicles.unregister(vin, session);
 	session.close(false);
 	System.out.println("Vehicle " + vin + " leaves the connection");
     }
 
     public void sessionCreated(IoSession session) {
 	System.out.println("Session created");
-	IoSessionConfig sessionConfig=session.getConfig();
-
-	if (false) {
-	    MessageLoop rb = new MessageLoop();
-	    rb.session = session;
-	    Thread t = new Thread(rb);
-	
-	    t.start();
-	}
     }
 
     public void sessionIdle(IoSession session, IdleStatus status) {
@@ -116,24 +94,18 @@ public class ServerHandler extends IoHandlerAdapter {
 		InitPacket initPackageMessage = (InitPacket) packageMessage;
 		vin = initPackageMessage.getVin();
 
-		    sessions.add(session);
 		    session.setAttribute("vehicle", vin);
 		    MdcInjectionFilter.setProperty(session, "vehicle", vin);
 				
 		    is_sim = "0";
 		    MdcInjectionFilter.setProperty(session, "is_sim", is_sim);
 
-		    vehicles.put(vin, session);
+		    vehicles.register(vin, session);
 		    System.out.println("Vehicle " + vin + " joins the connection (simulator " + is_sim + ")");
 
 		    System.out.println("from " + inetAddress.getHostAddress());
 
-		    String q11 = "update Vehicle set simulator=" + is_sim +
-			" where vin = '" + vin + "'";
-		    int rows2 = mysql.update(q11);
-		    if (rows2 == 0) {
-			System.out.println("unknown car");
-		    }
+		    vehicleUpdates.simulator(vin, Integer.parseInt(is_sim));
 		break;
 	    case MessageType.INIT2:
 		Init2Packet init2PackageMessage = (Init2Packet) packageMessage;
@@ -141,7 +113,7 @@ public class ServerHandler extends IoHandlerAdapter {
 
 		// This wasn't a good idea: it may well happen that a car
 		// is restarted but the server doesn't notice it
-		if (false && vehicles.containsKey(vin)) {
+		if (false && vehicles.get(vin) != null) {
 		    System.out.println("Vehicle " + vin + " tries to connect again - telling it to go away");
 
 		    PingcarPacket pingcarPacket = new PingcarPacket(vin, 0);
@@ -154,7 +126,6 @@ public class ServerHandler extends IoHandlerAdapter {
 		    //session.close(false);
 		} else {
 
-		    sessions.add(session);
 		    session.setAttribute("vehicle", vin);
 		    MdcInjectionFilter.setProperty(session, "vehicle", vin);
 				
@@ -162,9 +133,18 @@ public class ServerHandler extends IoHandlerAdapter {
 			is_sim = "1";
 		    else
 			is_sim = "0";
+
+		    // Only a car that sends its suites understands an
+		    // INSTALL without them
+		    if (init2PackageMessage.suites != null) {
+			Set<String> suites = Collections.synchronizedSet
+			    (new HashSet<String>(init2PackageMessage.suites));
+			session.setAttribute(SUITES, suites);
+			System.out.println(suites.size() + " suites stored in " + vin);
+		    }
 		    MdcInjectionFilter.setProperty(session, "is_sim", is_sim);
 
-		    vehicles.put(vin, session);
+		    vehicles.register(vin, session);
 		    System.out.println("Vehicle " + vin + " joins the connection (simulator " + is_sim + ")");
 
 		    DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
@@ -172,14 +152,14 @@ public class ServerHandler extends IoHandlerAdapter {
 
 		    System.out.println("from " + inetAddress.getHostAddress() + " at " + dateFormat.format(date));
 
-		    String q1 = "update Vehicle set simulator=" + is_sim +
-			" where vin = '" + vin + "'";
-		    int rows = mysql.update(q1);
-		    if (rows == 0) {
-			System.out.println("unknown car");
-		    }
+		    vehicleUpdates.simulator(vin, Integer.parseInt(is_sim));
 		}
 		break;
+	    case MessageType.PINGCAR:
+		PingcarPacket pingcarPacket = (PingcarPacket) packageMessage;
+		if (pingcarPacket.type == Presence.PONG)
+		    vehicles.pong(session);
+		break;
 	    case MessageType.INSTALL_LINUX_ACK:
 		InstallLinuxAckPacket installLinuxAckPacket =
 		    (InstallLinuxAckPacket) packageMessage;
@@ -187,9 +167,7 @@ public class ServerHandler extends IoHandlerAdapter {
 		pluginName = installLinuxAckPacket.getPluginName();
 		System.out.println("[VIN = "+vin+"]" + pluginName +
 				   " arrived in the Linux");
-		ackMessages.add(vin + "_" + 
-				pluginName.substring
-				(0, pluginName.lastIndexOf(".")));
+		acks.ack(Acks.LINUX, vin, pluginName);
 
 		break;
 	    case MessageType.INSTALL_ACK:
@@ -203,6 +181,7 @@ public class ServerHandler extends IoHandlerAdapter {
 				   " arrived in the Autosar");
 				
 		System.out.println("AppId:"+installAppId);
+		acks.ack(Acks.INSTALLED, vin, installAppId, pluginName);
 		VehiclePluginRecord vehiclePluginRecord =
 		    Cache.getCache().getVehiclePluginRecord
 		    (vin, installAppId, pluginName);
@@ -220,29 +199,35 @@ public class ServerHandler extends IoHandlerAdapter {
 		    System.out.println
 			("[ Fail to fetch vehicle plugin record!!!]");
 		} else {
-		    String q0 = "delete from VehiclePlugin where vin = '" +
-			vin + "' and application_id = " + installAppId;
-		    int rows0 = mysql.update(q0);
+		    String q0 = "delete from VehiclePlugin where vin = ? and application_id = ?";
+		    int rows0 = mysql.execute(q0, vin, installAppId);
 		    System.out.println("rows0 = " + rows0);
 
-		    String q1 = "insert into VehiclePlugin (vin,name,application_id,ecuId,sendingPortId,callbackPortId,location,state,executablePluginName) values ('" +
-			vin + "','" +
-			pluginName + "'," +
-			installAppId + "," +
-			vehiclePluginRecord.getEcuId() + "," +
-			vehiclePluginRecord.getSendingPortId() + "," +
-			vehiclePluginRecord.getCallbackPortId() + ",'" +
-			vehiclePluginRecord.getLocation() + "','" +
-			"installed" + "','" +
-			vehiclePluginRecord.getExecutablePluginName() + "')";
-		    int rows = mysql.update(q1);
+		    String q1 = "insert into VehiclePlugin (vin,name,application_id,ecuId,sendingPortId,callbackPortId,location,state,executablePluginName) values (?,?,?,?,?,?,?,'installed',?)";
+		    int rows = mysql.execute(q1, vin, pluginName, installAppId,
+					     vehiclePluginRecord.getEcuId(),
+					     vehiclePluginRecord.getSendingPortId(),
+					     vehiclePluginRecord.getCallbackPortId(),
+					     vehiclePluginRecord.getLocation(),
+					     vehiclePluginRecord.getExecutablePluginName());
+
+		    Set<String> suites = getSuites(session);
+		    if (suites != null) {
+			try {
+			    suites.add(SuiteHashes.get(vehiclePluginRecord.getLocation()));
+			} catch (IOException e) {
+			    System.out.println("INSTALL_ACK: " + e);
+			}
+		    }
 
 		    boolean isInstalled
 			= Cache.getCache().IsAllPluginInstalled
 			(vin, installAppId);
 		    if(isInstalled) {
-			String q2 = "select INSTALLED_APPS from Vehicle where vin = '" + vin + "'";
-			String c2 = mysql.getOne(q2);
+			Rollout.installed(vin, installAppId);
+
+			String q2 = "select INSTALLED_APPS from Vehicle where vin = ?";
+			String c2 = mysql.queryOne(q2, vin);
 
 			// check that appId is not
 			// already present
@@ -270,8 +255,8 @@ public class ServerHandler extends IoHandlerAdapter {
 			    c2 += ",";
 			    c2 += installAppId;
 			}
-			String q3 = "update Vehicle set INSTALLED_APPS = '" + c2 + "' where vin = '" + vin + "'";
-			int rows3 = mysql.update(q3);
+			String q3 = "update Vehicle set INSTALLED_APPS = ? where vin = ?";
+			int rows3 = mysql.execute(q3, c2, vin);
 		    } else {
 			System.out.println("not all installed");
 		    }
@@ -284,10 +269,10 @@ public class ServerHandler extends IoHandlerAdapter {
 		vin = uninstallAckPackage.getVin();
 		pluginName
 		    = uninstallAckPackage.getPluginName();
+		acks.ack(Acks.UNINSTALLED, vin, pluginName);
 				
-		String q4 = "delete from VehiclePlugin where vin = '" + vin +
-		    "' and name = '" + pluginName + "'";
-		int rows4 = mysql.update(q4);
+		String q4 = "delete from VehiclePlugin where vin = ? and name = ?";
+		int rows4 = mysql.execute(q4, vin, pluginName);
 		System.out.println("rows4 = " + rows4);
 
 		System.out.println("  " + vin + " " + pluginName);
@@ -332,17 +317,22 @@ public class ServerHandler extends IoHandlerAdapter {
 	}
     }
 	
-    public boolean existsAckMessage(String msg) {
-	System.out.println(ackMessages);
-	if (ackMessages.contains(msg)) {
-	    ackMessages.remove(msg);
-	    return true;
-	}
-		
-	return false;
+    public static Acks getAcks() {
+	return acks;
+    }
+
+    public static String getStats() {
+	return acks.getStats() + "\n" + vehicles.getStats();
     }
 	
     public static IoSession getSession(String vin) {
 	return vehicles.get(vin);
     }
+
+    // Hashes of the suites stored in the car, or null if the car does not
+    // say, see Init2Packet
+    @SuppressWarnings("unchecked")
+    public static Set<String> getSuites(IoSession session) {
+	return (Set<String>) session.getAttribute(SUITES);
+    }
 }
@@ -0,0 +1,86 @@
+package mina;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import service.CallMySql;
+
+/*
+ * Writes the state the vehicles report when they connect to the Vehicle
+ * table behind the I/O threads. An update only replaces the one waiting
+ * for the same VIN, and a thread of its own writes what is waiting as one
+ * batch every FLUSH_INTERVAL ms, so that when all cars connect again after
+ * a restart of the server they do not wait for the database one by one.
+ */
+public class VehicleUpdates implements Runnable {
+    private static final int FLUSH_INTERVAL = 200;
+
+    private static final String UPDATE =
+	"update Vehicle set simulator = ? where vin = ?";
+
+    private CallMySql mysql;
+
+    // key: VIN, value: simulator; guarded by this
+    private LinkedHashMap<String, Integer> pending =
+	new LinkedHashMap<String, Integer>();
+
+    private volatile long queued;
+    private volatile long written;
+    private volatile long batches;
+
+    public VehicleUpdates(CallMySql mysql) {
+	this.mysql = mysql;
+    }
+
+    public void start() {
+	Thread thread = new Thread(this, "VehicleUpdates");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    public synchronized void simulator(String vin, int simulator) {
+	pending.put(vin, simulator);
+	queued++;
+    }
+
+    public String getStats() {
+	return "vehicle updates queued " + queued + ", written " + written
+	    + " in " + batches + " batches";
+    }
+
+    public void run() {
+	while (true) {
+	    try {
+		Thread.sleep(FLUSH_INTERVAL);
+	    } catch (InterruptedException e) {
+		return;
+	    }
+	    try {
+		flush();
+	    } catch (RuntimeException e) {
+		e.printStackTrace();
+	    }
+	}
+    }
+
+    private void flush() {
+	List<Object []> rows;
+	synchronized (this) {
+	    if (pending.isEmpty())
+		return;
+	    rows = new ArrayList<Object []>(pending.size());
+	    for (Map.Entry<String, Integer> e : pending.entrySet())
+		rows.add(new Object [] {e.getValue(), e.getKey()});
+	    pending.clear();
+	}
+
+	int n = mysql.executeBatch(UPDATE, rows);
+	written += rows.size();
+	batches++;
+	if (n < rows.size())
+	    System.out.println((rows.size() - n) + " of " + rows.size()
+			       + " connecting cars are unknown");
+    }
+}
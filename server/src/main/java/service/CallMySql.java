@@ -1,34 +1,23 @@
 package service;
 
+import java.util.ArrayList;
 import java.util.List;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 
-import utils.PropertyAPI;
+import service.ConnectionPool.PooledConnection;
 
 public class CallMySql {
-     public Connection con = null;
-     public Statement st = null;
+    // rows sent in one round trip by executeBatch
+    private static final int BATCH_SIZE = 500;
 
-    private String url = PropertyAPI.getInstance().getProperty("db_location");
-    private String user = PropertyAPI.getInstance().getProperty("db_user");
-    private String password = PropertyAPI.getInstance().getProperty("db_password");
+    private ConnectionPool pool = ConnectionPool.getInstance();
 
      public CallMySql() {
-
-	 try {
-	     con = DriverManager.getConnection(url, user, password);
-	     st = con.createStatement();
-
-	 } catch (SQLException ex) {
-	     System.out.println("DB ERROR 0");
-	     System.out.println(ex.getMessage());
-	 }
      }
 
     public String getOne(String query) {
@@ -36,21 +25,14 @@ public class CallMySql {
     }
 
     public String getOne(String query, Boolean warn) {
-	
-	 ResultSet rs = null;
 
-	 checkdb();
+	 PooledConnection pc = null;
+	 ResultSet rs = null;
 
 	 try {
-	     //con = DriverManager.getConnection(url, user, password);
-	     //st = con.createStatement();
-	     rs = st.executeQuery(query);
-
-	     if (rs.next()) {
-		 return rs.getString(1);
-	     } else {
-		 return "none";
-	     }
+	     pc = pool.borrow();
+	     rs = pc.getStatement().executeQuery(query);
+	     return one(rs, query, warn);
 
 	 } catch (SQLException ex) {
 	     System.out.println("DB ERROR for " + query);
@@ -59,20 +41,8 @@ public class CallMySql {
 	     //lgr.log(Level.SEVERE, ex.getMessage(), ex);
 
 	 } finally {
-	     try {
-		 if (rs != null) {
-		     if (rs.next() && warn) {
-			 System.out.println("DB WARNING; more than one solution for: " + query);
-		     }
-		     rs.close();
-		 }
-
-	     } catch (SQLException ex) {
-		 System.out.println("DB ERROR for " + query);
-		 System.out.println(ex.getMessage());
-		 //Logger lgr = Logger.getLogger(Test.class.getName());
-		 //lgr.log(Level.WARNING, ex.getMessage(), ex);
-	     }
+	     close(rs, query);
+	     pool.release(pc);
 	 }
 	 return "error";
 
@@ -80,10 +50,11 @@ public class CallMySql {
 
      public int update(String query) {
 
-	 checkdb();
+	 PooledConnection pc = null;
 
 	 try {
-	     int count = st.executeUpdate(query);
+	     pc = pool.borrow();
+	     int count = pc.getStatement().executeUpdate(query);
 
 	     return count;
 
@@ -93,31 +64,24 @@ public class CallMySql {
 	     //Logger lgr = Logger.getLogger(Test.class.getName());
 	     //lgr.log(Level.SEVERE, ex.getMessage(), ex);
 
+	 } finally {
+	     pool.release(pc);
+	     // the lists made from the table written are stale now
+	     ReadModel.written(query);
 	 }
 	 return 0;
 
      }
 
      public String [] getOneSet(String query) {
-	
-	 checkdb();
 
+	 PooledConnection pc = null;
 	 ResultSet rs = null;
 
 	 try {
-	     rs = st.executeQuery(query);
-
-	     ResultSetMetaData rsmd = rs.getMetaData();
-	     int columnsNumber = rsmd.getColumnCount();
-
-	     if (rs.next()) {
-		 String [] res = new String[columnsNumber];
-		 for (Integer i = 0; i < columnsNumber; i++)
-		     res[i] = rs.getString(i+1);
-		 return res;
-	     } else {
-		 return null;
-	     }
+	     pc = pool.borrow();
+	     rs = pc.getStatement().executeQuery(query);
+	     return oneSet(rs, query);
 
 	 } catch (SQLException ex) {
 	     System.out.println("DB ERROR for " + query);
@@ -126,96 +90,252 @@ public class CallMySql {
 	     //lgr.log(Level.SEVERE, ex.getMessage(), ex);
 
 	 } finally {
-	     try {
-		 if (rs != null) {
-		     if (rs.next()) {
-			 System.out.println("DB WARNING; more than one solution for: " + query);
-		     }
-		     rs.close();
-		 }
+	     close(rs, query);
+	     pool.release(pc);
+	 }
+	 return null;
+
+     }
+
+     // All rows are read, and the statement closed, before the connection
+     // goes back to the pool
+     public MySqlIterator getIterator(String query) {
+
+	 PooledConnection pc = null;
+	 Statement st = null;
+
+	 try {
+	     pc = pool.borrow();
+	     st = pc.getConnection().createStatement();
+	     return new MySqlIterator(rows(st.executeQuery(query)));
 
-	     } catch (SQLException ex) {
-		 System.out.println("DB ERROR for " + query);
-		 System.out.println(ex.getMessage());
-		 //Logger lgr = Logger.getLogger(Test.class.getName());
-		 //lgr.log(Level.WARNING, ex.getMessage(), ex);
+	 } catch (SQLException ex) {
+	     System.out.println("DB ERROR for " + query);
+	     System.out.println(ex.getMessage());
+	     //Logger lgr = Logger.getLogger(Test.class.getName());
+	     //lgr.log(Level.SEVERE, ex.getMessage(), ex);
+	 } finally {
+	     if (st != null) {
+		 try {
+		     // closes the result set too
+		     st.close();
+		 } catch (SQLException ex) {
+		     System.out.println("DB ERROR for " + query);
+		     System.out.println(ex.getMessage());
+		 }
 	     }
+	     pool.release(pc);
 	 }
 	 return null;
 
      }
 
-     public ResultSet getResults(String query) {
-	
-	 checkdb();
+    /*
+     * The methods below take the query with ? for each parameter and
+     * run it as a prepared statement, which is cached on the connection
+     * for the next call with the same query.
+     */
+
+    public String queryOne(String sql, Object... params) {
 
+	 PooledConnection pc = null;
 	 ResultSet rs = null;
 
 	 try {
-	     // we need a local Statement, otherwise we are not
-	     // reentrant.
-	     Statement st = con.createStatement();
+	     pc = pool.borrow();
+	     rs = prepare(pc, sql, params).executeQuery();
+	     return one(rs, sql, true);
 
-	     rs = st.executeQuery(query);
+	 } catch (SQLException ex) {
+	     System.out.println("DB ERROR for " + sql);
+	     System.out.println(ex.getMessage());
+
+	 } finally {
+	     close(rs, sql);
+	     pool.release(pc);
+	 }
+	 return "error";
+    }
 
-	     return rs;
+    public String [] queryOneSet(String sql, Object... params) {
+
+	 PooledConnection pc = null;
+	 ResultSet rs = null;
+
+	 try {
+	     pc = pool.borrow();
+	     rs = prepare(pc, sql, params).executeQuery();
+	     return oneSet(rs, sql);
 
 	 } catch (SQLException ex) {
-	     System.out.println("DB ERROR for " + query);
+	     System.out.println("DB ERROR for " + sql);
 	     System.out.println(ex.getMessage());
-	     //Logger lgr = Logger.getLogger(Test.class.getName());
-	     //lgr.log(Level.SEVERE, ex.getMessage(), ex);
+
+	 } finally {
+	     close(rs, sql);
+	     pool.release(pc);
 	 }
 	 return null;
+    }
 
-     }
+    // All rows of the result, or null on error
+    public List<String []> queryRows(String sql, Object... params) {
 
+	 PooledConnection pc = null;
+	 ResultSet rs = null;
 
-    private void checkdb() {
 	 try {
-	     if (!con.isValid(0)) {
+	     pc = pool.borrow();
+	     rs = prepare(pc, sql, params).executeQuery();
+	     return rows(rs);
+
+	 } catch (SQLException ex) {
+	     System.out.println("DB ERROR for " + sql);
+	     System.out.println(ex.getMessage());
+
+	 } finally {
+	     if (rs != null) {
 		 try {
-		     // do we need to close the old one?
-		     System.out.println("reopening db connection");
-		     con = DriverManager.getConnection(url, user, password);
-		     st = con.createStatement();
+		     rs.close();
 		 } catch (SQLException ex) {
-		     System.out.println("DB ERROR 0");
+		     System.out.println("DB ERROR for " + sql);
 		     System.out.println(ex.getMessage());
 		 }
 	     }
-
-	 } catch (SQLException ex) {
-	     System.out.println("db exception " + ex.getMessage());
+	     pool.release(pc);
 	 }
+	 return null;
     }
 
+    public int execute(String sql, Object... params) {
 
+	 PooledConnection pc = null;
 
-     public MySqlIterator getIterator(String query) {
-	
-	 ResultSet rs = null;
+	 try {
+	     pc = pool.borrow();
+	     return prepare(pc, sql, params).executeUpdate();
 
-	 checkdb();
+	 } catch (SQLException ex) {
+	     System.out.println("DB ERROR for " + sql);
+	     System.out.println(ex.getMessage());
 
-	 try {
-	     // we need a local Statement, otherwise we are not
-	     // reentrant.
-	     Statement st = con.createStatement();
+	 } finally {
+	     pool.release(pc);
+	     ReadModel.written(sql);
+	 }
+	 return 0;
+    }
 
-	     rs = st.executeQuery(query);
+    // Runs the statement once for each row of parameters, in round trips
+    // of up to BATCH_SIZE rows, and returns the number of rows changed
+    public int executeBatch(String sql, List<Object []> rows) {
 
-	     MySqlIterator it = new MySqlIterator(rs);
+	 if (rows.isEmpty())
+	     return 0;
 
-	     return it;
+	 PooledConnection pc = null;
+
+	 try {
+	     pc = pool.borrow();
+	     PreparedStatement ps = pc.prepare(sql);
+	     int count = 0;
+	     int batched = 0;
+	     for (Object [] params : rows) {
+		 for (int i = 0; i < params.length; i++)
+		     ps.setObject(i+1, params[i]);
+		 ps.addBatch();
+		 if (++batched == BATCH_SIZE) {
+		     count += executeBatch(ps);
+		     batched = 0;
+		 }
+	     }
+	     if (batched > 0)
+		 count += executeBatch(ps);
+	     return count;
 
 	 } catch (SQLException ex) {
-	     System.out.println("DB ERROR for " + query);
+	     System.out.println("DB ERROR for " + sql);
 	     System.out.println(ex.getMessage());
-	     //Logger lgr = Logger.getLogger(Test.class.getName());
-	     //lgr.log(Level.SEVERE, ex.getMessage(), ex);
+
+	 } finally {
+	     pool.release(pc);
+	     ReadModel.written(sql);
 	 }
-	 return null;
+	 return 0;
+    }
 
-     }
+    private int executeBatch(PreparedStatement ps) throws SQLException {
+	int count = 0;
+	for (int n : ps.executeBatch()) {
+	    if (n > 0)
+		count += n;
+	    else if (n == Statement.SUCCESS_NO_INFO)
+		count++;
+	}
+	return count;
+    }
+
+    private PreparedStatement prepare(PooledConnection pc, String sql,
+				      Object [] params) throws SQLException {
+	PreparedStatement ps = pc.prepare(sql);
+	for (int i = 0; i < params.length; i++)
+	    ps.setObject(i+1, params[i]);
+	return ps;
+    }
+
+    private List<String []> rows(ResultSet rs) throws SQLException {
+	int columnsNumber = rs.getMetaData().getColumnCount();
+	List<String []> rows = new ArrayList<String []>();
+	while (rs.next()) {
+	    String [] row = new String[columnsNumber];
+	    for (int i = 0; i < columnsNumber; i++)
+		row[i] = rs.getString(i+1);
+	    rows.add(row);
+	}
+	return rows;
+    }
+
+    private String one(ResultSet rs, String query, boolean warn)
+	throws SQLException {
+	if (rs.next()) {
+	    String res = rs.getString(1);
+	    if (rs.next() && warn) {
+		System.out.println("DB WARNING; more than one solution for: " + query);
+	    }
+	    return res;
+	} else {
+	    return "none";
+	}
+    }
+
+    private String [] oneSet(ResultSet rs, String query)
+	throws SQLException {
+	ResultSetMetaData rsmd = rs.getMetaData();
+	int columnsNumber = rsmd.getColumnCount();
+
+	if (rs.next()) {
+	    String [] res = new String[columnsNumber];
+	    for (Integer i = 0; i < columnsNumber; i++)
+		res[i] = rs.getString(i+1);
+	    if (rs.next()) {
+		System.out.println("DB WARNING; more than one solution for: " + query);
+	    }
+	    return res;
+	} else {
+	    return null;
+	}
+    }
+
+    private void close(ResultSet rs, String query) {
+	if (rs != null) {
+	    try {
+		rs.close();
+	    } catch (SQLException ex) {
+		System.out.println("DB ERROR for " + query);
+		System.out.println(ex.getMessage());
+		//Logger lgr = Logger.getLogger(Test.class.getName());
+		//lgr.log(Level.WARNING, ex.getMessage(), ex);
+	    }
+	}
+    }
 }
@@ -0,0 +1,224 @@
+package service;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import common.MopedException;
+import utils.CompressUtils;
+import utils.PropertyAPI;
+import utils.SuiteGen;
+
+/*
+ * Compiles the jars of the applications into suites, at most
+ * compile_workers at a time and with at most compile_queue compiles
+ * waiting, so that a burst of uploads does not start a builder for each.
+ *
+ * The suites are kept in a build cache, keyed by the SHA-256 of the jar,
+ * the bootstrap suite of squawk and the name of the application (the suite
+ * is named after it). A jar that has been compiled before is not compiled
+ * again, and compiles of the same jar that overlap share one build.
+ *
+ * The squawk builder still runs as a process of its own for each compile:
+ * it works in the squawk directory and keeps its state in static fields,
+ * so it cannot run in this process for several compiles at once.
+ */
+public class CompileService {
+    private static final int DEFAULT_WORKERS = 2;
+    private static final int DEFAULT_QUEUE = 16;
+
+    public static class Result {
+	public final boolean ok;
+	public final String reply;
+
+	Result(boolean ok, String reply) {
+	    this.ok = ok;
+	    this.reply = reply;
+	}
+    }
+
+    private static CompileService instance = new CompileService();
+
+    private String squawkDir;
+    private File cacheDir;
+    private SuiteGen suiteGen;
+    private ThreadPoolExecutor pool;
+
+    // key: cache key, value: the compile of that key being done
+    private ConcurrentHashMap<String, Future<Result>> running =
+	new ConcurrentHashMap<String, Future<Result>>();
+
+    private CompileService() {
+	String top = PropertyAPI.getInstance().getProperty("mopedtop");
+	squawkDir = top + "/squawk";
+	cacheDir = new File(top + "/webportal/compile-cache");
+	suiteGen = new SuiteGen(squawkDir);
+
+	int workers = intProperty("compile_workers", DEFAULT_WORKERS);
+	int queue = intProperty("compile_queue", DEFAULT_QUEUE);
+	pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.SECONDS,
+				      new ArrayBlockingQueue<Runnable>(queue));
+    }
+
+    public static CompileService getInstance() {
+	return instance;
+    }
+
+    // Compiles the jar of the application into a suite next to it, and
+    // waits for the result.
+    public Result compile(final String appname, final String jar) {
+	final String key;
+	try {
+	    key = SuiteHashes.get(jar) + "-"
+		+ SuiteHashes.get(squawkDir + "/squawk.suite") + "-" + appname;
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    return new Result(false, "compile: I/O exception");
+	}
+
+	final String dest = jar.substring(0, jar.length() - 4) + File.separator;
+	if (fromCache(key, appname, dest)) {
+	    System.out.println("compile: " + jar + " from the build cache");
+	    return new Result(true, "suite " + appname + " from the build cache\n");
+	}
+
+	FutureTask<Result> task = new FutureTask<Result>(new Callable<Result>() {
+		public Result call() {
+		    return build(key, appname, jar);
+		}
+	    });
+	Future<Result> f = running.putIfAbsent(key, task);
+	if (f == null) {
+	    f = task;
+	    try {
+		pool.execute(task);
+	    } catch (RejectedExecutionException e) {
+		running.remove(key, task);
+		return new Result(false, "compile: too many compiles waiting");
+	    }
+	} else {
+	    System.out.println("compile: " + jar + " is already being compiled");
+	}
+
+	try {
+	    return f.get();
+	} catch (InterruptedException e) {
+	    e.printStackTrace();
+	    return new Result(false, "interrupted exception");
+	} catch (ExecutionException e) {
+	    e.printStackTrace();
+	    return new Result(false, "compile: " + e.getCause());
+	} finally {
+	    running.remove(key, f);
+	}
+    }
+
+    public String getStats() {
+	return "compile active " + pool.getActiveCount() + ", waiting "
+	    + pool.getQueue().size() + ", done " + pool.getCompletedTaskCount();
+    }
+
+    private Result build(String key, String appname, String jar) {
+	CompressUtils util = new CompressUtils();
+	System.out.println("Calling unzip on " + jar);
+	String dest;
+	try {
+	    dest = util.unzip(jar);
+	} catch (MopedException e) {
+	    return new Result(false, e.getMsg());
+	}
+
+	System.out.println("Unzipped into: " + dest);
+	dest = dest.substring(0,  dest.length() - 11); //Remove "j2meclasses"
+
+	new File(dest + appname + ".suite").delete();
+
+	String reply[] = new String[1];
+	if (!suiteGen.generateSuite(dest, reply))
+	    return new Result(false, reply[0]);
+
+	try {
+	    toCache(key, appname, dest);
+	} catch (IOException e) {
+	    // the suite is there, only the next compile will not be quicker
+	    System.out.println("compile: could not cache " + key + ": " + e);
+	}
+	return new Result(true, reply[0]);
+    }
+
+    // The files the builder makes for the application are named after it:
+    // the suite and its metadata and symbols
+    private static File[] outputs(File dir, final String appname) {
+	File[] files = dir.listFiles(new FileFilter() {
+		public boolean accept(File f) {
+		    return f.isFile() && f.getName().startsWith(appname + ".");
+		}
+	    });
+	return files == null ? new File[0] : files;
+    }
+
+    private boolean fromCache(String key, String appname, String dest) {
+	File dir = new File(cacheDir, key);
+	File[] files = outputs(dir, appname);
+	if (files.length == 0)
+	    return false;
+	try {
+	    new File(dest).mkdirs();
+	    for (File f : files)
+		copy(f, new File(dest, f.getName()));
+	    dir.setLastModified(System.currentTimeMillis());
+	    return true;
+	} catch (IOException e) {
+	    System.out.println("compile: could not use cached " + key + ": " + e);
+	    return false;
+	}
+    }
+
+    // Copied under another name first, so that a half copied entry is
+    // never used
+    private void toCache(String key, String appname, String dest)
+	throws IOException {
+	File dir = new File(cacheDir, key);
+	File tmp = new File(cacheDir, key + ".tmp");
+	tmp.mkdirs();
+	for (File f : outputs(new File(dest), appname))
+	    copy(f, new File(tmp, f.getName()));
+	if (dir.exists() || !tmp.renameTo(dir))
+	    throw new IOException("could not rename " + tmp);
+    }
+
+    private static void copy(File from, File to) throws IOException {
+	InputStream is = new FileInputStream(from);
+	try {
+	    OutputStream os = new FileOutputStream(to);
+	    try {
+		byte [] buf = new byte[64 * 1024];
+		int n;
+		while ((n = is.read(buf)) > 0)
+		    os.write(buf, 0, n);
+	    } finally {
+		os.close();
+	    }
+	} finally {
+	    is.close();
+	}
+    }
+
+    private static int intProperty(String key, int def) {
+	String s = PropertyAPI.getInstance().getProperty(key);
+	return s == null ? def : Integer.parseInt(s.trim());
+    }
+}
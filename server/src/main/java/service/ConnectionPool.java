@@ -0,0 +1,138 @@
+package service;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import utils.PropertyAPI;
+
+/*
+ * Database connections shared by all CallMySql instances. Connections are
+ * opened when needed, up to db_pool_size of them, and a caller that finds
+ * them all in use waits for one to be released. Each connection keeps the
+ * statements prepared on it, so a query is only parsed the first time it
+ * runs on a connection.
+ */
+public class ConnectionPool {
+
+    private static final int DEFAULT_SIZE = 8;
+    // seconds to wait for a connection before giving up
+    private static final int BORROW_TIMEOUT = 30;
+
+    private static ConnectionPool instance = new ConnectionPool();
+
+    private String url = PropertyAPI.getInstance().getProperty("db_location");
+    private String user = PropertyAPI.getInstance().getProperty("db_user");
+    private String password = PropertyAPI.getInstance().getProperty("db_password");
+
+    private final int size;
+    private int opened = 0;
+    private final LinkedBlockingQueue<PooledConnection> idle =
+	new LinkedBlockingQueue<PooledConnection>();
+
+    public static class PooledConnection {
+	private Connection con;
+	private Statement st;
+	private HashMap<String, PreparedStatement> statements =
+	    new HashMap<String, PreparedStatement>();
+
+	private PooledConnection(Connection con) throws SQLException {
+	    this.con = con;
+	    st = con.createStatement();
+	}
+
+	public Connection getConnection() {
+	    return con;
+	}
+
+	// for queries that are built as strings
+	public Statement getStatement() {
+	    return st;
+	}
+
+	public PreparedStatement prepare(String sql) throws SQLException {
+	    PreparedStatement ps = statements.get(sql);
+	    if (ps == null) {
+		ps = con.prepareStatement(sql);
+		statements.put(sql, ps);
+	    }
+	    return ps;
+	}
+
+	private void close() {
+	    try {
+		con.close();
+	    } catch (SQLException ex) {
+		System.out.println("db exception " + ex.getMessage());
+	    }
+	}
+    }
+
+    private ConnectionPool() {
+	int n = DEFAULT_SIZE;
+	String s = PropertyAPI.getInstance().getProperty("db_pool_size");
+	if (s != null)
+	    n = Integer.parseInt(s.trim());
+	size = n;
+    }
+
+    public static ConnectionPool getInstance() {
+	return instance;
+    }
+
+    public PooledConnection borrow() throws SQLException {
+	PooledConnection pc = idle.poll();
+	if (pc == null && reserve()) {
+	    try {
+		return new PooledConnection
+		    (DriverManager.getConnection(url, user, password));
+	    } catch (SQLException ex) {
+		unreserve();
+		throw ex;
+	    }
+	}
+	if (pc == null) {
+	    try {
+		pc = idle.poll(BORROW_TIMEOUT, TimeUnit.SECONDS);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	    if (pc == null)
+		throw new SQLException("no free db connection");
+	}
+
+	if (!pc.con.isValid(1)) {
+	    System.out.println("reopening db connection");
+	    pc.close();
+	    try {
+		pc = new PooledConnection
+		    (DriverManager.getConnection(url, user, password));
+	    } catch (SQLException ex) {
+		unreserve();
+		throw ex;
+	    }
+	}
+	return pc;
+    }
+
+    public void release(PooledConnection pc) {
+	if (pc != null)
+	    idle.add(pc);
+    }
+
+    private synchronized boolean reserve() {
+	if (opened >= size)
+	    return false;
+	opened++;
+	return true;
+    }
+
+    private synchronized void unreserve() {
+	opened--;
+    }
+}
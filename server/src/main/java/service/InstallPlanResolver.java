@@ -0,0 +1,214 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.GlobalVariables;
+import messages.LinkContextEntry;
+
+/*
+ * Works out what installApp sends for an application on a given vehicle
+ * configuration: the port ids, the link contexts of each plugin and the
+ * plugin rows. This does not depend on the car, so the plan is kept per
+ * (application, vehicle configuration) and installing the same application
+ * on many cars only goes to the database for the first one.
+ *
+ * Plans are dropped when an application is uploaded or compiled. The maps
+ * in a plan are handed to every install that uses it and must not be
+ * changed.
+ */
+public class InstallPlanResolver {
+
+    public static class InstallPlan {
+	// set when the plan could not be made; the rest is then null
+	public final String error;
+	// key: port name, value: port id
+	public final HashMap<String, Integer> portInitialContext;
+	// key: plugin suite name, value: its links
+	public final HashMap<String, ArrayList<LinkContextEntry>> linkingContexts;
+	// name, ecuRef, location, fullClassName from DatabasePlugin
+	public final List<String []> plugins;
+
+	private InstallPlan(String error) {
+	    this.error = error;
+	    portInitialContext = null;
+	    linkingContexts = null;
+	    plugins = null;
+	}
+
+	private InstallPlan(HashMap<String, Integer> portInitialContext,
+			    HashMap<String, ArrayList<LinkContextEntry>> linkingContexts,
+			    List<String []> plugins) {
+	    this.error = null;
+	    this.portInitialContext = portInitialContext;
+	    this.linkingContexts = linkingContexts;
+	    this.plugins = plugins;
+	}
+    }
+
+    private CallMySql mysql;
+    // key: appId + "/" + vehicleConfigId
+    private ConcurrentHashMap<String, InstallPlan> plans =
+	new ConcurrentHashMap<String, InstallPlan>();
+
+    public InstallPlanResolver(CallMySql mysql) {
+	this.mysql = mysql;
+    }
+
+    public InstallPlan resolve(int appId, int vehicleConfigId,
+			       String vehicleConfigName) {
+	String key = appId + "/" + vehicleConfigId;
+	InstallPlan plan = plans.get(key);
+	if (plan != null)
+	    return plan;
+
+	// Holding the lock while querying keeps an invalidation from
+	// being overtaken by a plan made from the old rows.
+	synchronized (this) {
+	    plan = plans.get(key);
+	    if (plan == null) {
+		plan = build(appId, vehicleConfigName);
+		if (plan.error == null)
+		    plans.put(key, plan);
+	    }
+	}
+	return plan;
+    }
+
+    // An uploaded or recompiled application changes its own plans
+    public synchronized void invalidate(int appId) {
+	String prefix = appId + "/";
+	for (Iterator<String> it = plans.keySet().iterator(); it.hasNext(); ) {
+	    if (it.next().startsWith(prefix))
+		it.remove();
+	}
+    }
+
+    // Port ids are looked up across all applications, so new rows from an
+    // upload can change the plan of an application already installed
+    public synchronized void invalidateAll() {
+	plans.clear();
+    }
+
+    private InstallPlan build(int appId, String vehicleConfigName) {
+	// Is it necessary to match with brand here?
+	String q3 = "select id from AppConfig where application_id = ?"
+	    + " and vehicleConfigName = ?";
+	String c3 = mysql.queryOne(q3, appId, vehicleConfigName);
+	System.out.println("appconfig id " + c3);
+	if (c3.equals("error"))
+	    return new InstallPlan("internal db error 1");
+	if (c3.equals("none")) {
+	    System.out.println("ERROR: no appropriate AppConfig exists");
+	    return new InstallPlan("no appropriate AppConfig exists");
+	}
+	int appConfigId = Integer.parseInt(c3);
+
+	// The id of a port is that of the first PluginPortConfig with the
+	// same name and plugin, which may belong to another application.
+	String q41 = "select p.name, min(a.id)"
+	    + " from PluginConfig c"
+	    + " join PluginPortConfig p on p.pluginConfig_id = c.id"
+	    + " join PluginPortConfig a on a.name = p.name"
+	    + " and a.portPluginName = p.portPluginName"
+	    + " where c.appConfig_id = ?"
+	    + " group by c.id, p.id, p.name"
+	    + " order by c.id, p.id";
+	List<String []> rs41 = mysql.queryRows(q41, appConfigId);
+	if (rs41 == null)
+	    return new InstallPlan("internal db error 2");
+
+	HashMap<String, Integer> portInitialContext = new HashMap<String, Integer>();
+	for (String [] row : rs41) {
+	    System.out.println("initial context " + row[0] + " " + row[1]);
+	    portInitialContext.put(row[0], Integer.parseInt(row[1]));
+	}
+
+	// Plugins without links get a row with nulls
+	String q42 = "select c.name, l.fromStr, l.toStr, l.connectionType"
+	    + " from PluginConfig c"
+	    + " left join PluginLinkConfig l on l.pluginConfig_id = c.id"
+	    + " where c.appConfig_id = ?"
+	    + " order by c.id, l.id";
+	List<String []> rs42 = mysql.queryRows(q42, appConfigId);
+	if (rs42 == null)
+	    return new InstallPlan("internal db error 3");
+
+	HashMap<String, ArrayList<LinkContextEntry>> linkingContexts =
+	    new HashMap<String, ArrayList<LinkContextEntry>>();
+	for (String [] row : rs42) {
+	    String pluginName = row[0];
+	    ArrayList<LinkContextEntry> linkingContext = linkingContexts.get(pluginName);
+	    if (linkingContext == null) {
+		linkingContext = new ArrayList<LinkContextEntry>();
+		linkingContexts.put(pluginName, linkingContext);
+	    }
+	    if (row[1] == null)
+		continue;
+
+	    LinkContextEntry entry = link(row[1], row[2], row[3], portInitialContext);
+	    if (entry == null)
+		return new InstallPlan("installApp: wrong link type " + row[3]);
+	    linkingContext.add(entry);
+	}
+
+	String q12 =
+	    "select name,ecuRef,location,fullClassName " +
+	    "from DatabasePlugin where application_id = ?";
+	List<String []> rs12 = mysql.queryRows(q12, appId);
+	if (rs12 == null)
+	    return new InstallPlan("internal db error 5");
+
+	return new InstallPlan(portInitialContext, linkingContexts, rs12);
+    }
+
+    private LinkContextEntry link(String from, String to, String remote,
+				  HashMap<String, Integer> portInitialContext) {
+	System.out.println("port " + from + " " + to + " " + remote);
+	int fromPortId = 0;
+	int toPortId = 0;
+	int remoteId = 0;
+
+	Scanner scanner = new Scanner(remote);
+	boolean remoteTag = scanner.hasNextInt();
+
+	if (remoteTag) {
+	    remoteId = scanner.nextInt();
+	    scanner.close();
+	    switch (remoteId) {
+	    case GlobalVariables.PPORT2PPORT:
+		fromPortId = portInitialContext.get(from);
+		toPortId = portInitialContext.get(to);
+		break;
+	    case GlobalVariables.PPORT2VPORT:
+		fromPortId = portInitialContext.get(from);
+		toPortId = Integer.parseInt(to);
+		break;
+	    case GlobalVariables.VPORT2PORT:
+		fromPortId = Integer.parseInt(from);
+		toPortId = portInitialContext.get(to);
+		break;
+	    default:
+		System.out.println("Error: Wrong link type in GlobalVariables");
+		return null;
+	    }
+	} else {
+	    scanner.close();
+	    // Plug-In -> VRPort
+	    // remote represents the name of remote port
+	    remoteId = portInitialContext.get(remote);
+	    fromPortId = portInitialContext.get(from);
+	    toPortId = Integer.parseInt(to);
+	}
+
+	System.out.println("linking context " +
+			   fromPortId + " " +
+			   toPortId + " " +
+			   remoteId);
+	return new LinkContextEntry(fromPortId, toPortId, remoteId);
+    }
+}
@@ -0,0 +1,264 @@
+package service;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/*
+ * Reads an uploaded jar in one pass: the bytes are written to the file and
+ * hashed (see SuiteHashes) as they go by, the entries are checked against
+ * their CRC, and the manifest, the class of the application and the ports
+ * and links of its config are picked up on the way. The config is parsed
+ * with StAX straight from the jar, so the jar is never held in memory.
+ *
+ * A port is named by the first name element inside it, and belongs to the
+ * plugin named by the first name element inside its grandparent. A link
+ * goes from the first from element inside it to the first to element.
+ *
+ * When the manifest is not at the start of the jar, where the jar tool puts
+ * it, the stream does not see it, and the manifest and the config are read
+ * from the file afterwards.
+ */
+class JarIngest {
+    Manifest manifest;
+    String fullClassName = "";
+    String configFileName;
+    // portName, pluginName
+    List<String []> ports = new ArrayList<String []>();
+    // from, to
+    List<String []> links = new ArrayList<String []>();
+
+    private String appname;
+    private boolean configRead;
+
+    private JarIngest(String appname) {
+	this.appname = appname;
+    }
+
+    static JarIngest read(InputStream in, File file, String appname)
+	throws IOException, XMLStreamException {
+	JarIngest jar = new JarIngest(appname);
+	MessageDigest md = SuiteHashes.digest();
+
+	// a jar cut short by a bad config or entry is not left behind
+	boolean read = false;
+	OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+	try {
+	    InputStream copy = new CopyingInputStream
+		(new DigestInputStream(in, md), out);
+	    JarInputStream jis = new JarInputStream(copy, true);
+	    jar.manifest = jis.getManifest();
+	    jar.setConfigFileName();
+
+	    JarEntry entry;
+	    while ((entry = jis.getNextJarEntry()) != null)
+		jar.entry(entry, jis);
+
+	    // the central directory, which the JarInputStream does not read
+	    byte [] buf = new byte[64 * 1024];
+	    while (copy.read(buf) >= 0)
+		;
+	    read = true;
+	} finally {
+	    try {
+		out.close();
+	    } finally {
+		if (!read)
+		    file.delete();
+	    }
+	}
+	SuiteHashes.put(file.getPath(), md);
+
+	if (jar.manifest == null) {
+	    JarFile jf = new JarFile(file);
+	    try {
+		jar.manifest = jf.getManifest();
+		jar.setConfigFileName();
+		ZipEntry config = jf.getEntry(jar.configFileName);
+		if (jar.manifest != null && config != null && !jar.configRead)
+		    jar.parseConfig(jf.getInputStream(config));
+	    } finally {
+		jf.close();
+	    }
+	}
+	return jar;
+    }
+
+    private void setConfigFileName() {
+	configFileName = null;
+	if (manifest != null)
+	    configFileName = manifest.getMainAttributes().getValue("Pirte-Config");
+	if (configFileName == null)
+	    configFileName = appname + ".xml";
+    }
+
+    private void entry(JarEntry entry, InputStream in)
+	throws IOException, XMLStreamException {
+	String fileName = entry.getName();
+	// We match with appname.class to know we found the right
+	// file.
+	if (fileName.endsWith(appname + ".class")) {
+	    String fullClassName1 = fileName.substring(0, fileName.length() - 6);
+	    System.out.println("class file " + fullClassName1);
+	    if (fullClassName1.endsWith(appname)) {
+		fullClassName = fullClassName1;
+	    }
+	} else if (manifest != null && fileName.equals(configFileName)) {
+	    parseConfig(in);
+	} else {
+	    System.out.println("file in jar: " + fileName);
+	}
+    }
+
+    private static class Element {
+	String tag;
+	// text of the first name, from and to elements inside this one
+	String name;
+	String from;
+	String to;
+	// names of the ports whose plugin has no name yet
+	List<String> ports;
+
+	Element(String tag) {
+	    this.tag = tag;
+	}
+    }
+
+    private void parseConfig(InputStream in) throws XMLStreamException {
+	configRead = true;
+	XMLInputFactory factory = XMLInputFactory.newInstance();
+	factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+			    false);
+	// The reader of the JDK closes the stream at the end of the document,
+	// and the stream is the jar
+	XMLStreamReader r = factory.createXMLStreamReader
+	    (new FilterInputStream(in) {
+		    public void close() {
+		    }
+		});
+	ArrayList<Element> open = new ArrayList<Element>();
+	StringBuilder text = null;
+	try {
+	    while (r.hasNext()) {
+		switch (r.next()) {
+		case XMLStreamConstants.START_ELEMENT:
+		    Element start = new Element(r.getLocalName());
+		    open.add(start);
+		    if (text == null && isText(start.tag))
+			text = new StringBuilder();
+		    break;
+		case XMLStreamConstants.CHARACTERS:
+		case XMLStreamConstants.CDATA:
+		case XMLStreamConstants.SPACE:
+		    if (text != null)
+			text.append(r.getText());
+		    break;
+		case XMLStreamConstants.END_ELEMENT:
+		    Element end = open.remove(open.size() - 1);
+		    if (text != null && isText(end.tag)) {
+			setText(open, end.tag, text.toString());
+			text = null;
+		    }
+		    end(open, end);
+		    break;
+		}
+	    }
+	} finally {
+	    r.close();
+	}
+    }
+
+    private static boolean isText(String tag) {
+	return tag.equals("name") || tag.equals("from") || tag.equals("to");
+    }
+
+    // The text belongs to all the open elements that have none yet
+    private static void setText(List<Element> open, String tag, String text) {
+	for (Element e : open) {
+	    if (tag.equals("name") && e.name == null)
+		e.name = text;
+	    else if (tag.equals("from") && e.from == null)
+		e.from = text;
+	    else if (tag.equals("to") && e.to == null)
+		e.to = text;
+	}
+    }
+
+    private void end(List<Element> open, Element e) throws XMLStreamException {
+	if (e.tag.equals("port")) {
+	    if (e.name == null || open.size() < 2)
+		throw new XMLStreamException("port without a name or plugin");
+	    Element plugin = open.get(open.size() - 2);
+	    if (plugin.name != null) {
+		ports.add(new String [] {e.name, plugin.name});
+	    } else {
+		if (plugin.ports == null)
+		    plugin.ports = new ArrayList<String>();
+		plugin.ports.add(e.name);
+	    }
+	} else if (e.tag.equals("link")) {
+	    if (e.from == null || e.to == null)
+		throw new XMLStreamException("link without from or to");
+	    links.add(new String [] {e.from, e.to});
+	}
+
+	if (e.ports != null) {
+	    if (e.name == null)
+		throw new XMLStreamException("plugin without a name");
+	    for (String port : e.ports)
+		ports.add(new String [] {port, e.name});
+	}
+    }
+
+    // Writes the bytes read from in to out
+    private static class CopyingInputStream extends FilterInputStream {
+	private OutputStream out;
+
+	CopyingInputStream(InputStream in, OutputStream out) {
+	    super(in);
+	    this.out = out;
+	}
+
+	public int read() throws IOException {
+	    int b = in.read();
+	    if (b >= 0)
+		out.write(b);
+	    return b;
+	}
+
+	public int read(byte [] b, int off, int len) throws IOException {
+	    int n = in.read(b, off, len);
+	    if (n > 0)
+		out.write(b, off, n);
+	    return n;
+	}
+
+	public long skip(long n) throws IOException {
+	    byte [] buf = new byte[(int) Math.min(n, 8192)];
+	    int r = read(buf, 0, buf.length);
+	    return r < 0 ? 0 : r;
+	}
+
+	public boolean markSupported() {
+	    return false;
+	}
+    }
+}
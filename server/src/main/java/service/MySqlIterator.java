@@ -2,72 +2,35 @@ package service;
 
 import java.util.List;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
-import java.sql.SQLException;
-import java.sql.Statement;
-
+// The rows of a query, which have all been read already
 public class MySqlIterator {
 
-    private ResultSet rs;
+    private List<String []> rows;
+    private int row = -1;
 
 
-    public MySqlIterator(ResultSet rs0) {
+    public MySqlIterator(List<String []> rows0) {
 	
-	rs = rs0;
+	rows = rows0;
     }
 
     public boolean next() {
-	boolean n = false;
-	try {
-	    n = rs.next();
-	} catch (SQLException ex) {
-	    System.out.println("db error");
-	    System.out.println(ex.getMessage());
-	} finally {
-	    if (!n) {
-		try {
-		    rs.close();
-		} catch (SQLException ex) {
-		    System.out.println("db error");
-		    System.out.println(ex.getMessage());
-		}
-	    }
-	}
-
-	return n;
+	if (row < rows.size())
+	    row++;
+	return row < rows.size();
     }
 
     public void close() {
-	try {
-	    rs.close();
-	} catch (SQLException ex) {
-	    System.out.println("db error");
-	    System.out.println(ex.getMessage());
-	}
+	row = rows.size();
     }
 
     public String getString(int i) {
-	boolean error = false;
-	try {
-	    return rs.getString(i);
-	} catch (SQLException ex) {
+	if (row < 0 || row >= rows.size()) {
 	    System.out.println("db error");
-	    System.out.println(ex.getMessage());
-	    error = true;
-	} finally {
-	    if (error) {
-		try {
-		    rs.close();
-		} catch (SQLException ex) {
-		    System.out.println("db error");
-		    System.out.println(ex.getMessage());
-		}
-	    }
+	    System.out.println("no current row");
+	    return null;
 	}
-	return null;
+	return rows.get(row)[i-1];
     }
 
 }
@@ -7,11 +7,11 @@ import java.nio.charset.Charset;
 import javax.xml.ws.Endpoint;
 
 import messages.InitPacket;
+import messages.PacketCodecFactory;
 import mina.ServerHandler; //TODO (move this file to the service package)
 
 import org.apache.mina.filter.codec.ProtocolCodecFilter;
 import org.apache.mina.filter.codec.ProtocolCodecSession;
-import org.apache.mina.filter.codec.serialization.ObjectSerializationCodecFactory;
 import org.apache.mina.filter.logging.LoggingFilter;
 import org.apache.mina.transport.socket.SocketAcceptor;
 import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
@@ -35,7 +35,7 @@ public class PluginWebServicePublisher {
 		SocketAcceptor socketAcceptor = new NioSocketAcceptor();
 		
 		socketAcceptor.getFilterChain().addLast("logger", new LoggingFilter());
-		socketAcceptor.getFilterChain().addLast("codec", new ProtocolCodecFilter(new ObjectSerializationCodecFactory())); //TODO: This is a default codec, should ideally not be used
+		socketAcceptor.getFilterChain().addLast("codec", new ProtocolCodecFilter(new PacketCodecFactory()));
 //		socketAcceptor.getFilterChain().addLast("codec", new ProtocolCodecFilter(new TextLineCodecFactory(Charset.forName("UTF-8"))));
 
 		ServerHandler handler = new ServerHandler();
@@ -2,10 +2,12 @@ package service;
 
 import java.util.ArrayList;
 
+import javax.activation.DataHandler;
 import javax.jws.WebMethod;
 import javax.jws.WebService;
 import javax.jws.soap.SOAPBinding;
 import javax.jws.soap.SOAPBinding.Style;
+import javax.xml.bind.annotation.XmlMimeType;
 
 import service.exception.PluginWebServicesException;
 
@@ -17,14 +19,33 @@ public interface PluginWebServices {
 				 String appname, String version)
 	throws PluginWebServicesException;
 
+    // The same, with the jar sent as an MTOM attachment
+    @WebMethod
+	public String uploadAppStream(@XmlMimeType("application/octet-stream")
+				      DataHandler data,
+				      String appname, String version)
+	throws PluginWebServicesException;
+
     @WebMethod
 	public boolean get_ack_status(String vin, int appId)
 	throws PluginWebServicesException;
+
+    @WebMethod
+	public String ackStatus(String [] vins, int appID, int wait)
+	throws PluginWebServicesException;
 	
     @WebMethod
 	public String installApp(String vin, int appID)
 	throws PluginWebServicesException;
 	
+    @WebMethod
+	public String installAppOnVehicles(String [] vins, int appID)
+	throws PluginWebServicesException;
+
+    @WebMethod
+	public String rolloutStatus(int rolloutId)
+	throws PluginWebServicesException;
+
     @WebMethod
 	public String uninstallApp(String vin, int appID)
 	throws PluginWebServicesException;
@@ -81,6 +102,14 @@ public interface PluginWebServices {
 	public String listInstalledApps()
 	throws PluginWebServicesException;
 
+    @WebMethod
+	public String listLatestApplications()
+	throws PluginWebServicesException;
+
+    @WebMethod
+	public String listIfChanged(String list, int user_id, String etag)
+	throws PluginWebServicesException;
+
     @WebMethod
 	public String addUserVehicleAssociation(int user_id, String vin,
 						boolean defaultVehicle)
@@ -103,6 +132,10 @@ public interface PluginWebServices {
 	public String tellVehicle(String vin, int type, int val, String msg)
 	throws PluginWebServicesException;
 
+    @WebMethod
+	public String stats()
+	throws PluginWebServicesException;
+
     @WebMethod
 	public boolean checkpassword(String pwd, String hash)
 	throws PluginWebServicesException;
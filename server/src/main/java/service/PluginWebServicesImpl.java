@@ -8,14 +8,14 @@ import java.io.*;
 
 import service.CallMySql;
 import service.MySqlIterator;
-
-import common.MopedException;
+import service.InstallPlanResolver.InstallPlan;
 
 import utils.PropertyAPI;
 
 import java.lang.NumberFormatException;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.FileOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -32,10 +32,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.Set;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
@@ -47,18 +45,25 @@ import javax.jws.WebService;
 import javax.xml.ws.WebServiceContext;
 import javax.xml.ws.handler.MessageContext;
 import javax.annotation.Resource;
+import javax.activation.DataHandler;
+import javax.xml.ws.soap.MTOM;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.FactoryConfigurationError;
 import javax.xml.parsers.ParserConfigurationException;
 
+import javax.xml.stream.XMLStreamException;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Schema;
 import javax.xml.XMLConstants;
 import javax.xml.transform.stream.StreamSource;
 
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolEncoderException;
 import org.apache.mina.filter.logging.MdcInjectionFilter;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -73,13 +78,14 @@ import messages.InstallPacket;
 import messages.InstallPacketData;
 import messages.LinkContextEntry;
 import messages.RestorePacket;
+import messages.PacketCodecFactory;
 import messages.PingcarPacket;
 import messages.UninstallPacket;
 import messages.UninstallPacketData;
+import mina.Acks;
 import mina.ServerHandler;
 import service.exception.PluginWebServicesException;
-import utils.CompressUtils;
-import utils.SuiteGen;
+import utils.SuiteDelta;
 
 import java.sql.*;
 
@@ -123,8 +129,12 @@ class LoggingErrorHandler implements ErrorHandler {
 }
 
 @WebService(endpointInterface = "service.PluginWebServices")
+@MTOM
 public class PluginWebServicesImpl implements PluginWebServices {
-    private SuiteGen suiteGen = new SuiteGen(PropertyAPI.getInstance().getProperty("mopedtop") + "/squawk");
+    // longest wait of ackStatus, in seconds
+    private static final int MAX_ACK_WAIT = 60;
+
+    private CompileService compileService = CompileService.getInstance();
 	
     private ServerHandler handler = null;
 	
@@ -135,6 +145,8 @@ public class PluginWebServicesImpl implements PluginWebServices {
     private Statement stat = null;
 	
     private CallMySql mysql = new CallMySql();
+    private InstallPlanResolver planResolver = new InstallPlanResolver(mysql);
+    private ReadModel readModel = ReadModel.getInstance();
 
     public PluginWebServicesImpl(ServerHandler handler) {
 	this.handler = handler;
@@ -145,13 +157,36 @@ public class PluginWebServicesImpl implements PluginWebServices {
 	public String uploadApp(byte [] data, String appname,
 				 String fversion)
 	throws PluginWebServicesException {
+	System.out.println(data.length);
+	return uploadApp(new ByteArrayInputStream(data), appname, fversion);
+    }
+
+    // The jar comes as an MTOM attachment, which is read as it arrives
+    // rather than as one array
+    @Override
+	public String uploadAppStream(DataHandler data, String appname,
+				      String fversion)
+	throws PluginWebServicesException {
+	try {
+	    InputStream in = data.getInputStream();
+	    try {
+		return uploadApp(in, appname, fversion);
+	    } finally {
+		in.close();
+	    }
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    return jsonError("uploadApp: I/O exception");
+	}
+    }
+
+    private String uploadApp(InputStream data, String appname,
+			     String fversion) {
 	int rows;
 
 	int appId;
 
-	System.out.println(data.length);
 	System.out.println("filename " + appname + " " + fversion);
-	File configFile = null;
 
 	String location;
 	String name;
@@ -167,22 +202,13 @@ public class PluginWebServicesImpl implements PluginWebServices {
 	    // I don't know why we must delete the old one first, but if we don't,
 	    // it seems its old data remains.
 	    new File(p).delete();
-	    OutputStream out = new BufferedOutputStream
-		(Files.newOutputStream(Paths.get(p), CREATE));
-	    out.write(data, 0, data.length);
-	    out.close();
 
 	    location = dir + "/";
 	    name = appname;
 
-	    File jarFile = new File(p);
-	    //		BufferedWriter writer = new BufferedWriter(new FileWriter(jarFile));
-	    //BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(jarFile));
-	    //bos.write(data);
-	    //bos.close();
-
-	    JarFile jar = new JarFile(jarFile);
-	    Manifest mf = jar.getManifest();
+	    // Stores the jar, and reads its manifest, class and config
+	    JarIngest jar = JarIngest.read(data, new File(p), appname);
+	    Manifest mf = jar.manifest;
 	    if (mf != null) {
 		Attributes attributes = mf.getMainAttributes();
 		String publisher = attributes.getValue("Built-By");
@@ -201,47 +227,19 @@ public class PluginWebServicesImpl implements PluginWebServices {
 		String ecuRef = attributes.getValue("Ecu");
 		if (ecuRef == null)
 		    ecuRef = "0";
-		String configFileName = attributes.getValue("Pirte-Config");
-		if (configFileName == null)
-		    configFileName = name + ".xml";
-		String fullClassName = "";
-
-		for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements(); ) {
-		    JarEntry entry = entries.nextElement();
-		    String fileName = entry.getName();
-		    // We match with appname.class to know we found the right
-		    // file.
-		    if (fileName.endsWith(appname + ".class")) {
-			String fullClassName1 = fileName.substring(0, fileName.length() - 6);
-			System.out.println("class file " + fullClassName1);
-			if (fullClassName1.endsWith(appname)) {
-			    fullClassName = fullClassName1;
-			}
-		    } else if (fileName.equals(configFileName)) {
-			configFile = File.createTempFile("tempxml.xml", null);
-			BufferedReader reader = new BufferedReader(new InputStreamReader(
-											 jar.getInputStream(entry)));
-			BufferedWriter writer = new BufferedWriter(new FileWriter(configFile));
-			String line;
-			while ((line = reader.readLine()) != null) {
-			    writer.write(line);
-			}
-			reader.close();
-			writer.close();
-		    } else {
-			System.out.println("file in jar: " + fileName);
-		    }
-		}
+		String configFileName = jar.configFileName;
+		String fullClassName = jar.fullClassName;
+
 		System.out.println("class name " + fullClassName);
 		System.out.println("config file " + configFileName);
 
 				
 		String q1 = "select id from Application where " +
-		    "name = '" + name +
-		    //"' and publisher = '" + publisher +
-		    "' and version = '" + version + 
-		    "' and state >= '020-uploaded' and state < '060'";
-		String c1 = mysql.getOne(q1);
+		    "name = ?" +
+		    //" and publisher = ?" +
+		    " and version = ?" +
+		    " and state >= '020-uploaded' and state < '060'";
+		String c1 = mysql.queryOne(q1, name, version);
 
 		System.out.println("old App " + c1);
 
@@ -249,8 +247,8 @@ public class PluginWebServicesImpl implements PluginWebServices {
 		// but maybe this should be an error
 		if (!c1.equals("none")) {
 		    System.out.println("setting 060");
-		    String q1u = "update Application set state='060-pending-delete' where id=" + c1;
-		    int rows1u = mysql.update(q1u);
+		    String q1u = "update Application set state='060-pending-delete' where id = ?";
+		    int rows1u = mysql.execute(q1u, Integer.parseInt(c1));
 		    System.out.println("setting 060 " + rows1u);
 		    if (rows1u != 1)
 			return jsonError("upload: internal db error 1");
@@ -258,40 +256,29 @@ public class PluginWebServicesImpl implements PluginWebServices {
 
 
 		String q2 = "insert into Application " +
-		    "(name,publisher,state,version,hasNewVersion) values ('" +
-		    name + "','" +
-		    publisher + "','" +
-		    "010-created" + "','" +
-		    version + "',0)";
-		rows = mysql.update(q2);
+		    "(name,publisher,state,version,hasNewVersion) values " +
+		    "(?,?,'010-created',?,0)";
+		rows = mysql.execute(q2, name, publisher, version);
 
 		String q3 = "select id from Application " +
-		    "where name = '" + name +
-		    "' and publisher = '" + publisher +
-		    "' and version = '" + version + 
-		    "' and state < '060'";
-		String c3 = mysql.getOne(q3);
+		    "where name = ? and publisher = ? and version = ?" +
+		    " and state < '060'";
+		String c3 = mysql.queryOne(q3, name, publisher, version);
 		appId = Integer.parseInt(c3);
 
 		System.out.println("new appId " + appId);
 
-		String q4 = "insert into AppConfig (application_id,brand,vehicleConfigName) values (" +
-		    appId + "," +
-		    "'" + brand +"'" + "," +
-		    "'" + vehicleConfigName + "'" + ")";
-		int x4 = mysql.update(q4);
+		String q4 = "insert into AppConfig (application_id,brand,vehicleConfigName) values (?,?,?)";
+		int x4 = mysql.execute(q4, appId, brand, vehicleConfigName);
 
-		String q41 = "select max(id) from AppConfig where application_id = " + appId + " and vehicleConfigName = '" + vehicleConfigName + "'";
-		String x41 = mysql.getOne(q41);
+		String q41 = "select max(id) from AppConfig where application_id = ? and vehicleConfigName = ?";
+		String x41 = mysql.queryOne(q41, appId, vehicleConfigName);
 		int appConfigId = Integer.parseInt(x41);
 
-		String q5 = "insert into DatabasePlugin (name,fullClassName,ecuRef,location,application_id) values (" +
-		    "'" + name + "'" + "," +
-		    "'" + fullClassName + "'" + "," +
-		    Integer.parseInt(ecuRef) + "," +
-		    "'" + location + File.separator + name + "'" + "," +
-		    appId + ")";
-		int x5 = mysql.update(q5);
+		String q5 = "insert into DatabasePlugin (name,fullClassName,ecuRef,location,application_id) values (?,?,?,?,?)";
+		int x5 = mysql.execute(q5, name, fullClassName,
+				       Integer.parseInt(ecuRef),
+				       location + File.separator + name, appId);
 
 
 		//TODO: Why + .suite???
@@ -300,11 +287,10 @@ public class PluginWebServicesImpl implements PluginWebServices {
 				
 		// Why do we match with name, why with ecuRef, and why
 		// do we want to keep the old one at all?
-		String q30 = "select * from PluginConfig where ecuId = " +
-		    Integer.parseInt(ecuRef) + " and " +
-		    "name = " + "'" + name + ".suite" +"'" + " and " +
-		    "appConfig_id = " + appConfigId;
-		String c30 = mysql.getOne(q3);
+		String q30 = "select * from PluginConfig where ecuId = ?" +
+		    " and name = ? and appConfig_id = ?";
+		String c30 = mysql.queryOne(q30, Integer.parseInt(ecuRef),
+					    name + ".suite", appConfigId);
 		System.out.println("existing PluginConfig: " + c30);
 
 		int pluginConfig;
@@ -312,48 +298,34 @@ public class PluginWebServicesImpl implements PluginWebServices {
 		    System.out.println("pluginconfig already exists");
 		}
 
-		String q31 = "insert into PluginConfig (ecuId,name,appConfig_id) values (" +
-		    Integer.parseInt(ecuRef) + "," +
-		    "'" + name + ".suite" +"'" + "," +
-		    appConfigId + ")";
-		int x3 = mysql.update(q31);
+		String q31 = "insert into PluginConfig (ecuId,name,appConfig_id) values (?,?,?)";
+		int x3 = mysql.execute(q31, Integer.parseInt(ecuRef),
+				       name + ".suite", appConfigId);
 		System.out.println("updated rows " + x3);
 
-		String q32 = "select * from PluginConfig where ecuId = " +
-		    Integer.parseInt(ecuRef) + " and " +
-		    "name = " + "'" + name + ".suite" +"'" + " and " +
-		    "appConfig_id = " + appConfigId;
-		String c32 = mysql.getOne(q32);
+		String q32 = "select * from PluginConfig where ecuId = ?" +
+		    " and name = ? and appConfig_id = ?";
+		String c32 = mysql.queryOne(q32, Integer.parseInt(ecuRef),
+					    name + ".suite", appConfigId);
 		pluginConfig = Integer.parseInt(c32);
 
-		//TODO: Refactor
-		// Xml-parsing
-		Document doc = DocumentBuilderFactory.newInstance().
-		    newDocumentBuilder().parse(configFile);
-		doc.getDocumentElement().normalize();
-				
-		NodeList ports = doc.getElementsByTagName("port");
-		for (int i = 0; i < ports.getLength(); i++) {
-		    Element port = (Element)ports.item(i);
-		    String portName = port.getElementsByTagName("name").item(0).getTextContent();
-					
-		    Element e1 = (Element) port.getParentNode().getParentNode();
-		    Element e2 = (Element) e1.getElementsByTagName("name").item(0);
-		    String ppluginName = e2.getTextContent();
+		// the port and link rows are inserted in batches
+		List<Object []> portRows = new ArrayList<Object []>();
+		for (String [] port : jar.ports) {
+		    String portName = port[0];
+		    String ppluginName = port[1];
 		    System.out.println("pluginName for port = " + ppluginName);
 
-		    String q6 = "insert into PluginPortConfig (name,pluginConfig_id,portPluginName) values ('" + portName + "'," + pluginConfig + ",'" + ppluginName +"'" + ")";
-		    int rows6 = mysql.update(q6);
-
+		    portRows.add(new Object [] {portName, pluginConfig, ppluginName});
 		}
+		String q6p = "insert into PluginPortConfig (name,pluginConfig_id,portPluginName) values (?,?,?)";
+		int rows6p = mysql.executeBatch(q6p, portRows);
+		System.out.println("port rows " + rows6p);
 				
-		NodeList links = doc.getElementsByTagName("link");
-		for (int i = 0; i < links.getLength(); i++) {
-		    Element link = (Element)links.item(i);
-		    // link may be null; check for that
-		    // or there is no "from" or "to"
-		    String linkSource = link.getElementsByTagName("from").item(0).getTextContent();
-		    String linkTarget = link.getElementsByTagName("to").item(0).getTextContent();
+		List<Object []> linkRows = new ArrayList<Object []>();
+		for (String [] link : jar.links) {
+		    String linkSource = link[0];
+		    String linkTarget = link[1];
 
 		    int connectionType = GlobalVariables.PPORT2PPORT;
 		    if (linkSource.matches("(\\d+)")) {
@@ -363,14 +335,18 @@ public class PluginWebServicesImpl implements PluginWebServices {
 			connectionType = GlobalVariables.PPORT2VPORT;
 		    }
 
-		    String q6 = "insert into PluginLinkConfig (fromStr,toStr,connectionType,pluginConfig_id) values ('" + linkSource + "','" + linkTarget + "','" + connectionType + "'," + pluginConfig + ")";
-		    int rows6 = mysql.update(q6);
+		    linkRows.add(new Object [] {linkSource, linkTarget,
+						"" + connectionType, pluginConfig});
 		}
+		String q6l = "insert into PluginLinkConfig (fromStr,toStr,connectionType,pluginConfig_id) values (?,?,?,?)";
+		int rows6l = mysql.executeBatch(q6l, linkRows);
+		System.out.println("link rows " + rows6l);
 
-		String q7 = "update Application set state='020-uploaded' where id=" + appId;
-		int rows7 = mysql.update(q7);
+		String q7 = "update Application set state='020-uploaded' where id = ?";
+		int rows7 = mysql.execute(q7, appId);
 		if (rows7 != 1)
 		    return jsonError("uploadApp: internal db error 2");
+		planResolver.invalidateAll();
 	    }
 	    else {
 		System.out.println("manifest is NULL");
@@ -379,18 +355,9 @@ public class PluginWebServicesImpl implements PluginWebServices {
 	} catch (IOException e) {
 	    e.printStackTrace();
 	    return jsonError("uploadApp: I/O exception");
-	} catch (SAXException e) {
-	    // TODO Auto-generated catch block
-	    e.printStackTrace();
-	    return jsonError("uploadApp: SAXException");
-	} catch (ParserConfigurationException e) {
-	    // TODO Auto-generated catch block
+	} catch (XMLStreamException e) {
 	    e.printStackTrace();
-	    return jsonError("uploadApp: ParserConfigurationException");
-	} catch (FactoryConfigurationError e) {
-	    // TODO Auto-generated catch block
-	    e.printStackTrace();
-	    return jsonError("uploadApp: FactoryConfigurationError");
+	    return jsonError("uploadApp: XMLStreamException");
 	} 
 
 	{
@@ -407,24 +374,55 @@ public class PluginWebServicesImpl implements PluginWebServices {
 	public boolean get_ack_status(String vin, int appId)
 	throws PluginWebServicesException {
 
-	String q1 =
-	    "select * from Application " +
-	    "where id = " + appId;
-	String x = mysql.getOne(q1);
+	// true when the ECM has all the plugins of the last install
+	Acks.Group g = ServerHandler.getAcks().get(Acks.LINUX, vin, appId);
+	return g != null && g.getState().equals(Acks.DONE);
+    }
 
-	if (x.equals("none")) {
-	    return false;
+    // Waits until no ACK of the application is pending on any of the cars,
+    // or for at most wait seconds (MAX_ACK_WAIT), and returns the state of
+    // the last install and uninstall on each car. A state is missing when
+    // nothing was sent.
+    @Override
+	public String ackStatus(String [] vins, int appID, int wait)
+	throws PluginWebServicesException {
+	long until = System.currentTimeMillis()
+	    + Math.min(Math.max(wait, 0), MAX_ACK_WAIT) * 1000L;
+	Acks acks = ServerHandler.getAcks();
+	List<Acks.Group> groups = acks.get(vins, appID);
+	for (Acks.Group g : groups) {
+	    if (g != null && !g.await(until))
+		break;
 	}
 
-	String q2 =
-	    "select name from Application " + 
-	    "where id = " + appId;
-	String name = mysql.getOne(q2);
+	String [] kinds = Acks.kinds();
+	JSONArray vehicles = new JSONArray();
+	for (int i = 0; i < vins.length; i++) {
+	    JSONObject v = new JSONObject();
+	    v.put("vin", vins[i]);
+	    for (int k = 0; k < kinds.length; k++) {
+		Acks.Group g = groups.get(i * kinds.length + k);
+		if (g != null)
+		    v.put(kinds[k], g.getState());
+	    }
+	    vehicles.put(v);
+	}
 
-	if (handler.existsAckMessage(vin + "_" + name))
-	    return true;
-		
-	return false;
+	JSONObject o = new JSONObject();
+	o.put("result", vehicles);
+	o.put("error", false);
+	return o.toString();
+    }
+
+    // Registers the ACKs the car sends for the plugins of an install
+    private void expectInstallAcks(String vin, int appID,
+				   ArrayList<VehiclePluginRecord> records) {
+	ArrayList<String> names = new ArrayList<String>();
+	for (VehiclePluginRecord record : records)
+	    names.add(record.getPluginName());
+	Acks acks = ServerHandler.getAcks();
+	acks.expect(Acks.LINUX, vin, appID, names);
+	acks.expect(Acks.INSTALLED, vin, appID, names);
     }
 	
     private String jsonError(String msg) {
@@ -501,9 +499,17 @@ public class PluginWebServicesImpl implements PluginWebServices {
     }
 
     @Override
-    @SuppressWarnings("unchecked")
 	public String installApp(String vin, int appID)
 	throws PluginWebServicesException {
+	return installApp(vin, appID, installedPlugins(vin, -1));
+    }
+
+    // Installs the application, sending a plugin as a delta against the
+    // file in bases (key: plugin name) when the car has that version stored.
+    @SuppressWarnings("unchecked")
+    private String installApp(String vin, int appID,
+			      HashMap<String, String> bases)
+	throws PluginWebServicesException {
 	System.out.println("vin in install(): " + vin);
 	System.out.println("appID in install(): " + appID);
 		
@@ -511,9 +517,6 @@ public class PluginWebServicesImpl implements PluginWebServices {
 	if (cs1 != null)
 	    return cs1;
 
-	String q1 = "select vehicleConfig_id from Vehicle where vin = '" + vin + "'";
-	String c = mysql.getOne(q1);
-
 	// Fetch the connection session between Server and Vehicle
 	IoSession session = ServerHandler.getSession(vin);
 	if (session == null) {
@@ -524,46 +527,32 @@ public class PluginWebServicesImpl implements PluginWebServices {
 
 	System.out.println("IoSession.address: " + session.getLocalAddress());
 			
-	// Achieve contexts
-	// key: portName(String), value:
-	// portId(Integer)>
-	HashMap<String, Integer> portInitialContext = new HashMap<String, Integer>();
-	// HashMap<String, ArrayList<LinkingContextEntry>> linkingContexts =
-	// new HashMap<String, ArrayList<LinkingContextEntry>>();
-	HashMap<String, ArrayList<LinkContextEntry>> linkingContexts = new HashMap<String, ArrayList<LinkContextEntry>>();
-
 	// Create an array list for cache
 	ArrayList<VehiclePluginRecord> installCachePlugins = new ArrayList<VehiclePluginRecord>();
 
-	String q2 =
-	    "select name,brand from VehicleConfig where id = " + c;
-	String [] c2 = mysql.getOneSet(q2);
-	if (c2 != null) {
-	    System.out.println("vehicleconf name " + c2[0]);
-	    System.out.println("vehicleconf brand " + c2[1]);
-	}
-
-	String q7 = "select vehicleConfig_id from Vehicle where vin = '" + vin + "'";
-	String c7 = mysql.getOne(q7);
+	String [] c7 = vehicleConfig(vin);
 
-	if (c7.equals("none")) {
+	if (c7 == null) {
 	    System.out.println("ERROR: no appropriate Vehicle/VehicleConfig combination");
 	    return jsonError("no appropriate Vehicle/VehicleConfig combination");
 	}
 
 	// VehicleConfig
-	int vehicleConfigId = Integer.parseInt(c7);
+	int vehicleConfigId = Integer.parseInt(c7[0]);
 			
 	// AppConfig
-	String vehicleConfigName = c2[0];
-	String brand = c2[1];
+	String vehicleConfigName = c7[1];
+	String brand = c7[2];
+	String simulator = c7[3];
+	System.out.println("vehicleconf name " + vehicleConfigName);
+	System.out.println("vehicleconf brand " + brand);
 
 	//System.out.println("Found vehicle: " + vehicleName + " of brand: " + brand + "... (next step not implemented yet)");
 	// what's this "next step"?
 
-	String q3s = "select state from Application where id = " + appID +
+	String q3s = "select state from Application where id = ?" +
 	    " and state < '060'";
-	String c3s = mysql.getOne(q3s);
+	String c3s = mysql.queryOne(q3s, appID);
 
 	if (c3s.equals("error")) {
 	    return jsonError("installApp: internal db error 3");
@@ -577,169 +566,12 @@ public class PluginWebServicesImpl implements PluginWebServices {
 	    return jsonError("installApp: application in wrong state: " + c3s);
 	}
 
-	// Is it necessary to match with brand here?
-	String q3 = "select id from AppConfig where application_id = " + appID
-	    + " and vehicleConfigName = '" +
-	    vehicleConfigName + "'";
-	String c3 = mysql.getOne(q3);
-	System.out.println("appconfig id " + c3);
-	if (c3.equals("none")) {
-	    System.out.println("ERROR: no appropriate AppConfig exists");
-	    return jsonError("no appropriate AppConfig exists");
-	}
-	int appConfigId = Integer.parseInt(c3);
-
-	System.out.println("AppConfig found, id: " + appConfigId);
-
-	// PluginConfig
-	//TODO: Move it to a warmer place
-	if (!c3.equals("none")) {
-	    // can it happen that there is no AppConfig?
-	    int pluginConfigId;
-
-	    String q4 = "select id,name from PluginConfig where appConfig_id = " + c3;
-	    ResultSet rs = mysql.getResults(q4);
-	    try {
-		while (rs.next()) {
-		    String c4 = rs.getString(1);
-		    System.out.println("rs: " + c4);
-		    pluginConfigId = Integer.parseInt(c4);
-		    System.out.println("again pluginConfig.id: " + pluginConfigId);
-
-		    String q41 = "select id,name,portPluginName from PluginPortConfig where pluginConfig_id = " + pluginConfigId;
-
-		    ResultSet rs2 = mysql.getResults(q41);
-		    try {
-			while (rs2.next()) {
-			    int pluginPortId = Integer.parseInt
-				(rs2.getString(1));
-			    String pluginPortName = rs2.getString(2);
-			    String portPluginName = rs2.getString(3);
-
-			    String q41a = "select id from PluginPortConfig where name = '" + pluginPortName + "' and portPluginName = '" + portPluginName + "'";
-			    String s41a = mysql.getOne(q41a, false);
-			    System.out.println("actual id = " + s41a);
-
-			    pluginPortId = Integer.parseInt(s41a);
-
-			    System.out.println("initial context " +
-					       pluginPortName + " " +
-					       pluginPortId);
-			    portInitialContext.put(pluginPortName, pluginPortId);
-			}
-			rs2.close();
-		    } catch (SQLException ex) {
-			System.out.println("db error 1");
-			System.out.println(ex.getMessage());
-			return jsonError("internal db error 1");
-		    } 
-		}
-		// are they closed automatically?
-		rs.close();
-
-	    } catch (SQLException ex) {
-		System.out.println("db error 2");
-		System.out.println(ex.getMessage());
-		return jsonError("internal db error 2");
-	    } 
-
-
-	    //TEMP_DEBUG
-	    System.out.println("PORT INITIAL CONTEXTS: ");
-	    for (String ctxt : portInitialContext.keySet()) {
-		System.out.println("PIC: <" + ctxt + ", " + portInitialContext.get(ctxt) + ">");
-	    }
-					
-	    ResultSet rs3 = mysql.getResults(q4);
-	    try {
-		while (rs3.next()) {
-		    String c4 = rs3.getString(1);
-		    System.out.println("rs: " + c4);
-		    pluginConfigId = Integer.parseInt(c4);
-
-		    // Plugin Link Config
-		    String pluginName = rs3.getString(2);
-		    // Initiate LinkingContext
-		    ArrayList<LinkContextEntry> linkingContext = new ArrayList<LinkContextEntry>();
-				
-		    try {
-
-
-			String q42 = "select id,fromStr,toStr,connectionType from PluginLinkConfig where pluginConfig_id = " + pluginConfigId;
-			ResultSet rs4 = mysql.getResults(q42);
-
-			while (rs4.next()) {
-			    String from = rs4.getString(2);
-			    String to = rs4.getString(3);
-			    String remote = rs4.getString(4);
-			    System.out.println("port " + from + " " + to + " " + remote);
-			    int fromPortId = 0;
-			    int toPortId = 0;
-			    int remoteId = 0;
-
-			    Scanner scanner = new Scanner(remote);
-			    boolean remoteTag = scanner.hasNextInt();
-
-			    if (remoteTag) {
-				remoteId = scanner.nextInt();
-				switch (remoteId) {
-				case GlobalVariables.PPORT2PPORT:
-				    fromPortId = portInitialContext.get(from);
-				    toPortId = portInitialContext.get(to);
-				    break;
-				case GlobalVariables.PPORT2VPORT:
-				    fromPortId = portInitialContext.get(from);
-				    toPortId = Integer.parseInt(to);
-				    break;
-				case GlobalVariables.VPORT2PORT:
-				    fromPortId = Integer.parseInt(from);
-				    toPortId = portInitialContext.get(to);
-				    break;
-				default:
-				    System.out.println("Error: Wrong link type in GlobalVariables");
-				    return jsonError("installApp: wrong link type " + remoteId);
-				}
-			    } else {
-				// Plug-In -> VRPort
-				// remote represents the name of remote port
-				remoteId = portInitialContext.get(remote);
-				fromPortId = portInitialContext.get(from);
-				toPortId = Integer.parseInt(to);
-			    }
-						
-			    scanner.close();
-
-			    System.out.println("linking context " +
-					       fromPortId + " " +
-					       toPortId + " " +
-					       remoteId);
-			    LinkContextEntry entry = new LinkContextEntry(fromPortId,
-									  toPortId, remoteId);
-			    linkingContext.add(entry);
-			}
-			rs4.close();
-			    
-		    } catch (SQLException ex) {
-			System.out.println("db error 3");
-			System.out.println(ex.getMessage());
-			return jsonError("internal db error 3");
-		    }
-				
-		    linkingContexts.put(pluginName, linkingContext);
-					
-		    //TEMP_DEBUG
-		    System.out.println("PORT LINKING CONTEXTS (" + pluginName + "): ");
-		    for (Iterator<LinkContextEntry> ctxtIter = linkingContext.iterator(); ctxtIter.hasNext(); ) {
-			LinkContextEntry ctxt = ctxtIter.next();
-			System.out.println("PLC: <" + ctxt.getFromPortId() + ", " + ctxt.getToPortId() + "> via " + ctxt.getRemotePortId());
-		    }
-		}
-		rs3.close();
-	    } catch (SQLException ex) {
-		System.out.println("db error 4");
-		System.out.println(ex.getMessage());
-		return jsonError("internal db error 4");
-	    }
+	// Ports, links and plugins are the same for every car with this
+	// configuration
+	InstallPlan plan = planResolver.resolve(appID, vehicleConfigId,
+						vehicleConfigName);
+	if (plan.error != null) {
+	    return jsonError(plan.error);
 	}
 
 	// Achieve jars
@@ -753,125 +585,279 @@ public class PluginWebServicesImpl implements PluginWebServices {
 	    System.out.println("application name " + c10);
 	}
 
+	String err = addPlugins(appID, plan, simulator, null,
+				ServerHandler.getSuites(session), bases,
+				installPackageDataList, installCachePlugins);
+	if (err != null)
+	    return jsonError(err);
+
+	System.out.println("READY FOR INSTALLATION WRITING!");
+
+	// Store it temporarily to cache and will be used after the
+	// arrival of acknowledge messages
+	Cache.getCache().addInstallCache(vin, appID, installCachePlugins);
+	expectInstallAcks(vin, appID, installCachePlugins);
+	InstallPacket installPacket = new InstallPacket(vin,
+							installPackageDataList);
+	session.write(installPacket);
+
+	System.out.println("SUCCESSFULLY INSTALLED SOME STUFF!");
+
+	return jsonOK();
+    }
+
+    // Reads the plugins of the plan and adds them to data and records.
+    // Files already in the map are not read again, and files whose hash is
+    // in carSuites (the suites stored in the car, or null) are left out.
+    // A file whose version in bases is stored in the car is sent as a delta
+    // against it, if that is smaller. Returns the error, if any.
+    @SuppressWarnings("unchecked")
+    private String addPlugins(int appID, InstallPlan plan, String simulator,
+			      HashMap<String, byte []> files,
+			      Set<String> carSuites,
+			      HashMap<String, String> bases,
+			      ArrayList<InstallPacketData> data,
+			      ArrayList<VehiclePluginRecord> records) {
+	HashMap<String, Integer> portInitialContext = plan.portInitialContext;
+	HashMap<String, ArrayList<LinkContextEntry>> linkingContexts = plan.linkingContexts;
+
 	// Fetch PlugIns from DB
 	// HashMap<String, Byte> contexts = new HashMap<String, Byte>();
-	@SuppressWarnings("unchecked")
-
-	    String q12 =
-	    "select name,ecuRef,location,fullClassName " +
-	    "from DatabasePlugin where application_id = " + appID;
-	ResultSet rs12 = mysql.getResults(q12);
+	//System.out.println("Found plugins, size: " + plugins.size());
+	for (String [] row12 : plan.plugins) {
+	    String pluginName = row12[0];
+	    System.out.println("Found plugin with name: " + pluginName);
+				
+	    System.out.println(row12[1]);
+	    System.out.println(row12[2]);
+	    System.out.println(row12[3]);
+
+	    int remoteEcuId = Integer.parseInt(row12[1]);
+	    //			int sendingPortId = vehicleConfigDao.getSendingPortId
+	    //			    (
+	    //			     vehicleConfigId, remoteEcuId
+	    //			     );
+	    //			int callbackPortId = vehicleConfigDao.getCallbackPortId
+	    //			    (
+	    //			     vehicleConfigId, remoteEcuId
+	    //			     );
+	    //			System.out.println("sendingPortId " + sendingPortId);
+	    //			System.out.println("callbackPortId " + callbackPortId);
+
+	    // there is code in VehicleConfigDao which looks these up,
+	    // but they seem to always be -1 in the database right now,
+	    // and it's not clear that it does it right way.
+	    int sendingPortId = -1;
+	    int callbackPortId = -1;
+
+	    String executablePluginName = "plugin://"
+		+ row12[3] + "/" + pluginName;
+	    String pluginSuiteName = pluginName + ".suite"; //TODO: Come on...
+
+	    String location = row12[2];
+				
+	    System.out.println("simulator (" + simulator + ")");
 
-	try {
-	    //System.out.println("Found plugins, size: " + plugins.size());
-	    while (rs12.next()) {
-		String pluginName = rs12.getString(1);
-		System.out.println("Found plugin with name: " + pluginName);
+	    String fileType = ".jar";
+	    if ("0".equals(simulator)) {
+		fileType = ".suite";
+		location += File.separator + pluginName;
+	    }
 				
-		System.out.println(rs12.getString(2));
-		System.out.println(rs12.getString(3));
-		System.out.println(rs12.getString(4));
-
-		int remoteEcuId = Integer.parseInt(rs12.getString(2));
-		//			int sendingPortId = vehicleConfigDao.getSendingPortId
-		//			    (
-		//			     vehicleConfigId, remoteEcuId
-		//			     );
-		//			int callbackPortId = vehicleConfigDao.getCallbackPortId
-		//			    (
-		//			     vehicleConfigId, remoteEcuId
-		//			     );
-		//			System.out.println("sendingPortId " + sendingPortId);
-		//			System.out.println("callbackPortId " + callbackPortId);
-
-		// there is code in VehicleConfigDao which looks these up,
-		// but they seem to always be -1 in the database right now,
-		// and it's not clear that it does it right way.
-		int sendingPortId = -1;
-		int callbackPortId = -1;
-
-		String executablePluginName = "plugin://"
-		    + rs12.getString(4) + "/" + pluginName;
-		String pluginSuiteName = pluginName + ".suite"; //TODO: Come on...
-
-		String location = rs12.getString(3);
+	    System.out.println("fileType " + fileType);
+
+	    location += fileType;
+	    pluginName += fileType;
+	    executablePluginName += fileType;
 				
-		String q71 = "select simulator from Vehicle where vin = '" + vin + "'";
-		String c71 = mysql.getOne(q71);
-		if (c71.equals("none")) {
-		    System.out.println("internal error 71");
-		    return jsonError("internal db error");
+	    File file = new File(location);
+	    byte[] fileBytes = files == null ? null : files.get(location);
+	    try {
+		// ArrayList<LinkingContextEntry> linkingContext =
+		// linkingContexts
+		// .get(pluginName);
+		ArrayList<LinkContextEntry> linkingContext = (ArrayList<LinkContextEntry>) linkingContexts
+		    .get(pluginSuiteName);
+		String hash = SuiteHashes.get(location);
+		String baseHash = null;
+		if (carSuites != null && carSuites.contains(hash)) {
+		    System.out.println("car has " + location);
+		    fileBytes = null;
+		} else if (fileBytes == null) {
+		    fileBytes = readBytesFromFile(file);
+		    if (files != null)
+			files.put(location, fileBytes);
 		}
 
-		System.out.println("c71 (" + c71 + ")");
-
-		String fileType = ".jar";
-		if (c71.equals("0")) {
-		    fileType = ".suite";
-		    location += File.separator + pluginName;
+		String base = bases == null ? null : bases.get(pluginName);
+		if (fileBytes != null && carSuites != null && base != null
+		    && !base.equals(location)
+		    && new File(base).isFile()
+		    && carSuites.contains(SuiteHashes.get(base))) {
+		    byte [] delta = SuiteDelta.diff
+			(readBytesFromFile(new File(base)), fileBytes);
+		    System.out.println("delta from " + base + ": "
+				       + delta.length + " of "
+				       + fileBytes.length + " bytes");
+		    if (delta.length < fileBytes.length / 2) {
+			fileBytes = delta;
+			baseHash = SuiteHashes.get(base);
+		    }
 		}
-				
-		System.out.println("fileType " + fileType);
+		InstallPacketData installPacketData =
+		    new InstallPacketData
+		    (
+		     appID, pluginName, sendingPortId,
+		     callbackPortId, remoteEcuId, portInitialContext,
+		     linkingContext, executablePluginName, fileBytes
+		     );
+		installPacketData.setSuiteHash(hash);
+		installPacketData.setBaseHash(baseHash);
+		data.add(installPacketData);
 
-		location += fileType;
-		pluginName += fileType;
-		executablePluginName += fileType;
-				
-		File file = new File(location);
-		byte[] fileBytes;
+		VehiclePluginRecord record =
+		    new VehiclePluginRecord
+		    (
+		     pluginName, remoteEcuId, sendingPortId,
+		     callbackPortId, portInitialContext, linkingContext,
+		     location, executablePluginName
+		     );
+
+		records.add(record);
+
+	    } catch (IOException e) {
+		e.printStackTrace();
+		return "installApp: internal error: couldn't read from the app file " + location;
+	    }
+	}
+
+	return null;
+    }
+
+    // Installs the application on all the cars, reading and encoding each
+    // plugin once for all cars with the same configuration. The writes
+    // and ACKs are followed in a Rollout, see rolloutStatus.
+    @Override
+	public String installAppOnVehicles(String [] vins, int appID)
+	throws PluginWebServicesException {
+	System.out.println("installAppOnVehicles " + appID + " on " +
+			   vins.length + " cars");
+
+	String q3s = "select state from Application where id = ?" +
+	    " and state < '060'";
+	String c3s = mysql.queryOne(q3s, appID);
+
+	if (c3s.equals("error")) {
+	    return jsonError("installApp: internal db error 3");
+	}
+
+	if (c3s.equals("none")) {
+	    return jsonError("installApp: internal db error 4");
+	}
+
+	if (c3s.compareTo("030-compiled") < 0) {
+	    return jsonError("installApp: application in wrong state: " + c3s);
+	}
+
+	final Rollout rollout = Rollout.start(appID);
+
+	// key: vehicleConfigId + "/" + simulator, value: vins
+	HashMap<String, ArrayList<String>> groups = new HashMap<String, ArrayList<String>>();
+	HashMap<String, String []> configs = new HashMap<String, String []>();
+	for (String vin : vins) {
+	    String [] c7 = vehicleConfig(vin);
+	    if (c7 == null) {
+		rollout.set(vin, "no appropriate Vehicle/VehicleConfig combination");
+		continue;
+	    }
+	    String key = c7[0] + "/" + c7[3];
+	    ArrayList<String> group = groups.get(key);
+	    if (group == null) {
+		group = new ArrayList<String>();
+		groups.put(key, group);
+		configs.put(key, c7);
+	    }
+	    group.add(vin);
+	}
+
+	// key: location, value: contents
+	HashMap<String, byte []> files = new HashMap<String, byte []>();
+	for (Map.Entry<String, ArrayList<String>> g : groups.entrySet()) {
+	    String [] c7 = configs.get(g.getKey());
+	    InstallPlan plan = planResolver.resolve(appID, Integer.parseInt(c7[0]), c7[1]);
+	    String err = plan.error;
+
+	    ArrayList<InstallPacketData> data = new ArrayList<InstallPacketData>();
+	    ArrayList<VehiclePluginRecord> records = new ArrayList<VehiclePluginRecord>();
+	    if (err == null)
+		err = addPlugins(appID, plan, c7[3], files, null, null,
+				 data, records);
+
+	    InstallPacket installPacket = new InstallPacket(null, data);
+	    IoBuffer fields = null;
+	    if (err == null) {
 		try {
-		    // ArrayList<LinkingContextEntry> linkingContext =
-		    // linkingContexts
-		    // .get(pluginName);
-		    ArrayList<LinkContextEntry> linkingContext = (ArrayList<LinkContextEntry>) linkingContexts
-			.get(pluginSuiteName);
-		    fileBytes = readBytesFromFile(file);
-		    InstallPacketData installPacketData =
-			new InstallPacketData
-			(
-			 appID, pluginName, sendingPortId,
-			 callbackPortId, remoteEcuId, portInitialContext,
-			 linkingContext, executablePluginName, fileBytes
-			 );
-		    installPackageDataList.add(installPacketData);
-
-		    // Store it temporarily to cache and will be used after the
-		    // arrival of acknowledge messages
-		    VehiclePluginRecord record =
-			new VehiclePluginRecord
-			(
-			 pluginName, remoteEcuId, sendingPortId,
-			 callbackPortId, portInitialContext, linkingContext,
-			 location, executablePluginName
-			 );
-
-		    installCachePlugins.add(record);
-					
-		    System.out.println("READY FOR INSTALLATION WRITING!");
-					
-		    Cache.getCache().addInstallCache(vin, appID, installCachePlugins);
-		    InstallPacket installPacket = new InstallPacket(vin,
-								    installPackageDataList);
-		    session.write(installPacket);
-					
-		    System.out.println("SUCCESSFULLY INSTALLED SOME STUFF!");
-
-		} catch (IOException e) {
+		    fields = PacketCodecFactory.encodeFields(installPacket);
+		} catch (ProtocolEncoderException e) {
 		    e.printStackTrace();
-		    // will rs12 not be closed now?
-		    return jsonError("installApp: internal error: couldn't read from the app file " + location);
+		    err = "could not encode packet";
+		}
+	    }
+	    if (err != null) {
+		for (String vin : g.getValue())
+		    rollout.set(vin, err);
+		continue;
+	    }
+
+	    for (final String vin : g.getValue()) {
+		IoSession session = ServerHandler.getSession(vin);
+		if (session == null) {
+		    rollout.set(vin, Rollout.NO_CONNECTION);
+		    continue;
 		}
+		rollout.set(vin, Rollout.SENDING);
+		Cache.getCache().addInstallCache
+		    (vin, appID, new ArrayList<VehiclePluginRecord>(records));
+		expectInstallAcks(vin, appID, records);
+		WriteFuture f = session.write
+		    (new PacketCodecFactory.EncodedPacket(vin, installPacket, fields));
+		f.addListener(new IoFutureListener<WriteFuture>() {
+			public void operationComplete(WriteFuture future) {
+			    rollout.written(vin, future.isWritten());
+			}
+		    });
 	    }
-	    rs12.close();
-	} catch (SQLException ex) {
-	    System.out.println("db error 5");
-	    System.out.println(ex.getMessage());
-	    return jsonError("internal db error 5");
 	}
 
-	return jsonOK();
+	JSONObject o = new JSONObject();
+	o.put("result", rollout.toJSON());
+	o.put("error", false);
+	return o.toString();
+    }
+
+    @Override
+	public String rolloutStatus(int rolloutId)
+	throws PluginWebServicesException {
+	Rollout rollout = Rollout.get(rolloutId);
+	if (rollout == null)
+	    return jsonError("no such rollout " + rolloutId);
+
+	JSONObject o = new JSONObject();
+	o.put("result", rollout.toJSON());
+	o.put("error", false);
+	return o.toString();
     }
 
+    // vehicleConfig_id, name and brand of the VehicleConfig, and simulator
+    // of a car, or null
+    private String [] vehicleConfig(String vin) {
+	String q7 = "select v.vehicleConfig_id, c.name, c.brand, v.simulator"
+	    + " from Vehicle v join VehicleConfig c on c.id = v.vehicleConfig_id"
+	    + " where v.vin = ?";
+	return mysql.queryOneSet(q7, vin);
+    }
+
+
     public String uninstallApp(String vin, int appID)
 	throws PluginWebServicesException {
 
@@ -898,41 +884,30 @@ public class PluginWebServicesImpl implements PluginWebServices {
 
 	    String q2 = "select name,sendingPortId,callbackPortId,ecuId"
 		+ " from VehiclePlugin where"
-		+ " application_id = " + appID
-		+ " and vin = '" + vin + "'";
-	    ResultSet rs = mysql.getResults(q2);
-
-	    // We should fetch all rows, but we don't expect there to
-	    // be more than one.
-
-	    int inst_n = 0;
-
-	    try {
-		while (rs.next()) {
-		    inst_n++;
+		+ " application_id = ? and vin = ?";
+	    List<String []> rows2 = mysql.queryRows(q2, appID, vin);
+	    if (rows2 == null)
+		return jsonError("internal db error 6");
 
-		    String pluginName = rs.getString(1);
-		    int sendingPortId = Integer.parseInt(rs.getString(2));
-		    int callbackPortId = Integer.parseInt(rs.getString(3));
-		    int ecuRef = Integer.parseInt(rs.getString(4));
+	    for (String [] row : rows2) {
+		String pluginName = row[0];
+		int sendingPortId = Integer.parseInt(row[1]);
+		int callbackPortId = Integer.parseInt(row[2]);
+		int ecuRef = Integer.parseInt(row[3]);
 
-		    UninstallPacketData uninstallPackageData = new UninstallPacketData(
-										       sendingPortId, callbackPortId, ecuRef, pluginName);
-		    uninstallPackageDataList.add(uninstallPackageData);
+		UninstallPacketData uninstallPackageData = new UninstallPacketData(
+										   sendingPortId, callbackPortId, ecuRef, pluginName);
+		uninstallPackageDataList.add(uninstallPackageData);
 
-		    uninstallCacheName.add(pluginName);
-		}
-		rs.close();
-		if (inst_n == 0)
-		    return jsonError("uninstallApp: app " + appID +
-				     " not installed on car " + vin);
-	    } catch (SQLException ex) {
-		System.out.println("db error 6");
-		System.out.println(ex.getMessage());
-		return jsonError("internal db error 6");
+		uninstallCacheName.add(pluginName);
 	    }
+	    if (rows2.isEmpty())
+		return jsonError("uninstallApp: app " + appID +
+				 " not installed on car " + vin);
 
 	    Cache.getCache().addUninstallCache(vin, appID, uninstallCacheName);
+	    ServerHandler.getAcks().expect(Acks.UNINSTALLED, vin, appID,
+					   uninstallCacheName);
 
 	    UninstallPacket uninstallPackage = new UninstallPacket(vin,
 								   uninstallPackageDataList);
@@ -976,11 +951,14 @@ public class PluginWebServicesImpl implements PluginWebServices {
 	    System.out.println("upgrade: no session");
 	    return false;
 	} else {
+	    // The car keeps the suites of the old version stored, so the new
+	    // one can be sent as deltas against them
+	    HashMap<String, String> bases = installedPlugins(vin, oldAppID);
 	    uninstallApp(vin, oldAppID);
 	    try {
 		Thread.sleep(2000);
 		if (newAppId > -1) {
-		    installApp(vin, newAppId); //TODO: This should also be implemented for JDK (all the way to the upgrade button in the php-interface)
+		    installApp(vin, newAppId, bases); //TODO: This should also be implemented for JDK (all the way to the upgrade button in the php-interface)
 		    return true;
 		}
 		else 
@@ -993,6 +971,25 @@ public class PluginWebServicesImpl implements PluginWebServices {
 
     }
 
+    // The plugins installed in the car, of the application or of all
+    // applications if appID is -1. Key: plugin name, value: location.
+    private HashMap<String, String> installedPlugins(String vin, int appID) {
+	HashMap<String, String> plugins = new HashMap<String, String>();
+	List<String []> rows;
+	if (appID == -1)
+	    rows = mysql.queryRows("select name,location from VehiclePlugin"
+				   + " where vin = ?", vin);
+	else
+	    rows = mysql.queryRows("select name,location from VehiclePlugin"
+				   + " where vin = ? and application_id = ?",
+				   vin, appID);
+	if (rows != null) {
+	    for (String [] row : rows)
+		plugins.put(row[0], row[1]);
+	}
+	return plugins;
+    }
+
     private byte[] readBytesFromFile(File file) throws IOException {
 	InputStream is = new FileInputStream(file);
 	// Get the size of the file
@@ -1132,7 +1129,12 @@ public class PluginWebServicesImpl implements PluginWebServices {
 	    File file = new File(location);
 	    byte[] fileBytes;
 	    try {
-		fileBytes = readBytesFromFile(file);
+		String hash = SuiteHashes.get(location);
+		Set<String> carSuites = ServerHandler.getSuites(session);
+		if (carSuites != null && carSuites.contains(hash))
+		    fileBytes = null;
+		else
+		    fileBytes = readBytesFromFile(file);
 		InstallPacketData installPackageData =
 		    new InstallPacketData
 		    (
@@ -1146,6 +1148,7 @@ public class PluginWebServicesImpl implements PluginWebServices {
 		     executablePluginName,
 		     fileBytes
 		     );
+		installPackageData.setSuiteHash(hash);
 		installPackageDataList.add(installPackageData);
 	    } catch (IOException e) {
 		System.out
@@ -1179,6 +1182,15 @@ public class PluginWebServicesImpl implements PluginWebServices {
 	return jsonOK();
     }
 
+    // Counters of the parts of the server, one line each
+    @WebMethod
+	public String stats()
+	throws PluginWebServicesException {
+	return jsonOK(ServerHandler.getStats() + "\n"
+		      + compileService.getStats() + "\n"
+		      + Cache.getCache().getStats());
+    }
+
     @WebMethod
 	public String addVehicleConfig(String name, byte [] data)
 	throws PluginWebServicesException {
@@ -1542,9 +1554,9 @@ public class PluginWebServicesImpl implements PluginWebServices {
 	public String compileApp(String appname, String version)
 	throws PluginWebServicesException {
 
-	String q1 = "select id from Application where name = '" + appname + "'"
-	    + "and state < '060'";
-	String c1 = mysql.getOne(q1);
+	String q1 = "select id from Application where name = ?"
+	    + " and state < '060'";
+	String c1 = mysql.queryOne(q1, appname);
 
 	if (c1.equals("error")) {
 	    return jsonError("compileApp: internal db error 1");
@@ -1554,10 +1566,9 @@ public class PluginWebServicesImpl implements PluginWebServices {
 	    return jsonError("compileApp: no such app " + appname);
 	}
 
-	String q2 = "select id from Application where name = '" + appname +
-	    "' and version = '" + version + "'" + "and state < '060'";
-;
-	String c2 = mysql.getOne(q2);
+	String q2 = "select id from Application where name = ?" +
+	    " and version = ? and state < '060'";
+	String c2 = mysql.queryOne(q2, appname, version);
 
 	if (c2.equals("error")) {
 	    return jsonError("compileApp: internal db error 2");
@@ -1567,10 +1578,9 @@ public class PluginWebServicesImpl implements PluginWebServices {
 	    return jsonError("compileApp: app " + appname + " has no version [" + version + "]");
 	}
 
-	String q3 = "select state from Application where name = '" + appname +
-	    "' and version = '" + version + "'" + "and state < '060'";
-;
-	String c3 = mysql.getOne(q3);
+	String q3 = "select state from Application where name = ?" +
+	    " and version = ? and state < '060'";
+	String c3 = mysql.queryOne(q3, appname, version);
 
 	if (c3.equals("error")) {
 	    return jsonError("compileApp: internal db error 3");
@@ -1585,31 +1595,17 @@ public class PluginWebServicesImpl implements PluginWebServices {
 	}
 
 	String zipFile = PropertyAPI.getInstance().getProperty("mopedtop") + "/webportal/moped_plugins/" + appname + "/" + version + "/" + appname + ".jar";
-	CompressUtils util = new CompressUtils();
-	System.out.println("Calling unzip on " + zipFile);
-	String dest;
-	try {
-	    dest = util.unzip(zipFile);
-	} catch (MopedException e) {
-	    return jsonError(e.getMsg());
-	}
-		
-	System.out.println("Unzipped into: " + dest); 
-	dest = dest.substring(0,  dest.length() - 11); //Remove "j2meclasses"
-		
-	new File(dest + appname + ".suite").delete();
-
-	String reply[] = new String[1];
-	boolean s = suiteGen.generateSuite(dest, reply); // + "/" + fullClassName);
-	if (s) {
-	    String q1u = "update Application set state='030-compiled' where id=" + c2;
-	    int rows1u = mysql.update(q1u);
+	CompileService.Result result = compileService.compile(appname, zipFile);
+	if (result.ok) {
+	    String q1u = "update Application set state='030-compiled' where id = ?";
+	    int rows1u = mysql.execute(q1u, Integer.parseInt(c2));
 	    if (rows1u != 1)
 		return jsonError("compile: internal db error 5");
+	    planResolver.invalidate(Integer.parseInt(c2));
 
-	    return jsonOK(reply[0]);
+	    return jsonOK(result.reply);
 	} else {
-	    return jsonError(reply[0]);
+	    return jsonError(result.reply);
 	}
     }
 
@@ -1693,29 +1689,7 @@ public class PluginWebServicesImpl implements PluginWebServices {
     @WebMethod
 	public String listVehicles()
 	throws PluginWebServicesException {
-	String q1 = "select VIN from Vehicle";
-	ArrayList<String> a = new ArrayList<String>();
-
-	MySqlIterator it = mysql.getIterator(q1);
-
-	JSONObject o = new JSONObject();
-	JSONArray o1 = new JSONArray();
-
-	if (it == null) {
-	    o.put("result", o1);
-	    o.put("error", true);
-	    return o.toString();
-	}
-
-	while (it.next()) {
-	    JSONObject o2 = new JSONObject();
-	    o2.put("vin", it.getString(1));
-	    o1.put(o2);
-	}
-	o.put("result", o1);
-	o.put("error", false);
-
-	return o.toString();
+	return readModel.get(ReadModel.VEHICLES).json;
     }
 
     @WebMethod
@@ -1726,182 +1700,27 @@ public class PluginWebServicesImpl implements PluginWebServices {
 	if (cs1 != null)
 	    return cs1;
 
-	String q2 = "select v.vin,v.name from Vehicle v, UserVehicleAssociation a where a.vehicle_id = v.id and a.user_ID = " + user_id;
-	ArrayList<String> a = new ArrayList<String>();
-
-	MySqlIterator it = mysql.getIterator(q2);
-
-	JSONObject o = new JSONObject();
-	JSONArray o1 = new JSONArray();
-
-	if (it == null) {
-	    o.put("result", o1);
-	    o.put("error", true);
-	    return o.toString();
-	}
-
-	while (it.next()) {
-	    JSONObject o2 = new JSONObject();
-	    o2.put("vin", it.getString(1));
-	    o2.put("name", it.getString(2));
-	    o1.put(o2);
-	}
-	o.put("result", o1);
-	o.put("error", false);
-
-	return o.toString();
-
+	return readModel.get(ReadModel.USER_VEHICLES, user_id).json;
     }
 
     @WebMethod
 	public String listVehicleConfigs()
 	throws PluginWebServicesException {
-	String q1 = "select name,brand from VehicleConfig";
-
-	MySqlIterator it = mysql.getIterator(q1);
-
-	JSONObject o = new JSONObject();
-	JSONArray o1 = new JSONArray();
-
-	if (it == null) {
-	    o.put("result", o1);
-	    o.put("error", true);
-	    return o.toString();
-	}
-
-	while (it.next()) {
-	    JSONObject o2 = new JSONObject();
-	    o2.put("name", it.getString(1));
-	    o2.put("brand", it.getString(2));
-	    o1.put(o2);
-	}
-	o.put("result", o1);
-	o.put("error", false);
-
-	return o.toString();
-    }
-
-    private int cmpVersions(String s1, String s2) {
-	String [] a1 = s1.split("\\.");
-	String [] a2 = s2.split("\\.");
-
-	int i = 0;
-	int n1 = a1.length;
-	int n2 = a2.length;
-	int n;
-
-	if (n1 < n2)
-	    n = n1;
-	else
-	    n = n2;
-
-	while (i < n) {
-	    String p1 = a1[i];
-	    String p2 = a2[i];
-
-	    int cmp;
-
-	    try {
-		int i1 = Integer.parseInt(p1);
-		int i2 = Integer.parseInt(p2);
-		if (i1 < i2)
-		    cmp = -1;
-		else if (i1 > i2)
-		    cmp = 1;
-		else
-		    cmp = 0;
-	    } catch (NumberFormatException e) {
-		cmp = p1.compareTo(p2);
-	    }
-
-	    if (cmp < 0)
-		return -1;
-	    if (cmp > 0)
-		return 1;
-	    i++;
-	}
-	if (n1 < n2)
-	    return -1;
-	else if (n1 > n2)
-	    return 1;
-	else
-	    return 0;
+	return readModel.get(ReadModel.VEHICLE_CONFIGS).json;
     }
 
+    // Sorted by name, and the versions of an application from the oldest
     @WebMethod
 	public String listApplications()
 	throws PluginWebServicesException {
-	String q1 = "select a.id,name,publisher,version,state,c.vehicleConfigName from Application a, AppConfig c where c.application_id=a.id and state < '060' ORDER BY name";
-
-	MySqlIterator it = mysql.getIterator(q1);
-
-	JSONObject o = new JSONObject();
-	JSONArray o1 = new JSONArray();
-
-	if (it == null) {
-	    o.put("result", o1);
-	    o.put("error", true);
-	    return o.toString();
-	}
-
-	int n = 0;
-	while (it.next()) {
-	    JSONObject o2 = new JSONObject();
-	    String appid = it.getString(1);
-	    o2.put("id", appid);
-	    o2.put("name", it.getString(2));
-	    o2.put("publisher", it.getString(3));
-	    o2.put("version", it.getString(4));
-	    o2.put("state", it.getString(5));
-	    o2.put("vehicleConfig", it.getString(6));
-
-	    String q2 = "select ecuRef from DatabasePlugin where application_id = " + appid;
-	    MySqlIterator it2 = mysql.getIterator(q2);
-	    JSONArray a2 = new JSONArray();
-	    int n3 = 0;
-	    while (it2.next()) {
-		a2.put(n3, it2.getString(1));
-		n3++;
-	    }
-	    o2.put("ecuList", a2);
-
-	    int cmp;
-	    String n1 = (String) o2.get("name");
-	    String v1 = (String) o2.get("version");
-	    int k = -1;
-	    for (int i = 0; i < n; i++) {
-		JSONObject o3 = (JSONObject) o1.get(i);
-		String n2 = (String) o3.get("name");
-		cmp = n1.compareTo(n2);
-		if (cmp < 0) {
-		    k = i;
-		    break;
-		}
-		if (cmp == 0) {
-		    String v2 = (String) o3.get("version");
-		    //cmp = v1.compareTo(v2);
-		    cmp = cmpVersions(v1, v2);
-		    if (cmp < 0) {
-			k = i;
-			break;
-		    }
-		}
-	    }
-
-	    if (k == -1)
-		k = n;
-
-	    for (int i = n-1; i >= k; i--) {
-		o1.put(i+1, o1.get(i));
-	    }
-	    o1.put(k, o2);
-	    n++;
-	}
-
-	o.put("result", o1);
-	o.put("error", false);
+	return readModel.get(ReadModel.APPLICATIONS).json;
+    }
 
-	return o.toString();
+    // Only the latest version of each application
+    @WebMethod
+	public String listLatestApplications()
+	throws PluginWebServicesException {
+	return readModel.get(ReadModel.LATEST_APPLICATIONS).json;
     }
 
     @WebMethod
@@ -1912,64 +1731,42 @@ public class PluginWebServicesImpl implements PluginWebServices {
 	if (cs1 != null)
 	    return cs1;
 
-	String q2 = "select v.vin,a.activeVehicle from"
-	    + " UserVehicleAssociation a,Vehicle v where"
-	    + " a.user_ID = " + user_id
-	    + " and a.vehicle_id = v.id";
-
-	MySqlIterator it = mysql.getIterator(q2);
-
-	JSONObject o = new JSONObject();
-	JSONArray o1 = new JSONArray();
-
-	if (it == null) {
-	    o.put("result", o1);
-	    o.put("error", true);
-	    return o.toString();
-	}
-
-	while (it.next()) {
-	    JSONObject o2 = new JSONObject();
-	    o2.put("vin", it.getString(1));
-	    o2.put("active", it.getString(2).equals("1"));
-	    o1.put(o2);
-	}
-	o.put("result", o1);
-	o.put("error", false);
-
-	return o.toString();
+	return readModel.get(ReadModel.USER_VEHICLE_ASSOCIATIONS, user_id).json;
     }
 
     @WebMethod
 	public String listInstalledApps()
 	throws PluginWebServicesException {
-	String q1 = "select application_id,ecuId,a.name,vin,a.state,v.state,a.version from VehiclePlugin v, Application a where a.id = v.application_id";
-
-	MySqlIterator it = mysql.getIterator(q1);
+	return readModel.get(ReadModel.INSTALLED_APPS).json;
+    }
 
-	JSONObject o = new JSONObject();
-	JSONArray o1 = new JSONArray();
+    // The list of that name (see ReadModel) with its etag, or only the etag
+    // and notModified if the list still has the etag given. user_id is only
+    // used for the lists of a user.
+    @WebMethod
+	public String listIfChanged(String list, int user_id, String etag)
+	throws PluginWebServicesException {
 
-	if (it == null) {
-	    o.put("result", o1);
-	    o.put("error", true);
-	    return o.toString();
+	if (list.equals(ReadModel.USER_VEHICLES)
+	    || list.equals(ReadModel.USER_VEHICLE_ASSOCIATIONS)) {
+	    String cs1 = checkUser(user_id);
+	    if (cs1 != null)
+		return cs1;
 	}
 
-	while (it.next()) {
-	    JSONObject o2 = new JSONObject();
-	    o2.put("appId", it.getString(1));
-	    o2.put("ecu", it.getString(2));
-	    o2.put("name", it.getString(3));
-	    o2.put("vin", it.getString(4));
-	    o2.put("applicationState", it.getString(5));
-	    o2.put("installationState", it.getString(6));
-	    o2.put("version", it.getString(7));
-	    o1.put(o2);
-	}
-	o.put("result", o1);
-	o.put("error", false);
+	ReadModel.Snapshot l = readModel.get(list, user_id);
+	if (l == null)
+	    return jsonError("no such list: " + list);
 
+	if (l.etag.equals(etag)) {
+	    JSONObject o = new JSONObject();
+	    o.put("etag", l.etag);
+	    o.put("notModified", true);
+	    o.put("error", false);
+	    return o.toString();
+	}
+	JSONObject o = new JSONObject(l.json);
+	o.put("etag", l.etag);
 	return o.toString();
     }
 
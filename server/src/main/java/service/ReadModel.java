@@ -0,0 +1,422 @@
+package service;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import utils.PropertyAPI;
+
+/*
+ * The vehicles, applications and installations as the list methods of the
+ * web services return them, kept as JSON ready to be sent, so that the
+ * portal polling them does not query the database each time.
+ *
+ * CallMySql tells the model about each table it writes, and a view is
+ * loaded again on the first call after a write to one of the tables it is
+ * made from. The portal also writes some tables itself, so a view is also
+ * loaded again when it is older than read_model_max_age seconds.
+ *
+ * Each list has an etag, the start of the SHA-256 of its JSON, which the
+ * portal can send back to listIfChanged to learn that nothing changed
+ * without getting the list again.
+ */
+public class ReadModel {
+    private static final int DEFAULT_MAX_AGE = 5;
+
+    public static final String VEHICLES = "vehicles";
+    public static final String VEHICLE_CONFIGS = "vehicleConfigs";
+    public static final String APPLICATIONS = "applications";
+    public static final String LATEST_APPLICATIONS = "latestApplications";
+    public static final String INSTALLED_APPS = "installedApps";
+    // the lists of one user are named name/user_id
+    public static final String USER_VEHICLES = "userVehicles";
+    public static final String USER_VEHICLE_ASSOCIATIONS =
+	"userVehicleAssociations";
+
+    private static final Pattern WRITE = Pattern.compile
+	("^\\s*(?:insert\\s+(?:ignore\\s+)?into|replace\\s+into|update"
+	 + "|delete\\s+from)\\s+`?(\\w+)", Pattern.CASE_INSENSITIVE);
+
+    // key: table in lower case, value: number of statements that wrote it
+    private static ConcurrentHashMap<String, AtomicLong> writes =
+	new ConcurrentHashMap<String, AtomicLong>();
+    // statements whose table was not recognized, which may have written any
+    private static AtomicLong unknownWrites = new AtomicLong();
+
+    public static class Snapshot {
+	public final String json;
+	public final String etag;
+
+	Snapshot(String json) {
+	    this.json = json;
+	    this.etag = etag(json);
+	}
+    }
+
+    private static final Snapshot EMPTY =
+	new Snapshot("{\"result\":[],\"error\":false}");
+    private static final Snapshot ERROR =
+	new Snapshot("{\"result\":[],\"error\":true}");
+
+    private static ReadModel instance = new ReadModel();
+
+    private CallMySql mysql = new CallMySql();
+    private long maxAge;
+
+    private View vehicles;
+    private View vehicleConfigs;
+    private View applications;
+    private View installedApps;
+    private View users;
+    // key: name of a list, value: the view that has it
+    private HashMap<String, View> views = new HashMap<String, View>();
+
+    private ReadModel() {
+	int s = DEFAULT_MAX_AGE;
+	String p = PropertyAPI.getInstance().getProperty("read_model_max_age");
+	if (p != null)
+	    s = Integer.parseInt(p.trim());
+	maxAge = s * 1000L;
+
+	vehicles = new View("Vehicle") {
+		Map<String, String> load() {
+		    return loadVehicles();
+		}
+	    };
+	vehicleConfigs = new View("VehicleConfig") {
+		Map<String, String> load() {
+		    return loadVehicleConfigs();
+		}
+	    };
+	applications = new View("Application", "AppConfig", "DatabasePlugin") {
+		Map<String, String> load() {
+		    return loadApplications();
+		}
+	    };
+	installedApps = new View("VehiclePlugin", "Application") {
+		Map<String, String> load() {
+		    return loadInstalledApps();
+		}
+	    };
+	users = new View("UserVehicleAssociation", "Vehicle") {
+		Map<String, String> load() {
+		    return loadUsers();
+		}
+	    };
+
+	views.put(VEHICLES, vehicles);
+	views.put(VEHICLE_CONFIGS, vehicleConfigs);
+	views.put(APPLICATIONS, applications);
+	views.put(LATEST_APPLICATIONS, applications);
+	views.put(INSTALLED_APPS, installedApps);
+	views.put(USER_VEHICLES, users);
+	views.put(USER_VEHICLE_ASSOCIATIONS, users);
+    }
+
+    public static ReadModel getInstance() {
+	return instance;
+    }
+
+    // Called by CallMySql after each statement that may have written a table
+    static void written(String sql) {
+	Matcher m = WRITE.matcher(sql);
+	if (!m.find()) {
+	    unknownWrites.incrementAndGet();
+	    return;
+	}
+	String table = m.group(1).toLowerCase();
+	AtomicLong n = writes.get(table);
+	if (n == null) {
+	    AtomicLong n1 = writes.putIfAbsent(table, n = new AtomicLong());
+	    if (n1 != null)
+		n = n1;
+	}
+	n.incrementAndGet();
+    }
+
+    private static long writes(String table) {
+	AtomicLong n = writes.get(table);
+	return n == null ? 0 : n.get();
+    }
+
+    // The list of that name, user_id for the lists of one user, or null if
+    // there is no such list
+    public Snapshot get(String name, int user_id) {
+	View view = views.get(name);
+	if (view == null)
+	    return null;
+	if (view == users)
+	    name = name + "/" + user_id;
+	return view.get(name);
+    }
+
+    public Snapshot get(String name) {
+	return get(name, 0);
+    }
+
+    private abstract class View {
+	private final String[] tables;
+	// the writes to the tables, and the unknown writes, when last loaded
+	private long[] seen;
+	private long loaded;
+	// key: name of the list
+	private Map<String, Snapshot> lists;
+
+	View(String... tables) {
+	    this.tables = new String[tables.length];
+	    for (int i = 0; i < tables.length; i++)
+		this.tables[i] = tables[i].toLowerCase();
+	}
+
+	// The JSON of each list by name, or null if the database could not
+	// be read
+	abstract Map<String, String> load();
+
+	private long[] writes() {
+	    long[] w = new long[tables.length + 1];
+	    for (int i = 0; i < tables.length; i++)
+		w[i] = ReadModel.writes(tables[i]);
+	    w[tables.length] = unknownWrites.get();
+	    return w;
+	}
+
+	synchronized Snapshot get(String name) {
+	    // before loading, so that a write while loading is not missed
+	    long[] w = writes();
+	    if (lists == null || !Arrays.equals(w, seen)
+		|| System.currentTimeMillis() - loaded > maxAge) {
+		Map<String, String> json = load();
+		if (json == null) {
+		    lists = null;
+		    return ERROR;
+		}
+		Map<String, Snapshot> l = new HashMap<String, Snapshot>();
+		for (Map.Entry<String, String> e : json.entrySet()) {
+		    Snapshot s = lists == null ? null : lists.get(e.getKey());
+		    if (s == null || !s.json.equals(e.getValue()))
+			s = new Snapshot(e.getValue());
+		    l.put(e.getKey(), s);
+		}
+		lists = l;
+		seen = w;
+		loaded = System.currentTimeMillis();
+	    }
+	    Snapshot s = lists.get(name);
+	    // a user without vehicles
+	    return s == null ? EMPTY : s;
+	}
+    }
+
+    private static String result(JSONArray a) {
+	JSONObject o = new JSONObject();
+	o.put("result", a);
+	o.put("error", false);
+	return o.toString();
+    }
+
+    private Map<String, String> loadVehicles() {
+	List<String []> rows = mysql.queryRows("select VIN from Vehicle");
+	if (rows == null)
+	    return null;
+
+	JSONArray a = new JSONArray();
+	for (String [] row : rows) {
+	    JSONObject o = new JSONObject();
+	    o.put("vin", row[0]);
+	    a.put(o);
+	}
+	return Collections.singletonMap(VEHICLES, result(a));
+    }
+
+    private Map<String, String> loadVehicleConfigs() {
+	List<String []> rows =
+	    mysql.queryRows("select name,brand from VehicleConfig");
+	if (rows == null)
+	    return null;
+
+	JSONArray a = new JSONArray();
+	for (String [] row : rows) {
+	    JSONObject o = new JSONObject();
+	    o.put("name", row[0]);
+	    o.put("brand", row[1]);
+	    a.put(o);
+	}
+	return Collections.singletonMap(VEHICLE_CONFIGS, result(a));
+    }
+
+    private static class Application {
+	String name;
+	// the version split into its parts once, for sorting
+	String [] version;
+	JSONObject json;
+    }
+
+    // By name, and the versions of an application from the oldest
+    private static final Comparator<Application> BY_VERSION =
+	new Comparator<Application>() {
+	    public int compare(Application a1, Application a2) {
+		int cmp = a1.name.compareTo(a2.name);
+		if (cmp != 0)
+		    return cmp;
+		return compareVersions(a1.version, a2.version);
+	    }
+	};
+
+    // The parts are compared as numbers when they are numbers
+    static int compareVersions(String [] a1, String [] a2) {
+	int n = Math.min(a1.length, a2.length);
+	for (int i = 0; i < n; i++) {
+	    int cmp;
+	    try {
+		int i1 = Integer.parseInt(a1[i]);
+		int i2 = Integer.parseInt(a2[i]);
+		cmp = i1 < i2 ? -1 : (i1 > i2 ? 1 : 0);
+	    } catch (NumberFormatException e) {
+		cmp = a1[i].compareTo(a2[i]);
+	    }
+	    if (cmp != 0)
+		return cmp < 0 ? -1 : 1;
+	}
+	return a1.length < a2.length ? -1 : (a1.length > a2.length ? 1 : 0);
+    }
+
+    // The applications sorted by name and version, and the latest version
+    // of each
+    private Map<String, String> loadApplications() {
+	List<String []> rows = mysql.queryRows
+	    ("select a.id,name,publisher,version,state,c.vehicleConfigName"
+	     + " from Application a, AppConfig c where c.application_id=a.id"
+	     + " and state < '060' ORDER BY name");
+	List<String []> ecus = mysql.queryRows
+	    ("select application_id,ecuRef from DatabasePlugin");
+	if (rows == null || ecus == null)
+	    return null;
+
+	// key: application id
+	HashMap<String, JSONArray> ecuLists = new HashMap<String, JSONArray>();
+	for (String [] ecu : ecus) {
+	    JSONArray a = ecuLists.get(ecu[0]);
+	    if (a == null)
+		ecuLists.put(ecu[0], a = new JSONArray());
+	    a.put(ecu[1]);
+	}
+
+	List<Application> apps = new ArrayList<Application>(rows.size());
+	for (String [] row : rows) {
+	    Application app = new Application();
+	    app.name = row[1];
+	    app.version = row[3].split("\\.");
+	    app.json = new JSONObject();
+	    app.json.put("id", row[0]);
+	    app.json.put("name", row[1]);
+	    app.json.put("publisher", row[2]);
+	    app.json.put("version", row[3]);
+	    app.json.put("state", row[4]);
+	    app.json.put("vehicleConfig", row[5]);
+	    JSONArray a = ecuLists.get(row[0]);
+	    app.json.put("ecuList", a == null ? new JSONArray() : a);
+	    apps.add(app);
+	}
+	// stable, so the rows of equal versions keep their order
+	Collections.sort(apps, BY_VERSION);
+
+	JSONArray all = new JSONArray();
+	// key: name, value: the latest version so far
+	LinkedHashMap<String, JSONObject> latest =
+	    new LinkedHashMap<String, JSONObject>();
+	for (Application app : apps) {
+	    all.put(app.json);
+	    latest.put(app.name, app.json);
+	}
+
+	Map<String, String> lists = new HashMap<String, String>();
+	lists.put(APPLICATIONS, result(all));
+	lists.put(LATEST_APPLICATIONS, result(new JSONArray(latest.values())));
+	return lists;
+    }
+
+    private Map<String, String> loadInstalledApps() {
+	List<String []> rows = mysql.queryRows
+	    ("select application_id,ecuId,a.name,vin,a.state,v.state,a.version"
+	     + " from VehiclePlugin v, Application a"
+	     + " where a.id = v.application_id");
+	if (rows == null)
+	    return null;
+
+	JSONArray a = new JSONArray();
+	for (String [] row : rows) {
+	    JSONObject o = new JSONObject();
+	    o.put("appId", row[0]);
+	    o.put("ecu", row[1]);
+	    o.put("name", row[2]);
+	    o.put("vin", row[3]);
+	    o.put("applicationState", row[4]);
+	    o.put("installationState", row[5]);
+	    o.put("version", row[6]);
+	    a.put(o);
+	}
+	return Collections.singletonMap(INSTALLED_APPS, result(a));
+    }
+
+    // The vehicles of all users in one query, as the two lists of each
+    private Map<String, String> loadUsers() {
+	List<String []> rows = mysql.queryRows
+	    ("select a.user_ID,v.vin,v.name,a.activeVehicle"
+	     + " from UserVehicleAssociation a, Vehicle v"
+	     + " where a.vehicle_id = v.id");
+	if (rows == null)
+	    return null;
+
+	// key: user_id
+	LinkedHashMap<String, JSONArray[]> byUser =
+	    new LinkedHashMap<String, JSONArray[]>();
+	for (String [] row : rows) {
+	    JSONArray[] a = byUser.get(row[0]);
+	    if (a == null) {
+		a = new JSONArray[] {new JSONArray(), new JSONArray()};
+		byUser.put(row[0], a);
+	    }
+	    JSONObject o = new JSONObject();
+	    o.put("vin", row[1]);
+	    o.put("name", row[2]);
+	    a[0].put(o);
+	    o = new JSONObject();
+	    o.put("vin", row[1]);
+	    o.put("active", row[3].equals("1"));
+	    a[1].put(o);
+	}
+
+	Map<String, String> lists = new HashMap<String, String>();
+	for (Map.Entry<String, JSONArray[]> e : byUser.entrySet()) {
+	    lists.put(USER_VEHICLES + "/" + e.getKey(), result(e.getValue()[0]));
+	    lists.put(USER_VEHICLE_ASSOCIATIONS + "/" + e.getKey(),
+		      result(e.getValue()[1]));
+	}
+	return lists;
+    }
+
+    private static String etag(String json) {
+	try {
+	    MessageDigest md = SuiteHashes.digest();
+	    return SuiteHashes.hex(md.digest(json.getBytes("UTF-8")))
+		.substring(0, 16);
+	} catch (IOException e) {
+	    // not without SHA-256; a new etag each time is still correct
+	    return Long.toHexString(System.nanoTime());
+	}
+    }
+}
@@ -0,0 +1,96 @@
+package service;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/*
+ * Progress of installing one application on many vehicles. Each vehicle
+ * goes from "sending" to "sent" when its session has written the packet,
+ * and to "installed" when the ACKs for all plugins have come; the other
+ * states are final. Rollouts are kept for a day after they started.
+ */
+public class Rollout {
+
+    public static final String NO_CONNECTION = "no connection";
+    public static final String SENDING = "sending";
+    public static final String SENT = "sent";
+    public static final String WRITE_FAILED = "write failed";
+    public static final String INSTALLED = "installed";
+
+    private static final long KEEP = 24 * 60 * 60 * 1000;
+
+    private static AtomicInteger nextId = new AtomicInteger(1);
+    private static ConcurrentHashMap<Integer, Rollout> rollouts =
+	new ConcurrentHashMap<Integer, Rollout>();
+
+    private final int id;
+    private final int appId;
+    private final long started = System.currentTimeMillis();
+    // key: vin, value: state
+    private ConcurrentHashMap<String, String> states =
+	new ConcurrentHashMap<String, String>();
+
+    private Rollout(int id, int appId) {
+	this.id = id;
+	this.appId = appId;
+    }
+
+    public static Rollout start(int appId) {
+	long now = System.currentTimeMillis();
+	for (Iterator<Rollout> it = rollouts.values().iterator(); it.hasNext(); ) {
+	    if (it.next().started + KEEP < now)
+		it.remove();
+	}
+
+	Rollout r = new Rollout(nextId.getAndIncrement(), appId);
+	rollouts.put(r.id, r);
+	return r;
+    }
+
+    public static Rollout get(int id) {
+	return rollouts.get(id);
+    }
+
+    // Called when all plugins of the application are acknowledged by the car
+    public static void installed(String vin, int appId) {
+	for (Rollout r : rollouts.values()) {
+	    if (r.appId == appId) {
+		if (!r.states.replace(vin, SENT, INSTALLED))
+		    r.states.replace(vin, SENDING, INSTALLED);
+	    }
+	}
+    }
+
+    public int getId() {
+	return id;
+    }
+
+    public void set(String vin, String state) {
+	states.put(vin, state);
+    }
+
+    // The write has completed; an ACK may already have come
+    public void written(String vin, boolean ok) {
+	states.replace(vin, SENDING, ok ? SENT : WRITE_FAILED);
+    }
+
+    public JSONObject toJSON() {
+	JSONObject o = new JSONObject();
+	JSONArray vehicles = new JSONArray();
+	for (Map.Entry<String, String> e : states.entrySet()) {
+	    JSONObject v = new JSONObject();
+	    v.put("vin", e.getKey());
+	    v.put("state", e.getValue());
+	    vehicles.put(v);
+	}
+	o.put("rollout", id);
+	o.put("application", appId);
+	o.put("vehicles", vehicles);
+	return o;
+    }
+}
@@ -0,0 +1,91 @@
+package service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * SHA-256 of the plugin files, in hex, as the vehicles name the suites in
+ * their plugin stores. A file is only read again when its size or time has
+ * changed, so looking up the hash of a plugin sent to many cars costs one
+ * read of the file.
+ */
+public class SuiteHashes {
+
+    private static class Entry {
+	final long length;
+	final long modified;
+	final String hash;
+
+	Entry(long length, long modified, String hash) {
+	    this.length = length;
+	    this.modified = modified;
+	    this.hash = hash;
+	}
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // key: path of the file
+    private static ConcurrentHashMap<String, Entry> hashes =
+	new ConcurrentHashMap<String, Entry>();
+
+    public static String get(String location) throws IOException {
+	File file = new File(location);
+	long length = file.length();
+	long modified = file.lastModified();
+	Entry e = hashes.get(location);
+	if (e != null && e.length == length && e.modified == modified)
+	    return e.hash;
+
+	String hash = hash(file);
+	hashes.put(location, new Entry(length, modified, hash));
+	return hash;
+    }
+
+    public static MessageDigest digest() throws IOException {
+	try {
+	    return MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IOException(e);
+	}
+    }
+
+    // Remembers the hash of a file that has just been written, with md
+    // from digest() updated with all its bytes, so that it is not read
+    // again to hash it
+    public static void put(String location, MessageDigest md) {
+	File file = new File(location);
+	hashes.put(location, new Entry(file.length(), file.lastModified(),
+				       hex(md.digest())));
+    }
+
+    private static String hash(File file) throws IOException {
+	MessageDigest md = digest();
+
+	InputStream is = new FileInputStream(file);
+	try {
+	    byte [] buf = new byte[64 * 1024];
+	    int n;
+	    while ((n = is.read(buf)) > 0)
+		md.update(buf, 0, n);
+	} finally {
+	    is.close();
+	}
+
+	return hex(md.digest());
+    }
+
+    static String hex(byte [] digest) {
+	char [] hex = new char[digest.length * 2];
+	for (int i = 0; i < digest.length; i++) {
+	    hex[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+	    hex[2 * i + 1] = HEX[digest[i] & 0xF];
+	}
+	return new String(hex);
+    }
+}
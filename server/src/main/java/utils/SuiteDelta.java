@@ -0,0 +1,179 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary delta between two versions of a plug-in, so that an upgrade only
+ * sends the bytes that changed. The server makes the delta against the
+ * version installed in the vehicle, and the vehicle rebuilds the new
+ * version from its stored copy of the old one. The same class is kept in
+ * the utils package on both sides.
+ *
+ * The old version is indexed by the hash of each block of BLOCK bytes, and
+ * the new one is scanned with a rolling hash of the same length. A block
+ * found in the old version is grown in both directions for as long as the
+ * bytes match and becomes a COPY; the bytes between two copies are ADDed.
+ *
+ * Delta: 1: version, 4: length of the new version, then the operations.
+ * COPY: 1: 0, 4: offset in the old version, 4: length.
+ * ADD: 1: 1, 4: length, then the bytes.
+ */
+public class SuiteDelta {
+	private static final byte VERSION = 1;
+	private static final byte COPY = 0;
+	private static final byte ADD = 1;
+
+	private static final int BLOCK = 16;
+	private static final int PRIME = 0x01000193;
+
+	/**
+	 * @return the delta that makes target out of base
+	 */
+	public static byte[] diff(byte[] base, byte[] target) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(VERSION);
+			out.writeInt(target.length);
+
+			int[] table = index(base);
+			int mask = table.length - 1;
+			int power = 1;
+			for (int i = 1; i < BLOCK; i++)
+				power *= PRIME;
+
+			// start of the bytes not covered by a copy yet
+			int added = 0;
+			int p = 0;
+			int h = hash(target, 0);
+			while (p + BLOCK <= target.length) {
+				int c = table[h & mask] - 1;
+				if (c >= 0 && matches(base, c, target, p)) {
+					int len = BLOCK;
+					while (p + len < target.length && c + len < base.length
+							&& base[c + len] == target[p + len])
+						len++;
+					while (p > added && c > 0 && base[c - 1] == target[p - 1]) {
+						c--;
+						p--;
+						len++;
+					}
+					writeAdd(out, target, added, p);
+					out.writeByte(COPY);
+					out.writeInt(c);
+					out.writeInt(len);
+					p += len;
+					added = p;
+					if (p + BLOCK <= target.length)
+						h = hash(target, p);
+				} else {
+					if (p + BLOCK < target.length)
+						h = (h - target[p] * power) * PRIME + target[p + BLOCK];
+					p++;
+				}
+			}
+			writeAdd(out, target, added, target.length);
+			out.flush();
+		} catch (IOException e) {
+			// not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Rebuilds the new version out of base and a delta made by diff.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the delta is not well formed or does not fit base
+	 */
+	public static byte[] apply(ByteBuffer base, byte[] delta) {
+		base = base.duplicate();
+		int baseStart = base.position();
+		int baseLength = base.remaining();
+		ByteBuffer in = ByteBuffer.wrap(delta);
+		try {
+			if (in.get() != VERSION)
+				throw new IllegalArgumentException("Unknown delta version");
+			int length = in.getInt();
+			if (length < 0)
+				throw new IllegalArgumentException("Bad delta length " + length);
+			byte[] target = new byte[length];
+			int p = 0;
+			while (in.hasRemaining()) {
+				byte op = in.get();
+				if (op == COPY) {
+					int offset = in.getInt();
+					int len = in.getInt();
+					if (offset < 0 || len < 0 || offset > baseLength - len
+							|| len > length - p)
+						throw new IllegalArgumentException("Bad delta copy "
+								+ offset + "+" + len + " at " + p);
+					base.position(baseStart + offset);
+					base.get(target, p, len);
+					p += len;
+				} else if (op == ADD) {
+					int len = in.getInt();
+					if (len < 0 || len > length - p)
+						throw new IllegalArgumentException("Bad delta add "
+								+ len + " at " + p);
+					in.get(target, p, len);
+					p += len;
+				} else {
+					throw new IllegalArgumentException("Bad delta operation "
+							+ op);
+				}
+			}
+			if (p != length)
+				throw new IllegalArgumentException("Delta ends at " + p
+						+ " of " + length);
+			return target;
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Delta is truncated");
+		}
+	}
+
+	// Offsets + 1 of the blocks of base by their hash, 0 for none. When two
+	// blocks have the same slot the first one is kept.
+	private static int[] index(byte[] base) {
+		int blocks = base.length / BLOCK;
+		int size = 16;
+		while (size < 2 * blocks)
+			size <<= 1;
+		int[] table = new int[size];
+		for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+			int slot = hash(base, i) & (size - 1);
+			if (table[slot] == 0)
+				table[slot] = i + 1;
+		}
+		return table;
+	}
+
+	private static int hash(byte[] data, int off) {
+		int h = 0;
+		for (int i = 0; i < BLOCK && off + i < data.length; i++)
+			h = h * PRIME + data[off + i];
+		return h;
+	}
+
+	private static boolean matches(byte[] base, int c, byte[] target, int p) {
+		for (int i = 0; i < BLOCK; i++) {
+			if (base[c + i] != target[p + i])
+				return false;
+		}
+		return true;
+	}
+
+	private static void writeAdd(DataOutputStream out, byte[] target,
+			int from, int to) throws IOException {
+		if (to <= from)
+			return;
+		out.writeByte(ADD);
+		out.writeInt(to - from);
+		out.write(target, from, to - from);
+	}
+}
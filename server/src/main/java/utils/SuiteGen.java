@@ -15,12 +15,11 @@ import java.io.OutputStreamWriter;
 //
 //import static java.nio.file.StandardCopyOption.*;
 
+// Several suites may be generated at the same time (see CompileService), so
+// the process and its output belong to each call.
 public class SuiteGen {
-    // executable process
-    private static Process process;
     private String squawkDir;
     private String cmd;
-    private String reply;
 	
     public SuiteGen(String squawkDir) {
 	this.squawkDir = squawkDir;
@@ -36,14 +35,14 @@ public class SuiteGen {
 	System.out.println("squawkDir = " + squawkDir);
 		
 	int ret;
-	reply = "";
+	StringBuffer reply = new StringBuffer();
 	File sourceFileFolder = new File(source);
 	if (sourceFileFolder.exists() && sourceFileFolder.isDirectory()) {
 	    BufferedWriter bw = null;
 
 	    try {			
 		Runtime runtime = Runtime.getRuntime();
-		process = runtime.exec("/bin/sh");
+		Process process = runtime.exec("/bin/sh");
 		// In case cmd.exe application is not initiated
 		//Thread.sleep(1000);
 
@@ -56,7 +55,7 @@ public class SuiteGen {
 		bw.flush();
 				
 		// Achieve output from console
-		Thread runtimeInput = new Thread(new RuntimeInput());
+		Thread runtimeInput = new Thread(new RuntimeInput(process, reply));
 		runtimeInput.start();
 		//Thread.sleep(500);
 				
@@ -67,6 +66,7 @@ public class SuiteGen {
 		bw.close();
 
 		ret = process.waitFor();
+		runtimeInput.join();
 		if (ret != 0) {
 		    r[0] = "subprocess returned " + ret + ":\n" + reply;
 		    return false;
@@ -90,11 +90,18 @@ public class SuiteGen {
 	    return false;
 	}
 		
-	r[0] = reply;
+	r[0] = reply.toString();
 	return true;
     }
 
     public class RuntimeInput implements Runnable {
+	private Process process;
+	private StringBuffer reply;
+
+	public RuntimeInput(Process process, StringBuffer reply) {
+	    this.process = process;
+	    this.reply = reply;
+	}
 
 	public void run() {
 	    BufferedReader br = new BufferedReader
@@ -102,7 +109,7 @@ public class SuiteGen {
 	    String content = null;
 	    try {
 		while ((content = br.readLine()) != null) {
-		    reply += content + "\n";
+		    reply.append(content).append("\n");
 		}
 	    } catch (IOException e) {
 		e.printStackTrace();
@@ -298,6 +298,10 @@ public class PIRTE implements Runnable {
 						
 			    Thread runnablePlugin4Load = new Thread(loadPlugIn);
 			    runnablePlugin4Load.start();
+			    if (loadMessage.getPluginId() != 0) {
+				RTE.getInstance().addRteMessage(
+								new InstallAckMessage(loadMessage.getPluginId(), pluginName4Load));
+			    }
 						
 			    // Register PlugIn in pirte
 			    runnablePlugins.put(pluginName4Load, runnablePlugin4Load);
@@ -80,6 +80,12 @@ public class PIRTE {
     private Isolate the_isolate;
     private Thread the_thread;
 
+	// frame being reassembled from TRANSFER chunks
+	private byte[] transferFrame;
+	private byte transferId;
+	private int transferIndex;
+	private int transferNextSeq;
+
 	public PIRTE() {
 		linker = new Linker(this);
 
@@ -639,6 +645,19 @@ public class PIRTE {
 				// Do something meaningful if >, because that's
 				// an error
 				if (index >= messageSize) {
+					if (message[0] == MessageType.TRANSFER) {
+						byte[] frame = reassemble(message);
+						if (frame == null) {
+							// wait for the next chunk
+							index = 0;
+							message = null;
+							isConsectutive = false;
+							messageSize = 0;
+							continue;
+						}
+						message = frame;
+						messageSize = frame.length;
+					}
 					byte messageType = message[0];
 					switch (messageType) {
 					case MessageType.INSTALL:
@@ -835,6 +854,11 @@ public class PIRTE {
 						    e.printStackTrace();
 						}
 
+						if (messageType == MessageType.LOAD && pluginId != 0) {
+							// the ECM waits for this before the next LOAD
+							sendMessage(new InstallAckMessage(pluginId));
+						}
+
 						break;
 					case MessageType.UNINSTALL:
 						index = 1;
@@ -949,6 +973,65 @@ public class PIRTE {
 				| (b[0] & 0xFF) << 24;
 	}
 
+	/*
+	 * Collects a frame sent in TRANSFER chunks (see SocketEcuManager):
+	 * 1: Message Type, 1: transfer ID, 4: sequence number, 4: frame size,
+	 * 2: chunk size(N), N: chunk of the frame.
+	 * Chunks are only taken in order. Each one is answered with the next
+	 * sequence number expected, so the sender goes back to that chunk after
+	 * a loss. Returns the frame when the last chunk is in, otherwise null.
+	 */
+	private byte[] reassemble(byte[] chunk) {
+		byte id = chunk[1];
+		int seq = readInt(chunk, 2);
+		int totalSize = readInt(chunk, 6);
+		int len = (chunk[10] & 0xFF) << 8 | (chunk[11] & 0xFF);
+
+		if (id == transferId && transferFrame == null) {
+			// already complete, the last acknowledgement got lost
+			sendTransferAck(transferId, transferNextSeq);
+			return null;
+		}
+		if (id != transferId) {
+			if (seq != 0)
+				return null;
+			transferId = id;
+			transferFrame = new byte[totalSize];
+			transferIndex = 0;
+			transferNextSeq = 0;
+		}
+		if (seq == transferNextSeq
+				&& transferIndex + len <= transferFrame.length) {
+			System.arraycopy(chunk, 12, transferFrame, transferIndex, len);
+			transferIndex += len;
+			transferNextSeq++;
+		}
+		sendTransferAck(transferId, transferNextSeq);
+
+		if (transferIndex < transferFrame.length)
+			return null;
+		byte[] frame = transferFrame;
+		transferFrame = null;
+		return frame;
+	}
+
+	private void sendTransferAck(byte id, int next) {
+		// 1: message type, 1: transfer ID, 4: next sequence number
+		byte[] buffer = new byte[6];
+		buffer[0] = MessageType.TRANSFER_ACK;
+		buffer[1] = id;
+		buffer[2] = (byte) (next >> 24);
+		buffer[3] = (byte) ((next >> 16) & 0xFF);
+		buffer[4] = (byte) ((next >> 8) & 0xFF);
+		buffer[5] = (byte) (next & 0xFF);
+		VM.jnaSendPackageData(buffer.length, buffer);
+	}
+
+	private int readInt(byte[] b, int index) {
+		return b[index + 3] & 0xFF | (b[index + 2] & 0xFF) << 8
+				| (b[index + 1] & 0xFF) << 16 | (b[index] & 0xFF) << 24;
+	}
+
 	public static void main(String[] args) {
 		VM.print("PIRTE is running 2 ...\r\n");
 